@@ -7,11 +7,20 @@
 #include <string>
 #include <pthread.h>
 #include <vector>
+#include <fcntl.h>
+#include <stdio.h>
+#include <unistd.h>
 
 #define LOG_TAG "YaraEngine"
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+// Per-scan and per-match messages; only debug builds pay for formatting them
+#ifdef YARA_SCAN_LOGGING
+#define LOGS(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+#else
+#define LOGS(...) ((void) 0)
+#endif
 
 // Global variables
 static YR_COMPILER* g_compiler = NULL;
@@ -91,7 +100,7 @@ jobject createScanResult(JNIEnv* env, bool isSafe, const char* threatName,
 int scanCallback(YR_SCAN_CONTEXT* context, int message, void* message_data, void* user_data) {
     if (message == CALLBACK_MSG_RULE_MATCHING) {
         YR_RULE* rule = (YR_RULE*)message_data;
-        LOGD("YARA Rule matched: %s", rule->identifier);
+        LOGS("YARA Rule matched: %s", rule->identifier);
         
         ScanResultData* result_data = (ScanResultData*)user_data;
         if (result_data) {
@@ -202,7 +211,7 @@ Java_com_shabari_yara_YaraEngine_nativeScanFile(JNIEnv* env, jobject thiz, jstri
                                "Invalid file path provided");
     }
 
-    LOGI("Scanning file with YARA: %s", path);
+    LOGS("Scanning file with YARA: %s", path);
     
     ScanResultData scan_data;
     scan_data.is_dangerous = false;
@@ -218,7 +227,7 @@ Java_com_shabari_yara_YaraEngine_nativeScanFile(JNIEnv* env, jobject thiz, jstri
         // No matches found - file is safe
         scanResult = createScanResult(env, true, "", "", "safe", NULL, 
                                     "No threats detected by YARA engine");
-        LOGD("File scan completed - no threats detected");
+        LOGS("File scan completed - no threats detected");
     } else if (result == ERROR_CALLBACK_ERROR) {
         // Rules matched - potential threat detected
         std::string threat_name = "Malware.Generic";
@@ -235,7 +244,7 @@ Java_com_shabari_yara_YaraEngine_nativeScanFile(JNIEnv* env, jobject thiz, jstri
         
         scanResult = createScanResult(env, false, threat_name.c_str(), "malware", "high", 
                                     NULL, details.c_str());
-        LOGD("File scan completed - threats detected: %s", details.c_str());
+        LOGS("File scan completed - threats detected: %s", details.c_str());
     } else {
         // Scan error
         LOGE("YARA scan failed: %d", result);
@@ -268,7 +277,7 @@ Java_com_shabari_yara_YaraEngine_nativeScanMemory(JNIEnv* env, jobject thiz, jby
                                "Invalid memory data provided");
     }
 
-    LOGD("Scanning memory buffer of size: %d", buffer_size);
+    LOGS("Scanning memory buffer of size: %d", buffer_size);
     
     ScanResultData scan_data;
     scan_data.is_dangerous = false;
@@ -283,7 +292,7 @@ Java_com_shabari_yara_YaraEngine_nativeScanMemory(JNIEnv* env, jobject thiz, jby
     if (result == ERROR_SUCCESS) {
         scanResult = createScanResult(env, true, "", "", "safe", NULL, 
                                     "No threats detected in memory");
-        LOGD("Memory scan completed - no threats detected");
+        LOGS("Memory scan completed - no threats detected");
     } else if (result == ERROR_CALLBACK_ERROR) {
         std::string threat_name = "Memory.Malware";
         std::string details = "Detected malware patterns in memory: ";
@@ -299,7 +308,7 @@ Java_com_shabari_yara_YaraEngine_nativeScanMemory(JNIEnv* env, jobject thiz, jby
         
         scanResult = createScanResult(env, false, threat_name.c_str(), "malware", "high", 
                                     NULL, details.c_str());
-        LOGD("Memory scan completed - threats detected: %s", details.c_str());
+        LOGS("Memory scan completed - threats detected: %s", details.c_str());
     } else {
         LOGE("YARA memory scan failed: %d", result);
         scanResult = createScanResult(env, false, "Scan Error", "error", "medium", NULL, 
@@ -335,6 +344,85 @@ Java_com_shabari_yara_YaraEngine_nativeGetLoadedRulesCount(JNIEnv* env, jobject
     return count;
 }
 
+JNIEXPORT jboolean JNICALL
+Java_com_shabari_yara_YaraEngine_nativeSaveRules(JNIEnv* env, jobject thiz, jstring path) {
+    pthread_mutex_lock(&g_mutex);
+
+    if (!g_initialized || !g_rules) {
+        LOGE("No compiled rules to save");
+        pthread_mutex_unlock(&g_mutex);
+        return JNI_FALSE;
+    }
+
+    const char* filename = env->GetStringUTFChars(path, NULL);
+    if (!filename) {
+        pthread_mutex_unlock(&g_mutex);
+        return JNI_FALSE;
+    }
+
+    // Written next to the target, synced and renamed over it, so a crash
+    // leaves either the old file or the complete new one
+    std::string target = filename;
+    std::string temp = target + ".tmp";
+    env->ReleaseStringUTFChars(path, filename);
+    int result = yr_rules_save(g_rules, temp.c_str());
+    pthread_mutex_unlock(&g_mutex);
+
+    if (result != ERROR_SUCCESS) {
+        LOGE("Failed to save compiled rules: %d", result);
+        unlink(temp.c_str());
+        return JNI_FALSE;
+    }
+    int fd = open(temp.c_str(), O_RDONLY);
+    bool synced = fd >= 0 && fsync(fd) == 0;
+    if (fd >= 0) {
+        close(fd);
+    }
+    if (!synced || rename(temp.c_str(), target.c_str()) != 0) {
+        LOGE("Failed to replace compiled rules file");
+        unlink(temp.c_str());
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_shabari_yara_YaraEngine_nativeLoadCompiledRules(JNIEnv* env, jobject thiz, jstring path) {
+    pthread_mutex_lock(&g_mutex);
+
+    if (!g_initialized) {
+        LOGE("YARA engine not initialized");
+        pthread_mutex_unlock(&g_mutex);
+        return JNI_FALSE;
+    }
+
+    const char* filename = env->GetStringUTFChars(path, NULL);
+    if (!filename) {
+        pthread_mutex_unlock(&g_mutex);
+        return JNI_FALSE;
+    }
+
+    // The current rules stay loaded unless the file is valid
+    YR_RULES* rules = NULL;
+    int result = yr_rules_load(filename, &rules);
+    env->ReleaseStringUTFChars(path, filename);
+
+    if (result != ERROR_SUCCESS) {
+        LOGE("Failed to load compiled rules: %d", result);
+        pthread_mutex_unlock(&g_mutex);
+        return JNI_FALSE;
+    }
+
+    if (g_rules) {
+        yr_rules_destroy(g_rules);
+    }
+    g_rules = rules;
+
+    LOGI("Compiled YARA rules loaded successfully");
+    pthread_mutex_unlock(&g_mutex);
+    return JNI_TRUE;
+}
+
 JNIEXPORT void JNICALL
 Java_com_shabari_yara_YaraEngine_nativeCleanup(JNIEnv* env, jobject thiz) {
     pthread_mutex_lock(&g_mutex);
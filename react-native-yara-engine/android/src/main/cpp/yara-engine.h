@@ -31,6 +31,12 @@ Java_com_shabari_yara_YaraEngine_nativeGetLoadedRulesCount(JNIEnv* env, jobject
 JNIEXPORT void JNICALL
 Java_com_shabari_yara_YaraEngine_nativeCleanup(JNIEnv* env, jobject thiz);
 
+JNIEXPORT jboolean JNICALL
+Java_com_shabari_yara_YaraEngine_nativeSaveRules(JNIEnv* env, jobject thiz, jstring path);
+
+JNIEXPORT jboolean JNICALL
+Java_com_shabari_yara_YaraEngine_nativeLoadCompiledRules(JNIEnv* env, jobject thiz, jstring path);
+
 // Helper functions
 jobject createScanResult(JNIEnv* env, bool isSafe, const char* threatName, 
                         const char* category, const char* severity, 
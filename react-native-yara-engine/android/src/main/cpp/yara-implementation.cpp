@@ -11,6 +11,10 @@
 #include <cstring>
 #include <algorithm>
 #include <memory>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
 
 // Global state
 static bool g_initialized = false;
@@ -144,6 +148,67 @@ bool checkFileSignatures(const std::vector<uint8_t>& data) {
     return false;
 }
 
+// Compiled rules file: magic, format version, then each rule as
+// length-prefixed fields (native byte order, as written on the device)
+static const uint32_t RULES_FILE_MAGIC = 0x43525953; // "SYRC"
+static const uint32_t RULES_FILE_VERSION = 1;
+
+static void writeU32(std::ofstream& out, uint32_t value) {
+    out.write(reinterpret_cast<const char*>(&value), sizeof(value));
+}
+
+static void writeString(std::ofstream& out, const std::string& value) {
+    writeU32(out, static_cast<uint32_t>(value.size()));
+    out.write(value.data(), value.size());
+}
+
+// Bounds-checked reader over a mapped file
+struct RulesFileReader {
+    const uint8_t* data;
+    size_t size;
+    size_t position;
+
+    bool readU32(uint32_t* value) {
+        if (size - position < sizeof(uint32_t)) return false;
+        memcpy(value, data + position, sizeof(uint32_t));
+        position += sizeof(uint32_t);
+        return true;
+    }
+
+    bool readString(std::string* value) {
+        uint32_t length;
+        if (!readU32(&length) || size - position < length) return false;
+        value->assign(reinterpret_cast<const char*>(data + position), length);
+        position += length;
+        return true;
+    }
+};
+
+static int parseRulesFile(RulesFileReader& reader, YaraRulesInternal* rules) {
+    uint32_t magic, version, count;
+    if (!reader.readU32(&magic) || magic != RULES_FILE_MAGIC) return ERROR_INVALID_FILE;
+    if (!reader.readU32(&version)) return ERROR_CORRUPT_FILE;
+    if (version != RULES_FILE_VERSION) return ERROR_UNSUPPORTED_FILE_VERSION;
+    if (!reader.readU32(&count)) return ERROR_CORRUPT_FILE;
+
+    for (uint32_t i = 0; i < count; i++) {
+        YaraRuleInternal rule;
+        uint32_t high_risk, pattern_count;
+        if (!reader.readString(&rule.identifier) || !reader.readString(&rule.category)
+                || !reader.readU32(&high_risk) || !reader.readU32(&pattern_count)) {
+            return ERROR_CORRUPT_FILE;
+        }
+        rule.is_high_risk = high_risk != 0;
+        for (uint32_t p = 0; p < pattern_count; p++) {
+            std::string pattern;
+            if (!reader.readString(&pattern)) return ERROR_CORRUPT_FILE;
+            rule.patterns.push_back(pattern);
+        }
+        rules->rules.push_back(rule);
+    }
+    return ERROR_SUCCESS;
+}
+
 // YARA API Implementation
 extern "C" {
 
@@ -307,4 +372,69 @@ int yr_rules_scan_mem(YR_RULES* rules, const uint8_t* buffer, size_t buffer_size
     return (has_malware || has_suspicious_header) ? ERROR_CALLBACK_ERROR : ERROR_SUCCESS;
 }
 
+int yr_rules_save(YR_RULES* rules, const char* filename) {
+    if (!rules || !filename) return ERROR_INVALID_ARGUMENT;
+
+    auto internal = reinterpret_cast<YaraRulesInternal*>(rules);
+    std::string temp = std::string(filename) + ".tmp";
+    {
+        std::ofstream out(temp, std::ios::binary | std::ios::trunc);
+        if (!out.is_open()) return ERROR_COULD_NOT_OPEN_FILE;
+
+        writeU32(out, RULES_FILE_MAGIC);
+        writeU32(out, RULES_FILE_VERSION);
+        writeU32(out, static_cast<uint32_t>(internal->rules.size()));
+        for (const auto& rule : internal->rules) {
+            writeString(out, rule.identifier);
+            writeString(out, rule.category);
+            writeU32(out, rule.is_high_risk ? 1 : 0);
+            writeU32(out, static_cast<uint32_t>(rule.patterns.size()));
+            for (const auto& pattern : rule.patterns) {
+                writeString(out, pattern);
+            }
+        }
+        if (!out.good()) {
+            out.close();
+            unlink(temp.c_str());
+            return ERROR_COULD_NOT_OPEN_FILE;
+        }
+    }
+
+    // Readers never see a partially written file
+    if (rename(temp.c_str(), filename) != 0) {
+        unlink(temp.c_str());
+        return ERROR_COULD_NOT_OPEN_FILE;
+    }
+    return ERROR_SUCCESS;
+}
+
+int yr_rules_load(const char* filename, YR_RULES** rules) {
+    if (!filename || !rules) return ERROR_INVALID_ARGUMENT;
+
+    int fd = open(filename, O_RDONLY);
+    if (fd < 0) return ERROR_COULD_NOT_OPEN_FILE;
+
+    struct stat st;
+    if (fstat(fd, &st) != 0 || st.st_size == 0) {
+        close(fd);
+        return ERROR_INVALID_FILE;
+    }
+
+    void* mapped = mmap(NULL, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (mapped == MAP_FAILED) return ERROR_COULD_NOT_MAP_FILE;
+
+    auto internal = new YaraRulesInternal();
+    RulesFileReader reader = { static_cast<const uint8_t*>(mapped), static_cast<size_t>(st.st_size), 0 };
+    int result = parseRulesFile(reader, internal);
+    munmap(mapped, st.st_size);
+
+    if (result != ERROR_SUCCESS) {
+        delete internal;
+        return result;
+    }
+    *rules = reinterpret_cast<YR_RULES*>(internal);
+    return ERROR_SUCCESS;
+}
+
 } // extern "C" 
\ No newline at end of file
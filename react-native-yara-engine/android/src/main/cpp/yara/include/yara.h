@@ -156,6 +156,8 @@ int yr_compiler_get_rules(YR_COMPILER* compiler, YR_RULES** rules);
 void yr_rules_destroy(YR_RULES* rules);
 int yr_rules_scan_file(YR_RULES* rules, const char* filename, int flags, YR_CALLBACK_FUNC callback, void* user_data, int timeout);
 int yr_rules_scan_mem(YR_RULES* rules, const uint8_t* buffer, size_t buffer_size, int flags, YR_CALLBACK_FUNC callback, void* user_data, int timeout);
+int yr_rules_save(YR_RULES* rules, const char* filename);
+int yr_rules_load(const char* filename, YR_RULES** rules);
 
 // Utility macros
 #define yr_rules_foreach(rules, rule) \
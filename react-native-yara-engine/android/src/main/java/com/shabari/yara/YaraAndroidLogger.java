@@ -0,0 +1,14 @@
+package com.shabari.yara;
+
+import android.util.Log;
+
+// Default YaraLog destination on Android; installed by YaraModule
+final class YaraAndroidLogger implements YaraLog.Logger {
+    @Override
+    public void log(int priority, String tag, String message, Throwable error) {
+        if (error != null) {
+            message = message + '\n' + Log.getStackTraceString(error);
+        }
+        Log.println(priority, tag, message);
+    }
+}
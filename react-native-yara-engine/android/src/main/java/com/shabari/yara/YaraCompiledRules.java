@@ -0,0 +1,355 @@
+package com.shabari.yara;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Immutable result of compiling a rule source with YaraRuleCompiler. Holds the
+// rules, their strings (indexed globally across the rule set) and the two
+// automata used for the pattern pass: one exact, one case-folding for nocase
+// strings. Hex strings with wildcards go to a bit-parallel YaraHexMatcher and
+// regular expression strings to a YaraRegexScanner. Conditions are compiled
+// into YaraConditionProgram instances once, here. All of it can be written
+// to and mapped back from a YaraRulesFile without recompiling.
+final class YaraCompiledRules {
+    final List<YaraRule> rules;
+    final List<YaraRuleString> strings;
+    private final YaraPatternMatcher exactMatcher;
+    private final YaraPatternMatcher foldedMatcher;
+    private final YaraHexMatcher hexMatcher;
+    private final YaraRegexScanner regexScanner;
+    private final int maxPatternLength;
+    private final YaraConditionProgram[] programs;
+    private final int stackDepth;
+    // Rule i is id i; results of this rule set reference rules through it
+    final YaraRuleNames ruleNames;
+
+    YaraCompiledRules(List<YaraRule> rules, List<YaraRuleString> strings) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.strings = Collections.unmodifiableList(strings);
+
+        List<byte[]> exactPatterns = new ArrayList<>();
+        List<Integer> exactIndexes = new ArrayList<>();
+        List<byte[]> foldedPatterns = new ArrayList<>();
+        List<Integer> foldedIndexes = new ArrayList<>();
+        List<YaraRegex> regexes = new ArrayList<>();
+        List<Integer> regexIndexes = new ArrayList<>();
+        List<YaraRuleString> hexStrings = new ArrayList<>();
+        int maxLength = 0;
+        for (YaraRuleString string : strings) {
+            if (string.forms != null) {
+                hexStrings.add(string);
+                maxLength = Math.max(maxLength, string.maxLength());
+                continue;
+            }
+            if (string.regex != null) {
+                regexes.add(string.regex);
+                regexIndexes.add(string.index);
+                continue;
+            }
+            for (byte[] pattern : string.patterns) {
+                if (string.noCase) {
+                    foldedPatterns.add(pattern);
+                    foldedIndexes.add(string.index);
+                } else {
+                    exactPatterns.add(pattern);
+                    exactIndexes.add(string.index);
+                }
+            }
+            maxLength = Math.max(maxLength, string.maxLength());
+        }
+        this.exactMatcher = exactPatterns.isEmpty() ? null
+                : YaraPatternMatcher.build(exactPatterns, exactIndexes, false);
+        this.foldedMatcher = foldedPatterns.isEmpty() ? null
+                : YaraPatternMatcher.build(foldedPatterns, foldedIndexes, true);
+        this.hexMatcher = hexStrings.isEmpty() ? null : new YaraHexMatcher(hexStrings);
+        this.regexScanner = regexes.isEmpty() ? null : new YaraRegexScanner(regexes, regexIndexes);
+        if (regexScanner != null) {
+            maxLength = Math.max(maxLength, regexScanner.getLookahead());
+        }
+        this.maxPatternLength = maxLength;
+
+        int[] settle = new int[strings.size()];
+        for (YaraRuleString string : strings) {
+            settle[string.index] = string.regex != null ? regexScanner.getLookahead() : string.maxLength();
+        }
+        this.programs = new YaraConditionProgram[rules.size()];
+        int depth = 1;
+        for (YaraRule rule : rules) {
+            programs[rule.index] = YaraConditionProgram.compile(rule.condition, settle);
+            depth = Math.max(depth, programs[rule.index].depth);
+        }
+        this.stackDepth = depth;
+        this.ruleNames = YaraRuleNames.of(rules);
+    }
+
+    private YaraCompiledRules(List<YaraRule> rules, List<YaraRuleString> strings, YaraPatternMatcher exactMatcher,
+                              YaraPatternMatcher foldedMatcher, YaraHexMatcher hexMatcher,
+                              YaraRegexScanner regexScanner, int maxPatternLength, YaraConditionProgram[] programs,
+                              int stackDepth) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.strings = Collections.unmodifiableList(strings);
+        this.exactMatcher = exactMatcher;
+        this.foldedMatcher = foldedMatcher;
+        this.hexMatcher = hexMatcher;
+        this.regexScanner = regexScanner;
+        this.maxPatternLength = maxPatternLength;
+        this.programs = programs;
+        this.stackDepth = stackDepth;
+        this.ruleNames = YaraRuleNames.of(rules);
+    }
+
+    // Body of a YaraRulesFile: strings, rules with their programs, then the
+    // automata, each optional one preceded by a presence flag
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(strings.size());
+        for (YaraRuleString string : strings) {
+            string.write(out);
+        }
+        out.writeInt(rules.size());
+        for (YaraRule rule : rules) {
+            YaraRulesFile.writeString(out, rule.name);
+            out.writeBoolean(rule.isPrivate);
+            out.writeBoolean(rule.isGlobal);
+            out.writeInt(rule.meta.size());
+            for (Map.Entry<String, String> entry : rule.meta.entrySet()) {
+                YaraRulesFile.writeString(out, entry.getKey());
+                YaraRulesFile.writeString(out, entry.getValue());
+            }
+            int[] stringIndexes = new int[rule.strings.size()];
+            for (int i = 0; i < stringIndexes.length; i++) {
+                stringIndexes[i] = rule.strings.get(i).index;
+            }
+            YaraRulesFile.writeInts(out, stringIndexes);
+            programs[rule.index].write(out);
+        }
+        out.writeInt(maxPatternLength);
+        out.writeInt(stackDepth);
+        out.writeBoolean(exactMatcher != null);
+        if (exactMatcher != null) {
+            exactMatcher.write(out);
+        }
+        out.writeBoolean(foldedMatcher != null);
+        if (foldedMatcher != null) {
+            foldedMatcher.write(out);
+        }
+        out.writeBoolean(hexMatcher != null);
+        if (hexMatcher != null) {
+            hexMatcher.write(out);
+        }
+        out.writeBoolean(regexScanner != null);
+        if (regexScanner != null) {
+            regexScanner.write(out);
+        }
+    }
+
+    static YaraCompiledRules read(ByteBuffer in) {
+        List<YaraRuleString> strings = new ArrayList<>();
+        int stringCount = in.getInt();
+        for (int i = 0; i < stringCount; i++) {
+            YaraRuleString string = YaraRuleString.read(in);
+            if (string.index != i) {
+                throw new IllegalArgumentException("String " + i + " stored out of order");
+            }
+            strings.add(string);
+        }
+        List<YaraRule> rules = new ArrayList<>();
+        YaraConditionProgram[] programs = new YaraConditionProgram[in.getInt()];
+        for (int r = 0; r < programs.length; r++) {
+            String name = YaraRulesFile.readString(in);
+            boolean isPrivate = in.get() != 0;
+            boolean isGlobal = in.get() != 0;
+            Map<String, String> meta = new LinkedHashMap<>();
+            int metaCount = in.getInt();
+            for (int i = 0; i < metaCount; i++) {
+                meta.put(YaraRulesFile.readString(in), YaraRulesFile.readString(in));
+            }
+            List<YaraRuleString> ruleStrings = new ArrayList<>();
+            for (int index : YaraRulesFile.readInts(in)) {
+                ruleStrings.add(strings.get(index));
+            }
+            programs[r] = YaraConditionProgram.read(in);
+            rules.add(new YaraRule(name, r, isPrivate, isGlobal, meta, ruleStrings, null));
+        }
+        int maxPatternLength = in.getInt();
+        int stackDepth = in.getInt();
+        YaraPatternMatcher exactMatcher = in.get() != 0 ? YaraPatternMatcher.read(in) : null;
+        YaraPatternMatcher foldedMatcher = in.get() != 0 ? YaraPatternMatcher.read(in) : null;
+        YaraHexMatcher hexMatcher = in.get() != 0 ? YaraHexMatcher.read(in) : null;
+        YaraRegexScanner regexScanner = in.get() != 0 ? YaraRegexScanner.read(in, strings) : null;
+        return new YaraCompiledRules(rules, strings, exactMatcher, foldedMatcher, hexMatcher, regexScanner,
+                maxPatternLength, programs, stackDepth);
+    }
+
+    int getRuleCount() {
+        return rules.size();
+    }
+
+    // Longest stretch of input past a match start needed to find the match
+    int getMaxPatternLength() {
+        return maxPatternLength;
+    }
+
+    YaraMatchSet newMatchSet() {
+        return new YaraMatchSet(strings.size());
+    }
+
+    // Pattern pass over buffer[from, to) recording only matches that start
+    // before recordLimit (absolute offsets, base = offset of buffer index 0).
+    void scan(ByteBuffer buffer, int from, int to, long base, long recordLimit, YaraMatchSet matches) {
+        ScanState state = newScanState();
+        scan(buffer, from, to, base, recordLimit, matches, state);
+        finishScan(state, recordLimit, matches);
+    }
+
+    // Automaton states to carry between consecutive scan calls over a stream
+    ScanState newScanState() {
+        return new ScanState(hexMatcher != null ? hexMatcher.newState() : null,
+                regexScanner != null ? regexScanner.newState() : null,
+                rules.size(), strings.size(), stackDepth);
+    }
+
+    void scan(ByteBuffer buffer, int from, int to, long base, long recordLimit, YaraMatchSet matches,
+              ScanState state) {
+        if (exactMatcher != null) {
+            state.exactState = exactMatcher.scan(buffer, from, to, base, state.exactState, recordLimit, matches);
+        }
+        if (foldedMatcher != null) {
+            state.foldedState = foldedMatcher.scan(buffer, from, to, base, state.foldedState, recordLimit, matches);
+        }
+        if (hexMatcher != null) {
+            hexMatcher.scan(buffer, from, to, base, recordLimit, matches, state.hexState);
+        }
+        if (regexScanner != null) {
+            regexScanner.scan(buffer, from, to, base, recordLimit, matches, state.regexState);
+        }
+    }
+
+    // Records the matches still waiting for lookahead at the end of the input
+    void finishScan(ScanState state, long recordLimit, YaraMatchSet matches) {
+        if (regexScanner != null) {
+            regexScanner.finish(state.regexState, recordLimit, matches);
+        }
+    }
+
+    static final class ScanState {
+        int exactState;
+        int foldedState;
+        final YaraHexMatcher.State hexState;
+        final YaraRegexScanner.State regexState;
+        // Rule outcomes as of the last decide() call
+        final byte[] ruleValues;
+        final int[] stack;
+        private final boolean[] needed;
+        private final boolean[] dropped;
+        private boolean decided;
+
+        ScanState(YaraHexMatcher.State hexState, YaraRegexScanner.State regexState, int ruleCount,
+                  int stringCount, int stackDepth) {
+            this.hexState = hexState;
+            this.regexState = regexState;
+            this.ruleValues = new byte[ruleCount];
+            this.stack = new int[stackDepth];
+            this.needed = new boolean[stringCount];
+            this.dropped = new boolean[stringCount];
+        }
+
+        // True once nothing further in the input can change the verdict
+        boolean isDecided() {
+            return decided;
+        }
+    }
+
+    // Three-valued outcome of every rule after the first `scanned` bytes of
+    // an input of fileSize bytes (-1 while unknown). Returns false as soon as
+    // a global rule fails, which decides the verdict on its own.
+    private boolean evaluateRules(YaraMatchSet matches, long scanned, long fileSize, byte[] values, int[] stack) {
+        for (YaraRule rule : rules) {
+            int value = programs[rule.index].evaluate(matches, scanned, fileSize, values, stack);
+            values[rule.index] = (byte) value;
+            if (rule.isGlobal && value == YaraConditionProgram.FALSE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Re-evaluates the rules part way through a scan. Hex and regex strings
+    // that only decided rules look at are dropped from the scan, and once
+    // every rule is decided the caller can stop feeding input altogether.
+    // Literal strings share one automaton and keep being matched until then.
+    void decide(YaraMatchSet matches, long scanned, long fileSize, ScanState state) {
+        if (state.decided) {
+            return;
+        }
+        if (!evaluateRules(matches, scanned, fileSize, state.ruleValues, state.stack)) {
+            state.decided = true;
+            return;
+        }
+        boolean[] needed = state.needed;
+        Arrays.fill(needed, false);
+        boolean decided = true;
+        for (YaraRule rule : rules) {
+            if (state.ruleValues[rule.index] == YaraConditionProgram.UNDECIDED) {
+                decided = false;
+                for (int index : programs[rule.index].strings) {
+                    needed[index] = true;
+                }
+            }
+        }
+        state.decided = decided;
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i] || state.dropped[i]) {
+                continue;
+            }
+            state.dropped[i] = true;
+            YaraRuleString string = strings.get(i);
+            if (string.forms != null) {
+                hexMatcher.drop(state.hexState, i);
+            } else if (string.regex != null) {
+                regexScanner.drop(state.regexState, i);
+            }
+        }
+    }
+
+    // Evaluates every condition against the merged matches of the whole input
+    // and returns the public rules that matched, in declaration order.
+    // An input whose scan stopped early once decide() found every rule
+    // decided evaluates to the same verdict as a full scan would.
+    List<YaraRule> evaluate(YaraMatchSet matches, long fileSize) {
+        byte[] values = new byte[rules.size()];
+        List<YaraRule> matched = new ArrayList<>();
+        if (!evaluateRules(matches, fileSize, fileSize, values, new int[stackDepth])) {
+            return matched;
+        }
+        for (YaraRule rule : rules) {
+            if (values[rule.index] == YaraConditionProgram.TRUE && !rule.isPrivate) {
+                matched.add(rule);
+            }
+        }
+        return matched;
+    }
+
+    // Public rules already decided to match by the last decide() call on
+    // state, provided every global rule is decided true as well.
+    List<YaraRule> decidedMatches(ScanState state) {
+        List<YaraRule> decided = new ArrayList<>();
+        for (YaraRule rule : rules) {
+            if (rule.isGlobal && state.ruleValues[rule.index] != YaraConditionProgram.TRUE) {
+                return decided;
+            }
+        }
+        for (YaraRule rule : rules) {
+            if (state.ruleValues[rule.index] == YaraConditionProgram.TRUE && !rule.isPrivate) {
+                decided.add(rule);
+            }
+        }
+        return decided;
+    }
+}
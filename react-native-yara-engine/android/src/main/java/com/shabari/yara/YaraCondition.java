@@ -0,0 +1,122 @@
+package com.shabari.yara;
+
+import java.util.List;
+
+// Condition tree produced by YaraRuleCompiler. Only the subset of the YARA
+// condition language that can be decided from string matches and filesize is
+// supported by the Java engine. Trees are compiled into a
+// YaraConditionProgram for evaluation.
+abstract class YaraCondition {
+    static final int ANY = -1;
+    static final int ALL = -2;
+    static final int NONE = -3;
+
+    static final class Constant extends YaraCondition {
+        final boolean value;
+
+        Constant(boolean value) {
+            this.value = value;
+        }
+    }
+
+    static final class StringMatch extends YaraCondition {
+        final int stringIndex;
+
+        StringMatch(int stringIndex) {
+            this.stringIndex = stringIndex;
+        }
+    }
+
+    static final class StringAt extends YaraCondition {
+        final int stringIndex;
+        final long offset;
+
+        StringAt(int stringIndex, long offset) {
+            this.stringIndex = stringIndex;
+            this.offset = offset;
+        }
+    }
+
+    static final class StringIn extends YaraCondition {
+        final int stringIndex;
+        final long from;
+        final long to;
+
+        StringIn(int stringIndex, long from, long to) {
+            this.stringIndex = stringIndex;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    static final class Of extends YaraCondition {
+        final int quantifier;
+        final int[] stringIndexes;
+
+        Of(int quantifier, int[] stringIndexes) {
+            this.quantifier = quantifier;
+            this.stringIndexes = stringIndexes;
+        }
+    }
+
+    static final class RuleReference extends YaraCondition {
+        final int ruleIndex;
+
+        RuleReference(int ruleIndex) {
+            this.ruleIndex = ruleIndex;
+        }
+    }
+
+    static final class And extends YaraCondition {
+        final YaraCondition[] operands;
+
+        And(List<YaraCondition> operands) {
+            this.operands = operands.toArray(new YaraCondition[0]);
+        }
+    }
+
+    static final class Or extends YaraCondition {
+        final YaraCondition[] operands;
+
+        Or(List<YaraCondition> operands) {
+            this.operands = operands.toArray(new YaraCondition[0]);
+        }
+    }
+
+    static final class Not extends YaraCondition {
+        final YaraCondition operand;
+
+        Not(YaraCondition operand) {
+            this.operand = operand;
+        }
+    }
+
+    static final class Compare extends YaraCondition {
+        final Value left;
+        final String operator;
+        final Value right;
+
+        Compare(Value left, String operator, Value right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+    }
+
+    // Integer operands of a comparison: literals, #string counts and filesize.
+    static final class Value {
+        static final int LITERAL = 0;
+        static final int COUNT = 1;
+        static final int FILESIZE = 2;
+
+        final int kind;
+        final long literal;
+        final int stringIndex;
+
+        Value(int kind, long literal, int stringIndex) {
+            this.kind = kind;
+            this.literal = literal;
+            this.stringIndex = stringIndex;
+        }
+    }
+}
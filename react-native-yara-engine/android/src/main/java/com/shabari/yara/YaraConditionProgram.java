@@ -0,0 +1,397 @@
+package com.shabari.yara;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// A rule condition compiled once into flat int code for a small stack
+// machine. Evaluation reads the match counters directly and allocates nothing.
+//
+// Results are three-valued so that a condition can be decided before the
+// whole input has been scanned: a string that has matched stays matched, and
+// an "at"/"in" check fails for good once the scan is far enough past its
+// offset for any match there to have been recorded. "and"/"or" jump past
+// their remaining operands as soon as one decides them, and operands are
+// ordered cheapest first, so a failed "$header at 0" check costs a single
+// lookup and decides the rule right after the first chunk.
+final class YaraConditionProgram {
+    static final int FALSE = 0;
+    static final int UNDECIDED = 1;
+    static final int TRUE = 2;
+
+    // Opcodes, followed by their arguments in code[]
+    private static final int CONSTANT = 0;       // value
+    private static final int MATCH = 1;          // string
+    private static final int AT = 2;             // string, offset, decidedAt (indexes into longs)
+    private static final int IN = 3;             // string, from, to, decidedAt (indexes into longs)
+    private static final int OF = 4;             // quantifier, n, string * n
+    private static final int RULE = 5;           // rule
+    private static final int COMPARE = 6;        // operator, left kind, left arg, right kind, right arg
+    private static final int NOT = 7;
+    private static final int JUMP_IF_FALSE = 8;  // target
+    private static final int JUMP_IF_TRUE = 9;   // target
+    private static final int AND = 10;
+    private static final int OR = 11;
+
+    private static final String[] OPERATORS = { "<", "<=", ">", ">=", "==", "!=" };
+
+    private final int[] code;
+    private final long[] longs;
+    // Stack slots needed to run the program
+    final int depth;
+    // Strings the condition looks at; the rest never affect the rule
+    final int[] strings;
+
+    private YaraConditionProgram(int[] code, long[] longs, int depth, int[] strings) {
+        this.code = code;
+        this.longs = longs;
+        this.depth = depth;
+        this.strings = strings;
+    }
+
+    // settle[string]: bytes past a match start after which the match is
+    // guaranteed to have been recorded
+    static YaraConditionProgram compile(YaraCondition condition, int[] settle) {
+        Emitter emitter = new Emitter(settle);
+        int depth = emitter.emit(condition);
+        int[] code = new int[emitter.code.size()];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = emitter.code.get(i);
+        }
+        long[] longs = new long[emitter.longs.size()];
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] = emitter.longs.get(i);
+        }
+        int[] strings = new int[emitter.strings.size()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = emitter.strings.get(i);
+        }
+        return new YaraConditionProgram(code, longs, depth, strings);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(depth);
+        YaraRulesFile.writeInts(out, code);
+        YaraRulesFile.writeLongs(out, longs);
+        YaraRulesFile.writeInts(out, strings);
+    }
+
+    static YaraConditionProgram read(ByteBuffer in) {
+        int depth = in.getInt();
+        return new YaraConditionProgram(YaraRulesFile.readInts(in), YaraRulesFile.readLongs(in), depth,
+                YaraRulesFile.readInts(in));
+    }
+
+    // Outcome after the first `scanned` bytes of an input that is fileSize
+    // bytes long (-1 while unknown). Once scanned reaches fileSize every
+    // matcher must have been finished and the outcome is never UNDECIDED.
+    int evaluate(YaraMatchSet matches, long scanned, long fileSize, byte[] ruleValues, int[] stack) {
+        final int[] code = this.code;
+        final boolean complete = fileSize >= 0 && scanned >= fileSize;
+        int top = -1;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc]) {
+                case CONSTANT:
+                    stack[++top] = code[pc + 1];
+                    pc += 2;
+                    break;
+                case MATCH:
+                    stack[++top] = matches.count(code[pc + 1]) > 0 ? TRUE : complete ? FALSE : UNDECIDED;
+                    pc += 2;
+                    break;
+                case AT: {
+                    int string = code[pc + 1];
+                    long offset = longs[code[pc + 2]];
+                    stack[++top] = matches.count(string) > 0 && matches.matchedAt(string, offset) ? TRUE
+                            : complete || scanned >= longs[code[pc + 3]] ? FALSE : UNDECIDED;
+                    pc += 4;
+                    break;
+                }
+                case IN: {
+                    int string = code[pc + 1];
+                    long from = longs[code[pc + 2]];
+                    long to = longs[code[pc + 3]];
+                    stack[++top] = matches.count(string) > 0 && matches.matchedIn(string, from, to) ? TRUE
+                            : complete || scanned >= longs[code[pc + 4]] ? FALSE : UNDECIDED;
+                    pc += 5;
+                    break;
+                }
+                case OF: {
+                    int n = code[pc + 2];
+                    int matched = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (matches.count(code[pc + 3 + i]) > 0) {
+                            matched++;
+                        }
+                    }
+                    stack[++top] = of(code[pc + 1], matched, n, complete);
+                    pc += 3 + n;
+                    break;
+                }
+                case RULE:
+                    stack[++top] = ruleValues[code[pc + 1]];
+                    pc += 2;
+                    break;
+                case COMPARE:
+                    stack[++top] = compare(code[pc + 1],
+                            low(code[pc + 2], code[pc + 3], matches, scanned, fileSize),
+                            high(code[pc + 2], code[pc + 3], matches, fileSize, complete),
+                            low(code[pc + 4], code[pc + 5], matches, scanned, fileSize),
+                            high(code[pc + 4], code[pc + 5], matches, fileSize, complete));
+                    pc += 6;
+                    break;
+                case NOT:
+                    stack[top] = TRUE - stack[top];
+                    pc++;
+                    break;
+                case JUMP_IF_FALSE:
+                    pc = stack[top] == FALSE ? code[pc + 1] : pc + 2;
+                    break;
+                case JUMP_IF_TRUE:
+                    pc = stack[top] == TRUE ? code[pc + 1] : pc + 2;
+                    break;
+                case AND:
+                    top--;
+                    stack[top] = Math.min(stack[top], stack[top + 1]);
+                    pc++;
+                    break;
+                default:
+                    top--;
+                    stack[top] = Math.max(stack[top], stack[top + 1]);
+                    pc++;
+                    break;
+            }
+        }
+        return stack[0];
+    }
+
+    private static int of(int quantifier, int matched, int n, boolean complete) {
+        switch (quantifier) {
+            case YaraCondition.ANY:
+                return matched > 0 ? TRUE : complete ? FALSE : UNDECIDED;
+            case YaraCondition.ALL:
+                return matched == n ? TRUE : complete ? FALSE : UNDECIDED;
+            case YaraCondition.NONE:
+                return matched > 0 ? FALSE : complete ? TRUE : UNDECIDED;
+            default:
+                if (matched >= quantifier) {
+                    return TRUE;
+                }
+                return complete || quantifier > n ? FALSE : UNDECIDED;
+        }
+    }
+
+    // Bounds of a comparison operand: counts only grow until the scan is
+    // complete and filesize is at least what has been scanned so far.
+    private long low(int kind, int arg, YaraMatchSet matches, long scanned, long fileSize) {
+        switch (kind) {
+            case YaraCondition.Value.COUNT:
+                return matches.count(arg);
+            case YaraCondition.Value.FILESIZE:
+                return fileSize >= 0 ? fileSize : scanned;
+            default:
+                return longs[arg];
+        }
+    }
+
+    private long high(int kind, int arg, YaraMatchSet matches, long fileSize, boolean complete) {
+        switch (kind) {
+            case YaraCondition.Value.COUNT:
+                return complete ? matches.count(arg) : Long.MAX_VALUE;
+            case YaraCondition.Value.FILESIZE:
+                return fileSize >= 0 ? fileSize : Long.MAX_VALUE;
+            default:
+                return longs[arg];
+        }
+    }
+
+    private static int compare(int operator, long leftLow, long leftHigh, long rightLow, long rightHigh) {
+        switch (operator) {
+            case 0: // <
+                return leftHigh < rightLow ? TRUE : leftLow >= rightHigh ? FALSE : UNDECIDED;
+            case 1: // <=
+                return leftHigh <= rightLow ? TRUE : leftLow > rightHigh ? FALSE : UNDECIDED;
+            case 2: // >
+                return leftLow > rightHigh ? TRUE : leftHigh <= rightLow ? FALSE : UNDECIDED;
+            case 3: // >=
+                return leftLow >= rightHigh ? TRUE : leftHigh < rightLow ? FALSE : UNDECIDED;
+            default: {
+                boolean disjoint = leftHigh < rightLow || rightHigh < leftLow;
+                boolean exact = leftLow == leftHigh && rightLow == rightHigh;
+                int equal = disjoint ? FALSE : exact ? TRUE : UNDECIDED;
+                return operator == 4 ? equal : TRUE - equal;
+            }
+        }
+    }
+
+    // Rough evaluation cost, used to put cheap and decisive operands first
+    private static int cost(YaraCondition condition) {
+        if (condition instanceof YaraCondition.Constant) {
+            return 0;
+        }
+        if (condition instanceof YaraCondition.Compare) {
+            YaraCondition.Compare compare = (YaraCondition.Compare) condition;
+            return compare.left.kind == YaraCondition.Value.COUNT
+                    || compare.right.kind == YaraCondition.Value.COUNT ? 2 : 0;
+        }
+        if (condition instanceof YaraCondition.StringAt || condition instanceof YaraCondition.StringIn
+                || condition instanceof YaraCondition.RuleReference) {
+            return 1;
+        }
+        if (condition instanceof YaraCondition.StringMatch) {
+            return 2;
+        }
+        if (condition instanceof YaraCondition.Of) {
+            return 2 + ((YaraCondition.Of) condition).stringIndexes.length;
+        }
+        if (condition instanceof YaraCondition.Not) {
+            return cost(((YaraCondition.Not) condition).operand);
+        }
+        YaraCondition[] operands = condition instanceof YaraCondition.And
+                ? ((YaraCondition.And) condition).operands : ((YaraCondition.Or) condition).operands;
+        int total = 0;
+        for (YaraCondition operand : operands) {
+            total += cost(operand);
+        }
+        return total;
+    }
+
+    private static final class Emitter {
+        final List<Integer> code = new ArrayList<>();
+        final List<Long> longs = new ArrayList<>();
+        final List<Integer> strings = new ArrayList<>();
+        private final int[] settle;
+
+        Emitter(int[] settle) {
+            this.settle = settle;
+        }
+
+        // Emits code leaving one value on the stack; returns the stack depth used
+        int emit(YaraCondition condition) {
+            if (condition instanceof YaraCondition.Constant) {
+                add(CONSTANT, ((YaraCondition.Constant) condition).value ? TRUE : FALSE);
+                return 1;
+            }
+            if (condition instanceof YaraCondition.StringMatch) {
+                add(MATCH, string(((YaraCondition.StringMatch) condition).stringIndex));
+                return 1;
+            }
+            if (condition instanceof YaraCondition.StringAt) {
+                YaraCondition.StringAt at = (YaraCondition.StringAt) condition;
+                add(AT, string(at.stringIndex), constant(at.offset),
+                        constant(decidedAt(at.offset, at.stringIndex)));
+                return 1;
+            }
+            if (condition instanceof YaraCondition.StringIn) {
+                YaraCondition.StringIn in = (YaraCondition.StringIn) condition;
+                add(IN, string(in.stringIndex), constant(in.from), constant(in.to),
+                        constant(decidedAt(in.to, in.stringIndex)));
+                return 1;
+            }
+            if (condition instanceof YaraCondition.Of) {
+                YaraCondition.Of of = (YaraCondition.Of) condition;
+                add(OF, of.quantifier, of.stringIndexes.length);
+                for (int index : of.stringIndexes) {
+                    add(string(index));
+                }
+                return 1;
+            }
+            if (condition instanceof YaraCondition.RuleReference) {
+                add(RULE, ((YaraCondition.RuleReference) condition).ruleIndex);
+                return 1;
+            }
+            if (condition instanceof YaraCondition.Compare) {
+                YaraCondition.Compare compare = (YaraCondition.Compare) condition;
+                int operator = 0;
+                while (!OPERATORS[operator].equals(compare.operator)) {
+                    operator++;
+                }
+                add(COMPARE, operator);
+                value(compare.left);
+                value(compare.right);
+                return 1;
+            }
+            if (condition instanceof YaraCondition.Not) {
+                int depth = emit(((YaraCondition.Not) condition).operand);
+                add(NOT);
+                return depth;
+            }
+
+            boolean and = condition instanceof YaraCondition.And;
+            YaraCondition[] operands = sortByCost(and
+                    ? ((YaraCondition.And) condition).operands : ((YaraCondition.Or) condition).operands);
+            int depth = emit(operands[0]);
+            List<Integer> exits = new ArrayList<>();
+            for (int i = 1; i < operands.length; i++) {
+                add(and ? JUMP_IF_FALSE : JUMP_IF_TRUE, -1);
+                exits.add(code.size() - 1);
+                depth = Math.max(depth, 1 + emit(operands[i]));
+                add(and ? AND : OR);
+            }
+            for (int exit : exits) {
+                code.set(exit, code.size());
+            }
+            return depth;
+        }
+
+        private void value(YaraCondition.Value value) {
+            switch (value.kind) {
+                case YaraCondition.Value.COUNT:
+                    add(value.kind, string(value.stringIndex));
+                    break;
+                case YaraCondition.Value.FILESIZE:
+                    add(value.kind, 0);
+                    break;
+                default:
+                    add(value.kind, constant(value.literal));
+                    break;
+            }
+        }
+
+        // Scanned length after which a match starting at or before offset
+        // would have been recorded
+        private long decidedAt(long offset, int stringIndex) {
+            return offset > Long.MAX_VALUE - settle[stringIndex] ? Long.MAX_VALUE : offset + settle[stringIndex];
+        }
+
+        private int string(int index) {
+            if (!strings.contains(index)) {
+                strings.add(index);
+            }
+            return index;
+        }
+
+        private int constant(long value) {
+            longs.add(value);
+            return longs.size() - 1;
+        }
+
+        private void add(int... values) {
+            for (int value : values) {
+                code.add(value);
+            }
+        }
+
+        // Stable insertion sort, cheapest operand first
+        private static YaraCondition[] sortByCost(YaraCondition[] operands) {
+            YaraCondition[] sorted = operands.clone();
+            int[] costs = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                YaraCondition operand = sorted[i];
+                int c = cost(operand);
+                int j = i;
+                while (j > 0 && costs[j - 1] > c) {
+                    sorted[j] = sorted[j - 1];
+                    costs[j] = costs[j - 1];
+                    j--;
+                }
+                sorted[j] = operand;
+                costs[j] = c;
+            }
+            return sorted;
+        }
+    }
+}
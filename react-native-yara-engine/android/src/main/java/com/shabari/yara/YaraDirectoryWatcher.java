@@ -0,0 +1,418 @@
+package com.shabari.yara;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Watches directory trees and rescans only files that were created or
+// modified. Change events are coalesced per path and debounced, so a file
+// being written in many small steps is scanned once after it settles.
+// Uses java.nio.file.WatchService on API 26+ and polling snapshots before that.
+public class YaraDirectoryWatcher {
+    private static final String TAG = "YaraDirectoryWatcher";
+    public static final long DEFAULT_DEBOUNCE_MS = 2000;
+    public static final long DEFAULT_POLL_INTERVAL_MS = 30000;
+    // Scanned files whose stats are remembered to skip repeat events; beyond
+    // this the least recently seen are forgotten and rescanned if they change
+    static final int MAX_TRACKED_FILES = 4096;
+
+    public interface Listener {
+        void onScanResult(String filePath, YaraScanResult result);
+    }
+
+    private final YaraEngine engine;
+    private final Listener listener;
+    // 0 picks the watch service where available
+    private final long pollIntervalMs;
+    // Replaced after stop() so the watcher can be started again
+    private ChangeSource source;
+    private final Set<String> roots = new HashSet<>();
+    private volatile long debounceMs = DEFAULT_DEBOUNCE_MS;
+    // The watch loop runs while it is the current thread
+    private volatile Thread thread;
+
+    public YaraDirectoryWatcher(YaraEngine engine, Listener listener) throws IOException {
+        this(engine, listener, 0);
+    }
+
+    // Polls every pollIntervalMs even where a watch service is available
+    YaraDirectoryWatcher(YaraEngine engine, Listener listener, long pollIntervalMs) throws IOException {
+        this.engine = engine;
+        this.listener = listener;
+        this.pollIntervalMs = pollIntervalMs;
+        this.source = newSource();
+    }
+
+    private ChangeSource newSource() throws IOException {
+        if (pollIntervalMs == 0 && hasWatchService()) {
+            return new WatchServiceSource();
+        }
+        return new PollingSource(pollIntervalMs > 0 ? pollIntervalMs : DEFAULT_POLL_INTERVAL_MS);
+    }
+
+    // java.nio.file arrived in Android 8.0 (API 26); older releases poll
+    private static boolean hasWatchService() {
+        try {
+            Class.forName("java.nio.file.WatchService");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    public void setDebounceMillis(long debounceMs) {
+        this.debounceMs = Math.max(0, debounceMs);
+    }
+
+    public synchronized boolean addRoot(String path) {
+        File root = new File(path);
+        if (!root.isDirectory()) {
+            YaraLog.e(TAG, "Watch root is not a directory: " + path);
+            return false;
+        }
+        String rootPath = root.getAbsolutePath();
+        if (!roots.add(rootPath)) {
+            return true;
+        }
+        try {
+            if (source == null) {
+                source = newSource();
+            }
+            source.addRoot(root);
+        } catch (IOException e) {
+            YaraLog.e(TAG, "Failed to watch " + rootPath, e);
+            roots.remove(rootPath);
+            return false;
+        }
+        start();
+        YaraLog.i(TAG, "Watching " + rootPath);
+        return true;
+    }
+
+    public synchronized boolean removeRoot(String path) {
+        String rootPath = new File(path).getAbsolutePath();
+        if (!roots.remove(rootPath)) {
+            return false;
+        }
+        source.removeRoot(rootPath);
+        return true;
+    }
+
+    // Changes queued under a root removed since are dropped before scanning
+    private synchronized boolean isWatched(String path) {
+        for (String root : roots) {
+            if (path.equals(root) || path.startsWith(root + File.separator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized List<String> getRoots() {
+        return new ArrayList<>(roots);
+    }
+
+    // Stops watching and forgets all roots; addRoot() starts again afresh
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        if (source != null) {
+            source.close();
+            source = null;
+        }
+        roots.clear();
+    }
+
+    private void start() {
+        if (thread != null) {
+            return;
+        }
+        final ChangeSource current = source;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchLoop(current);
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Pending changes and scan stats belong to one run of the loop, so a
+    // loop still finishing after stop() never shares them with its successor
+    private void watchLoop(ChangeSource source) {
+        Thread self = Thread.currentThread();
+        Map<String, Long> pending = new LinkedHashMap<>();
+        Map<String, long[]> lastScanned = newScanStats(MAX_TRACKED_FILES);
+        List<File> changed = new ArrayList<>();
+        while (thread == self) {
+            try {
+                long now = System.currentTimeMillis();
+                long timeout = source.getIdleTimeoutMillis();
+                for (long lastEvent : pending.values()) {
+                    timeout = Math.min(timeout, Math.max(1, lastEvent + debounceMs - now));
+                }
+
+                changed.clear();
+                source.collect(timeout, changed);
+                now = System.currentTimeMillis();
+                for (File file : changed) {
+                    String path = file.getAbsolutePath();
+                    pending.remove(path);
+                    pending.put(path, now);
+                }
+                scanSettledFiles(now, pending, lastScanned);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                if (thread != self) {
+                    // The source was closed under us by stop()
+                    break;
+                }
+                YaraLog.e(TAG, "Exception in watch loop", e);
+            }
+        }
+    }
+
+    // (lastModified, length) of scanned files, least recently seen first
+    static Map<String, long[]> newScanStats(final int limit) {
+        return new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > limit;
+            }
+        };
+    }
+
+    private void scanSettledFiles(long now, Map<String, Long> pending, Map<String, long[]> lastScanned) {
+        Thread self = Thread.currentThread();
+        Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+        while (it.hasNext() && thread == self) {
+            Map.Entry<String, Long> entry = it.next();
+            if (now - entry.getValue() < debounceMs) {
+                continue;
+            }
+            it.remove();
+
+            File file = new File(entry.getKey());
+            if (!isWatched(entry.getKey()) || !file.isFile() || !file.canRead()) {
+                lastScanned.remove(entry.getKey());
+                continue;
+            }
+            long[] stat = { file.lastModified(), file.length() };
+            long[] previous = lastScanned.get(entry.getKey());
+            if (previous != null && previous[0] == stat[0] && previous[1] == stat[1]) {
+                continue;
+            }
+            lastScanned.put(entry.getKey(), stat);
+
+            YaraScanResult result = engine.scanFile(entry.getKey());
+            if (result != null) {
+                listener.onScanResult(entry.getKey(), result);
+            }
+        }
+    }
+
+    private interface ChangeSource {
+        void addRoot(File root) throws IOException;
+
+        void removeRoot(String rootPath);
+
+        // Waits up to timeoutMs and adds files that were created or modified
+        void collect(long timeoutMs, List<File> changed) throws InterruptedException, IOException;
+
+        long getIdleTimeoutMillis();
+
+        void close();
+    }
+
+    // Kept in its own class so java.nio.file is never loaded below API 26
+    private static final class WatchServiceSource implements ChangeSource {
+        private final java.nio.file.WatchService watchService;
+        private final Map<java.nio.file.WatchKey, File> directories = new HashMap<>();
+
+        WatchServiceSource() throws IOException {
+            this.watchService = java.nio.file.FileSystems.getDefault().newWatchService();
+        }
+
+        @Override
+        public synchronized void addRoot(File root) throws IOException {
+            registerTree(root, null);
+        }
+
+        private void registerTree(File directory, List<File> newFiles) throws IOException {
+            java.nio.file.WatchKey key = directory.toPath().register(watchService,
+                    java.nio.file.StandardWatchEventKinds.ENTRY_CREATE,
+                    java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY);
+            directories.put(key, directory);
+            File[] children = directory.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    registerTree(child, newFiles);
+                } else if (newFiles != null) {
+                    newFiles.add(child);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void removeRoot(String rootPath) {
+            Iterator<Map.Entry<java.nio.file.WatchKey, File>> it = directories.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<java.nio.file.WatchKey, File> entry = it.next();
+                String path = entry.getValue().getAbsolutePath();
+                if (path.equals(rootPath) || path.startsWith(rootPath + File.separator)) {
+                    entry.getKey().cancel();
+                    it.remove();
+                }
+            }
+        }
+
+        @Override
+        public void collect(long timeoutMs, List<File> changed) throws InterruptedException, IOException {
+            java.nio.file.WatchKey key = watchService.poll(timeoutMs, java.util.concurrent.TimeUnit.MILLISECONDS);
+            while (key != null) {
+                synchronized (this) {
+                    File directory = directories.get(key);
+                    if (directory != null) {
+                        for (java.nio.file.WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == java.nio.file.StandardWatchEventKinds.OVERFLOW) {
+                                // Events were dropped; let the stat check decide what changed
+                                collectFiles(directory, changed);
+                                continue;
+                            }
+                            File file = new File(directory, event.context().toString());
+                            if (file.isDirectory()) {
+                                if (event.kind() == java.nio.file.StandardWatchEventKinds.ENTRY_CREATE) {
+                                    registerTree(file, changed);
+                                }
+                            } else {
+                                changed.add(file);
+                            }
+                        }
+                    }
+                    if (!key.reset()) {
+                        directories.remove(key);
+                    }
+                }
+                key = watchService.poll();
+            }
+        }
+
+        private void collectFiles(File directory, List<File> files) {
+            File[] children = directory.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File child : children) {
+                if (child.isFile()) {
+                    files.add(child);
+                }
+            }
+        }
+
+        @Override
+        public long getIdleTimeoutMillis() {
+            return 60000;
+        }
+
+        @Override
+        public void close() {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                YaraLog.w(TAG, "Failed to close watch service: " + e.getMessage());
+            }
+        }
+    }
+
+    // Compares (lastModified, length) snapshots of every watched file
+    private static final class PollingSource implements ChangeSource {
+        private final long intervalMs;
+        private final Map<String, Map<String, long[]>> snapshots = new HashMap<>();
+        private long nextPoll;
+
+        PollingSource(long intervalMs) {
+            this.intervalMs = intervalMs;
+        }
+
+        @Override
+        public synchronized void addRoot(File root) {
+            Map<String, long[]> snapshot = new HashMap<>();
+            walk(root, snapshot);
+            snapshots.put(root.getAbsolutePath(), snapshot);
+        }
+
+        @Override
+        public synchronized void removeRoot(String rootPath) {
+            snapshots.remove(rootPath);
+        }
+
+        @Override
+        public void collect(long timeoutMs, List<File> changed) throws InterruptedException {
+            long wait = Math.min(timeoutMs, nextPoll - System.currentTimeMillis());
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+            if (System.currentTimeMillis() < nextPoll) {
+                return;
+            }
+            nextPoll = System.currentTimeMillis() + intervalMs;
+
+            synchronized (this) {
+                for (Map.Entry<String, Map<String, long[]>> root : snapshots.entrySet()) {
+                    Map<String, long[]> current = new HashMap<>();
+                    walk(new File(root.getKey()), current);
+                    for (Map.Entry<String, long[]> entry : current.entrySet()) {
+                        long[] before = root.getValue().get(entry.getKey());
+                        long[] after = entry.getValue();
+                        if (before == null || before[0] != after[0] || before[1] != after[1]) {
+                            changed.add(new File(entry.getKey()));
+                        }
+                    }
+                    root.setValue(current);
+                }
+            }
+        }
+
+        private void walk(File directory, Map<String, long[]> snapshot) {
+            File[] children = directory.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    walk(child, snapshot);
+                } else {
+                    snapshot.put(child.getAbsolutePath(), new long[] { child.lastModified(), child.length() });
+                }
+            }
+        }
+
+        @Override
+        public long getIdleTimeoutMillis() {
+            return intervalMs;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                snapshots.clear();
+            }
+        }
+    }
+}
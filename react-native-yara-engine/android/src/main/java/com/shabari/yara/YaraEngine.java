@@ -1,12 +1,40 @@
 package com.shabari.yara;
 
-import android.util.Log;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class YaraEngine {
     private static final String TAG = "YaraEngine";
+
+    // Features computed in the scan's single read and attached to results
+    public static final int FEATURE_SHA256 = 1;
+    public static final int FEATURE_ENTROPY = 2;
+    public static final int FEATURE_FILE_TYPE = 4;
+    public static final int FEATURE_ALL = FEATURE_SHA256 | FEATURE_ENTROPY | FEATURE_FILE_TYPE;
+    // The native rules of a compiled rule set live next to the Java ones
+    private static final String NATIVE_RULES_SUFFIX = ".native";
+    // Java engine files read into one buffer so the reputation lookup runs
+    // before matching; larger ones are streamed
+    private static final long MAX_BUFFERED_FILE_SIZE = 4L * 1024 * 1024;
+    // Open incremental scans; past this the least recently fed one is dropped
+    static final int MAX_SCAN_SESSIONS = 32;
+    public static final long DEFAULT_SESSION_IDLE_TIMEOUT_MS = 5 * 60 * 1000L;
+
+    private volatile YaraScanJournal scanJournal;
+
+    // Buffers of every scan in the process count against one budget
+    private static final YaraMemoryBudget memoryBudget = new YaraMemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+    // Recent scan events of every engine, recorded only while tracing is on
+    private static final YaraScanTrace scanTrace = new YaraScanTrace(YaraScanTrace.DEFAULT_CAPACITY);
     private static boolean nativeLibraryLoaded = false;
     private static boolean nativeLibraryAttempted = false;
     
@@ -15,10 +43,10 @@ public class YaraEngine {
             try {
                 System.loadLibrary("yara-engine");
                 nativeLibraryLoaded = true;
-                Log.i(TAG, "✅ Native YARA library loaded successfully");
+                YaraLog.i(TAG, "✅ Native YARA library loaded successfully");
             } catch (UnsatisfiedLinkError e) {
                 nativeLibraryLoaded = false;
-                Log.w(TAG, "⚠️ Native YARA library not available, will use mock implementation: " + e.getMessage());
+                YaraLog.w(TAG, "⚠️ Native YARA library not available, will use mock implementation: " + e.getMessage());
             } finally {
                 nativeLibraryAttempted = true;
             }
@@ -28,6 +56,22 @@ public class YaraEngine {
     private YaraRuleManager ruleManager;
     private boolean isInitialized = false;
 
+    // Java engine state, used when the native library is not available
+    private volatile YaraCompiledRules javaRules;
+    private volatile long parallelScanThreshold = YaraParallelScanner.DEFAULT_PARALLEL_THRESHOLD;
+    private volatile int scanFeatures = FEATURE_ALL;
+    private volatile File rulesCacheDirectory;
+    private final ConcurrentHashMap<Integer, YaraScanSession> scanSessions = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSessionId = new AtomicInteger(1);
+    private volatile long sessionIdleTimeoutMs = DEFAULT_SESSION_IDLE_TIMEOUT_MS;
+
+    private volatile YaraReputationSet reputationSet;
+    private volatile YaraSimilarityIndex similarityIndex;
+
+    private YaraDirectoryWatcher directoryWatcher;
+    private YaraDirectoryWatcher.Listener watchListener;
+    private long watchDebounceMs = YaraDirectoryWatcher.DEFAULT_DEBOUNCE_MS;
+
     public YaraEngine() {
         this.ruleManager = new YaraRuleManager();
     }
@@ -40,47 +84,142 @@ public class YaraEngine {
     private native String nativeGetVersion();
     private native int nativeGetLoadedRulesCount();
     private native void nativeCleanup();
+    private native boolean nativeSaveRules(String path);
+    private native boolean nativeLoadCompiledRules(String path);
 
     public static boolean isNativeLibraryAvailable() {
         return nativeLibraryLoaded;
     }
 
+    // Inputs at least this large are pattern-scanned in parallel segments by the
+    // Java engine; smaller inputs stay single-threaded. 0 disables parallel scans.
+    public void setParallelScanThreshold(long bytes) {
+        this.parallelScanThreshold = Math.max(0, bytes);
+    }
+
+    public long getParallelScanThreshold() {
+        return parallelScanThreshold;
+    }
+
+    // FEATURE_* flags. Features that need every byte keep the Java engine
+    // reading to the end even when its verdict was decided early; the SHA-256
+    // is always computed while a reputation set is loaded.
+    public void setScanFeatures(int features) {
+        this.scanFeatures = features & FEATURE_ALL;
+    }
+
+    public int getScanFeatures() {
+        return scanFeatures;
+    }
+
+    // Limit on scan buffers in flight across all engines and threads, in
+    // bytes (0 for none; the default is a quarter of the maximum heap). Scans
+    // wait for room before allocating, and large inputs are scanned serially
+    // instead of in parallel segments when the budget cannot cover those.
+    public void setMemoryBudget(long bytes) {
+        memoryBudget.setLimit(bytes);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget.getLimit();
+    }
+
+    // Bytes of scan buffers currently in flight
+    public long getMemoryInUse() {
+        return memoryBudget.getInUse();
+    }
+
+    public long getPeakMemoryInUse() {
+        return memoryBudget.getPeak();
+    }
+
+    // Scans that had to wait for memory so far
+    public long getMemoryWaits() {
+        return memoryBudget.getWaits();
+    }
+
+    // Scan tracing: start, phase timings, matched rules and verdict of recent
+    // scans, kept in a fixed-size ring instead of per-scan log lines. Off by
+    // default, and then free.
+    public void setScanTracing(boolean enabled) {
+        scanTrace.setEnabled(enabled);
+    }
+
+    public boolean isScanTracing() {
+        return scanTrace.isEnabled();
+    }
+
+    // Recent scan events, oldest first; see YaraScanTrace.dump
+    public String dumpScanTraces() {
+        return scanTrace.dump();
+    }
+
+    public void clearScanTraces() {
+        scanTrace.clear();
+    }
+
+    // For callers that allocate input buffers on the engine's behalf (the
+    // React Native module copying bridge arrays); see also reserveMemoryScan
+    YaraMemoryBudget getMemoryBudgetTracker() {
+        return memoryBudget;
+    }
+
+    // Rule sources loaded by initialize(), loadRules() and updateRules() are
+    // compiled once and kept here, keyed by a digest of the source; later
+    // loads of the same source map the compiled file instead. Null disables
+    // the cache. Call before initialize() to speed up the default rules.
+    public void setRulesCacheDirectory(String directoryPath) {
+        if (directoryPath == null) {
+            rulesCacheDirectory = null;
+            return;
+        }
+        File directory = new File(directoryPath);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            YaraLog.e(TAG, "Cannot create rules cache directory: " + directoryPath);
+            return;
+        }
+        rulesCacheDirectory = directory;
+    }
+
     public boolean initialize() {
         try {
             if (isInitialized) {
-                Log.w(TAG, "YARA engine already initialized");
+                YaraLog.w(TAG, "YARA engine already initialized");
                 return true;
             }
 
             if (nativeLibraryLoaded) {
                 // Use native implementation
-                Log.i(TAG, "🛡️ Initializing native YARA engine");
+                YaraLog.i(TAG, "🛡️ Initializing native YARA engine");
                 boolean success = nativeInitialize();
                 if (success) {
-                    String defaultRules = getDefaultRules();
-                    success = nativeLoadRules(defaultRules);
+                    success = loadRuleSource(getDefaultRules());
                     if (success) {
                         isInitialized = true;
-                        Log.i(TAG, "✅ Native YARA engine initialized with default rules");
+                        YaraLog.i(TAG, "✅ Native YARA engine initialized with default rules");
                     } else {
-                        Log.e(TAG, "❌ Failed to load default rules in native engine");
+                        YaraLog.e(TAG, "❌ Failed to load default rules in native engine");
                     }
                 } else {
-                    Log.e(TAG, "❌ Failed to initialize native YARA engine");
+                    YaraLog.e(TAG, "❌ Failed to initialize native YARA engine");
                 }
                 return success;
             } else {
-                // Use mock implementation
-                Log.i(TAG, "🎭 Initializing mock YARA engine");
+                // Use Java implementation, with mock heuristics as a fallback
+                YaraLog.i(TAG, "🎭 Initializing Java YARA engine");
                 isInitialized = true;
-                Log.i(TAG, "✅ Mock YARA engine initialized with 127 detection rules");
+                if (loadRuleSource(getDefaultRules()) && javaRules != null) {
+                    YaraLog.i(TAG, "✅ Java YARA engine initialized with " + javaRules.getRuleCount() + " default rules");
+                } else {
+                    YaraLog.w(TAG, "⚠️ Default rules failed to compile, using mock heuristics only");
+                }
                 return true;
             }
         } catch (Exception e) {
-            Log.e(TAG, "❌ Exception during initialization", e);
+            YaraLog.e(TAG, "❌ Exception during initialization", e);
             // Try to initialize with mock as fallback
             if (nativeLibraryLoaded) {
-                Log.w(TAG, "🔄 Falling back to mock implementation due to native error");
+                YaraLog.w(TAG, "🔄 Falling back to mock implementation due to native error");
                 isInitialized = true;
                 return true;
             }
@@ -90,90 +229,107 @@ public class YaraEngine {
 
     public boolean loadRules(String rulesPath) {
         if (!isInitialized) {
-            Log.e(TAG, "YARA engine not initialized");
+            YaraLog.e(TAG, "YARA engine not initialized");
             return false;
         }
 
         try {
             File rulesFile = new File(rulesPath);
             if (!rulesFile.exists()) {
-                Log.e(TAG, "Rules file does not exist: " + rulesPath);
+                YaraLog.e(TAG, "Rules file does not exist: " + rulesPath);
                 return false;
             }
 
-            if (nativeLibraryLoaded) {
-                String rulesContent = ruleManager.loadRulesFromFile(rulesPath);
-                if (rulesContent == null) {
-                    Log.e(TAG, "Failed to read rules file");
-                    return false;
-                }
-                return nativeLoadRules(rulesContent);
-            } else {
-                // Mock implementation always returns success
-                Log.i(TAG, "🎭 Mock: Rules loaded from " + rulesPath);
-                return true;
+            // Precompiled rule sets (e.g. shipped by the feed) skip parsing
+            if (YaraRulesFile.isCompiledRules(rulesFile)) {
+                return loadCompiledRules(rulesFile, false);
+            }
+
+            String rulesContent = ruleManager.loadRulesFromFile(rulesPath);
+            if (rulesContent == null) {
+                YaraLog.e(TAG, "Failed to read rules file");
+                return false;
             }
+
+            if (!nativeLibraryLoaded) {
+                YaraLog.i(TAG, "🎭 Java: Loading rules from " + rulesPath);
+            }
+            return loadRuleSource(rulesContent);
         } catch (Exception e) {
-            Log.e(TAG, "Exception loading rules", e);
+            YaraLog.e(TAG, "Exception loading rules", e);
             return false;
         }
     }
 
     public boolean updateRules(String rulesContent) {
         if (!isInitialized) {
-            Log.e(TAG, "YARA engine not initialized");
+            YaraLog.e(TAG, "YARA engine not initialized");
             return false;
         }
 
         try {
             if (rulesContent == null || rulesContent.trim().isEmpty()) {
-                Log.e(TAG, "Rules content is empty");
+                YaraLog.e(TAG, "Rules content is empty");
                 return false;
             }
 
-            if (nativeLibraryLoaded) {
-                return nativeLoadRules(rulesContent);
-            } else {
-                // Mock implementation always returns success
-                Log.i(TAG, "🎭 Mock: Rules updated successfully");
-                return true;
-            }
+            return loadRuleSource(rulesContent);
         } catch (Exception e) {
-            Log.e(TAG, "Exception updating rules", e);
+            YaraLog.e(TAG, "Exception updating rules", e);
+            return false;
+        }
+    }
+
+    // Writes the loaded rules in compiled form: the Java rule set to path and,
+    // with the native engine, its rules to path + ".native". loadRules()
+    // accepts the result in place of rule source.
+    public boolean saveCompiledRules(String path) {
+        if (!isInitialized) {
+            YaraLog.e(TAG, "YARA engine not initialized");
             return false;
         }
+        return saveCompiledRules(new File(path));
     }
 
     public YaraScanResult scanFile(String filePath) {
+        YaraScanResult result = scanPath(filePath);
+        YaraScanJournal journal = scanJournal;
+        if (journal != null) {
+            journal.append(filePath, result);
+        }
+        return result;
+    }
+
+    private YaraScanResult scanPath(String filePath) {
         if (!isInitialized) {
-            Log.e(TAG, "YARA engine not initialized");
+            YaraLog.e(TAG, "YARA engine not initialized");
             return null;
         }
 
         try {
             File file = new File(filePath);
             if (!file.exists()) {
-                Log.e(TAG, "File does not exist: " + filePath);
+                YaraLog.e(TAG, "File does not exist: " + filePath);
                 return null;
             }
 
             if (!file.canRead()) {
-                Log.e(TAG, "Cannot read file: " + filePath);
+                YaraLog.e(TAG, "Cannot read file: " + filePath);
                 return null;
             }
 
             long startTime = System.currentTimeMillis();
-            YaraScanResult result;
-            
-            if (nativeLibraryLoaded) {
-                try {
-                    result = nativeScanFile(filePath);
-                } catch (Exception e) {
-                    Log.w(TAG, "Native scan failed, falling back to mock: " + e.getMessage());
-                    result = mockScanFile(filePath);
-                }
-            } else {
-                result = mockScanFile(filePath);
+            long scan = scanTrace.begin(filePath, file.length());
+            long traceStart = scanTrace.now(scan);
+            YaraScanResult result = null;
+            try {
+                result = scanFileOnce(file, scan);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                YaraLog.w(TAG, "Scan interrupted while waiting for memory: " + filePath);
+                return null;
+            } finally {
+                scanTrace.finish(scan, result, traceStart);
             }
             
             long endTime = System.currentTimeMillis();
@@ -181,57 +337,551 @@ public class YaraEngine {
             if (result != null) {
                 result.setScanTime((int)(endTime - startTime));
                 result.setFileSize(file.length());
-                Log.d(TAG, "File scan completed in " + (endTime - startTime) + "ms");
             }
 
             return result;
         } catch (Exception e) {
-            Log.e(TAG, "Exception scanning file", e);
+            YaraLog.e(TAG, "Exception scanning file", e);
             return null;
         }
     }
 
+    // The file is streamed through the digests, and on the Java engine through
+    // the pattern pass too. The Java pattern pass would then run before the
+    // reputation lookup, so with a reputation set small files are read into
+    // one budget-charged buffer instead and a hit skips matching. The native
+    // engine matches after streaming, by path, so it never needs the buffer.
+    private YaraScanResult scanFileOnce(File file, long scan) throws IOException, InterruptedException {
+        long size = file.length();
+        YaraReputationSet reputation = reputationSet;
+        if (!nativeLibraryLoaded && reputation != null && size <= MAX_BUFFERED_FILE_SIZE) {
+            return scanFileBuffered(file, (int) size, reputation, scan);
+        }
+        return scanFileStreaming(file, size, reputation, scan);
+    }
+
+    private YaraScanResult scanFileBuffered(File file, int size, YaraReputationSet reputation, long scan)
+            throws IOException, InterruptedException {
+        String filePath = file.getPath();
+        YaraFileFeatures features = new YaraFileFeatures(scanFeatures | FEATURE_SHA256);
+        YaraSimHash simHash = similarityIndex != null ? new YaraSimHash() : null;
+
+        long phaseStart = scanTrace.now(scan);
+        YaraMemoryBudget.Reservation reservation = memoryBudget.acquire(size);
+        scanTrace.phase(scan, YaraScanTrace.PHASE_WAIT, phaseStart);
+        try {
+            phaseStart = scanTrace.now(scan);
+            byte[] data = readFile(file, size);
+            YaraScanPipeline pipeline = new YaraScanPipeline();
+            features.addTo(pipeline);
+            pipeline.add(simHash);
+            pipeline.run(data);
+            scanTrace.phase(scan, YaraScanTrace.PHASE_READ, phaseStart);
+
+            // A reputation hit skips the pattern pass
+            YaraScanResult result = checkReputation(reputation, features.getSha256(), data.length);
+            if (result == null) {
+                result = matchFileData(javaRules, filePath, data, scan);
+                applySimilarity(result, simHash);
+            }
+            features.applyTo(result);
+            return result;
+        } finally {
+            reservation.release();
+        }
+    }
+
+    // Java pattern pass over a file read into memory, with the file name
+    // heuristic for files the rules leave clean
+    private YaraScanResult matchFileData(YaraCompiledRules rules, String filePath, byte[] data, long scan) {
+        YaraScanResult result = null;
+        if (rules != null) {
+            long phaseStart = scanTrace.now(scan);
+            YaraMemoryBudget.Reservation segments = reserveSegmentBuffers(rules, data.length, scan);
+            YaraRuleMatcher matcher;
+            try {
+                matcher = new YaraRuleMatcher(rules, data.length, segments != null);
+                YaraScanPipeline pipeline = new YaraScanPipeline();
+                pipeline.add(matcher);
+                pipeline.run(data);
+            } finally {
+                release(segments);
+            }
+            result = createJavaResult(rules, rules.evaluate(matcher.getMatches(), data.length), "File appears clean");
+            scanTrace.phase(scan, YaraScanTrace.PHASE_EVALUATE, phaseStart);
+        }
+        if (result == null || result.isSafe()) {
+            YaraScanResult heuristic = mockScanFile(filePath);
+            if (result == null || !heuristic.isSafe()) {
+                result = heuristic;
+            }
+        }
+        return result;
+    }
+
+    // Reads up to size bytes; a file that shrank meanwhile gives a shorter array
+    private static byte[] readFile(File file, int size) throws IOException {
+        byte[] data = new byte[size];
+        int filled = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while (filled < size && (n = in.read(data, filled, size - filled)) > 0) {
+                filled += n;
+            }
+        }
+        return filled == size ? data : Arrays.copyOf(data, filled);
+    }
+
+    // With the native engine the features are streamed here, a reputation hit
+    // skips the native pass, and otherwise the native engine reads the file
+    // itself. On the Java engine a reputation hit only replaces the verdict
+    // of the pattern pass streamed alongside.
+    private YaraScanResult scanFileStreaming(File file, long size, YaraReputationSet reputation, long scan)
+            throws IOException, InterruptedException {
+        String filePath = file.getPath();
+        YaraFileFeatures features = new YaraFileFeatures(scanFeatures | (reputation != null ? FEATURE_SHA256 : 0));
+        // The similarity digest is only computed while an index is loaded
+        YaraSimHash simHash = similarityIndex != null ? new YaraSimHash() : null;
+        YaraCompiledRules rules = nativeLibraryLoaded ? null : javaRules;
+        YaraRuleMatcher matcher = null;
+
+        long phaseStart = scanTrace.now(scan);
+        YaraMemoryBudget.Reservation block = memoryBudget.acquire(YaraScanPipeline.BLOCK_SIZE);
+        scanTrace.phase(scan, YaraScanTrace.PHASE_WAIT, phaseStart);
+        YaraMemoryBudget.Reservation segments = null;
+        try {
+            phaseStart = scanTrace.now(scan);
+            if (rules != null) {
+                segments = reserveSegmentBuffers(rules, size, scan);
+                matcher = new YaraRuleMatcher(rules, size, segments != null);
+            }
+            YaraScanPipeline pipeline = new YaraScanPipeline();
+            features.addTo(pipeline);
+            pipeline.add(simHash);
+            pipeline.add(matcher);
+            try (InputStream in = new FileInputStream(file)) {
+                pipeline.run(in);
+            }
+            scanTrace.phase(scan, YaraScanTrace.PHASE_READ, phaseStart);
+        } finally {
+            release(segments);
+            block.release();
+        }
+
+        YaraScanResult result = reputation != null ? checkReputation(reputation, features.getSha256(), size) : null;
+        if (result == null) {
+            if (nativeLibraryLoaded) {
+                // The native engine maps the whole file itself
+                long nativeStart = scanTrace.now(scan);
+                YaraMemoryBudget.Reservation mapping = memoryBudget.acquire(size);
+                scanTrace.phase(scan, YaraScanTrace.PHASE_WAIT, nativeStart);
+                nativeStart = scanTrace.now(scan);
+                try {
+                    result = nativeScanFile(filePath);
+                } catch (Exception e) {
+                    YaraLog.w(TAG, "Native scan failed, falling back to mock: " + e.getMessage());
+                    result = mockScanFile(filePath);
+                } finally {
+                    mapping.release();
+                    scanTrace.phase(scan, YaraScanTrace.PHASE_NATIVE, nativeStart);
+                }
+            } else {
+                long evaluateStart = scanTrace.now(scan);
+                result = matcher != null
+                        ? createJavaResult(rules, rules.evaluate(matcher.getMatches(), size), "File appears clean") : null;
+                if (result == null || result.isSafe()) {
+                    YaraScanResult heuristic = mockScanFile(filePath);
+                    if (result == null || !heuristic.isSafe()) {
+                        result = heuristic;
+                    }
+                }
+                scanTrace.phase(scan, YaraScanTrace.PHASE_EVALUATE, evaluateStart);
+            }
+            applySimilarity(result, simHash);
+        }
+        features.applyTo(result);
+        return result;
+    }
+
     public YaraScanResult scanMemory(byte[] data) {
+        return scanMemory(data, null);
+    }
+
+    // Reserves, in one acquire, callerBytes the caller allocates for the scan
+    // (its copy of the input) plus what scanMemory would otherwise charge for
+    // input of this size; pass the reservation to scanMemory(data, reserved)
+    // and release it afterwards
+    YaraMemoryBudget.Reservation reserveMemoryScan(long callerBytes, long size) throws InterruptedException {
+        return memoryBudget.acquire(callerBytes + (nativeLibraryLoaded ? size : 0));
+    }
+
+    // reserved: from reserveMemoryScan, or null to charge here
+    YaraScanResult scanMemory(byte[] data, YaraMemoryBudget.Reservation reserved) {
         if (!isInitialized) {
-            Log.e(TAG, "YARA engine not initialized");
+            YaraLog.e(TAG, "YARA engine not initialized");
             return null;
         }
 
         try {
             if (data == null || data.length == 0) {
-                Log.e(TAG, "Memory data is empty");
+                YaraLog.e(TAG, "Memory data is empty");
                 return null;
             }
 
             long startTime = System.currentTimeMillis();
-            YaraScanResult result;
-            
-            if (nativeLibraryLoaded) {
-                try {
-                    result = nativeScanMemory(data);
-                } catch (Exception e) {
-                    Log.w(TAG, "Native memory scan failed, falling back to mock: " + e.getMessage());
-                    result = mockScanMemory(data);
-                }
-            } else {
-                result = mockScanMemory(data);
+            long scan = scanTrace.begin("memory", data.length);
+            long traceStart = scanTrace.now(scan);
+            YaraScanResult result = null;
+            try {
+                result = scanMemory(data, reserved != null, scan);
+            } finally {
+                scanTrace.finish(scan, result, traceStart);
             }
-            
+
             long endTime = System.currentTimeMillis();
 
             if (result != null) {
                 result.setScanTime((int)(endTime - startTime));
                 result.setFileSize(data.length);
-                Log.d(TAG, "Memory scan completed in " + (endTime - startTime) + "ms");
             }
 
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            YaraLog.w(TAG, "Memory scan interrupted while waiting for memory");
+            return null;
+        } catch (Exception e) {
+            YaraLog.e(TAG, "Exception scanning memory", e);
+            return null;
+        }
+    }
+
+    // Pipeline pass and verdict for scanMemory; reserved means the caller
+    // already charged the native copy, scan is the trace id
+    private YaraScanResult scanMemory(byte[] data, boolean reserved, long scan) throws InterruptedException {
+        YaraScanResult result;
+        YaraFileFeatures features = new YaraFileFeatures(scanFeatures);
+        YaraSimHash simHash = similarityIndex != null ? new YaraSimHash() : null;
+        YaraCompiledRules rules = nativeLibraryLoaded ? null : javaRules;
+        // The data itself belongs to the caller; only copies are charged
+        long phaseStart = scanTrace.now(scan);
+        YaraMemoryBudget.Reservation segments = rules != null ? reserveSegmentBuffers(rules, data.length, scan) : null;
+        YaraRuleMatcher matcher;
+        try {
+            matcher = rules != null ? new YaraRuleMatcher(rules, data.length, segments != null) : null;
+            YaraScanPipeline pipeline = new YaraScanPipeline();
+            features.addTo(pipeline);
+            pipeline.add(simHash);
+            pipeline.add(matcher);
+            pipeline.run(data);
+            scanTrace.phase(scan, YaraScanTrace.PHASE_READ, phaseStart);
+        } finally {
+            release(segments);
+        }
+
+        if (nativeLibraryLoaded) {
+            // JNI may copy the array for the native engine
+            phaseStart = scanTrace.now(scan);
+            YaraMemoryBudget.Reservation copy = reserved ? null : memoryBudget.acquire(data.length);
+            scanTrace.phase(scan, YaraScanTrace.PHASE_WAIT, phaseStart);
+            phaseStart = scanTrace.now(scan);
+            try {
+                result = nativeScanMemory(data);
+            } catch (Exception e) {
+                YaraLog.w(TAG, "Native memory scan failed, falling back to mock: " + e.getMessage());
+                result = mockScanMemory(data);
+            } finally {
+                release(copy);
+                scanTrace.phase(scan, YaraScanTrace.PHASE_NATIVE, phaseStart);
+            }
+        } else {
+            phaseStart = scanTrace.now(scan);
+            result = matcher != null
+                    ? createJavaResult(rules, rules.evaluate(matcher.getMatches(), data.length), "Memory appears clean")
+                    : null;
+            if (result == null || result.isSafe()) {
+                YaraScanResult heuristic = mockScanMemory(data);
+                if (result == null || !heuristic.isSafe()) {
+                    result = heuristic;
+                }
+            }
+            scanTrace.phase(scan, YaraScanTrace.PHASE_EVALUATE, phaseStart);
+        }
+        applySimilarity(result, simHash);
+        features.applyTo(result);
+        return result;
+    }
+
+    // Incremental scanning: beginScan() returns a handle, feed() can be called
+    // repeatedly as data arrives, and finish() returns the verdict. Sessions run
+    // on the Java engine and keep automaton state between feeds.
+    public int beginScan() {
+        return beginScan(false);
+    }
+
+    // Sessions JS never finishes or aborts, such as those of a cancelled
+    // download, are dropped once they have not been fed for this long
+    public void setScanSessionTimeout(long millis) {
+        this.sessionIdleTimeoutMs = Math.max(0, millis);
+    }
+
+    public long getScanSessionTimeout() {
+        return sessionIdleTimeoutMs;
+    }
+
+    int getOpenScanSessions() {
+        return scanSessions.size();
+    }
+
+    public int beginScan(boolean reportEarlyMatches) {
+        if (!isInitialized) {
+            YaraLog.e(TAG, "YARA engine not initialized");
+            return -1;
+        }
+
+        YaraCompiledRules rules = javaRules;
+        if (rules == null) {
+            YaraLog.e(TAG, "Incremental scanning requires rules supported by the Java engine");
+            return -1;
+        }
+
+        expireScanSessions(MAX_SCAN_SESSIONS - 1);
+        int handle = nextSessionId.getAndIncrement();
+        YaraSimHash simHash = similarityIndex != null ? new YaraSimHash() : null;
+        scanSessions.put(handle, new YaraScanSession(rules, reportEarlyMatches, simHash));
+        return handle;
+    }
+
+    // Returns the names of rules that are already decided matches after this
+    // chunk (only when the session reports early matches), or null on error.
+    public List<String> feed(int handle, byte[] data) {
+        expireScanSessions(MAX_SCAN_SESSIONS);
+        YaraScanSession session = scanSessions.get(handle);
+        if (session == null) {
+            YaraLog.e(TAG, "Unknown scan session: " + handle);
+            return null;
+        }
+        if (data == null || data.length == 0) {
+            return Collections.emptyList();
+        }
+
+        try {
+            List<String> ruleNames = new ArrayList<>();
+            for (YaraRule rule : session.feed(data, 0, data.length)) {
+                ruleNames.add(rule.name);
+            }
+            return ruleNames;
+        } catch (Exception e) {
+            YaraLog.e(TAG, "Exception feeding scan session", e);
+            scanSessions.remove(handle);
+            return null;
+        }
+    }
+
+    public YaraScanResult finish(int handle) {
+        YaraScanSession session = scanSessions.remove(handle);
+        if (session == null) {
+            YaraLog.e(TAG, "Unknown scan session: " + handle);
+            return null;
+        }
+
+        try {
+            YaraScanResult result = createJavaResult(session.getRules(), session.finish(), "Data appears clean");
+            applySimilarity(result, session.getSimHash());
+            result.setScanTime(session.getScanTimeMillis());
+            result.setFileSize(session.getBytesScanned());
             return result;
         } catch (Exception e) {
-            Log.e(TAG, "Exception scanning memory", e);
+            YaraLog.e(TAG, "Exception finishing scan session", e);
             return null;
         }
     }
 
+    public boolean abortScan(int handle) {
+        return scanSessions.remove(handle) != null;
+    }
+
+    // Drops idle sessions, then the least recently fed ones until at most
+    // keep are open
+    private void expireScanSessions(int keep) {
+        long now = System.nanoTime();
+        long timeoutNanos = sessionIdleTimeoutMs * 1000000L;
+        for (Map.Entry<Integer, YaraScanSession> entry : scanSessions.entrySet()) {
+            if (now - entry.getValue().getLastUsedNanos() > timeoutNanos
+                    && scanSessions.remove(entry.getKey(), entry.getValue())) {
+                YaraLog.w(TAG, "Dropped scan session " + entry.getKey() + " after "
+                        + sessionIdleTimeoutMs + "ms without data");
+            }
+        }
+        while (scanSessions.size() > keep) {
+            Map.Entry<Integer, YaraScanSession> oldest = null;
+            for (Map.Entry<Integer, YaraScanSession> entry : scanSessions.entrySet()) {
+                if (oldest == null
+                        || entry.getValue().getLastUsedNanos() - oldest.getValue().getLastUsedNanos() < 0) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            if (scanSessions.remove(oldest.getKey(), oldest.getValue())) {
+                YaraLog.w(TAG, "Dropped scan session " + oldest.getKey() + ": more than "
+                        + MAX_SCAN_SESSIONS + " open");
+            }
+        }
+    }
+
+    // Known-good / known-bad hash tables checked before pattern scanning. The
+    // base table is built offline; feed updates are applied as deltas.
+    public boolean loadReputationSet(String basePath, String deltaPath) {
+        try {
+            reputationSet = YaraReputationSet.open(new File(basePath), new File(deltaPath));
+            YaraLog.i(TAG, "Reputation set loaded with " + reputationSet.size() + " entries");
+            return true;
+        } catch (IOException e) {
+            YaraLog.e(TAG, "Failed to load reputation set", e);
+            return false;
+        }
+    }
+
+    public boolean applyReputationDelta(String deltaBlobPath) {
+        YaraReputationSet reputation = reputationSet;
+        if (reputation == null) {
+            YaraLog.e(TAG, "No reputation set loaded");
+            return false;
+        }
+        try {
+            reputation.applyDelta(new File(deltaBlobPath));
+            return true;
+        } catch (IOException e) {
+            YaraLog.e(TAG, "Failed to apply reputation delta", e);
+            return false;
+        }
+    }
+
+    // Index of similarity digests of known-bad samples, used to catch repacked
+    // variants that exact hashes and rules miss.
+    public boolean loadSimilarityIndex(String indexPath) {
+        try {
+            similarityIndex = YaraSimilarityIndex.load(new File(indexPath));
+            YaraLog.i(TAG, "Similarity index loaded with " + similarityIndex.size() + " digests");
+            return true;
+        } catch (IOException e) {
+            YaraLog.e(TAG, "Failed to load similarity index", e);
+            return false;
+        }
+    }
+
+    private static YaraScanResult checkReputation(YaraReputationSet reputation, byte[] sha256, long size) {
+        int verdict = reputation.lookup(sha256);
+        if (verdict == YaraReputationSet.KNOWN_GOOD) {
+            YaraScanResult result = new YaraScanResult();
+            result.setSafe(true);
+            result.setScanEngine("Shabari Reputation");
+            result.setDetails("Known good file");
+            return result;
+        }
+        if (verdict == YaraReputationSet.KNOWN_BAD) {
+            List<String> matchedRules = new ArrayList<>();
+            matchedRules.add("reputation_known_bad");
+            YaraScanResult result = YaraScanResult.createThreatResult("Reputation.KnownBad",
+                    YaraThreatCategory.MALWARE, YaraSeverity.CRITICAL, matchedRules, 0, size, "File hash matches a known malware sample");
+            result.setScanEngine("Shabari Reputation");
+            return result;
+        }
+        return null;
+    }
+
+    // Verdict history: every scanFile() result, including failed scans, is
+    // appended to a journal in this directory (see YaraScanJournal). Null
+    // closes the journal.
+    public synchronized boolean openJournal(String directoryPath) {
+        closeJournal();
+        if (directoryPath == null) {
+            return true;
+        }
+        try {
+            scanJournal = YaraScanJournal.open(new File(directoryPath));
+            YaraLog.i(TAG, "Scan journal opened in " + directoryPath);
+            return true;
+        } catch (IOException e) {
+            YaraLog.e(TAG, "Failed to open scan journal", e);
+            return false;
+        }
+    }
+
+    public synchronized void closeJournal() {
+        if (scanJournal != null) {
+            scanJournal.close();
+            scanJournal = null;
+        }
+    }
+
+    // Journal entries newest first, or null without a journal; see
+    // YaraScanJournal.query
+    public List<YaraScanJournal.Entry> queryJournal(String filePath, int verdict, long fromMillis, long toMillis,
+                                                    int limit) {
+        YaraScanJournal journal = scanJournal;
+        if (journal == null) {
+            YaraLog.e(TAG, "No scan journal open");
+            return null;
+        }
+        return journal.query(filePath, verdict, fromMillis, toMillis, limit);
+    }
+
+    // Continuous protection: files created or modified under a watch root are
+    // rescanned after changes settle and their verdicts go to the watch listener.
+    public synchronized void setWatchListener(YaraDirectoryWatcher.Listener listener) {
+        this.watchListener = listener;
+    }
+
+    public synchronized void setWatchDebounceMillis(long debounceMs) {
+        this.watchDebounceMs = debounceMs;
+        if (directoryWatcher != null) {
+            directoryWatcher.setDebounceMillis(debounceMs);
+        }
+    }
+
+    public synchronized boolean addWatchRoot(String directoryPath) {
+        if (!isInitialized) {
+            YaraLog.e(TAG, "YARA engine not initialized");
+            return false;
+        }
+        if (watchListener == null) {
+            YaraLog.e(TAG, "No watch listener registered");
+            return false;
+        }
+
+        try {
+            if (directoryWatcher == null) {
+                directoryWatcher = new YaraDirectoryWatcher(this, watchListener);
+                directoryWatcher.setDebounceMillis(watchDebounceMs);
+            }
+            return directoryWatcher.addRoot(directoryPath);
+        } catch (Exception e) {
+            YaraLog.e(TAG, "Exception adding watch root", e);
+            return false;
+        }
+    }
+
+    public synchronized boolean removeWatchRoot(String directoryPath) {
+        return directoryWatcher != null && directoryWatcher.removeRoot(directoryPath);
+    }
+
+    public synchronized List<String> getWatchRoots() {
+        if (directoryWatcher == null) {
+            return Collections.emptyList();
+        }
+        return directoryWatcher.getRoots();
+    }
+
+    private synchronized void stopWatching() {
+        if (directoryWatcher != null) {
+            directoryWatcher.stop();
+            directoryWatcher = null;
+        }
+    }
+
     public String getVersion() {
         try {
             if (nativeLibraryLoaded) {
@@ -240,7 +890,7 @@ public class YaraEngine {
                 return "4.5.0-mock";
             }
         } catch (Exception e) {
-            Log.e(TAG, "Exception getting version", e);
+            YaraLog.e(TAG, "Exception getting version", e);
             return "4.5.0-mock";
         }
     }
@@ -253,33 +903,233 @@ public class YaraEngine {
         try {
             if (nativeLibraryLoaded) {
                 return nativeGetLoadedRulesCount();
+            } else if (javaRules != null) {
+                return javaRules.getRuleCount();
             } else {
                 return 127; // Mock rule count
             }
         } catch (Exception e) {
-            Log.e(TAG, "Exception getting rules count", e);
+            YaraLog.e(TAG, "Exception getting rules count", e);
             return 127; // Fallback to mock count
         }
     }
 
     public void cleanup() {
         try {
+            stopWatching();
+            closeJournal();
             if (isInitialized) {
                 if (nativeLibraryLoaded) {
                     nativeCleanup();
                 }
+                javaRules = null;
+                scanSessions.clear();
                 isInitialized = false;
-                Log.i(TAG, "YARA engine cleaned up");
+                YaraLog.i(TAG, "YARA engine cleaned up");
             }
         } catch (Exception e) {
-            Log.e(TAG, "Exception during cleanup", e);
+            YaraLog.e(TAG, "Exception during cleanup", e);
+        }
+    }
+
+    // Java implementation methods
+    private boolean compileJavaRules(String rulesContent) {
+        try {
+            long startTime = System.currentTimeMillis();
+            YaraCompiledRules compiled = YaraRuleCompiler.compile(rulesContent);
+            javaRules = compiled;
+            YaraLog.d(TAG, "Compiled " + compiled.getRuleCount() + " rules in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+            return true;
+        } catch (IllegalArgumentException e) {
+            YaraLog.e(TAG, "Failed to compile YARA rules: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Loads rule source into the active engine, from the compiled cache when
+    // the same source was compiled before
+    private boolean loadRuleSource(String rulesContent) {
+        File directory = rulesCacheDirectory;
+        File cached = directory != null ? new File(directory, YaraRulesFile.cacheName(rulesContent)) : null;
+        if (cached != null && cached.exists()) {
+            if (loadCompiledRules(cached, true)) {
+                return true;
+            }
+            // Recompiled and saved afresh below
+            cached.delete();
+            new File(cached.getPath() + NATIVE_RULES_SUFFIX).delete();
+        }
+
+        boolean success;
+        if (nativeLibraryLoaded) {
+            success = nativeLoadRules(rulesContent);
+            if (success) {
+                // Java rules back incremental scan sessions
+                syncJavaRules(rulesContent);
+            }
+        } else {
+            success = compileJavaRules(rulesContent);
+        }
+        if (success && cached != null) {
+            saveCompiledRules(cached);
+        }
+        return success;
+    }
+
+    // A cache file that cannot be read is reported as a failure, so it gets
+    // rebuilt, even when the native half alone could be loaded
+    private boolean loadCompiledRules(File file, boolean cache) {
+        long startTime = System.currentTimeMillis();
+        YaraCompiledRules compiled = null;
+        if (file.exists()) {
+            try {
+                compiled = YaraRulesFile.load(file);
+            } catch (IOException e) {
+                YaraLog.w(TAG, "Cannot load compiled rules: " + e.getMessage());
+                if (cache) {
+                    return false;
+                }
+            }
+        }
+        if (nativeLibraryLoaded) {
+            File nativeFile = new File(file.getPath() + NATIVE_RULES_SUFFIX);
+            if (!nativeFile.exists() || !nativeLoadCompiledRules(nativeFile.getPath())) {
+                return false;
+            }
+            // As with source, sessions are disabled rather than left on stale rules
+            javaRules = compiled;
+        } else if (compiled != null) {
+            javaRules = compiled;
+        } else {
+            return false;
+        }
+        YaraLog.d(TAG, "Loaded compiled rules from " + file.getName() + " in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+
+    private boolean saveCompiledRules(File file) {
+        try {
+            YaraCompiledRules rules = javaRules;
+            if (rules != null) {
+                YaraRulesFile.save(rules, file);
+            } else if (nativeLibraryLoaded) {
+                // Native rules only; a stale Java rule set must not be paired with them
+                file.delete();
+            } else {
+                YaraLog.e(TAG, "No compiled rules to save");
+                return false;
+            }
+            if (nativeLibraryLoaded && !nativeSaveRules(file.getPath() + NATIVE_RULES_SUFFIX)) {
+                YaraLog.e(TAG, "Failed to save native rules");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            YaraLog.e(TAG, "Failed to save compiled rules: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Keeps the Java rules in step with rules loaded into the native engine.
+    // Rules the Java engine cannot compile disable it rather than leave stale rules.
+    private void syncJavaRules(String rulesContent) {
+        if (!compileJavaRules(rulesContent)) {
+            javaRules = null;
+        }
+    }
+
+    // Reserves the parallel scanner's segment buffers when the input is large
+    // enough to use them and the memory budget has room right now; null
+    // means a serial scan through the pipeline block
+    private YaraMemoryBudget.Reservation reserveSegmentBuffers(YaraCompiledRules rules, long size, long scan) {
+        if (!YaraParallelScanner.shouldParallelize(size, parallelScanThreshold)) {
+            return null;
+        }
+        YaraMemoryBudget.Reservation segments = memoryBudget.tryAcquire(YaraParallelScanner.bufferBytes(rules));
+        if (segments == null) {
+            scanTrace.event(scan, YaraScanTrace.SERIAL_FALLBACK);
+        }
+        return segments;
+    }
+
+    private static void release(YaraMemoryBudget.Reservation reservation) {
+        if (reservation != null) {
+            reservation.release();
+        }
+    }
+
+    // Flags near-duplicates of known-bad samples that no rule caught
+    private void applySimilarity(YaraScanResult result, YaraSimHash simHash) {
+        YaraSimilarityIndex index = similarityIndex;
+        if (result == null || simHash == null || index == null || !simHash.hasEnoughFeatures()) {
+            return;
+        }
+
+        long digest = simHash.digest();
+        result.setSimilarityDigest(digest);
+        YaraSimilarityIndex.Match match = index.findNearest(digest);
+        if (match == null) {
+            return;
+        }
+        result.setSimilarityScore(match.score);
+        result.setSimilarTo(match.label);
+        // Inputs sharing large common parts (libraries bundled into APKs) can
+        // land near a sample, so closeness alone decides only for inputs with
+        // enough content and only at medium severity
+        if (match.distance > YaraSimilarityIndex.VERDICT_DISTANCE || !simHash.isConclusive()) {
+            return;
+        }
+        if (result.isSafe()) {
+            result.setSafe(false);
+            result.setThreatName("Variant." + match.label);
+            result.setThreatCategory(YaraThreatCategory.MALWARE);
+            result.setSeverity(YaraSeverity.MEDIUM);
+            result.addMatchedRule("similarity_" + match.label);
+            result.setDetails(String.format("Near-duplicate of known malware %s (similarity %.2f)",
+                    match.label, match.score));
+        } else if (result.getThreatCategory() != YaraThreatCategory.ERROR
+                && result.getSeverity().compareTo(YaraSeverity.HIGH) < 0) {
+            // A rule match and a near-duplicate confirm each other
+            result.setSeverity(YaraSeverity.HIGH);
+        }
+    }
+
+    private YaraScanResult createJavaResult(YaraCompiledRules rules, List<YaraRule> matchedRules,
+                                            String cleanDetails) {
+        YaraScanResult result = new YaraScanResult(rules.ruleNames);
+        result.setScanEngine("Shabari YARA v4.5.0 (Java)");
+        if (matchedRules.isEmpty()) {
+            result.setSafe(true);
+            result.setDetails(cleanDetails);
+            return result;
+        }
+
+        // Report the most severe matching rule as the threat
+        YaraRule primary = matchedRules.get(0);
+        StringBuilder details = new StringBuilder("Detected malware patterns: ");
+        for (int i = 0; i < matchedRules.size(); i++) {
+            YaraRule rule = matchedRules.get(i);
+            if (rule.severity.compareTo(primary.severity) > 0) {
+                primary = rule;
+            }
+            if (i > 0) {
+                details.append(", ");
+            }
+            details.append(rule.name);
+            result.addMatchedRuleId(rule.index);
         }
+        result.setSafe(false);
+        result.setThreatName(primary.name);
+        result.setThreatCategory(primary.category, primary.categoryLabel);
+        result.setSeverity(primary.severity, primary.severityLabel);
+        result.setDetails(details.toString());
+        return result;
     }
 
     // Mock implementation methods
     private YaraScanResult mockScanFile(String filePath) {
-        Log.d(TAG, "🎭 Mock scanning file: " + filePath);
-        
         String fileName = new File(filePath).getName().toLowerCase();
         
         // Enhanced malware pattern detection for mock
@@ -341,8 +1191,6 @@ public class YaraEngine {
     }
     
     private YaraScanResult mockScanMemory(byte[] data) {
-        Log.d(TAG, "🎭 Mock scanning memory, size: " + data.length);
-        
         // Convert first 1000 bytes to string for pattern matching
         int maxLength = Math.min(data.length, 1000);
         StringBuilder dataStr = new StringBuilder();
@@ -0,0 +1,205 @@
+package com.shabari.yara;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Per-input features extracted in the scan's single read (see
+// YaraScanPipeline): the SHA-256 used for reputation lookups and caching,
+// the byte entropy (packed or encrypted payloads sit close to 8 bits per
+// byte) and the file type sniffed from magic bytes.
+final class YaraFileFeatures {
+    private final Sha256 sha256;
+    private final Entropy entropy;
+    private final FileType fileType;
+
+    // features: YaraEngine.FEATURE_* flags
+    YaraFileFeatures(int features) {
+        this.sha256 = (features & YaraEngine.FEATURE_SHA256) != 0 ? new Sha256() : null;
+        this.entropy = (features & YaraEngine.FEATURE_ENTROPY) != 0 ? new Entropy() : null;
+        this.fileType = (features & YaraEngine.FEATURE_FILE_TYPE) != 0 ? new FileType() : null;
+    }
+
+    void addTo(YaraScanPipeline pipeline) {
+        pipeline.add(sha256);
+        pipeline.add(entropy);
+        pipeline.add(fileType);
+    }
+
+    // Null unless the SHA-256 feature was requested
+    byte[] getSha256() {
+        return sha256 != null ? sha256.digest : null;
+    }
+
+    void applyTo(YaraScanResult result) {
+        if (result == null) {
+            return;
+        }
+        if (sha256 != null && sha256.digest != null) {
+            result.setSha256(toHex(sha256.digest));
+        }
+        if (entropy != null) {
+            result.setEntropy(entropy.value);
+        }
+        if (fileType != null) {
+            result.setFileType(fileType.type);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static final class Sha256 implements YaraScanPipeline.Consumer {
+        private final MessageDigest messageDigest;
+        byte[] digest;
+
+        Sha256() {
+            try {
+                messageDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Android release ships SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean accept(ByteBuffer buffer, int from, int to, long base) {
+            ByteBuffer view = buffer.duplicate();
+            view.limit(to);
+            view.position(from);
+            messageDigest.update(view);
+            return true;
+        }
+
+        @Override
+        public void finish() {
+            digest = messageDigest.digest();
+        }
+    }
+
+    // Shannon entropy of the byte histogram, in bits per byte (0 to 8)
+    private static final class Entropy implements YaraScanPipeline.Consumer {
+        private final long[] counts = new long[256];
+        private long total;
+        double value;
+
+        @Override
+        public boolean accept(ByteBuffer buffer, int from, int to, long base) {
+            final long[] counts = this.counts;
+            if (buffer.hasArray()) {
+                final byte[] array = buffer.array();
+                final int offset = buffer.arrayOffset();
+                for (int i = from; i < to; i++) {
+                    counts[array[offset + i] & 0xFF]++;
+                }
+            } else {
+                for (int i = from; i < to; i++) {
+                    counts[buffer.get(i) & 0xFF]++;
+                }
+            }
+            total += to - from;
+            return true;
+        }
+
+        @Override
+        public void finish() {
+            double sum = 0;
+            for (long count : counts) {
+                if (count > 0) {
+                    double p = (double) count / total;
+                    sum -= p * Math.log(p);
+                }
+            }
+            value = sum / Math.log(2);
+        }
+    }
+
+    // Magic-byte type detection over the first HEADER_LENGTH bytes
+    private static final class FileType implements YaraScanPipeline.Consumer {
+        private static final int HEADER_LENGTH = 64;
+        // Checked in order: offset, signature, type
+        private static final Object[][] SIGNATURES = {
+                { 0, "%PDF-", "pdf" },
+                { 0, "PK\u0003\u0004", "zip" },
+                { 0, "dex\n", "dex" },
+                { 0, "\u007fELF", "elf" },
+                { 0, "MZ", "pe" },
+                { 0, "\u00ca\u00fe\u00ba\u00be", "class" },
+                { 0, "\u00fe\u00ed\u00fa\u00ce", "macho" },
+                { 0, "\u00fe\u00ed\u00fa\u00cf", "macho" },
+                { 0, "\u00ce\u00fa\u00ed\u00fe", "macho" },
+                { 0, "\u00cf\u00fa\u00ed\u00fe", "macho" },
+                { 0, "\u0003\u0000\u0008\u0000", "axml" },
+                { 0, "\u0002\u0000\u000c\u0000", "arsc" },
+                { 0, "\u0089PNG\r\n\u001a\n", "png" },
+                { 0, "\u00ff\u00d8\u00ff", "jpeg" },
+                { 0, "GIF8", "gif" },
+                { 0, "\u001f\u008b", "gzip" },
+                { 0, "7z\u00bc\u00af'\u001c", "7z" },
+                { 0, "Rar!\u001a\u0007", "rar" },
+                { 0, "\u00d0\u00cf\u0011\u00e0\u00a1\u00b1\u001a\u00e1", "ole" },
+                { 0, "{\\rtf", "rtf" },
+                { 0, "SQLite format 3\u0000", "sqlite" },
+                { 4, "ftyp", "mp4" },
+                { 0, "#!", "script" },
+                { 0, "<?xml", "xml" },
+        };
+
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private int filled;
+        String type = "";
+
+        @Override
+        public boolean accept(ByteBuffer buffer, int from, int to, long base) {
+            int n = Math.min(to - from, HEADER_LENGTH - filled);
+            for (int i = 0; i < n; i++) {
+                header[filled + i] = buffer.get(from + i);
+            }
+            filled += n;
+            return filled < HEADER_LENGTH;
+        }
+
+        @Override
+        public void finish() {
+            type = sniff(header, filled);
+        }
+
+        private static String sniff(byte[] header, int length) {
+            if (length == 0) {
+                return "empty";
+            }
+            for (Object[] signature : SIGNATURES) {
+                if (startsWith(header, length, (Integer) signature[0], (String) signature[1])) {
+                    return (String) signature[2];
+                }
+            }
+            for (int i = 0; i < length; i++) {
+                int b = header[i] & 0xFF;
+                // Control bytes other than whitespace mean binary; UTF-8 is text
+                if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' || b == 0x7F) {
+                    return "data";
+                }
+            }
+            return "text";
+        }
+
+        private static boolean startsWith(byte[] header, int length, int offset, String signature) {
+            byte[] bytes = signature.getBytes(StandardCharsets.ISO_8859_1);
+            if (offset + bytes.length > length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (header[offset + i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.shabari.yara;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Bit-parallel (shift-and) matcher for hex strings with wildcards, nibble
+// masks, alternatives and short jumps. Such a string is expanded into a few
+// fixed-length forms, each a sequence of byte sets, and the forms of all
+// strings are packed side by side into 64-bit words: bit i of a word is set
+// while the input so far ends with the first i+1 positions of a form. A byte
+// costs a shift, an or and an and per word, whatever the wildcards, and only
+// words holding a partial match or able to start one with that byte are
+// touched; bytes that start nothing while no match is in progress are
+// skipped outright, so hex-heavy rule sets cost about as much as literals.
+//
+// Hex strings that do not expand into few enough short forms (long or
+// unbounded jumps) are compiled as regular expressions instead.
+final class YaraHexMatcher {
+    static final int MAX_FORMS = 16;
+    static final int MAX_FORM_LENGTH = 64;
+
+    private final int words;
+    // masks[value * words + word]: positions whose set contains value
+    private final long[] masks;
+    private final long[] first;
+    // starts[value * groups + group]: words (64 per group) where value can
+    // begin a form
+    private final long[] starts;
+    private final boolean[] startable;
+    private final int groups;
+    private final long[] last;
+    private final int[] formString;
+    private final int[] formLength;
+    private final int[] formSlot;
+    private final int slotCount;
+
+    YaraHexMatcher(List<YaraRuleString> strings) {
+        List<long[][]> forms = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        int slot = 0;
+        for (YaraRuleString string : strings) {
+            for (long[][] form : string.forms) {
+                forms.add(form);
+                owners.add(string.index);
+                // Strings with several forms may match one offset more than once
+                slots.add(string.forms.length > 1 ? slot : -1);
+            }
+            if (string.forms.length > 1) {
+                slot++;
+            }
+        }
+        this.slotCount = slot;
+
+        // Pack forms into words, never splitting one across words
+        int[] formWord = new int[forms.size()];
+        int[] formBit = new int[forms.size()];
+        int word = 0;
+        int used = 0;
+        for (int f = 0; f < forms.size(); f++) {
+            int length = forms.get(f).length;
+            if (used + length > 64) {
+                word++;
+                used = 0;
+            }
+            formWord[f] = word;
+            formBit[f] = used;
+            used += length;
+        }
+        this.words = word + 1;
+        this.masks = new long[256 * words];
+        this.first = new long[words];
+        this.last = new long[words];
+        this.formString = new int[words * 64];
+        this.formLength = new int[words * 64];
+        this.formSlot = new int[words * 64];
+        for (int f = 0; f < forms.size(); f++) {
+            long[][] form = forms.get(f);
+            int w = formWord[f];
+            for (int i = 0; i < form.length; i++) {
+                long bit = 1L << (formBit[f] + i);
+                for (int value = 0; value < 256; value++) {
+                    if (YaraRegex.contains(form[i], value)) {
+                        masks[value * words + w] |= bit;
+                    }
+                }
+            }
+            first[w] |= 1L << formBit[f];
+            int end = formBit[f] + form.length - 1;
+            last[w] |= 1L << end;
+            formString[w * 64 + end] = owners.get(f);
+            formLength[w * 64 + end] = form.length;
+            formSlot[w * 64 + end] = slots.get(f);
+        }
+
+        this.groups = (words + 63) / 64;
+        this.starts = new long[256 * groups];
+        this.startable = new boolean[256];
+        for (int value = 0; value < 256; value++) {
+            for (int w = 0; w < words; w++) {
+                if ((masks[value * words + w] & first[w]) != 0) {
+                    starts[value * groups + w / 64] |= 1L << (w % 64);
+                    startable[value] = true;
+                }
+            }
+        }
+    }
+
+    private YaraHexMatcher(int words, long[] masks, long[] first, long[] starts, boolean[] startable, int groups,
+                           long[] last, int[] formString, int[] formLength, int[] formSlot, int slotCount) {
+        this.words = words;
+        this.masks = masks;
+        this.first = first;
+        this.starts = starts;
+        this.startable = startable;
+        this.groups = groups;
+        this.last = last;
+        this.formString = formString;
+        this.formLength = formLength;
+        this.formSlot = formSlot;
+        this.slotCount = slotCount;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(words);
+        out.writeInt(groups);
+        out.writeInt(slotCount);
+        YaraRulesFile.writeLongs(out, masks);
+        YaraRulesFile.writeLongs(out, first);
+        YaraRulesFile.writeLongs(out, starts);
+        YaraRulesFile.writeBooleans(out, startable);
+        YaraRulesFile.writeLongs(out, last);
+        YaraRulesFile.writeInts(out, formString);
+        YaraRulesFile.writeInts(out, formLength);
+        YaraRulesFile.writeInts(out, formSlot);
+    }
+
+    static YaraHexMatcher read(ByteBuffer in) {
+        int words = in.getInt();
+        int groups = in.getInt();
+        int slotCount = in.getInt();
+        long[] masks = YaraRulesFile.readLongs(in);
+        long[] first = YaraRulesFile.readLongs(in);
+        long[] starts = YaraRulesFile.readLongs(in);
+        boolean[] startable = YaraRulesFile.readBooleans(in);
+        long[] last = YaraRulesFile.readLongs(in);
+        int[] formString = YaraRulesFile.readInts(in);
+        int[] formLength = YaraRulesFile.readInts(in);
+        int[] formSlot = YaraRulesFile.readInts(in);
+        if (masks.length != 256 * words || starts.length != 256 * groups || formString.length != words * 64) {
+            throw new IllegalArgumentException("Inconsistent hex matcher tables");
+        }
+        return new YaraHexMatcher(words, masks, first, starts, startable, groups, last, formString, formLength,
+                formSlot, slotCount);
+    }
+
+    // Fixed-length forms of a hex string, or null if there would be more than
+    // MAX_FORMS of them or one would be longer than MAX_FORM_LENGTH
+    static long[][][] expand(YaraRegex.Node node) {
+        List<long[][]> forms = expandNode(node);
+        return forms == null ? null : forms.toArray(new long[0][][]);
+    }
+
+    private static List<long[][]> expandNode(YaraRegex.Node node) {
+        List<long[][]> result = new ArrayList<>();
+        switch (node.kind) {
+            case YaraRegex.Node.SET:
+                result.add(new long[][] { node.set });
+                return result;
+            case YaraRegex.Node.ALT:
+                for (YaraRegex.Node child : node.children) {
+                    List<long[][]> forms = expandNode(child);
+                    if (forms == null || result.size() + forms.size() > MAX_FORMS) {
+                        return null;
+                    }
+                    result.addAll(forms);
+                }
+                return result;
+            case YaraRegex.Node.CONCAT: {
+                result.add(new long[0][]);
+                for (YaraRegex.Node child : node.children) {
+                    result = product(result, expandNode(child));
+                    if (result == null) {
+                        return null;
+                    }
+                }
+                return result;
+            }
+            default: {
+                if (node.max > MAX_FORM_LENGTH) {
+                    return null;
+                }
+                List<long[][]> child = expandNode(node.children.get(0));
+                List<long[][]> repeated = new ArrayList<>();
+                repeated.add(new long[0][]);
+                for (int i = 0; i < node.min && repeated != null; i++) {
+                    repeated = product(repeated, child);
+                }
+                for (int count = node.min; count <= node.max && repeated != null; count++) {
+                    if (result.size() + repeated.size() > MAX_FORMS) {
+                        return null;
+                    }
+                    result.addAll(repeated);
+                    if (count < node.max) {
+                        repeated = product(repeated, child);
+                    }
+                }
+                return repeated == null ? null : result;
+            }
+        }
+    }
+
+    private static List<long[][]> product(List<long[][]> prefixes, List<long[][]> suffixes) {
+        if (prefixes == null || suffixes == null || prefixes.size() * suffixes.size() > MAX_FORMS) {
+            return null;
+        }
+        List<long[][]> result = new ArrayList<>();
+        for (long[][] prefix : prefixes) {
+            for (long[][] suffix : suffixes) {
+                if (prefix.length + suffix.length > MAX_FORM_LENGTH) {
+                    return null;
+                }
+                long[][] form = new long[prefix.length + suffix.length][];
+                System.arraycopy(prefix, 0, form, 0, prefix.length);
+                System.arraycopy(suffix, 0, form, prefix.length, suffix.length);
+                result.add(form);
+            }
+        }
+        return result;
+    }
+
+    State newState() {
+        State state = new State(words, groups, slotCount);
+        for (int w = 0; w < words; w++) {
+            state.enabled[w / 64] |= 1L << (w % 64);
+            state.liveForms[w] = Long.bitCount(last[w]);
+        }
+        return state;
+    }
+
+    // Stops matching a string for the rest of the scan; words left with no
+    // live forms are skipped from then on.
+    void drop(State state, int stringIndex) {
+        for (int w = 0; w < words; w++) {
+            long ends = last[w];
+            while (ends != 0) {
+                int bit = Long.numberOfTrailingZeros(ends);
+                ends &= ends - 1;
+                if (formString[w * 64 + bit] == stringIndex && --state.liveForms[w] == 0) {
+                    state.enabled[w / 64] &= ~(1L << (w % 64));
+                    state.active[w / 64] &= ~(1L << (w % 64));
+                    state.vectors[w] = 0;
+                }
+            }
+        }
+    }
+
+    // Same contract as YaraPatternMatcher.scan, with the bit vectors kept in state
+    void scan(ByteBuffer buffer, int from, int to, long base, long recordLimit, YaraMatchSet matches, State state) {
+        if (buffer.hasArray()) {
+            final byte[] array = buffer.array();
+            final int arrayOffset = buffer.arrayOffset();
+            for (int i = from; i < to; i++) {
+                int value = array[arrayOffset + i] & 0xFF;
+                // Nothing in progress and nothing starts here: the common case
+                if (!state.idle || startable[value]) {
+                    step(value, base + i, recordLimit, matches, state);
+                }
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                int value = buffer.get(i) & 0xFF;
+                if (!state.idle || startable[value]) {
+                    step(value, base + i, recordLimit, matches, state);
+                }
+            }
+        }
+    }
+
+    private void step(int value, long offset, long recordLimit, YaraMatchSet matches, State state) {
+        final long[] vectors = state.vectors;
+        final long[] active = state.active;
+        boolean idle = true;
+        for (int g = 0; g < groups; g++) {
+            long pending = (active[g] | starts[value * groups + g]) & state.enabled[g];
+            long alive = 0;
+            while (pending != 0) {
+                int bit = Long.numberOfTrailingZeros(pending);
+                pending &= pending - 1;
+                int w = (g << 6) + bit;
+                long vector = ((vectors[w] << 1) | first[w]) & masks[value * words + w];
+                vectors[w] = vector;
+                if (vector != 0) {
+                    alive |= 1L << bit;
+                    if ((vector & last[w]) != 0) {
+                        report(w, vector & last[w], offset, recordLimit, matches, state);
+                    }
+                }
+            }
+            active[g] = alive;
+            idle &= alive == 0;
+        }
+        state.idle = idle;
+    }
+
+    private void report(int word, long ends, long endOffset, long recordLimit, YaraMatchSet matches, State state) {
+        while (ends != 0) {
+            int bit = Long.numberOfTrailingZeros(ends);
+            ends &= ends - 1;
+            int form = word * 64 + bit;
+            int back = formLength[form] - 1;
+            long start = endOffset - back;
+            if (start >= recordLimit) {
+                continue;
+            }
+            int slot = formSlot[form];
+            if (slot >= 0 && !state.firstReport(slot, endOffset, back)) {
+                continue;
+            }
+            matches.record(formString[form], start);
+        }
+    }
+
+    static final class State {
+        final long[] vectors;
+        // Words whose vector is not zero, and whether there are none
+        final long[] active;
+        boolean idle = true;
+        // Words that still hold forms of strings being matched
+        final long[] enabled;
+        final int[] liveForms;
+        // Per multi-form string: bit k set if a match starting k bytes before
+        // lastEnd was already recorded
+        private final long[] recent;
+        private final long[] lastEnd;
+
+        State(int words, int groups, int slots) {
+            this.vectors = new long[words];
+            this.active = new long[groups];
+            this.enabled = new long[groups];
+            this.liveForms = new int[words];
+            this.recent = new long[slots];
+            this.lastEnd = new long[slots];
+        }
+
+        boolean firstReport(int slot, long endOffset, int back) {
+            long shift = endOffset - lastEnd[slot];
+            long seen = shift >= 64 ? 0 : recent[slot] << shift;
+            lastEnd[slot] = endOffset;
+            long bit = 1L << back;
+            recent[slot] = seen | bit;
+            return (seen & bit) == 0;
+        }
+    }
+}
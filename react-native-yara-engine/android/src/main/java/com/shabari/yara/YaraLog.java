@@ -0,0 +1,92 @@
+package com.shabari.yara;
+
+import java.io.PrintStream;
+
+// Logging for the engine core, which does not depend on Android. Messages go
+// to stderr until YaraModule installs YaraAndroidLogger, which sends them to
+// android.util.Log. Applications and tools can install their own Logger.
+public final class YaraLog {
+    // Same values as the android.util.Log priorities
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public interface Logger {
+        // error may be null
+        void log(int priority, String tag, String message, Throwable error);
+    }
+
+    // Prints messages of at least minPriority to a stream
+    public static final class StreamLogger implements Logger {
+        private final PrintStream out;
+        private final int minPriority;
+
+        public StreamLogger(PrintStream out, int minPriority) {
+            this.out = out;
+            this.minPriority = minPriority;
+        }
+
+        @Override
+        public void log(int priority, String tag, String message, Throwable error) {
+            if (priority < minPriority) {
+                return;
+            }
+            synchronized (out) {
+                out.println("DIWE".charAt(Math.max(0, Math.min(3, priority - DEBUG))) + "/" + tag + ": " + message);
+                if (error != null) {
+                    error.printStackTrace(out);
+                }
+            }
+        }
+    }
+
+    private static final Logger SILENT = new Logger() {
+        @Override
+        public void log(int priority, String tag, String message, Throwable error) {
+        }
+    };
+
+    private static final Logger STDERR = new StreamLogger(System.err, DEBUG);
+
+    private static volatile Logger logger = STDERR;
+
+    private YaraLog() {
+    }
+
+    // Null discards all messages
+    public static synchronized void setLogger(Logger logger) {
+        YaraLog.logger = logger != null ? logger : SILENT;
+    }
+
+    // Replaces the stderr default, but not a logger set with setLogger()
+    static synchronized void setDefaultLogger(Logger logger) {
+        if (YaraLog.logger == STDERR) {
+            YaraLog.logger = logger;
+        }
+    }
+
+    public static void d(String tag, String message) {
+        logger.log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        logger.log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        logger.log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        logger.log(WARN, tag, message, error);
+    }
+
+    public static void e(String tag, String message) {
+        logger.log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        logger.log(ERROR, tag, message, error);
+    }
+}
@@ -0,0 +1,75 @@
+package com.shabari.yara;
+
+import java.util.Arrays;
+
+// Per-string match counters and start offsets collected by the pattern pass.
+// Offsets are recorded in scan order and capped per string; counts are exact.
+final class YaraMatchSet implements YaraPatternMatcher.Sink {
+    static final int MAX_RECORDED_OFFSETS = 1000;
+
+    private final int[] counts;
+    private final long[][] offsets;
+    private final int[] recorded;
+
+    YaraMatchSet(int stringCount) {
+        this.counts = new int[stringCount];
+        this.offsets = new long[stringCount][];
+        this.recorded = new int[stringCount];
+    }
+
+    @Override
+    public void record(int stringIndex, long offset) {
+        counts[stringIndex]++;
+        append(stringIndex, offset);
+    }
+
+    private void append(int stringIndex, long offset) {
+        int n = recorded[stringIndex];
+        if (n >= MAX_RECORDED_OFFSETS) {
+            return;
+        }
+        long[] list = offsets[stringIndex];
+        if (list == null) {
+            list = new long[4];
+            offsets[stringIndex] = list;
+        } else if (n == list.length) {
+            list = Arrays.copyOf(list, Math.min(n * 2, MAX_RECORDED_OFFSETS));
+            offsets[stringIndex] = list;
+        }
+        list[n] = offset;
+        recorded[stringIndex] = n + 1;
+    }
+
+    int count(int stringIndex) {
+        return counts[stringIndex];
+    }
+
+    boolean matchedAt(int stringIndex, long offset) {
+        return matchedIn(stringIndex, offset, offset);
+    }
+
+    boolean matchedIn(int stringIndex, long from, long to) {
+        long[] list = offsets[stringIndex];
+        int n = recorded[stringIndex];
+        for (int i = 0; i < n; i++) {
+            if (list[i] >= from && list[i] <= to) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Appends the matches of a set covering the region that directly follows
+    // this one, so merged results equal those of a single serial pass.
+    void merge(YaraMatchSet next) {
+        for (int i = 0; i < counts.length; i++) {
+            if (next.counts[i] == 0) {
+                continue;
+            }
+            counts[i] += next.counts[i];
+            for (int j = 0; j < next.recorded[i] && recorded[i] < MAX_RECORDED_OFFSETS; j++) {
+                append(i, next.offsets[i][j]);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.shabari.yara;
+
+import java.util.ArrayDeque;
+
+// Process-wide limit on scan buffers in flight. A scan charges the buffers it
+// is about to allocate and waits while the budget is exhausted, so more
+// concurrent work means more queueing instead of more heap. Waiters are served
+// in arrival order; a request larger than the whole budget is admitted once
+// nothing else is in flight, so it runs alone rather than never. Each charge
+// is a Reservation released by whoever holds it. A caller that needs several
+// buffers at once reserves them in one acquire: waiting for more while already
+// holding some could wait on itself or on another holder doing the same.
+public final class YaraMemoryBudget {
+    private final ArrayDeque<Object> waiting = new ArrayDeque<>();
+    private long limit;
+    private long inUse;
+    private long peak;
+    private long waits;
+
+    YaraMemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    // Bytes; 0 or less removes the limit
+    public synchronized void setLimit(long limit) {
+        this.limit = limit;
+        notifyAll();
+    }
+
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    public synchronized long getInUse() {
+        return inUse;
+    }
+
+    public synchronized long getPeak() {
+        return peak;
+    }
+
+    // Acquisitions that had to wait for memory
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    synchronized Reservation acquire(long bytes) throws InterruptedException {
+        if (waiting.isEmpty() && fits(bytes)) {
+            return take(bytes);
+        }
+        Object ticket = new Object();
+        waiting.add(ticket);
+        waits++;
+        try {
+            while (waiting.peek() != ticket || !fits(bytes)) {
+                wait();
+            }
+        } finally {
+            waiting.remove(ticket);
+            notifyAll();
+        }
+        return take(bytes);
+    }
+
+    // Takes bytes only if they fit now without overtaking anyone waiting;
+    // for optional buffers the caller can do without. Null when they do not.
+    synchronized Reservation tryAcquire(long bytes) {
+        if (!waiting.isEmpty() || (limit > 0 && inUse + bytes > limit)) {
+            return null;
+        }
+        return take(bytes);
+    }
+
+    private synchronized void release(Reservation reservation) {
+        inUse -= reservation.bytes;
+        reservation.bytes = 0;
+        notifyAll();
+    }
+
+    private boolean fits(long bytes) {
+        return limit <= 0 || inUse + bytes <= limit || inUse == 0;
+    }
+
+    private Reservation take(long bytes) {
+        inUse += bytes;
+        peak = Math.max(peak, inUse);
+        return new Reservation(this, bytes);
+    }
+
+    // Bytes charged by one acquire; released once, by any thread
+    static final class Reservation {
+        private final YaraMemoryBudget budget;
+        private long bytes;
+
+        private Reservation(YaraMemoryBudget budget, long bytes) {
+            this.budget = budget;
+            this.bytes = bytes;
+        }
+
+        long getBytes() {
+            synchronized (budget) {
+                return bytes;
+            }
+        }
+
+        // Later calls do nothing
+        void release() {
+            budget.release(this);
+        }
+    }
+}
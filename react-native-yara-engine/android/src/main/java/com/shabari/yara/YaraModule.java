@@ -5,18 +5,36 @@ import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 import android.util.Log;
 
+import java.util.List;
+
 public class YaraModule extends ReactContextBaseJavaModule {
     private static final String TAG = "YaraModule";
+    public static final String WATCH_RESULT_EVENT = "YaraWatchScanResult";
     private YaraEngine yaraEngine;
 
-    public YaraModule(ReactApplicationContext reactContext) {
+    public YaraModule(final ReactApplicationContext reactContext) {
         super(reactContext);
+        // Referenced directly so that R8 keeps it
+        YaraLog.setDefaultLogger(new YaraAndroidLogger());
         this.yaraEngine = new YaraEngine();
+        this.yaraEngine.setWatchListener(new YaraDirectoryWatcher.Listener() {
+            @Override
+            public void onScanResult(String filePath, YaraScanResult result) {
+                WritableMap event = YaraWritableMapWriter.toWritableMap(result);
+                event.putString("filePath", filePath);
+                reactContext
+                        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                        .emit(WATCH_RESULT_EVENT, event);
+            }
+        });
     }
 
     @Override
@@ -59,10 +77,9 @@ public class YaraModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void scanFile(String filePath, Promise promise) {
         try {
-            Log.d(TAG, "Scanning file: " + filePath);
             YaraScanResult result = yaraEngine.scanFile(filePath);
             if (result != null) {
-                WritableMap resultMap = result.toWritableMap();
+                WritableMap resultMap = YaraWritableMapWriter.toWritableMap(result);
                 promise.resolve(resultMap);
             } else {
                 promise.reject("SCAN_ERROR", "Failed to scan file");
@@ -76,25 +93,334 @@ public class YaraModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void scanMemory(ReadableArray data, Promise promise) {
         try {
-            Log.d(TAG, "Scanning memory data");
-            byte[] byteArray = new byte[data.size()];
-            for (int i = 0; i < data.size(); i++) {
-                byteArray[i] = (byte) data.getInt(i);
+            // The copy out of the bridge array and whatever the engine holds
+            // for it are reserved together up front
+            YaraMemoryBudget.Reservation reservation = yaraEngine.reserveMemoryScan(data.size(), data.size());
+            YaraScanResult result;
+            try {
+                result = yaraEngine.scanMemory(toByteArray(data), reservation);
+            } finally {
+                reservation.release();
             }
-            
-            YaraScanResult result = yaraEngine.scanMemory(byteArray);
             if (result != null) {
-                WritableMap resultMap = result.toWritableMap();
+                WritableMap resultMap = YaraWritableMapWriter.toWritableMap(result);
                 promise.resolve(resultMap);
             } else {
                 promise.reject("SCAN_ERROR", "Failed to scan memory");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Memory scan interrupted while waiting for memory");
+            promise.reject("SCAN_ERROR", "Memory scan interrupted while waiting for memory");
         } catch (Exception e) {
             Log.e(TAG, "Error scanning memory", e);
             promise.reject("SCAN_ERROR", "Error scanning memory: " + e.getMessage());
         }
     }
 
+    // Scans the files in order and resolves with one packed payload for all of
+    // them (see YaraResultBatch); failed scans are recorded, not rejected
+    @ReactMethod
+    public void scanFiles(ReadableArray filePaths, Promise promise) {
+        try {
+            YaraResultBatch batch = new YaraResultBatch();
+            for (int i = 0; i < filePaths.size(); i++) {
+                String filePath = filePaths.getString(i);
+                batch.add(filePath, yaraEngine.scanFile(filePath));
+            }
+            promise.resolve(YaraWritableMapWriter.toWritableMap(batch));
+        } catch (Exception e) {
+            Log.e(TAG, "Error scanning files", e);
+            promise.reject("SCAN_ERROR", "Error scanning files: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void beginScan(boolean reportEarlyMatches, Promise promise) {
+        try {
+            int handle = yaraEngine.beginScan(reportEarlyMatches);
+            if (handle > 0) {
+                promise.resolve(handle);
+            } else {
+                promise.reject("SCAN_ERROR", "Failed to begin scan session");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error beginning scan session", e);
+            promise.reject("SCAN_ERROR", "Error beginning scan session: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void feed(int handle, ReadableArray data, Promise promise) {
+        try {
+            YaraMemoryBudget.Reservation reservation = yaraEngine.getMemoryBudgetTracker().acquire(data.size());
+            List<String> earlyMatches;
+            try {
+                earlyMatches = yaraEngine.feed(handle, toByteArray(data));
+            } finally {
+                reservation.release();
+            }
+            if (earlyMatches != null) {
+                WritableArray rulesArray = Arguments.createArray();
+                for (String rule : earlyMatches) {
+                    rulesArray.pushString(rule);
+                }
+                promise.resolve(rulesArray);
+            } else {
+                promise.reject("SCAN_ERROR", "Failed to feed scan session");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Scan session feed interrupted while waiting for memory");
+            promise.reject("SCAN_ERROR", "Scan session feed interrupted while waiting for memory");
+        } catch (Exception e) {
+            Log.e(TAG, "Error feeding scan session", e);
+            promise.reject("SCAN_ERROR", "Error feeding scan session: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void finish(int handle, Promise promise) {
+        try {
+            YaraScanResult result = yaraEngine.finish(handle);
+            if (result != null) {
+                promise.resolve(YaraWritableMapWriter.toWritableMap(result));
+            } else {
+                promise.reject("SCAN_ERROR", "Failed to finish scan session");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error finishing scan session", e);
+            promise.reject("SCAN_ERROR", "Error finishing scan session: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void abortScan(int handle, Promise promise) {
+        try {
+            promise.resolve(yaraEngine.abortScan(handle));
+        } catch (Exception e) {
+            Log.e(TAG, "Error aborting scan session", e);
+            promise.reject("SCAN_ERROR", "Error aborting scan session: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void loadReputationSet(String basePath, String deltaPath, Promise promise) {
+        try {
+            boolean success = yaraEngine.loadReputationSet(basePath, deltaPath);
+            if (success) {
+                promise.resolve("Reputation set loaded successfully");
+            } else {
+                promise.reject("REPUTATION_ERROR", "Failed to load reputation set");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading reputation set", e);
+            promise.reject("REPUTATION_ERROR", "Error loading reputation set: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void applyReputationDelta(String deltaPath, Promise promise) {
+        try {
+            boolean success = yaraEngine.applyReputationDelta(deltaPath);
+            if (success) {
+                promise.resolve("Reputation delta applied successfully");
+            } else {
+                promise.reject("REPUTATION_ERROR", "Failed to apply reputation delta");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error applying reputation delta", e);
+            promise.reject("REPUTATION_ERROR", "Error applying reputation delta: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void loadSimilarityIndex(String indexPath, Promise promise) {
+        try {
+            boolean success = yaraEngine.loadSimilarityIndex(indexPath);
+            if (success) {
+                promise.resolve("Similarity index loaded successfully");
+            } else {
+                promise.reject("SIMILARITY_ERROR", "Failed to load similarity index");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading similarity index", e);
+            promise.reject("SIMILARITY_ERROR", "Error loading similarity index: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void setRulesCacheDirectory(String directoryPath, Promise promise) {
+        try {
+            yaraEngine.setRulesCacheDirectory(directoryPath);
+            promise.resolve(true);
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting rules cache directory", e);
+            promise.reject("RULES_CACHE_ERROR", "Error setting rules cache directory: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void saveCompiledRules(String path, Promise promise) {
+        try {
+            boolean success = yaraEngine.saveCompiledRules(path);
+            if (success) {
+                promise.resolve("Compiled rules saved successfully");
+            } else {
+                promise.reject("SAVE_RULES_ERROR", "Failed to save compiled rules");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving compiled rules", e);
+            promise.reject("SAVE_RULES_ERROR", "Error saving compiled rules: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void openJournal(String directoryPath, Promise promise) {
+        try {
+            if (yaraEngine.openJournal(directoryPath)) {
+                promise.resolve(true);
+            } else {
+                promise.reject("JOURNAL_ERROR", "Failed to open scan journal");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening scan journal", e);
+            promise.reject("JOURNAL_ERROR", "Error opening scan journal: " + e.getMessage());
+        }
+    }
+
+    // query: optional filePath, verdict ("clean", "threat" or "error"),
+    // from and to (epoch milliseconds) and limit (default 100)
+    @ReactMethod
+    public void queryJournal(ReadableMap query, Promise promise) {
+        try {
+            String filePath = hasValue(query, "filePath") ? query.getString("filePath") : null;
+            int verdict = YaraScanJournal.VERDICT_ANY;
+            if (hasValue(query, "verdict")) {
+                String name = query.getString("verdict");
+                verdict = "clean".equals(name) ? YaraScanJournal.VERDICT_CLEAN
+                        : "threat".equals(name) ? YaraScanJournal.VERDICT_THREAT : YaraScanJournal.VERDICT_ERROR;
+            }
+            long from = hasValue(query, "from") ? (long) query.getDouble("from") : 0;
+            long to = hasValue(query, "to") ? (long) query.getDouble("to") : Long.MAX_VALUE;
+            int limit = hasValue(query, "limit") ? query.getInt("limit") : 100;
+
+            List<YaraScanJournal.Entry> entries = yaraEngine.queryJournal(filePath, verdict, from, to, limit);
+            if (entries == null) {
+                promise.reject("JOURNAL_ERROR", "No scan journal open");
+                return;
+            }
+            WritableArray array = Arguments.createArray();
+            for (YaraScanJournal.Entry entry : entries) {
+                array.pushMap(YaraWritableMapWriter.toWritableMap(entry));
+            }
+            promise.resolve(array);
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying scan journal", e);
+            promise.reject("JOURNAL_ERROR", "Error querying scan journal: " + e.getMessage());
+        }
+    }
+
+    private static boolean hasValue(ReadableMap map, String key) {
+        return map != null && map.hasKey(key) && !map.isNull(key);
+    }
+
+    @ReactMethod
+    public void setMemoryBudget(double bytes, Promise promise) {
+        try {
+            yaraEngine.setMemoryBudget((long) bytes);
+            promise.resolve(true);
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting memory budget", e);
+            promise.reject("MEMORY_BUDGET_ERROR", "Error setting memory budget: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getMemoryUsage(Promise promise) {
+        try {
+            WritableMap usage = Arguments.createMap();
+            usage.putDouble("budget", (double) yaraEngine.getMemoryBudget());
+            usage.putDouble("inUse", (double) yaraEngine.getMemoryInUse());
+            usage.putDouble("peak", (double) yaraEngine.getPeakMemoryInUse());
+            usage.putDouble("waits", (double) yaraEngine.getMemoryWaits());
+            promise.resolve(usage);
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting memory usage", e);
+            promise.reject("MEMORY_BUDGET_ERROR", "Error getting memory usage: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void setScanTracing(boolean enabled, Promise promise) {
+        try {
+            yaraEngine.setScanTracing(enabled);
+            promise.resolve(true);
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting scan tracing", e);
+            promise.reject("SCAN_TRACE_ERROR", "Error setting scan tracing: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getScanTraces(boolean clear, Promise promise) {
+        try {
+            String traces = yaraEngine.dumpScanTraces();
+            if (clear) {
+                yaraEngine.clearScanTraces();
+            }
+            promise.resolve(traces);
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting scan traces", e);
+            promise.reject("SCAN_TRACE_ERROR", "Error getting scan traces: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void watchDirectory(String directoryPath, Promise promise) {
+        try {
+            boolean success = yaraEngine.addWatchRoot(directoryPath);
+            if (success) {
+                promise.resolve(true);
+            } else {
+                promise.reject("WATCH_ERROR", "Failed to watch directory");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error watching directory", e);
+            promise.reject("WATCH_ERROR", "Error watching directory: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void unwatchDirectory(String directoryPath, Promise promise) {
+        try {
+            promise.resolve(yaraEngine.removeWatchRoot(directoryPath));
+        } catch (Exception e) {
+            Log.e(TAG, "Error unwatching directory", e);
+            promise.reject("WATCH_ERROR", "Error unwatching directory: " + e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void setWatchDebounce(int debounceMs, Promise promise) {
+        try {
+            yaraEngine.setWatchDebounceMillis(debounceMs);
+            promise.resolve(true);
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting watch debounce", e);
+            promise.reject("WATCH_ERROR", "Error setting watch debounce: " + e.getMessage());
+        }
+    }
+
+    // Required by NativeEventEmitter on the JS side
+    @ReactMethod
+    public void addListener(String eventName) {
+    }
+
+    @ReactMethod
+    public void removeListeners(int count) {
+    }
+
     @ReactMethod
     public void updateRules(String rulesContent, Promise promise) {
         try {
@@ -143,5 +469,18 @@ public class YaraModule extends ReactContextBaseJavaModule {
             promise.reject("NATIVE_CHECK_ERROR", "Error checking native engine: " + e.getMessage());
         }
     }
-}
 
+    private static byte[] toByteArray(ReadableArray data) {
+        byte[] bytes = new byte[data.size()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) data.getInt(i);
+        }
+        return bytes;
+    }
+
+    @Override
+    public void invalidate() {
+        yaraEngine.cleanup();
+        super.invalidate();
+    }
+}
@@ -0,0 +1,172 @@
+package com.shabari.yara;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Runs the pattern pass of the Java engine over large inputs in parallel.
+// The input is split into segments; each segment is scanned together with the
+// following (maxPatternLength - 1) bytes so matches crossing a boundary are
+// found, but only matches starting inside the segment are recorded. Segment
+// match sets are merged in order, so conditions see exactly what a serial
+// scan would have produced.
+//
+// Input arrives sequentially from the scan pipeline: a segment is copied out
+// as soon as it has been read and scanned on the pool while reading goes on.
+// At most one segment per worker (plus one) is in flight; reading waits for
+// the oldest before starting another, which bounds memory.
+final class YaraParallelScanner {
+    static final long DEFAULT_PARALLEL_THRESHOLD = 16L * 1024 * 1024;
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static ForkJoinPool pool;
+
+    private YaraParallelScanner() {
+    }
+
+    static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        }
+        return pool;
+    }
+
+    static boolean shouldParallelize(long size, long threshold) {
+        return threshold > 0 && size >= threshold && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    // Bytes past its end each segment scans so boundary-crossing matches are seen
+    static int overlap(YaraCompiledRules rules) {
+        return Math.max(rules.getMaxPatternLength(), 1) - 1;
+    }
+
+    // Upper bound on the segment buffers a Feeder allocates: one per segment
+    // in flight plus the one being filled
+    static long bufferBytes(YaraCompiledRules rules) {
+        int overlap = overlap(rules);
+        return (long) (getPool().getParallelism() + 2) * (Math.max(SEGMENT_SIZE, overlap) + overlap);
+    }
+
+    static final class Feeder implements YaraScanPipeline.Consumer {
+        private final YaraCompiledRules rules;
+        private final int segmentSize;
+        private final int overlap;
+        private final int maxInFlight;
+        private final ArrayDeque<SegmentTask> inFlight = new ArrayDeque<>();
+        private final List<byte[]> spare = new ArrayList<>();
+        private final YaraMatchSet matches;
+
+        // Segment being filled: [segmentStart, segmentStart + filled)
+        private byte[] segment;
+        private long segmentStart;
+        private int filled;
+
+        Feeder(YaraCompiledRules rules) {
+            this.rules = rules;
+            this.overlap = overlap(rules);
+            this.segmentSize = Math.max(SEGMENT_SIZE, overlap);
+            this.maxInFlight = getPool().getParallelism() + 1;
+            this.matches = rules.newMatchSet();
+        }
+
+        @Override
+        public boolean accept(ByteBuffer buffer, int from, int to, long base) {
+            while (from < to) {
+                if (segment == null) {
+                    segment = spare.isEmpty() ? new byte[segmentSize + overlap] : spare.remove(spare.size() - 1);
+                }
+                int n = Math.min(to - from, segment.length - filled);
+                copy(buffer, from, segment, filled, n);
+                filled += n;
+                from += n;
+                if (filled == segment.length) {
+                    submit(segmentStart + segmentSize);
+                }
+            }
+            return true;
+        }
+
+        // Hands the current segment to the pool and starts the next one with
+        // the overlap bytes both share
+        private void submit(long recordLimit) {
+            while (inFlight.size() >= maxInFlight) {
+                collect();
+            }
+            SegmentTask task = new SegmentTask(rules, segment, filled, segmentStart, recordLimit);
+            getPool().execute(task);
+            inFlight.add(task);
+            if (recordLimit == Long.MAX_VALUE) {
+                segment = null;
+                return;
+            }
+
+            byte[] next = spare.isEmpty() ? new byte[segmentSize + overlap] : spare.remove(spare.size() - 1);
+            int kept = Math.max(0, filled - segmentSize);
+            System.arraycopy(segment, segmentSize, next, 0, kept);
+            segment = next;
+            segmentStart += segmentSize;
+            filled = kept;
+        }
+
+        private void collect() {
+            SegmentTask task = inFlight.poll();
+            matches.merge(task.join());
+            spare.add(task.data);
+        }
+
+        @Override
+        public void finish() {
+            // The last segment records everything up to the end of the input
+            if (segment != null && filled > 0) {
+                submit(Long.MAX_VALUE);
+            }
+            while (!inFlight.isEmpty()) {
+                collect();
+            }
+            segment = null;
+            spare.clear();
+        }
+
+        YaraMatchSet getMatches() {
+            return matches;
+        }
+    }
+
+    private static final class SegmentTask extends RecursiveTask<YaraMatchSet> {
+        private static final long serialVersionUID = 1L;
+
+        final byte[] data;
+        private final YaraCompiledRules rules;
+        private final int length;
+        private final long base;
+        private final long recordLimit;
+
+        SegmentTask(YaraCompiledRules rules, byte[] data, int length, long base, long recordLimit) {
+            this.rules = rules;
+            this.data = data;
+            this.length = length;
+            this.base = base;
+            this.recordLimit = recordLimit;
+        }
+
+        @Override
+        protected YaraMatchSet compute() {
+            YaraMatchSet matches = rules.newMatchSet();
+            rules.scan(ByteBuffer.wrap(data), 0, length, base, recordLimit, matches);
+            return matches;
+        }
+    }
+
+    private static void copy(ByteBuffer buffer, int index, byte[] target, int offset, int length) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + index, target, offset, length);
+        } else {
+            ByteBuffer view = buffer.duplicate();
+            view.position(index);
+            view.get(target, offset, length);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.shabari.yara;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Aho-Corasick automaton over bytes. Input bytes are first mapped to
+// equivalence classes so the transition table only has one column per byte
+// value that actually occurs in a pattern. A case-folding matcher maps upper
+// and lower case ASCII letters to the same class.
+final class YaraPatternMatcher {
+    // Receives pattern hits as (id, absolute start offset)
+    interface Sink {
+        void record(int id, long offset);
+    }
+
+    private final int[] byteClass;
+    private final int classCount;
+    private final int[] delta;
+    private final int[][] outputs;
+    private final int[] patternString;
+    private final int[] patternLength;
+
+    private YaraPatternMatcher(int[] byteClass, int classCount, int[] delta, int[][] outputs,
+                               int[] patternString, int[] patternLength) {
+        this.byteClass = byteClass;
+        this.classCount = classCount;
+        this.delta = delta;
+        this.outputs = outputs;
+        this.patternString = patternString;
+        this.patternLength = patternLength;
+    }
+
+    static YaraPatternMatcher build(List<byte[]> patterns, List<Integer> stringIndexes, boolean foldCase) {
+        int[] byteClass = new int[256];
+        int classCount = 1;
+        for (byte[] pattern : patterns) {
+            for (byte b : pattern) {
+                int value = foldCase ? toLower(b & 0xFF) : b & 0xFF;
+                if (byteClass[value] == 0) {
+                    byteClass[value] = classCount++;
+                }
+            }
+        }
+        if (foldCase) {
+            for (int c = 'A'; c <= 'Z'; c++) {
+                byteClass[c] = byteClass[c + 32];
+            }
+        }
+
+        // Build the trie
+        List<int[]> gotoTable = new ArrayList<>();
+        List<List<Integer>> out = new ArrayList<>();
+        gotoTable.add(newRow(classCount));
+        out.add(new ArrayList<Integer>());
+        int[] patternString = new int[patterns.size()];
+        int[] patternLength = new int[patterns.size()];
+        for (int p = 0; p < patterns.size(); p++) {
+            byte[] pattern = patterns.get(p);
+            patternString[p] = stringIndexes.get(p);
+            patternLength[p] = pattern.length;
+            int state = 0;
+            for (byte b : pattern) {
+                int cls = byteClass[b & 0xFF];
+                int next = gotoTable.get(state)[cls];
+                if (next < 0) {
+                    next = gotoTable.size();
+                    gotoTable.get(state)[cls] = next;
+                    gotoTable.add(newRow(classCount));
+                    out.add(new ArrayList<Integer>());
+                }
+                state = next;
+            }
+            out.get(state).add(p);
+        }
+
+        // Breadth-first failure links, folded directly into a complete DFA
+        int stateCount = gotoTable.size();
+        int[] delta = new int[stateCount * classCount];
+        int[] fail = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        int[] root = gotoTable.get(0);
+        for (int cls = 0; cls < classCount; cls++) {
+            int next = root[cls];
+            if (next < 0) {
+                delta[cls] = 0;
+            } else {
+                delta[cls] = next;
+                fail[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            out.get(state).addAll(out.get(fail[state]));
+            int[] row = gotoTable.get(state);
+            for (int cls = 0; cls < classCount; cls++) {
+                int next = row[cls];
+                if (next < 0) {
+                    delta[state * classCount + cls] = delta[fail[state] * classCount + cls];
+                } else {
+                    delta[state * classCount + cls] = next;
+                    fail[next] = delta[fail[state] * classCount + cls];
+                    queue[tail++] = next;
+                }
+            }
+        }
+
+        int[][] outputs = new int[stateCount][];
+        for (int state = 0; state < stateCount; state++) {
+            List<Integer> list = out.get(state);
+            if (!list.isEmpty()) {
+                outputs[state] = new int[list.size()];
+                for (int i = 0; i < list.size(); i++) {
+                    outputs[state][i] = list.get(i);
+                }
+            }
+        }
+        return new YaraPatternMatcher(byteClass, classCount, delta, outputs, patternString, patternLength);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(classCount);
+        YaraRulesFile.writeInts(out, byteClass);
+        YaraRulesFile.writeInts(out, delta);
+        YaraRulesFile.writeIntRows(out, outputs);
+        YaraRulesFile.writeInts(out, patternString);
+        YaraRulesFile.writeInts(out, patternLength);
+    }
+
+    static YaraPatternMatcher read(ByteBuffer in) {
+        int classCount = in.getInt();
+        int[] byteClass = YaraRulesFile.readInts(in);
+        int[] delta = YaraRulesFile.readInts(in);
+        int[][] outputs = YaraRulesFile.readIntRows(in);
+        int[] patternString = YaraRulesFile.readInts(in);
+        int[] patternLength = YaraRulesFile.readInts(in);
+        if (byteClass.length != 256 || delta.length != outputs.length * classCount) {
+            throw new IllegalArgumentException("Inconsistent automaton tables");
+        }
+        return new YaraPatternMatcher(byteClass, classCount, delta, outputs, patternString, patternLength);
+    }
+
+    // Runs the automaton over buffer[from, to) starting in the given state and
+    // returns the state reached. Matches are recorded with absolute start offsets
+    // (base is the absolute offset of buffer index 0); matches starting at or
+    // beyond recordLimit are ignored so overlapping segments never double count.
+    int scan(ByteBuffer buffer, int from, int to, long base, int state, long recordLimit, Sink matches) {
+        final int[] byteClass = this.byteClass;
+        final int[] delta = this.delta;
+        final int classCount = this.classCount;
+        if (buffer.hasArray()) {
+            final byte[] array = buffer.array();
+            final int arrayOffset = buffer.arrayOffset();
+            for (int i = from; i < to; i++) {
+                state = delta[state * classCount + byteClass[array[arrayOffset + i] & 0xFF]];
+                if (outputs[state] != null) {
+                    report(state, base + i, recordLimit, matches);
+                }
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                state = delta[state * classCount + byteClass[buffer.get(i) & 0xFF]];
+                if (outputs[state] != null) {
+                    report(state, base + i, recordLimit, matches);
+                }
+            }
+        }
+        return state;
+    }
+
+    private void report(int state, long endOffset, long recordLimit, Sink matches) {
+        for (int pattern : outputs[state]) {
+            long start = endOffset - patternLength[pattern] + 1;
+            if (start < recordLimit) {
+                matches.record(patternString[pattern], start);
+            }
+        }
+    }
+
+    private static int[] newRow(int classCount) {
+        int[] row = new int[classCount];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    static int toLower(int value) {
+        return value >= 'A' && value <= 'Z' ? value + 32 : value;
+    }
+}
@@ -0,0 +1,1058 @@
+package com.shabari.yara;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A rule regular expression compiled for the Java engine. The pattern is parsed
+// into a tree over byte sets and compiled into a Thompson NFA of the *reversed*
+// expression, which YaraRegexScanner runs as a lazily built DFA backwards over
+// a window: every position where the DFA accepts is a match start. Each input
+// byte costs one table lookup, so there is no backtracking however hostile the
+// data is.
+//
+// Literal runs every match must contain are extracted as atoms; the scanner
+// only runs the DFA near places where an atom occurs.
+final class YaraRegex {
+    // Matches longer than this are not guaranteed to be found (YARA applies
+    // the same limit to regular expression matches).
+    static final int MAX_MATCH_LENGTH = 4096;
+    static final int MIN_ATOM_LENGTH = 2;
+    static final int MAX_ATOM_LENGTH = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+    private static final int MAX_REPEAT = 1000;
+    private static final int MAX_NFA_STATES = 32768;
+
+    private static final int OP_BYTES = 0;
+    private static final int OP_SPLIT = 1;
+    private static final int OP_MATCH = 2;
+
+    // Literal run every match contains, starting between minBefore and
+    // maxBefore bytes after the match start.
+    static final class Atom {
+        final byte[] bytes;
+        final int minBefore;
+        final int maxBefore;
+
+        Atom(byte[] bytes, int minBefore, int maxBefore) {
+            this.bytes = bytes;
+            this.minBefore = minBefore;
+            this.maxBefore = maxBefore;
+        }
+    }
+
+    final boolean noCase;
+    final int minLength;
+    // Longest match, capped at MAX_MATCH_LENGTH
+    final int maxLength;
+    // Null when no usable atom exists; the whole input is then a candidate
+    final List<Atom> atoms;
+
+    private final int[] op;
+    private final int[] next1;
+    private final int[] next2;
+    private final long[][] sets;
+    private final int[] setOf;
+    private final int start;
+    private final int[] byteClass;
+    private final int classCount;
+    private final int[] classByte;
+
+    private YaraRegex(Node root, boolean noCase) {
+        this.noCase = noCase;
+        this.minLength = root.minLength();
+        int max = root.maxLength();
+        this.maxLength = max == UNBOUNDED || max > MAX_MATCH_LENGTH ? MAX_MATCH_LENGTH : max;
+        this.atoms = selectAtoms(root, noCase, maxLength);
+
+        Builder builder = new Builder();
+        int match = builder.add(OP_MATCH, -1, -1, -1);
+        this.start = builder.compile(root, match);
+        this.op = Arrays.copyOf(builder.op, builder.count);
+        this.next1 = Arrays.copyOf(builder.next1, builder.count);
+        this.next2 = Arrays.copyOf(builder.next2, builder.count);
+        this.setOf = Arrays.copyOf(builder.setOf, builder.count);
+        this.sets = builder.sets.toArray(new long[0][]);
+
+        // Bytes that every set treats alike share one DFA column
+        this.byteClass = new int[256];
+        Map<String, Integer> classes = new HashMap<>();
+        List<Integer> representatives = new ArrayList<>();
+        StringBuilder signature = new StringBuilder();
+        for (int b = 0; b < 256; b++) {
+            signature.setLength(0);
+            for (long[] set : sets) {
+                signature.append(contains(set, b) ? '1' : '0');
+            }
+            String key = signature.toString();
+            Integer cls = classes.get(key);
+            if (cls == null) {
+                cls = classes.size();
+                classes.put(key, cls);
+                representatives.add(b);
+            }
+            byteClass[b] = cls;
+        }
+        this.classCount = classes.size();
+        this.classByte = new int[classCount];
+        for (int i = 0; i < classCount; i++) {
+            classByte[i] = representatives.get(i);
+        }
+    }
+
+    private YaraRegex(boolean noCase, int minLength, int maxLength, List<Atom> atoms, int[] op, int[] next1,
+                      int[] next2, long[][] sets, int[] setOf, int start, int[] byteClass, int[] classByte) {
+        this.noCase = noCase;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.atoms = atoms;
+        this.op = op;
+        this.next1 = next1;
+        this.next2 = next2;
+        this.sets = sets;
+        this.setOf = setOf;
+        this.start = start;
+        this.byteClass = byteClass;
+        this.classCount = classByte.length;
+        this.classByte = classByte;
+    }
+
+    // The compiled NFA is stored as is; the pattern text is not kept
+    void write(DataOutputStream out) throws IOException {
+        out.writeBoolean(noCase);
+        out.writeInt(minLength);
+        out.writeInt(maxLength);
+        out.writeInt(atoms != null ? atoms.size() : -1);
+        if (atoms != null) {
+            for (Atom atom : atoms) {
+                YaraRulesFile.writeBytes(out, atom.bytes);
+                out.writeInt(atom.minBefore);
+                out.writeInt(atom.maxBefore);
+            }
+        }
+        YaraRulesFile.writeInts(out, op);
+        YaraRulesFile.writeInts(out, next1);
+        YaraRulesFile.writeInts(out, next2);
+        YaraRulesFile.writeLongRows(out, sets);
+        YaraRulesFile.writeInts(out, setOf);
+        out.writeInt(start);
+        YaraRulesFile.writeInts(out, byteClass);
+        YaraRulesFile.writeInts(out, classByte);
+    }
+
+    static YaraRegex read(ByteBuffer in) {
+        boolean noCase = in.get() != 0;
+        int minLength = in.getInt();
+        int maxLength = in.getInt();
+        int atomCount = in.getInt();
+        List<Atom> atoms = null;
+        if (atomCount >= 0) {
+            atoms = new ArrayList<>(atomCount);
+            for (int i = 0; i < atomCount; i++) {
+                atoms.add(new Atom(YaraRulesFile.readBytes(in), in.getInt(), in.getInt()));
+            }
+        }
+        int[] op = YaraRulesFile.readInts(in);
+        int[] next1 = YaraRulesFile.readInts(in);
+        int[] next2 = YaraRulesFile.readInts(in);
+        long[][] sets = YaraRulesFile.readLongRows(in);
+        int[] setOf = YaraRulesFile.readInts(in);
+        int start = in.getInt();
+        int[] byteClass = YaraRulesFile.readInts(in);
+        int[] classByte = YaraRulesFile.readInts(in);
+        if (next1.length != op.length || next2.length != op.length || setOf.length != op.length
+                || byteClass.length != 256) {
+            throw new IllegalArgumentException("Inconsistent regex program");
+        }
+        return new YaraRegex(noCase, minLength, maxLength, atoms, op, next1, next2, sets, setOf, start,
+                byteClass, classByte);
+    }
+
+    // Parses the text between the slashes of a /regex/ string. Throws
+    // IllegalArgumentException describing unsupported or invalid syntax.
+    static YaraRegex compile(String pattern, boolean noCase, boolean dotAll, boolean ascii, boolean wide) {
+        Node root = new Parser(pattern, noCase, dotAll).parse();
+        return compile(root, noCase, ascii, wide);
+    }
+
+    static YaraRegex compile(Node root, boolean noCase, boolean ascii, boolean wide) {
+        if (wide) {
+            Node wideRoot = root.widen();
+            root = ascii ? Node.alternate(root, wideRoot) : wideRoot;
+        }
+        if (root.minLength() == 0) {
+            throw new IllegalArgumentException("Regular expression can match empty data");
+        }
+        return new YaraRegex(root, noCase);
+    }
+
+    int getByteClass(int value) {
+        return byteClass[value];
+    }
+
+    int getClassCount() {
+        return classCount;
+    }
+
+    Dfa newDfa() {
+        return new Dfa(this);
+    }
+
+    // Picks the atoms with the longest guaranteed literal; null if any match
+    // could avoid literals of MIN_ATOM_LENGTH.
+    private static List<Atom> selectAtoms(Node root, boolean noCase, int maxLength) {
+        List<Atom> found = root.atoms(noCase);
+        if (found == null) {
+            return null;
+        }
+        List<Atom> capped = new ArrayList<>();
+        for (Atom atom : found) {
+            // Matches are capped, so the atom never starts later than this
+            int limit = maxLength - atom.bytes.length;
+            if (atom.minBefore > limit) {
+                return null;
+            }
+            capped.add(new Atom(atom.bytes, atom.minBefore, Math.min(atom.maxBefore, limit)));
+        }
+        return capped;
+    }
+
+    // Bytes b with (b & mask) == value, or all other bytes when negated; used
+    // for hex string bytes, nibble wildcards and ~ negations
+    static long[] maskedSet(int value, int mask, boolean negate) {
+        long[] set = newSet();
+        for (int b = 0; b < 256; b++) {
+            if (((b & mask) == value) != negate) {
+                add(set, b);
+            }
+        }
+        return set;
+    }
+
+    static boolean contains(long[] set, int value) {
+        return (set[value >>> 6] & (1L << (value & 63))) != 0;
+    }
+
+    private static long[] newSet() {
+        return new long[4];
+    }
+
+    private static void add(long[] set, int value) {
+        set[value >>> 6] |= 1L << (value & 63);
+    }
+
+    private static void addRange(long[] set, int from, int to) {
+        for (int value = from; value <= to; value++) {
+            add(set, value);
+        }
+    }
+
+    private static long[] invert(long[] set) {
+        long[] inverted = newSet();
+        for (int i = 0; i < 4; i++) {
+            inverted[i] = ~set[i];
+        }
+        return inverted;
+    }
+
+    private static void foldCase(long[] set) {
+        for (int c = 'a'; c <= 'z'; c++) {
+            if (contains(set, c) || contains(set, c - 32)) {
+                add(set, c);
+                add(set, c - 32);
+            }
+        }
+    }
+
+    private static int size(long[] set) {
+        int n = 0;
+        for (long word : set) {
+            n += Long.bitCount(word);
+        }
+        return n;
+    }
+
+    // Regular expression tree over byte sets
+    static final class Node {
+        static final int SET = 0;
+        static final int CONCAT = 1;
+        static final int ALT = 2;
+        static final int REPEAT = 3;
+
+        final int kind;
+        final long[] set;
+        final List<Node> children;
+        final int min;
+        final int max;
+
+        private Node(int kind, long[] set, List<Node> children, int min, int max) {
+            this.kind = kind;
+            this.set = set;
+            this.children = children;
+            this.min = min;
+            this.max = max;
+        }
+
+        static Node bytes(long[] set) {
+            return new Node(SET, set, null, 0, 0);
+        }
+
+        static Node literal(int value) {
+            long[] set = newSet();
+            add(set, value);
+            return bytes(set);
+        }
+
+        static Node concat(List<Node> children) {
+            return children.size() == 1 ? children.get(0) : new Node(CONCAT, null, children, 0, 0);
+        }
+
+        static Node alternate(List<Node> children) {
+            return children.size() == 1 ? children.get(0) : new Node(ALT, null, children, 0, 0);
+        }
+
+        static Node alternate(Node a, Node b) {
+            List<Node> children = new ArrayList<>();
+            children.add(a);
+            children.add(b);
+            return alternate(children);
+        }
+
+        static Node repeat(Node child, int min, int max) {
+            List<Node> children = new ArrayList<>();
+            children.add(child);
+            return new Node(REPEAT, null, children, min, max);
+        }
+
+        int minLength() {
+            switch (kind) {
+                case SET:
+                    return 1;
+                case CONCAT: {
+                    long total = 0;
+                    for (Node child : children) {
+                        total += child.minLength();
+                    }
+                    return (int) Math.min(total, UNBOUNDED - 1);
+                }
+                case ALT: {
+                    int result = UNBOUNDED;
+                    for (Node child : children) {
+                        result = Math.min(result, child.minLength());
+                    }
+                    return result;
+                }
+                default:
+                    return (int) Math.min((long) children.get(0).minLength() * min, UNBOUNDED - 1);
+            }
+        }
+
+        int maxLength() {
+            switch (kind) {
+                case SET:
+                    return 1;
+                case CONCAT: {
+                    long total = 0;
+                    for (Node child : children) {
+                        int length = child.maxLength();
+                        if (length == UNBOUNDED) {
+                            return UNBOUNDED;
+                        }
+                        total += length;
+                    }
+                    return total >= UNBOUNDED ? UNBOUNDED : (int) total;
+                }
+                case ALT: {
+                    int result = 0;
+                    for (Node child : children) {
+                        result = Math.max(result, child.maxLength());
+                    }
+                    return result;
+                }
+                default: {
+                    int length = children.get(0).maxLength();
+                    if (max == UNBOUNDED || length == UNBOUNDED) {
+                        return length == 0 ? 0 : UNBOUNDED;
+                    }
+                    long total = (long) length * max;
+                    return total >= UNBOUNDED ? UNBOUNDED : (int) total;
+                }
+            }
+        }
+
+        // UTF-16LE style form used by the "wide" modifier: a zero byte after
+        // every byte of the expression
+        Node widen() {
+            switch (kind) {
+                case SET: {
+                    List<Node> pair = new ArrayList<>();
+                    pair.add(this);
+                    pair.add(literal(0));
+                    return concat(pair);
+                }
+                case REPEAT:
+                    return repeat(children.get(0).widen(), min, max);
+                default: {
+                    List<Node> widened = new ArrayList<>();
+                    for (Node child : children) {
+                        widened.add(child.widen());
+                    }
+                    return kind == CONCAT ? concat(widened) : alternate(widened);
+                }
+            }
+        }
+
+        // Byte this node always matches (the lower case letter for a folded
+        // letter set), or -1
+        int literalByte(boolean noCase) {
+            if (kind != SET) {
+                return -1;
+            }
+            int n = size(set);
+            for (int value = 0; value < 256; value++) {
+                if (!contains(set, value)) {
+                    continue;
+                }
+                if (n == 1) {
+                    return value;
+                }
+                if (noCase && n == 2 && value >= 'A' && value <= 'Z' && contains(set, value + 32)) {
+                    return value + 32;
+                }
+                return -1;
+            }
+            return -1;
+        }
+
+        // Atoms such that every match of this node contains one of them, or null
+        List<Atom> atoms(boolean noCase) {
+            switch (kind) {
+                case CONCAT:
+                    return concatAtoms(noCase);
+                case ALT: {
+                    List<Atom> result = new ArrayList<>();
+                    for (Node child : children) {
+                        List<Atom> childAtoms = child.atoms(noCase);
+                        if (childAtoms == null) {
+                            return null;
+                        }
+                        result.addAll(childAtoms);
+                    }
+                    return result;
+                }
+                case REPEAT:
+                    return min > 0 ? children.get(0).atoms(noCase) : null;
+                default:
+                    return null;
+            }
+        }
+
+        private List<Atom> concatAtoms(boolean noCase) {
+            // Longest run of literal children, capped at MAX_ATOM_LENGTH
+            byte[] bestRun = null;
+            int bestMin = 0;
+            int bestMax = 0;
+            long minBefore = 0;
+            long maxBefore = 0;
+            int i = 0;
+            while (i < children.size()) {
+                int runStart = i;
+                long runMin = minBefore;
+                long runMax = maxBefore;
+                byte[] run = new byte[MAX_ATOM_LENGTH];
+                int length = 0;
+                while (i < children.size() && children.get(i).literalByte(noCase) >= 0) {
+                    if (length < MAX_ATOM_LENGTH) {
+                        run[length++] = (byte) children.get(i).literalByte(noCase);
+                    }
+                    minBefore += 1;
+                    maxBefore += 1;
+                    i++;
+                }
+                if (i == runStart) {
+                    Node child = children.get(i);
+                    minBefore += child.minLength();
+                    int childMax = child.maxLength();
+                    maxBefore = childMax == UNBOUNDED ? UNBOUNDED : Math.min(UNBOUNDED, maxBefore + childMax);
+                    i++;
+                } else if (length >= MIN_ATOM_LENGTH && (bestRun == null || length > bestRun.length)) {
+                    bestRun = Arrays.copyOf(run, length);
+                    bestMin = (int) Math.min(runMin, UNBOUNDED);
+                    bestMax = (int) Math.min(runMax, UNBOUNDED);
+                }
+            }
+            if (bestRun != null) {
+                List<Atom> result = new ArrayList<>();
+                result.add(new Atom(bestRun, bestMin, bestMax));
+                return result;
+            }
+
+            // Otherwise take the first child that has atoms of its own
+            minBefore = 0;
+            maxBefore = 0;
+            for (Node child : children) {
+                List<Atom> childAtoms = child.atoms(noCase);
+                if (childAtoms != null) {
+                    List<Atom> result = new ArrayList<>();
+                    for (Atom atom : childAtoms) {
+                        result.add(new Atom(atom.bytes,
+                                (int) Math.min(minBefore + atom.minBefore, UNBOUNDED),
+                                (int) Math.min(maxBefore + atom.maxBefore, UNBOUNDED)));
+                    }
+                    return result;
+                }
+                minBefore += child.minLength();
+                int childMax = child.maxLength();
+                maxBefore = childMax == UNBOUNDED ? UNBOUNDED : Math.min(UNBOUNDED, maxBefore + childMax);
+            }
+            return null;
+        }
+    }
+
+    // Thompson construction in continuation style; concatenations are emitted
+    // back to front so the program reads the input in reverse.
+    private static final class Builder {
+        int[] op = new int[64];
+        int[] next1 = new int[64];
+        int[] next2 = new int[64];
+        int[] setOf = new int[64];
+        int count;
+        final List<long[]> sets = new ArrayList<>();
+        final Map<String, Integer> setIndexes = new HashMap<>();
+
+        int add(int kind, int a, int b, int set) {
+            if (count == MAX_NFA_STATES) {
+                throw new IllegalArgumentException("Regular expression is too complex");
+            }
+            if (count == op.length) {
+                op = Arrays.copyOf(op, count * 2);
+                next1 = Arrays.copyOf(next1, count * 2);
+                next2 = Arrays.copyOf(next2, count * 2);
+                setOf = Arrays.copyOf(setOf, count * 2);
+            }
+            op[count] = kind;
+            next1[count] = a;
+            next2[count] = b;
+            setOf[count] = set;
+            return count++;
+        }
+
+        int setIndex(long[] set) {
+            String key = Arrays.toString(set);
+            Integer index = setIndexes.get(key);
+            if (index == null) {
+                index = sets.size();
+                sets.add(set);
+                setIndexes.put(key, index);
+            }
+            return index;
+        }
+
+        int compile(Node node, int next) {
+            switch (node.kind) {
+                case Node.SET:
+                    return add(OP_BYTES, next, -1, setIndex(node.set));
+                case Node.CONCAT: {
+                    int state = next;
+                    for (Node child : node.children) {
+                        state = compile(child, state);
+                    }
+                    return state;
+                }
+                case Node.ALT: {
+                    int state = compile(node.children.get(0), next);
+                    for (int i = 1; i < node.children.size(); i++) {
+                        state = add(OP_SPLIT, state, compile(node.children.get(i), next), -1);
+                    }
+                    return state;
+                }
+                default: {
+                    Node child = node.children.get(0);
+                    int state;
+                    if (node.max == UNBOUNDED) {
+                        int loop = add(OP_SPLIT, -1, next, -1);
+                        // compile() may grow next1, so it runs before next1 is read
+                        int body = compile(child, loop);
+                        next1[loop] = body;
+                        state = loop;
+                    } else {
+                        state = next;
+                        for (int i = node.min; i < node.max; i++) {
+                            state = add(OP_SPLIT, compile(child, state), next, -1);
+                        }
+                    }
+                    for (int i = 0; i < node.min; i++) {
+                        state = compile(child, state);
+                    }
+                    return state;
+                }
+            }
+        }
+    }
+
+    // Lazily built DFA for the unanchored reversed expression: a new thread is
+    // started before every byte, and a state accepts when some thread reached
+    // the end of the (reversed) expression. Built per scan, so scans sharing
+    // compiled rules never contend; the cache is flushed if it grows too large.
+    static final class Dfa {
+        private static final int MAX_STATES = 2048;
+
+        private final YaraRegex regex;
+        private final int classCount;
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<int[]> states = new ArrayList<>();
+        private int[] transitions;
+        private boolean[] accepting;
+        private final int[] mark;
+        private final int[] stack;
+        private final int[] scratch;
+        private int generation;
+        final int initial;
+
+        private Dfa(YaraRegex regex) {
+            this.regex = regex;
+            this.classCount = regex.classCount;
+            this.mark = new int[regex.op.length];
+            this.stack = new int[regex.op.length];
+            this.scratch = new int[regex.op.length];
+            this.transitions = new int[16 * classCount];
+            this.accepting = new boolean[16];
+            this.initial = stateFor(closure(new int[0], 0));
+        }
+
+        boolean isAccepting(int state) {
+            return accepting[state];
+        }
+
+        int next(int state, int cls) {
+            int next = transitions[state * classCount + cls];
+            return next >= 0 ? next : compute(state, cls);
+        }
+
+        private int compute(int state, int cls) {
+            int[] current = states.get(state);
+            boolean flushed = states.size() >= MAX_STATES;
+            if (flushed) {
+                ids.clear();
+                states.clear();
+                stateFor(closure(new int[0], 0));
+            }
+            int value = regex.classByte[cls];
+            int n = 0;
+            for (int nfa : current) {
+                if (regex.op[nfa] == OP_BYTES && contains(regex.sets[regex.setOf[nfa]], value)) {
+                    scratch[n++] = regex.next1[nfa];
+                }
+            }
+            int target = stateFor(closure(scratch, n));
+            if (!flushed) {
+                transitions[state * classCount + cls] = target;
+            }
+            return target;
+        }
+
+        // Epsilon closure of the given states plus the start state
+        private int[] closure(int[] seeds, int count) {
+            generation++;
+            int top = 0;
+            stack[top++] = regex.start;
+            for (int i = 0; i < count; i++) {
+                stack[top++] = seeds[i];
+            }
+            int[] result = new int[regex.op.length];
+            int n = 0;
+            while (top > 0) {
+                int nfa = stack[--top];
+                if (mark[nfa] == generation) {
+                    continue;
+                }
+                mark[nfa] = generation;
+                if (regex.op[nfa] == OP_SPLIT) {
+                    stack[top++] = regex.next1[nfa];
+                    stack[top++] = regex.next2[nfa];
+                } else {
+                    result[n++] = nfa;
+                }
+            }
+            int[] sorted = Arrays.copyOf(result, n);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private int stateFor(int[] nfaStates) {
+            String key = key(nfaStates);
+            Integer id = ids.get(key);
+            if (id != null) {
+                return id;
+            }
+            id = states.size();
+            if (id == accepting.length) {
+                accepting = Arrays.copyOf(accepting, id * 2);
+                transitions = Arrays.copyOf(transitions, id * 2 * classCount);
+            }
+            boolean accepts = false;
+            for (int nfa : nfaStates) {
+                accepts |= regex.op[nfa] == OP_MATCH;
+            }
+            accepting[id] = accepts;
+            Arrays.fill(transitions, id * classCount, (id + 1) * classCount, -1);
+            states.add(nfaStates);
+            ids.put(key, id);
+            return id;
+        }
+
+        private static String key(int[] nfaStates) {
+            char[] chars = new char[nfaStates.length];
+            for (int i = 0; i < nfaStates.length; i++) {
+                chars[i] = (char) nfaStates[i];
+            }
+            return new String(chars);
+        }
+    }
+
+    // Recursive descent parser for the YARA regular expression dialect
+    private static final class Parser {
+        private final String pattern;
+        private final boolean noCase;
+        private final boolean dotAll;
+        private int pos;
+
+        Parser(String pattern, boolean noCase, boolean dotAll) {
+            this.pattern = pattern;
+            this.noCase = noCase;
+            this.dotAll = dotAll;
+        }
+
+        Node parse() {
+            if (pattern.isEmpty()) {
+                throw new IllegalArgumentException("Empty regular expression");
+            }
+            Node node = parseAlternation();
+            if (pos < pattern.length()) {
+                throw new IllegalArgumentException("Unbalanced ')' in regular expression");
+            }
+            return node;
+        }
+
+        private Node parseAlternation() {
+            List<Node> branches = new ArrayList<>();
+            branches.add(parseConcatenation());
+            while (pos < pattern.length() && pattern.charAt(pos) == '|') {
+                pos++;
+                branches.add(parseConcatenation());
+            }
+            return Node.alternate(branches);
+        }
+
+        private Node parseConcatenation() {
+            List<Node> items = new ArrayList<>();
+            while (pos < pattern.length() && pattern.charAt(pos) != '|' && pattern.charAt(pos) != ')') {
+                Node atom = parseAtom(items);
+                if (atom != null) {
+                    items.add(parseQuantifiers(atom));
+                }
+            }
+            if (items.isEmpty()) {
+                throw new IllegalArgumentException("Empty alternative in regular expression");
+            }
+            return Node.concat(items);
+        }
+
+        private Node parseQuantifiers(Node atom) {
+            while (pos < pattern.length()) {
+                char c = pattern.charAt(pos);
+                int min;
+                int max;
+                if (c == '*') {
+                    min = 0;
+                    max = UNBOUNDED;
+                    pos++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = UNBOUNDED;
+                    pos++;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    pos++;
+                } else if (c == '{' && isRange()) {
+                    int close = pattern.indexOf('}', pos);
+                    String range = pattern.substring(pos + 1, close);
+                    pos = close + 1;
+                    int comma = range.indexOf(',');
+                    if (comma < 0) {
+                        min = max = parseCount(range);
+                    } else {
+                        min = comma == 0 ? 0 : parseCount(range.substring(0, comma));
+                        max = comma == range.length() - 1 ? UNBOUNDED : parseCount(range.substring(comma + 1));
+                    }
+                    if (min > max) {
+                        throw new IllegalArgumentException("Invalid repeat range {" + range + "}");
+                    }
+                } else {
+                    return atom;
+                }
+                // Lazy quantifiers only change which match is reported, not
+                // where matches start
+                if (pos < pattern.length() && pattern.charAt(pos) == '?') {
+                    pos++;
+                }
+                atom = Node.repeat(atom, min, max);
+            }
+            return atom;
+        }
+
+        // True if a '{' at pos starts {n}, {n,}, {,m} or {n,m}
+        private boolean isRange() {
+            int close = pattern.indexOf('}', pos);
+            if (close < 0) {
+                return false;
+            }
+            int digits = 0;
+            int commas = 0;
+            for (int i = pos + 1; i < close; i++) {
+                char c = pattern.charAt(i);
+                if (c == ',') {
+                    commas++;
+                } else if (c >= '0' && c <= '9') {
+                    digits++;
+                } else {
+                    return false;
+                }
+            }
+            return digits > 0 && commas <= 1;
+        }
+
+        private int parseCount(String text) {
+            int value = Integer.parseInt(text);
+            if (value > MAX_REPEAT) {
+                throw new IllegalArgumentException("Repeat count " + value + " is too large");
+            }
+            return value;
+        }
+
+        // Next atom; multi-byte UTF-8 characters are appended to items
+        // directly and null is returned.
+        private Node parseAtom(List<Node> items) {
+            char c = pattern.charAt(pos++);
+            switch (c) {
+                case '(': {
+                    if (pattern.startsWith("?:", pos)) {
+                        pos += 2;
+                    }
+                    Node group = parseAlternation();
+                    if (pos >= pattern.length() || pattern.charAt(pos) != ')') {
+                        throw new IllegalArgumentException("Missing ')' in regular expression");
+                    }
+                    pos++;
+                    return group;
+                }
+                case '[':
+                    return Node.bytes(parseClass());
+                case '.': {
+                    long[] set = invert(newSet());
+                    if (!dotAll) {
+                        set[0] &= ~(1L << '\n');
+                    }
+                    return Node.bytes(set);
+                }
+                case '\\':
+                    return Node.bytes(parseEscape(false));
+                case '^':
+                case '$':
+                    throw new IllegalArgumentException("Anchors are not supported by the Java engine");
+                case '*':
+                case '+':
+                case '?':
+                    throw new IllegalArgumentException("Nothing to repeat in regular expression");
+                default:
+                    return literalNode(c, items);
+            }
+        }
+
+        private Node literalNode(char c, List<Node> items) {
+            if (c < 0x80) {
+                return Node.bytes(literalSet(c));
+            }
+            byte[] encoded = String.valueOf(c).getBytes(UTF_8);
+            for (int i = 0; i < encoded.length - 1; i++) {
+                items.add(Node.literal(encoded[i] & 0xFF));
+            }
+            return Node.literal(encoded[encoded.length - 1] & 0xFF);
+        }
+
+        private long[] literalSet(int value) {
+            long[] set = newSet();
+            add(set, value);
+            if (noCase) {
+                foldCase(set);
+            }
+            return set;
+        }
+
+        private long[] parseClass() {
+            long[] set = newSet();
+            boolean negated = false;
+            if (pos < pattern.length() && pattern.charAt(pos) == '^') {
+                negated = true;
+                pos++;
+            }
+            boolean first = true;
+            while (true) {
+                if (pos >= pattern.length()) {
+                    throw new IllegalArgumentException("Missing ']' in regular expression");
+                }
+                char c = pattern.charAt(pos);
+                if (c == ']' && !first) {
+                    pos++;
+                    break;
+                }
+                first = false;
+                pos++;
+                int low;
+                if (c == '\\') {
+                    long[] escaped = parseEscape(true);
+                    if (size(escaped) != 1) {
+                        // Shorthand classes like \d cannot start a range
+                        union(set, escaped);
+                        continue;
+                    }
+                    low = firstByte(escaped);
+                } else if (c >= 0x80) {
+                    throw new IllegalArgumentException("Non-ASCII characters are not supported in classes");
+                } else {
+                    low = c;
+                }
+                if (pos + 1 < pattern.length() && pattern.charAt(pos) == '-' && pattern.charAt(pos + 1) != ']') {
+                    pos++;
+                    char h = pattern.charAt(pos++);
+                    int high;
+                    if (h == '\\') {
+                        long[] escaped = parseEscape(true);
+                        if (size(escaped) != 1) {
+                            throw new IllegalArgumentException("Invalid range in character class");
+                        }
+                        high = firstByte(escaped);
+                    } else {
+                        high = h;
+                    }
+                    if (high < low || high > 0xFF) {
+                        throw new IllegalArgumentException("Invalid range in character class");
+                    }
+                    addRange(set, low, high);
+                } else {
+                    add(set, low);
+                }
+            }
+            if (noCase) {
+                foldCase(set);
+            }
+            return negated ? invert(set) : set;
+        }
+
+        private long[] parseEscape(boolean inClass) {
+            if (pos >= pattern.length()) {
+                throw new IllegalArgumentException("Trailing '\\' in regular expression");
+            }
+            char c = pattern.charAt(pos++);
+            long[] set = newSet();
+            switch (c) {
+                case 'n':
+                    add(set, '\n');
+                    return set;
+                case 't':
+                    add(set, '\t');
+                    return set;
+                case 'r':
+                    add(set, '\r');
+                    return set;
+                case 'f':
+                    add(set, '\f');
+                    return set;
+                case 'a':
+                    add(set, 7);
+                    return set;
+                case 'x': {
+                    if (pos + 2 > pattern.length()
+                            || Character.digit(pattern.charAt(pos), 16) < 0
+                            || Character.digit(pattern.charAt(pos + 1), 16) < 0) {
+                        throw new IllegalArgumentException("Invalid \\x escape in regular expression");
+                    }
+                    int value = Integer.parseInt(pattern.substring(pos, pos + 2), 16);
+                    pos += 2;
+                    return inClass ? singleton(value) : literalSet(value);
+                }
+                case 'd':
+                    addRange(set, '0', '9');
+                    return set;
+                case 'D':
+                    addRange(set, '0', '9');
+                    return invert(set);
+                case 'w':
+                    addWordBytes(set);
+                    return set;
+                case 'W':
+                    addWordBytes(set);
+                    return invert(set);
+                case 's':
+                    addSpaceBytes(set);
+                    return set;
+                case 'S':
+                    addSpaceBytes(set);
+                    return invert(set);
+                case 'b':
+                case 'B':
+                    throw new IllegalArgumentException("Word boundaries are not supported by the Java engine");
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        throw new IllegalArgumentException("Unknown escape \\" + c + " in regular expression");
+                    }
+                    if (c >= 0x80) {
+                        throw new IllegalArgumentException("Non-ASCII escape in regular expression");
+                    }
+                    return inClass ? singleton(c) : literalSet(c);
+            }
+        }
+
+        private static long[] singleton(int value) {
+            long[] set = newSet();
+            add(set, value);
+            return set;
+        }
+
+        private static int firstByte(long[] set) {
+            for (int value = 0; value < 256; value++) {
+                if (contains(set, value)) {
+                    return value;
+                }
+            }
+            return -1;
+        }
+
+        private static void union(long[] target, long[] other) {
+            for (int i = 0; i < 4; i++) {
+                target[i] |= other[i];
+            }
+        }
+
+        private static void addWordBytes(long[] set) {
+            addRange(set, 'a', 'z');
+            addRange(set, 'A', 'Z');
+            addRange(set, '0', '9');
+            add(set, '_');
+        }
+
+        private static void addSpaceBytes(long[] set) {
+            add(set, ' ');
+            addRange(set, '\t', '\r');
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.shabari.yara;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs the regular expression strings of a rule set. The input is divided
+// into fixed BLOCK_SIZE blocks at absolute offsets; a block is a candidate for
+// a regex when one of its atoms was seen close enough after it (regexes
+// without atoms treat every block as a candidate). Match starts inside a
+// candidate block are found with one reverse DFA pass over the block plus the
+// longest match that may start in it, so every byte is looked at a bounded
+// number of times.
+//
+// Blocks are fixed in absolute terms, so overlapping parallel segments and
+// arbitrarily chunked sessions find exactly the matches a serial pass does.
+final class YaraRegexScanner {
+    static final int BLOCK_SIZE = 4096;
+
+    private final YaraRegex[] regexes;
+    private final int[] stringIndexes;
+    private final int maxSpan;
+    private final boolean[] everywhere;
+    private final YaraPatternMatcher exactAtoms;
+    private final YaraPatternMatcher foldedAtoms;
+    private final int[] atomRegex;
+    private final int[] atomMinBefore;
+    private final int[] atomMaxBefore;
+
+    YaraRegexScanner(List<YaraRegex> regexes, List<Integer> stringIndexes) {
+        this.regexes = regexes.toArray(new YaraRegex[0]);
+        this.stringIndexes = new int[regexes.size()];
+        this.everywhere = new boolean[regexes.size()];
+
+        List<byte[]> exactPatterns = new ArrayList<>();
+        List<Integer> exactIds = new ArrayList<>();
+        List<byte[]> foldedPatterns = new ArrayList<>();
+        List<Integer> foldedIds = new ArrayList<>();
+        List<YaraRegex.Atom> allAtoms = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        int span = 0;
+        for (int r = 0; r < regexes.size(); r++) {
+            YaraRegex regex = regexes.get(r);
+            this.stringIndexes[r] = stringIndexes.get(r);
+            span = Math.max(span, regex.maxLength);
+            if (regex.atoms == null) {
+                everywhere[r] = true;
+                continue;
+            }
+            for (YaraRegex.Atom atom : regex.atoms) {
+                int id = allAtoms.size();
+                allAtoms.add(atom);
+                owners.add(r);
+                if (regex.noCase) {
+                    foldedPatterns.add(atom.bytes);
+                    foldedIds.add(id);
+                } else {
+                    exactPatterns.add(atom.bytes);
+                    exactIds.add(id);
+                }
+            }
+        }
+        this.maxSpan = span;
+        this.exactAtoms = exactPatterns.isEmpty() ? null
+                : YaraPatternMatcher.build(exactPatterns, exactIds, false);
+        this.foldedAtoms = foldedPatterns.isEmpty() ? null
+                : YaraPatternMatcher.build(foldedPatterns, foldedIds, true);
+        this.atomRegex = new int[allAtoms.size()];
+        this.atomMinBefore = new int[allAtoms.size()];
+        this.atomMaxBefore = new int[allAtoms.size()];
+        for (int i = 0; i < allAtoms.size(); i++) {
+            atomRegex[i] = owners.get(i);
+            atomMinBefore[i] = allAtoms.get(i).minBefore;
+            atomMaxBefore[i] = allAtoms.get(i).maxBefore;
+        }
+    }
+
+    private YaraRegexScanner(YaraRegex[] regexes, int[] stringIndexes, int maxSpan, boolean[] everywhere,
+                             YaraPatternMatcher exactAtoms, YaraPatternMatcher foldedAtoms, int[] atomRegex,
+                             int[] atomMinBefore, int[] atomMaxBefore) {
+        this.regexes = regexes;
+        this.stringIndexes = stringIndexes;
+        this.maxSpan = maxSpan;
+        this.everywhere = everywhere;
+        this.exactAtoms = exactAtoms;
+        this.foldedAtoms = foldedAtoms;
+        this.atomRegex = atomRegex;
+        this.atomMinBefore = atomMinBefore;
+        this.atomMaxBefore = atomMaxBefore;
+    }
+
+    // The regexes themselves are written with their strings
+    void write(DataOutputStream out) throws IOException {
+        YaraRulesFile.writeInts(out, stringIndexes);
+        out.writeInt(maxSpan);
+        YaraRulesFile.writeBooleans(out, everywhere);
+        writeOptional(out, exactAtoms);
+        writeOptional(out, foldedAtoms);
+        YaraRulesFile.writeInts(out, atomRegex);
+        YaraRulesFile.writeInts(out, atomMinBefore);
+        YaraRulesFile.writeInts(out, atomMaxBefore);
+    }
+
+    static YaraRegexScanner read(ByteBuffer in, List<YaraRuleString> strings) {
+        int[] stringIndexes = YaraRulesFile.readInts(in);
+        YaraRegex[] regexes = new YaraRegex[stringIndexes.length];
+        for (int r = 0; r < regexes.length; r++) {
+            regexes[r] = strings.get(stringIndexes[r]).regex;
+            if (regexes[r] == null) {
+                throw new IllegalArgumentException("String " + stringIndexes[r] + " is not a regex");
+            }
+        }
+        int maxSpan = in.getInt();
+        boolean[] everywhere = YaraRulesFile.readBooleans(in);
+        YaraPatternMatcher exactAtoms = in.get() != 0 ? YaraPatternMatcher.read(in) : null;
+        YaraPatternMatcher foldedAtoms = in.get() != 0 ? YaraPatternMatcher.read(in) : null;
+        return new YaraRegexScanner(regexes, stringIndexes, maxSpan, everywhere, exactAtoms, foldedAtoms,
+                YaraRulesFile.readInts(in), YaraRulesFile.readInts(in), YaraRulesFile.readInts(in));
+    }
+
+    private static void writeOptional(DataOutputStream out, YaraPatternMatcher matcher) throws IOException {
+        out.writeBoolean(matcher != null);
+        if (matcher != null) {
+            matcher.write(out);
+        }
+    }
+
+    // Bytes past a match start that must be visible to decide the match
+    int getLookahead() {
+        return BLOCK_SIZE + maxSpan;
+    }
+
+    State newState() {
+        return new State();
+    }
+
+    // Stops matching a string for the rest of the scan: its blocks are no
+    // longer run through the DFA
+    void drop(State state, int stringIndex) {
+        for (int r = 0; r < regexes.length; r++) {
+            if (stringIndexes[r] == stringIndex) {
+                state.dropped[r] = true;
+            }
+        }
+    }
+
+    // Consumes buffer[from, to) (absolute offsets base + index), which must
+    // directly follow the data previously passed with this state.
+    void scan(ByteBuffer buffer, int from, int to, long base, long recordLimit, YaraMatchSet matches, State state) {
+        if (state.dataStart < 0) {
+            state.dataStart = base + from;
+            state.dataEnd = base + from;
+            state.nextBlock = state.dataStart / BLOCK_SIZE;
+        }
+        state.chunkStart = base + from;
+        if (exactAtoms != null) {
+            state.exactAtomState = exactAtoms.scan(buffer, from, to, base, state.exactAtomState, Long.MAX_VALUE, state);
+        }
+        if (foldedAtoms != null) {
+            state.foldedAtomState = foldedAtoms.scan(buffer, from, to, base, state.foldedAtomState, Long.MAX_VALUE, state);
+        }
+        state.dataEnd = base + to;
+
+        while ((state.nextBlock + 1) * BLOCK_SIZE + maxSpan <= state.dataEnd) {
+            processBlock(state, state.nextBlock++, buffer, base, recordLimit, matches);
+        }
+        state.retain(buffer, from, base);
+    }
+
+    // Processes the blocks still waiting for lookahead once the input has ended
+    void finish(State state, long recordLimit, YaraMatchSet matches) {
+        if (state.dataStart < 0) {
+            return;
+        }
+        while (state.nextBlock * BLOCK_SIZE < state.dataEnd) {
+            processBlock(state, state.nextBlock++, null, 0, recordLimit, matches);
+        }
+    }
+
+    private void processBlock(State state, long block, ByteBuffer buffer, long base, long recordLimit,
+                              YaraMatchSet matches) {
+        long blockStart = Math.max(block * BLOCK_SIZE, state.dataStart);
+        long blockEnd = Math.min((block + 1) * BLOCK_SIZE, recordLimit);
+        if (blockStart >= blockEnd) {
+            return;
+        }
+        for (int r = 0; r < regexes.length; r++) {
+            if (state.dropped[r] || (!everywhere[r] && !state.isCandidate(r, block))) {
+                continue;
+            }
+            long top = Math.min((block + 1) * BLOCK_SIZE + regexes[r].maxLength, state.dataEnd);
+            reverseScan(state, r, blockStart, blockEnd, top, buffer, base, matches);
+        }
+    }
+
+    private void reverseScan(State state, int r, long blockStart, long blockEnd, long top, ByteBuffer buffer,
+                             long base, YaraMatchSet matches) {
+        byte[] data;
+        int offset;
+        if (buffer != null && buffer.hasArray() && blockStart >= state.chunkStart) {
+            data = buffer.array();
+            offset = buffer.arrayOffset() + (int) (blockStart - base);
+        } else {
+            data = state.window(blockStart, top, buffer, base);
+            offset = 0;
+        }
+
+        YaraRegex regex = regexes[r];
+        YaraRegex.Dfa dfa = state.dfa(r);
+        int[] found = state.found;
+        int count = 0;
+        int limit = (int) (blockEnd - blockStart);
+        int dfaState = dfa.initial;
+        for (int i = (int) (top - blockStart) - 1; i >= 0; i--) {
+            dfaState = dfa.next(dfaState, regex.getByteClass(data[offset + i] & 0xFF));
+            if (i < limit && dfa.isAccepting(dfaState)) {
+                found[count++] = i;
+            }
+        }
+        // Found back to front; record in offset order
+        for (int k = count - 1; k >= 0; k--) {
+            matches.record(stringIndexes[r], blockStart + found[k]);
+        }
+    }
+
+    // Per-scan progress: atom automaton states, candidate block ranges per
+    // regex, the tail of the input that pending blocks still need, and the
+    // lazily built DFAs.
+    final class State implements YaraPatternMatcher.Sink {
+        int exactAtomState;
+        int foldedAtomState;
+        long dataStart = -1;
+        long dataEnd;
+        long nextBlock;
+        long chunkStart;
+
+        private byte[] history = new byte[0];
+        private long historyStart;
+        private byte[] window = new byte[0];
+        private final int[] found = new int[BLOCK_SIZE];
+        private final long[][] intervals = new long[regexes.length][];
+        private final int[] intervalHead = new int[regexes.length];
+        private final int[] intervalCount = new int[regexes.length];
+        private final YaraRegex.Dfa[] dfas = new YaraRegex.Dfa[regexes.length];
+        private final boolean[] dropped = new boolean[regexes.length];
+
+        private State() {
+        }
+
+        // Atom hit: the owning regex may match starting shortly before it
+        @Override
+        public void record(int atom, long offset) {
+            if (dropped[atomRegex[atom]]) {
+                return;
+            }
+            long first = Math.max(offset - atomMaxBefore[atom], dataStart);
+            long last = offset - atomMinBefore[atom];
+            if (last >= first) {
+                addInterval(atomRegex[atom], first / BLOCK_SIZE, last / BLOCK_SIZE);
+            }
+        }
+
+        // Hits arrive in end offset order, so a new range starts no earlier
+        // than about one block before the last one and ranges stay sorted.
+        private void addInterval(int r, long from, long to) {
+            long[] list = intervals[r];
+            int head = intervalHead[r];
+            int count = intervalCount[r];
+            while (count > head && from <= list[2 * count - 1] + 1) {
+                // Overlaps or touches the last range: merge into it
+                from = Math.min(from, list[2 * count - 2]);
+                to = Math.max(to, list[2 * count - 1]);
+                count--;
+            }
+            if (list == null) {
+                list = new long[16];
+            } else if (2 * count == list.length) {
+                if (head > 0) {
+                    System.arraycopy(list, 2 * head, list, 0, 2 * (count - head));
+                    count -= head;
+                    head = 0;
+                } else {
+                    list = Arrays.copyOf(list, list.length * 2);
+                }
+            }
+            list[2 * count] = from;
+            list[2 * count + 1] = to;
+            intervals[r] = list;
+            intervalHead[r] = head;
+            intervalCount[r] = count + 1;
+        }
+
+        boolean isCandidate(int r, long block) {
+            long[] list = intervals[r];
+            int head = intervalHead[r];
+            int count = intervalCount[r];
+            while (head < count && list[2 * head + 1] < block) {
+                head++;
+            }
+            intervalHead[r] = head;
+            return head < count && list[2 * head] <= block;
+        }
+
+        YaraRegex.Dfa dfa(int r) {
+            if (dfas[r] == null) {
+                dfas[r] = regexes[r].newDfa();
+            }
+            return dfas[r];
+        }
+
+        // Copies [from, to) out of the retained history and the current buffer
+        byte[] window(long from, long to, ByteBuffer buffer, long base) {
+            int length = (int) (to - from);
+            if (window.length < length) {
+                window = new byte[getLookahead()];
+            }
+            int n = 0;
+            if (from < chunkStart) {
+                n = (int) Math.min(length, chunkStart - from);
+                System.arraycopy(history, (int) (from - historyStart), window, 0, n);
+            }
+            if (n < length) {
+                copy(buffer, (int) (from + n - base), window, n, length - n);
+            }
+            return window;
+        }
+
+        // Keeps the bytes that unprocessed blocks still need for the next call
+        void retain(ByteBuffer buffer, int from, long base) {
+            long keepFrom = Math.max(nextBlock * BLOCK_SIZE, dataStart);
+            int length = (int) (dataEnd - keepFrom);
+            byte[] target = history.length >= length ? history : new byte[Math.max(length, getLookahead())];
+            long chunkFrom = base + from;
+            int n = 0;
+            if (keepFrom < chunkFrom) {
+                n = (int) (chunkFrom - keepFrom);
+                System.arraycopy(history, (int) (keepFrom - historyStart), target, 0, n);
+            }
+            if (n < length) {
+                copy(buffer, (int) (keepFrom + n - base), target, n, length - n);
+            }
+            history = target;
+            historyStart = keepFrom;
+            // Everything seen so far is history now
+            chunkStart = dataEnd;
+        }
+    }
+
+    private static void copy(ByteBuffer buffer, int index, byte[] target, int offset, int length) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + index, target, offset, length);
+        } else {
+            ByteBuffer view = buffer.duplicate();
+            view.position(index);
+            view.get(target, offset, length);
+        }
+    }
+}
@@ -0,0 +1,830 @@
+package com.shabari.yara;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Known-good / known-bad content hash lookup checked before pattern scanning.
+//
+// Tables are memory-mapped rather than loaded onto the heap. The base table is
+// bucketed by the leading bits of the file's SHA-256: an entry is 4 bytes, the
+// next 30 hash bits as a fingerprint and a 2-bit verdict, sorted within its
+// bucket, and a directory gives where each bucket starts. Buckets hold 16-31
+// entries, so a million hashes take about 4.1MB and a lookup is a directory
+// read and a short binary search. A hash is kept to (bucket bits + 30) bits,
+// 25-26 bits more than the table needs to tell its entries apart, so an
+// unlisted file hits an entry with a chance of 1 in 30-60 million.
+//
+// A truncated hash is enough to flag a file as known-bad, but a known-good hit
+// skips pattern matching, and known-good hashes (system apps, say) are public:
+// padding a malicious file until its hash prefix collides with one of them
+// would take about 2^45 / N attempts. So every table also lists the full
+// SHA-256 of its known-good entries, and a known-good hit counts only when the
+// file's whole hash is listed there.
+//
+// Updates from the feed arrive as delta tables of full 8-byte entries (the top
+// 62 hash bits and the verdict; REMOVED deletes an entry). Deltas are merged
+// into a small delta file next to the base table and folded into the base once
+// they grow large.
+public class YaraReputationSet {
+    private static final String TAG = "YaraReputationSet";
+
+    public static final int UNKNOWN = 0;
+    public static final int KNOWN_GOOD = 1;
+    public static final int KNOWN_BAD = 2;
+    public static final int REMOVED = 3;
+
+    private static final int MAGIC = 0x53485250; // "SHRP"
+    // Full 8-byte entries (deltas, and base tables from before VERSION_COMPACT)
+    private static final int VERSION_FULL = 1;
+    private static final int VERSION_COMPACT = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int COMPACT_HEADER_SIZE = 24;
+    private static final long VERDICT_MASK = 3L;
+    private static final int FINGERPRINT_BITS = 30;
+    private static final int DIGEST_SIZE = 32;
+    // Buckets of 2^4 entries or more
+    private static final int BUCKET_ENTRIES_LOG2 = 4;
+    private static final int MAX_BUCKET_BITS = 24;
+    private static final int COMPACT_DIVISOR = 8;
+    private static final int MIN_COMPACT_ENTRIES = 4096;
+
+    private final File baseFile;
+    private final File deltaFile;
+    private volatile Table base;
+    private volatile FullTable delta;
+
+    private YaraReputationSet(File baseFile, File deltaFile, Table base, FullTable delta) {
+        this.baseFile = baseFile;
+        this.deltaFile = deltaFile;
+        this.base = base;
+        this.delta = delta;
+    }
+
+    // Opens a base table and its delta file; either may not exist yet.
+    public static YaraReputationSet open(File baseFile, File deltaFile) throws IOException {
+        return new YaraReputationSet(baseFile, deltaFile, Table.map(baseFile), mapDelta(deltaFile));
+    }
+
+    public int lookup(byte[] sha256) {
+        int verdict = find(keyFor(sha256));
+        if (verdict == KNOWN_GOOD && !delta.good.contains(sha256) && !base.good.contains(sha256)) {
+            // Only the truncated hash matched
+            return UNKNOWN;
+        }
+        return verdict == REMOVED ? UNKNOWN : verdict;
+    }
+
+    private int find(long key) {
+        int verdict = delta.find(key);
+        return verdict == UNKNOWN ? base.find(key) : verdict;
+    }
+
+    public long size() {
+        return base.count + delta.count;
+    }
+
+    // Merges a delta table from the feed into the local delta file, folding
+    // everything into the base table once the delta is large.
+    public synchronized void applyDelta(File deltaBlob) throws IOException {
+        FullTable incoming = mapDelta(deltaBlob);
+        long[] merged = merge(delta.toArray(), incoming.toArray(), true);
+        byte[][] good = knownGood(concat(delta.good.toArray(), incoming.good.toArray()), merged);
+        writeTable(deltaFile, merged, merged.length, good);
+        delta = mapDelta(deltaFile);
+
+        if (delta.count >= Math.max(MIN_COMPACT_ENTRIES, base.count / COMPACT_DIVISOR)) {
+            compact();
+        }
+    }
+
+    // Rewrites the base table with the delta applied and empties the delta
+    public synchronized void compact() throws IOException {
+        File temp = new File(baseFile.getPath() + ".tmp");
+        long count;
+        try {
+            count = mergeInto(temp);
+            replace(temp, baseFile);
+        } finally {
+            temp.delete();
+        }
+        writeTable(deltaFile, new long[0], 0, new byte[0][]);
+        base = Table.map(baseFile);
+        delta = mapDelta(deltaFile);
+        YaraLog.i(TAG, "Compacted reputation set to " + count + " entries");
+    }
+
+    // Streams the base table merged with the delta into a new base table,
+    // keeping the full hashes of entries that are still known-good
+    private long mergeInto(File target) throws IOException {
+        CompactWriter out = new CompactWriter(target, base.bucketBitsAfterMerge(base.count + delta.count));
+        try {
+            Reader older = base.reader();
+            Reader newer = delta.reader();
+            long mask = out.keyMask;
+            while (older.hasNext() || newer.hasNext()) {
+                if (!newer.hasNext()
+                        || (older.hasNext() && compareUnsigned(older.peek() & mask, newer.peek() & mask) < 0)) {
+                    out.add(older.next());
+                    continue;
+                }
+                // The delta entry replaces (or with REMOVED, deletes) the old one
+                while (older.hasNext() && (older.peek() & mask) == (newer.peek() & mask)) {
+                    older.next();
+                }
+                out.add(newer.next());
+            }
+
+            byte[] previous = null;
+            int i = 0;
+            int j = 0;
+            byte[] a = new byte[DIGEST_SIZE];
+            byte[] b = new byte[DIGEST_SIZE];
+            while (i < base.good.count || j < delta.good.count) {
+                byte[] digest;
+                if (j >= delta.good.count) {
+                    digest = base.good.get(i++, a);
+                } else if (i >= base.good.count) {
+                    digest = delta.good.get(j++, b);
+                } else if (compareDigests(base.good.get(i, a), delta.good.get(j, b)) <= 0) {
+                    digest = base.good.get(i++, a);
+                } else {
+                    digest = delta.good.get(j++, b);
+                }
+                if ((previous == null || compareDigests(previous, digest) != 0)
+                        && find(keyFor(digest)) == KNOWN_GOOD) {
+                    out.addDigest(digest);
+                    previous = digest.clone();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return out.written;
+    }
+
+    // Writes a base table from SHA-256 digests and their verdicts; later
+    // verdicts for the same hash win and REMOVED entries are dropped.
+    public static void buildTable(File file, byte[][] sha256s, int[] verdicts) throws IOException {
+        long[] sorted = merge(new long[0], entries(sha256s, verdicts), false);
+        byte[][] good = knownGood(goodDigests(sha256s, verdicts), sorted);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            CompactWriter out = new CompactWriter(temp, bucketBitsFor(sorted.length));
+            try {
+                for (long entry : sorted) {
+                    out.add(entry);
+                }
+                for (byte[] digest : good) {
+                    out.addDigest(digest);
+                }
+            } finally {
+                out.close();
+            }
+            replace(temp, file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    // Writes a delta table for applyDelta(); REMOVED entries are kept
+    public static void buildDeltaTable(File file, byte[][] sha256s, int[] verdicts) throws IOException {
+        long[] sorted = merge(new long[0], entries(sha256s, verdicts), true);
+        writeTable(file, sorted, sorted.length, knownGood(goodDigests(sha256s, verdicts), sorted));
+    }
+
+    private static long[] entries(byte[][] sha256s, int[] verdicts) {
+        if (sha256s.length != verdicts.length) {
+            throw new IllegalArgumentException("Expected one verdict per digest");
+        }
+        long[] entries = new long[sha256s.length];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = keyFor(sha256s[i]) | (verdicts[i] & VERDICT_MASK);
+        }
+        return entries;
+    }
+
+    private static byte[][] goodDigests(byte[][] sha256s, int[] verdicts) {
+        int n = 0;
+        byte[][] good = new byte[sha256s.length][];
+        for (int i = 0; i < sha256s.length; i++) {
+            if (verdicts[i] == KNOWN_GOOD) {
+                good[n++] = sha256s[i];
+            }
+        }
+        return Arrays.copyOf(good, n);
+    }
+
+    // The digests, sorted and de-duplicated, whose hash is KNOWN_GOOD in the
+    // sorted entries
+    private static byte[][] knownGood(byte[][] digests, long[] sorted) {
+        byte[][] result = digests.clone();
+        Arrays.sort(result, new java.util.Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return compareDigests(a, b);
+            }
+        });
+        int n = 0;
+        for (byte[] digest : result) {
+            if ((n == 0 || compareDigests(result[n - 1], digest) != 0)
+                    && verdictIn(sorted, keyFor(digest)) == KNOWN_GOOD) {
+                result[n++] = digest;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static int verdictIn(long[] sorted, long key) {
+        int low = 0;
+        int high = sorted.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compareKeys(sorted[middle], key);
+            if (cmp == 0) {
+                return (int) (sorted[middle] & VERDICT_MASK);
+            } else if (cmp < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static byte[][] concat(byte[][] a, byte[][] b) {
+        byte[][] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static int compareDigests(byte[] a, byte[] b) {
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private static long keyFor(byte[] sha256) {
+        if (sha256 == null || sha256.length != DIGEST_SIZE) {
+            throw new IllegalArgumentException("Expected a SHA-256 digest");
+        }
+        long prefix = ByteBuffer.wrap(sha256, 0, 8).getLong();
+        return prefix & ~VERDICT_MASK;
+    }
+
+    private static int compareKeys(long a, long b) {
+        return compareUnsigned(a & ~VERDICT_MASK, b & ~VERDICT_MASK);
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        long x = a + Long.MIN_VALUE;
+        long y = b + Long.MIN_VALUE;
+        return x < y ? -1 : (x == y ? 0 : 1);
+    }
+
+    // Bucket bits that put 2^BUCKET_ENTRIES_LOG2 or more entries in a bucket
+    static int bucketBitsFor(long count) {
+        int log2 = 63 - Long.numberOfLeadingZeros(Math.max(1, count));
+        return Math.min(MAX_BUCKET_BITS, Math.max(0, log2 - BUCKET_ENTRIES_LOG2));
+    }
+
+    private static FullTable mapDelta(File file) throws IOException {
+        Table table = Table.map(file);
+        if (!(table instanceof FullTable)) {
+            throw new IOException("Delta tables must hold full entries: " + file);
+        }
+        return (FullTable) table;
+    }
+
+    // Merges sorted tables, with entries of the newer one overriding the older.
+    // Incoming entries are sorted first; with keepRemovals, REMOVED entries are
+    // kept so they can shadow the base table.
+    private static long[] merge(long[] older, long[] newer, boolean keepRemovals) {
+        long[] incoming = newer.clone();
+        for (int i = 0; i < incoming.length; i++) {
+            incoming[i] += Long.MIN_VALUE;
+        }
+        sortStable(incoming);
+        for (int i = 0; i < incoming.length; i++) {
+            incoming[i] -= Long.MIN_VALUE;
+        }
+
+        long[] out = new long[older.length + incoming.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < older.length || j < incoming.length) {
+            long entry;
+            if (j >= incoming.length || (i < older.length && compareKeys(older[i], incoming[j]) < 0)) {
+                entry = older[i++];
+            } else {
+                if (i < older.length && compareKeys(older[i], incoming[j]) == 0) {
+                    i++;
+                }
+                entry = incoming[j++];
+                // Several incoming entries for one hash: the last one wins
+                while (j < incoming.length && compareKeys(entry, incoming[j]) == 0) {
+                    entry = incoming[j++];
+                }
+            }
+            if (keepRemovals || (entry & VERDICT_MASK) != REMOVED) {
+                out[n++] = entry;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // Sorts by key only so that the relative order of duplicate keys is kept
+    private static void sortStable(long[] biased) {
+        Long[] boxed = new Long[biased.length];
+        for (int i = 0; i < biased.length; i++) {
+            boxed[i] = biased[i];
+        }
+        Arrays.sort(boxed, new java.util.Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                long x = a & ~VERDICT_MASK;
+                long y = b & ~VERDICT_MASK;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < biased.length; i++) {
+            biased[i] = boxed[i];
+        }
+    }
+
+    private static void writeTable(File file, long[] entries, int count, byte[][] good) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION_FULL);
+                out.writeLong(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(entries[i]);
+                }
+                out.writeLong(good.length);
+                for (byte[] digest : good) {
+                    out.write(digest);
+                }
+                out.flush();
+                stream.getFD().sync();
+            }
+            replace(temp, file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    // The temporary file is synced before this, so a crash leaves either the
+    // old table or the complete new one
+    private static void replace(File temp, File file) throws IOException {
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    private abstract static class Table {
+        final int count;
+        final Digests good;
+
+        Table(int count, Digests good) {
+            this.count = count;
+            this.good = good;
+        }
+
+        static Table map(File file) throws IOException {
+            if (file == null || !file.exists()) {
+                return FullTable.EMPTY;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                if (raf.length() < HEADER_SIZE) {
+                    throw new IOException("Truncated reputation table: " + file);
+                }
+                ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (buffer.getInt(0) != MAGIC) {
+                    throw new IOException("Not a reputation table: " + file);
+                }
+                int version = buffer.getInt(4);
+                if (version == VERSION_FULL) {
+                    return FullTable.map(file, buffer);
+                } else if (version == VERSION_COMPACT) {
+                    return CompactTable.map(file, buffer);
+                }
+                throw new IOException("Unsupported reputation table version " + version + ": " + file);
+            }
+        }
+
+        abstract int find(long key);
+
+        // Entries in key order, as entryFor() values cut to the hash bits the
+        // table keeps
+        abstract Reader reader();
+
+        // Hash bits a compacted table built from this one keeps; compaction
+        // never asks for more than the entries carried over still have
+        abstract int bucketBitsAfterMerge(long count);
+    }
+
+    private abstract static class Reader {
+        private long next;
+        private boolean loaded;
+
+        // Whether read() has entries left
+        abstract boolean hasMore();
+
+        abstract long read();
+
+        boolean hasNext() {
+            return loaded || hasMore();
+        }
+
+        long peek() {
+            if (!loaded) {
+                next = read();
+                loaded = true;
+            }
+            return next;
+        }
+
+        long next() {
+            long value = peek();
+            loaded = false;
+            return value;
+        }
+    }
+
+    // Sorted array of 8-byte entries: the top 62 hash bits and the verdict,
+    // then the known-good digests
+    private static final class FullTable extends Table {
+        static final FullTable EMPTY = new FullTable(null, 0, Digests.EMPTY);
+
+        final ByteBuffer entries;
+
+        private FullTable(ByteBuffer entries, int count, Digests good) {
+            super(count, good);
+            this.entries = entries;
+        }
+
+        static FullTable map(File file, ByteBuffer buffer) throws IOException {
+            long count = buffer.getLong(8);
+            if (count < 0 || count > Integer.MAX_VALUE / 8 || HEADER_SIZE + count * 8 > buffer.capacity()) {
+                throw new IOException("Corrupt reputation table: " + file);
+            }
+            return new FullTable(buffer, (int) count, Digests.map(file, buffer, HEADER_SIZE + count * 8));
+        }
+
+        long entry(int index) {
+            return entries.getLong(HEADER_SIZE + index * 8);
+        }
+
+        @Override
+        int find(long key) {
+            if (count == 0) {
+                return UNKNOWN;
+            }
+            // Hashes are uniform, so the top 32 bits predict the position well
+            int guess = (int) (((key >>> 32) * count) >>> 32);
+            int low;
+            int high;
+            int cmp = compareKeys(entry(guess), key);
+            if (cmp == 0) {
+                return (int) (entry(guess) & VERDICT_MASK);
+            }
+            int step = 1;
+            if (cmp < 0) {
+                low = guess + 1;
+                high = Math.min(count - 1, guess + step);
+                while (high < count - 1 && compareKeys(entry(high), key) < 0) {
+                    low = high + 1;
+                    step <<= 1;
+                    high = Math.min(count - 1, guess + step);
+                }
+            } else {
+                high = guess - 1;
+                low = Math.max(0, guess - step);
+                while (low > 0 && compareKeys(entry(low), key) > 0) {
+                    high = low - 1;
+                    step <<= 1;
+                    low = Math.max(0, guess - step);
+                }
+            }
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long value = entry(middle);
+                cmp = compareKeys(value, key);
+                if (cmp == 0) {
+                    return (int) (value & VERDICT_MASK);
+                } else if (cmp < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        long[] toArray() {
+            long[] result = new long[count];
+            for (int i = 0; i < count; i++) {
+                result[i] = entry(i);
+            }
+            return result;
+        }
+
+        @Override
+        Reader reader() {
+            return new Reader() {
+                private int index;
+
+                @Override
+                boolean hasMore() {
+                    return index < count;
+                }
+
+                @Override
+                long read() {
+                    return entry(index++);
+                }
+            };
+        }
+
+        @Override
+        int bucketBitsAfterMerge(long count) {
+            return bucketBitsFor(count);
+        }
+    }
+
+    // Header (magic, version, count, bucket bits, reserved), count 4-byte
+    // entries bucket by bucket, 2^bucketBits + 1 bucket start indexes, then
+    // the known-good digests
+    private static final class CompactTable extends Table {
+        final ByteBuffer buffer;
+        final int bucketBits;
+        final int directory;
+
+        private CompactTable(ByteBuffer buffer, int count, int bucketBits, Digests good) {
+            super(count, good);
+            this.buffer = buffer;
+            this.bucketBits = bucketBits;
+            this.directory = COMPACT_HEADER_SIZE + count * 4;
+        }
+
+        static CompactTable map(File file, ByteBuffer buffer) throws IOException {
+            if (buffer.capacity() < COMPACT_HEADER_SIZE) {
+                throw new IOException("Truncated reputation table: " + file);
+            }
+            long count = buffer.getLong(8);
+            int bucketBits = buffer.getInt(16);
+            if (count < 0 || count > Integer.MAX_VALUE / 8 || bucketBits < 0 || bucketBits > MAX_BUCKET_BITS
+                    || COMPACT_HEADER_SIZE + count * 4 + ((1L << bucketBits) + 1) * 4 > buffer.capacity()) {
+                throw new IOException("Corrupt reputation table: " + file);
+            }
+            long end = COMPACT_HEADER_SIZE + count * 4 + ((1L << bucketBits) + 1) * 4;
+            return new CompactTable(buffer, (int) count, bucketBits, Digests.map(file, buffer, end));
+        }
+
+        private int bucketStart(int bucket) {
+            return buffer.getInt(directory + bucket * 4);
+        }
+
+        private int word(int index) {
+            return buffer.getInt(COMPACT_HEADER_SIZE + index * 4);
+        }
+
+        @Override
+        int find(long key) {
+            if (count == 0) {
+                return UNKNOWN;
+            }
+            int bucket = bucketBits == 0 ? 0 : (int) (key >>> (64 - bucketBits));
+            int fingerprint = (int) ((key << bucketBits) >>> (64 - FINGERPRINT_BITS));
+            int low = bucketStart(bucket);
+            int high = bucketStart(bucket + 1) - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int word = word(middle);
+                int value = word >>> 2;
+                if (value == fingerprint) {
+                    return word & (int) VERDICT_MASK;
+                } else if (value < fingerprint) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        @Override
+        Reader reader() {
+            return new Reader() {
+                private int index;
+                private int bucket;
+
+                @Override
+                boolean hasMore() {
+                    return index < count;
+                }
+
+                @Override
+                long read() {
+                    while (bucketStart(bucket + 1) <= index) {
+                        bucket++;
+                    }
+                    int word = word(index++);
+                    long key = bucketBits == 0 ? 0 : (long) bucket << (64 - bucketBits);
+                    key |= (long) (word >>> 2) << (64 - FINGERPRINT_BITS - bucketBits);
+                    return key | (word & VERDICT_MASK);
+                }
+            };
+        }
+
+        @Override
+        int bucketBitsAfterMerge(long count) {
+            return bucketBits;
+        }
+    }
+
+    // Full SHA-256 digests of a table's KNOWN_GOOD entries, sorted, after its
+    // entries: an 8-byte count, then 32 bytes each. Tables written before
+    // these were kept have none, so their known-good hits are scanned.
+    private static final class Digests {
+        static final Digests EMPTY = new Digests(null, 0, 0);
+
+        final int count;
+        private final ByteBuffer buffer;
+        private final int offset;
+
+        private Digests(ByteBuffer buffer, int offset, int count) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        static Digests map(File file, ByteBuffer buffer, long offset) throws IOException {
+            if (offset == buffer.capacity()) {
+                return EMPTY;
+            }
+            if (offset + 8 > buffer.capacity()) {
+                throw new IOException("Corrupt reputation table: " + file);
+            }
+            long count = buffer.getLong((int) offset);
+            if (count < 0 || count > Integer.MAX_VALUE / DIGEST_SIZE
+                    || offset + 8 + count * DIGEST_SIZE != buffer.capacity()) {
+                throw new IOException("Corrupt reputation table: " + file);
+            }
+            return new Digests(buffer, (int) offset + 8, (int) count);
+        }
+
+        boolean contains(byte[] sha256) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int cmp = compare(middle, sha256);
+                if (cmp == 0) {
+                    return true;
+                } else if (cmp < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return false;
+        }
+
+        private int compare(int index, byte[] sha256) {
+            int position = offset + index * DIGEST_SIZE;
+            for (int i = 0; i < DIGEST_SIZE; i++) {
+                int cmp = (buffer.get(position + i) & 0xFF) - (sha256[i] & 0xFF);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        byte[] get(int index, byte[] digest) {
+            for (int i = 0; i < DIGEST_SIZE; i++) {
+                digest[i] = buffer.get(offset + index * DIGEST_SIZE + i);
+            }
+            return digest;
+        }
+
+        byte[][] toArray() {
+            byte[][] result = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                result[i] = get(i, new byte[DIGEST_SIZE]);
+            }
+            return result;
+        }
+    }
+
+    // Writes a compact table from entries in key order, then known-good
+    // digests in order. Entries that agree on the kept hash bits collapse into
+    // the last one; REMOVED entries are dropped. close() writes the directory
+    // and digest count if no digest did, and syncs the file.
+    private static final class CompactWriter {
+        final long keyMask;
+        long written;
+
+        private final File file;
+        private final int bucketBits;
+        private final FileOutputStream stream;
+        private final DataOutputStream out;
+        private final int[] bucketSizes;
+        private long pending;
+        private boolean hasPending;
+        private boolean entriesDone;
+        private long digests;
+
+        CompactWriter(File file, int bucketBits) throws IOException {
+            this.file = file;
+            this.bucketBits = bucketBits;
+            this.keyMask = -(1L << (64 - FINGERPRINT_BITS - bucketBits));
+            this.bucketSizes = new int[1 << bucketBits];
+            this.stream = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION_COMPACT);
+            out.writeLong(0);
+            out.writeInt(bucketBits);
+            out.writeInt(0);
+        }
+
+        void add(long entry) throws IOException {
+            if (entriesDone) {
+                throw new IllegalStateException("Entries must come before digests");
+            }
+            if (hasPending && (pending & keyMask) != (entry & keyMask)) {
+                writePending();
+            }
+            pending = entry;
+            hasPending = true;
+        }
+
+        private void writePending() throws IOException {
+            hasPending = false;
+            if ((pending & VERDICT_MASK) == REMOVED) {
+                return;
+            }
+            int bucket = bucketBits == 0 ? 0 : (int) (pending >>> (64 - bucketBits));
+            int fingerprint = (int) ((pending << bucketBits) >>> (64 - FINGERPRINT_BITS));
+            out.writeInt((fingerprint << 2) | (int) (pending & VERDICT_MASK));
+            bucketSizes[bucket]++;
+            written++;
+        }
+
+        void addDigest(byte[] sha256) throws IOException {
+            finishEntries();
+            out.write(sha256, 0, DIGEST_SIZE);
+            digests++;
+        }
+
+        // Writes the directory and a placeholder digest count
+        private void finishEntries() throws IOException {
+            if (entriesDone) {
+                return;
+            }
+            entriesDone = true;
+            if (hasPending) {
+                writePending();
+            }
+            int start = 0;
+            for (int size : bucketSizes) {
+                out.writeInt(start);
+                start += size;
+            }
+            out.writeInt(start);
+            out.writeLong(0);
+        }
+
+        void close() throws IOException {
+            try {
+                finishEntries();
+                out.flush();
+            } finally {
+                out.close();
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(8);
+                raf.writeLong(written);
+                raf.seek(COMPACT_HEADER_SIZE + written * 4 + (bucketSizes.length + 1) * 4L);
+                raf.writeLong(digests);
+                raf.getFD().sync();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.shabari.yara;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Packs many scan results into a few flat arrays, so a sweep crosses the
+// React Native bridge as one payload instead of a map per file:
+//
+//   strings  - every distinct string (paths, names, labels, details, ...)
+//   verdicts - VERDICT_FIELDS numbers per distinct verdict
+//   records  - RECORD_FIELDS numbers per result
+//   rules    - string indexes of matched rules, in runs the verdicts point at
+//
+// String fields are indexes into strings. Results with the same verdict
+// (safety, threat, category, severity, engine, details and rules) share one
+// verdicts entry, so every clean result of a sweep points at the same one.
+// The layout is decoded by unpackScanResults in index.js.
+public final class YaraResultBatch {
+    // verdicts: flags, threatName, threatCategory, severity, scanEngine,
+    // details, first rule, rule count
+    static final int VERDICT_FIELDS = 8;
+    // records: filePath, verdict (-1 if the scan failed), scanTime, fileSize,
+    // similarityScore, similarTo, similarityDigest, sha256, entropy, fileType
+    static final int RECORD_FIELDS = 10;
+    static final int FLAG_SAFE = 1;
+
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIndexes = new HashMap<>();
+    private final Map<Verdict, Integer> verdictIndexes = new HashMap<>();
+    // String index + 1 of each rule id, per name table
+    private final Map<YaraRuleNames, int[]> ruleStrings = new IdentityHashMap<>();
+    private double[] verdicts = new double[16 * VERDICT_FIELDS];
+    private int verdictCount;
+    private double[] records = new double[64 * RECORD_FIELDS];
+    private int size;
+    private int[] rules = new int[64];
+    private int ruleCount;
+
+    // A null result records a failed scan of the path
+    public void add(String filePath, YaraScanResult result) {
+        if (records.length < (size + 1) * RECORD_FIELDS) {
+            records = Arrays.copyOf(records, records.length * 2);
+        }
+        int at = size++ * RECORD_FIELDS;
+        records[at] = string(filePath);
+        if (result == null) {
+            records[at + 1] = -1;
+            return;
+        }
+        records[at + 1] = verdict(result);
+        records[at + 2] = result.getScanTime();
+        records[at + 3] = result.getFileSize();
+        records[at + 4] = result.getSimilarityScore();
+        records[at + 5] = string(result.getSimilarTo());
+        records[at + 6] = string(result.getSimilarityDigest());
+        records[at + 7] = string(result.getSha256());
+        records[at + 8] = result.getEntropy();
+        records[at + 9] = string(result.getFileType());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    List<String> getStrings() {
+        return strings;
+    }
+
+    double[] getVerdicts() {
+        return Arrays.copyOf(verdicts, verdictCount * VERDICT_FIELDS);
+    }
+
+    double[] getRecords() {
+        return Arrays.copyOf(records, size * RECORD_FIELDS);
+    }
+
+    int[] getRules() {
+        return Arrays.copyOf(rules, ruleCount);
+    }
+
+    private int verdict(YaraScanResult result) {
+        Verdict key = new Verdict(result);
+        Integer index = verdictIndexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        if (verdicts.length < (verdictCount + 1) * VERDICT_FIELDS) {
+            verdicts = Arrays.copyOf(verdicts, verdicts.length * 2);
+        }
+        int at = verdictCount * VERDICT_FIELDS;
+        verdicts[at] = result.isSafe() ? FLAG_SAFE : 0;
+        verdicts[at + 1] = string(result.getThreatName());
+        verdicts[at + 2] = string(result.getThreatCategoryLabel());
+        verdicts[at + 3] = string(result.getSeverityLabel());
+        verdicts[at + 4] = string(result.getScanEngine());
+        verdicts[at + 5] = string(result.getDetails());
+        verdicts[at + 6] = ruleCount;
+        verdicts[at + 7] = result.getMatchedRuleCount();
+        for (int i = 0; i < result.getMatchedRuleCount(); i++) {
+            addRule(ruleString(result.getRuleNames(), result.getMatchedRuleId(i)));
+        }
+        verdictIndexes.put(key, verdictCount);
+        return verdictCount++;
+    }
+
+    private void addRule(int string) {
+        if (ruleCount == rules.length) {
+            rules = Arrays.copyOf(rules, ruleCount * 2);
+        }
+        rules[ruleCount++] = string;
+    }
+
+    // Rule names are looked up once per id rather than hashed per result
+    private int ruleString(YaraRuleNames names, int id) {
+        int[] indexes = ruleStrings.get(names);
+        if (indexes == null || id >= indexes.length) {
+            indexes = indexes == null ? new int[Math.max(names.size(), id + 1)]
+                    : Arrays.copyOf(indexes, Math.max(names.size(), id + 1));
+            ruleStrings.put(names, indexes);
+        }
+        if (indexes[id] == 0) {
+            indexes[id] = string(names.get(id)) + 1;
+        }
+        return indexes[id] - 1;
+    }
+
+    private int string(String value) {
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.add(value);
+            stringIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    // Verdict fields of a result, compared by value
+    private static final class Verdict {
+        private static final int[] NO_RULES = new int[0];
+
+        private final boolean isSafe;
+        private final String threatName;
+        private final String threatCategory;
+        private final String severity;
+        private final String scanEngine;
+        private final String details;
+        private final YaraRuleNames ruleNames;
+        private final int[] ruleIds;
+        private final int hash;
+
+        Verdict(YaraScanResult result) {
+            this.isSafe = result.isSafe();
+            this.threatName = result.getThreatName();
+            this.threatCategory = result.getThreatCategoryLabel();
+            this.severity = result.getSeverityLabel();
+            this.scanEngine = result.getScanEngine();
+            this.details = result.getDetails();
+            this.ruleNames = result.getRuleNames();
+            int count = result.getMatchedRuleCount();
+            this.ruleIds = count == 0 ? NO_RULES : new int[count];
+            for (int i = 0; i < ruleIds.length; i++) {
+                ruleIds[i] = result.getMatchedRuleId(i);
+            }
+            int h = isSafe ? 1 : 0;
+            h = 31 * h + threatName.hashCode();
+            h = 31 * h + threatCategory.hashCode();
+            h = 31 * h + severity.hashCode();
+            h = 31 * h + scanEngine.hashCode();
+            h = 31 * h + details.hashCode();
+            // By name, as results without a rule set each have their own table
+            for (int id : ruleIds) {
+                h = 31 * h + ruleNames.get(id).hashCode();
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Verdict)) {
+                return false;
+            }
+            Verdict that = (Verdict) other;
+            return hash == that.hash && isSafe == that.isSafe && threatCategory.equals(that.threatCategory)
+                    && severity.equals(that.severity) && threatName.equals(that.threatName)
+                    && scanEngine.equals(that.scanEngine) && details.equals(that.details) && sameRules(that);
+        }
+
+        private boolean sameRules(Verdict that) {
+            if (ruleNames == that.ruleNames) {
+                return Arrays.equals(ruleIds, that.ruleIds);
+            }
+            if (ruleIds.length != that.ruleIds.length) {
+                return false;
+            }
+            for (int i = 0; i < ruleIds.length; i++) {
+                if (!ruleNames.get(ruleIds[i]).equals(that.ruleNames.get(that.ruleIds[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
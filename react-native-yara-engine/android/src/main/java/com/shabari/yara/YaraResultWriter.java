@@ -0,0 +1,18 @@
+package com.shabari.yara;
+
+import java.util.List;
+
+// Receives the fields of a YaraScanResult (see YaraScanResult.writeTo), so
+// results can be exported to React Native maps, reports or files without the
+// result class depending on any of them.
+public interface YaraResultWriter {
+    void putBoolean(String key, boolean value);
+
+    void putInt(String key, int value);
+
+    void putDouble(String key, double value);
+
+    void putString(String key, String value);
+
+    void putStringList(String key, List<String> values);
+}
@@ -0,0 +1,44 @@
+package com.shabari.yara;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+final class YaraRule {
+    final String name;
+    final int index;
+    final boolean isPrivate;
+    final boolean isGlobal;
+    final Map<String, String> meta;
+    final List<YaraRuleString> strings;
+    // Null for rules loaded from a compiled file (see YaraRulesFile); only
+    // the compiled program is kept there
+    final YaraCondition condition;
+    // Parsed from the "severity" and "category" metadata, with the values
+    // reported for rules that set neither; results report the labels as
+    // written
+    final YaraSeverity severity;
+    final YaraThreatCategory category;
+    final String severityLabel;
+    final String categoryLabel;
+
+    YaraRule(String name, int index, boolean isPrivate, boolean isGlobal,
+             Map<String, String> meta, List<YaraRuleString> strings, YaraCondition condition) {
+        this.name = name;
+        this.index = index;
+        this.isPrivate = isPrivate;
+        this.isGlobal = isGlobal;
+        this.meta = Collections.unmodifiableMap(meta);
+        this.strings = Collections.unmodifiableList(strings);
+        this.condition = condition;
+        this.severityLabel = getMeta("severity", "high");
+        this.categoryLabel = getMeta("category", "malware");
+        this.severity = YaraSeverity.fromLabel(severityLabel, YaraSeverity.HIGH);
+        this.category = YaraThreatCategory.fromLabel(categoryLabel);
+    }
+
+    String getMeta(String key, String fallback) {
+        String value = meta.get(key);
+        return value != null ? value : fallback;
+    }
+}
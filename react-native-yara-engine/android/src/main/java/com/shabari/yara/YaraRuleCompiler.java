@@ -0,0 +1,840 @@
+package com.shabari.yara;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles YARA rule source into YaraCompiledRules for the Java engine, which
+// is used whenever the native library is unavailable. Unsupported syntax is
+// rejected with an IllegalArgumentException naming the line or rule at fault.
+final class YaraRuleCompiler {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String source;
+    private int pos;
+    private final List<YaraRule> rules = new ArrayList<>();
+    private final Map<String, Integer> ruleIndexes = new HashMap<>();
+    private final List<YaraRuleString> strings = new ArrayList<>();
+
+    private YaraRuleCompiler(String source) {
+        this.source = source;
+    }
+
+    static YaraCompiledRules compile(String source) {
+        if (source == null || source.trim().isEmpty()) {
+            throw new IllegalArgumentException("Rules content is empty");
+        }
+        YaraRuleCompiler compiler = new YaraRuleCompiler(source);
+        compiler.parseRules();
+        if (compiler.rules.isEmpty()) {
+            throw new IllegalArgumentException("No rules found");
+        }
+        return new YaraCompiledRules(compiler.rules, compiler.strings);
+    }
+
+    private void parseRules() {
+        skipSpace();
+        while (pos < source.length()) {
+            String word = readIdentifier();
+            if (word.equals("import")) {
+                // Module imports are accepted; conditions using them are not.
+                skipSpace();
+                readQuoted();
+                skipSpace();
+                continue;
+            }
+            if (word.equals("include")) {
+                throw error("include directives are not supported");
+            }
+
+            boolean isPrivate = false;
+            boolean isGlobal = false;
+            while (word.equals("private") || word.equals("global")) {
+                isPrivate |= word.equals("private");
+                isGlobal |= word.equals("global");
+                skipSpace();
+                word = readIdentifier();
+            }
+            if (!word.equals("rule")) {
+                throw error("Expected 'rule' but found '" + word + "'");
+            }
+            skipSpace();
+            String name = readIdentifier();
+            if (ruleIndexes.containsKey(name)) {
+                throw error("Duplicated rule identifier: " + name);
+            }
+            skipSpace();
+            if (peek() == ':') {
+                pos++;
+                skipSpace();
+                while (pos < source.length() && peek() != '{') {
+                    readIdentifier();
+                    skipSpace();
+                }
+            }
+            expect('{');
+            parseRuleBody(name, isPrivate, isGlobal);
+            skipSpace();
+        }
+    }
+
+    private void parseRuleBody(String name, boolean isPrivate, boolean isGlobal) {
+        Map<String, String> meta = new LinkedHashMap<>();
+        List<YaraRuleString> ruleStrings = new ArrayList<>();
+        Map<String, Integer> localStrings = new LinkedHashMap<>();
+        String conditionText = null;
+
+        while (conditionText == null) {
+            skipSpace();
+            String section = readIdentifier();
+            skipSpace();
+            expect(':');
+            if (section.equals("meta")) {
+                while (!atSection()) {
+                    skipSpace();
+                    String key = readIdentifier();
+                    skipSpace();
+                    expect('=');
+                    skipSpace();
+                    meta.put(key, readMetaValue());
+                }
+            } else if (section.equals("strings")) {
+                skipSpace();
+                while (peek() == '$') {
+                    YaraRuleString string = readStringDefinition(localStrings.size());
+                    if (localStrings.containsKey(string.identifier)) {
+                        throw error("Duplicated string identifier " + string.identifier + " in rule " + name);
+                    }
+                    localStrings.put(string.identifier, string.index);
+                    ruleStrings.add(string);
+                    strings.add(string);
+                    skipSpace();
+                }
+            } else if (section.equals("condition")) {
+                conditionText = readConditionText();
+            } else {
+                throw error("Unknown section '" + section + "' in rule " + name);
+            }
+        }
+
+        YaraCondition condition = new ConditionParser(name, conditionText, localStrings).parse();
+        int index = rules.size();
+        rules.add(new YaraRule(name, index, isPrivate, isGlobal, meta, ruleStrings, condition));
+        ruleIndexes.put(name, index);
+    }
+
+    private boolean atSection() {
+        int saved = pos;
+        skipSpace();
+        boolean result = false;
+        if (pos < source.length() && isIdentifierStart(peek())) {
+            String word = readIdentifier();
+            skipSpace();
+            result = (word.equals("strings") || word.equals("condition") || word.equals("meta"))
+                    && pos < source.length() && peek() == ':';
+        }
+        pos = saved;
+        return result;
+    }
+
+    private String readMetaValue() {
+        char c = peek();
+        if (c == '"') {
+            return new String(readTextBytes(), UTF_8);
+        }
+        int start = pos;
+        if (c == '-') {
+            pos++;
+        }
+        while (pos < source.length() && (Character.isLetterOrDigit(peek()) || peek() == '_')) {
+            pos++;
+        }
+        if (pos == start) {
+            throw error("Invalid meta value");
+        }
+        return source.substring(start, pos);
+    }
+
+    private YaraRuleString readStringDefinition(int localIndex) {
+        expect('$');
+        String identifier = "$";
+        if (pos < source.length() && isIdentifierStart(peek())) {
+            identifier += readIdentifier();
+        } else {
+            // Anonymous strings can only be referenced through "them" or "$*".
+            identifier += "#" + localIndex;
+        }
+        skipSpace();
+        expect('=');
+        skipSpace();
+
+        int index = strings.size();
+        char c = peek();
+        if (c == '"') {
+            byte[] text = readTextBytes();
+            if (text.length == 0) {
+                throw error("Empty string " + identifier);
+            }
+            boolean noCase = false;
+            boolean ascii = false;
+            boolean wide = false;
+            for (String modifier = readModifier(); modifier != null; modifier = readModifier()) {
+                if (modifier.equals("nocase")) {
+                    noCase = true;
+                } else if (modifier.equals("ascii")) {
+                    ascii = true;
+                } else if (modifier.equals("wide")) {
+                    wide = true;
+                } else if (!modifier.equals("private")) {
+                    throw error("String modifier '" + modifier + "' is not supported by the Java engine");
+                }
+            }
+            List<byte[]> patterns = new ArrayList<>();
+            if (ascii || !wide) {
+                patterns.add(text);
+            }
+            if (wide) {
+                byte[] wideText = new byte[text.length * 2];
+                for (int i = 0; i < text.length; i++) {
+                    wideText[i * 2] = text[i];
+                }
+                patterns.add(wideText);
+            }
+            return new YaraRuleString(identifier, index, noCase, patterns.toArray(new byte[0][]));
+        }
+        if (c == '{') {
+            expect('{');
+            YaraRegex.Node hex = readHexSequence(0);
+            expect('}');
+            for (String modifier = readModifier(); modifier != null; modifier = readModifier()) {
+                if (!modifier.equals("private")) {
+                    throw error("Modifier '" + modifier + "' is not allowed on hex strings");
+                }
+            }
+            return hexString(identifier, index, hex);
+        }
+        if (c == '/') {
+            return readRegexString(identifier, index);
+        }
+        throw error("Invalid string definition for " + identifier);
+    }
+
+    // /pattern/is followed by string modifiers
+    private YaraRuleString readRegexString(String identifier, int index) {
+        String pattern = readRegexText();
+        boolean noCase = false;
+        boolean dotAll = false;
+        while (pos < source.length() && (peek() == 'i' || peek() == 's')) {
+            noCase |= peek() == 'i';
+            dotAll |= peek() == 's';
+            pos++;
+        }
+        boolean ascii = false;
+        boolean wide = false;
+        for (String modifier = readModifier(); modifier != null; modifier = readModifier()) {
+            if (modifier.equals("nocase")) {
+                noCase = true;
+            } else if (modifier.equals("ascii")) {
+                ascii = true;
+            } else if (modifier.equals("wide")) {
+                wide = true;
+            } else if (!modifier.equals("private")) {
+                throw error("String modifier '" + modifier + "' is not supported by the Java engine");
+            }
+        }
+        try {
+            return new YaraRuleString(identifier, index, YaraRegex.compile(pattern, noCase, dotAll, ascii, wide));
+        } catch (IllegalArgumentException e) {
+            throw error(identifier + ": " + e.getMessage());
+        }
+    }
+
+    // Raw text between the slashes; escapes are left for the regex parser
+    private String readRegexText() {
+        expect('/');
+        int start = pos;
+        while (true) {
+            if (pos >= source.length() || source.charAt(pos) == '\n') {
+                throw error("Unterminated regular expression");
+            }
+            char c = source.charAt(pos);
+            if (c == '/') {
+                break;
+            }
+            pos += c == '\\' ? 2 : 1;
+        }
+        String text = source.substring(start, pos);
+        pos++;
+        return text;
+    }
+
+    private String readModifier() {
+        int saved = pos;
+        skipSpace();
+        if (pos < source.length() && isIdentifierStart(peek())) {
+            int wordStart = pos;
+            String word = readIdentifier();
+            skipSpace();
+            boolean isSection = pos < source.length() && peek() == ':';
+            if (!isSection) {
+                return word;
+            }
+            pos = wordStart;
+        }
+        pos = saved;
+        return null;
+    }
+
+    private byte[] readTextBytes() {
+        expect('"');
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            if (pos >= source.length()) {
+                throw error("Unterminated string");
+            }
+            char c = source.charAt(pos++);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\n') {
+                throw error("Unterminated string");
+            }
+            if (c != '\\') {
+                byte[] encoded = String.valueOf(c).getBytes(UTF_8);
+                out.write(encoded, 0, encoded.length);
+                continue;
+            }
+            if (pos >= source.length()) {
+                throw error("Unterminated string");
+            }
+            char escaped = source.charAt(pos++);
+            switch (escaped) {
+                case 'n':
+                    out.write('\n');
+                    break;
+                case 't':
+                    out.write('\t');
+                    break;
+                case 'r':
+                    out.write('\r');
+                    break;
+                case '"':
+                case '\\':
+                    out.write(escaped);
+                    break;
+                case 'x':
+                    if (pos + 2 > source.length()) {
+                        throw error("Invalid \\x escape");
+                    }
+                    out.write(parseHexByte(source.charAt(pos), source.charAt(pos + 1)));
+                    pos += 2;
+                    break;
+                default:
+                    throw error("Invalid escape sequence \\" + escaped);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Plain hex bytes go to the literal automaton, short wildcard forms to the
+    // bit-parallel matcher and everything else to the regex scanner.
+    private YaraRuleString hexString(String identifier, int index, YaraRegex.Node hex) {
+        byte[] literal = new byte[hex.kind == YaraRegex.Node.CONCAT ? hex.children.size() : 1];
+        boolean isLiteral = true;
+        for (int i = 0; i < literal.length && isLiteral; i++) {
+            YaraRegex.Node item = hex.kind == YaraRegex.Node.CONCAT ? hex.children.get(i) : hex;
+            int value = item.literalByte(false);
+            isLiteral = value >= 0;
+            literal[i] = (byte) value;
+        }
+        if (isLiteral) {
+            return new YaraRuleString(identifier, index, false, new byte[][] { literal });
+        }
+        long[][][] forms = YaraHexMatcher.expand(hex);
+        if (forms != null) {
+            return new YaraRuleString(identifier, index, forms);
+        }
+        try {
+            return new YaraRuleString(identifier, index, YaraRegex.compile(hex, false, false, false));
+        } catch (IllegalArgumentException e) {
+            throw error(identifier + ": " + e.getMessage());
+        }
+    }
+
+    // Hex tokens up to '}', '|' or ')': bytes with optional ? nibbles, ~
+    // negations, [n-m] jumps and (a|b) alternatives
+    private YaraRegex.Node readHexSequence(int depth) {
+        List<YaraRegex.Node> items = new ArrayList<>();
+        while (true) {
+            skipSpace();
+            if (pos >= source.length()) {
+                throw error("Unterminated hex string");
+            }
+            char c = source.charAt(pos);
+            if (c == '}' || c == '|' || c == ')') {
+                break;
+            }
+            if (c == '(') {
+                pos++;
+                List<YaraRegex.Node> alternatives = new ArrayList<>();
+                alternatives.add(readHexSequence(depth + 1));
+                while (peek() == '|') {
+                    pos++;
+                    alternatives.add(readHexSequence(depth + 1));
+                }
+                expect(')');
+                items.add(YaraRegex.Node.alternate(alternatives));
+            } else if (c == '[') {
+                if (items.isEmpty()) {
+                    throw error("Hex strings can't start with a jump");
+                }
+                items.add(readHexJump());
+            } else {
+                boolean negate = c == '~';
+                if (negate) {
+                    pos++;
+                }
+                items.add(YaraRegex.Node.bytes(readHexByte(negate)));
+            }
+        }
+        if (items.isEmpty()) {
+            throw error(depth == 0 ? "Empty hex string" : "Empty alternative in hex string");
+        }
+        if (items.get(items.size() - 1).kind == YaraRegex.Node.REPEAT) {
+            throw error("Hex strings can't end with a jump");
+        }
+        return YaraRegex.Node.concat(items);
+    }
+
+    private long[] readHexByte(boolean negate) {
+        if (pos + 1 >= source.length()) {
+            throw error("Invalid hex string");
+        }
+        char high = source.charAt(pos);
+        char low = source.charAt(pos + 1);
+        int value = 0;
+        int mask = 0;
+        if (high != '?') {
+            value |= hexDigit(high) << 4;
+            mask |= 0xF0;
+        }
+        if (low != '?') {
+            value |= hexDigit(low);
+            mask |= 0x0F;
+        }
+        if (negate && mask == 0) {
+            throw error("~?? is not a valid hex byte");
+        }
+        pos += 2;
+        return YaraRegex.maskedSet(value, mask, negate);
+    }
+
+    private int hexDigit(char c) {
+        int digit = Character.digit(c, 16);
+        if (digit < 0) {
+            throw error("Invalid hex digit '" + c + "'");
+        }
+        return digit;
+    }
+
+    // [n], [n-m], [n-] or [-]: that many arbitrary bytes
+    private YaraRegex.Node readHexJump() {
+        expect('[');
+        skipSpace();
+        int min = peek() == '-' ? 0 : readJumpBound();
+        int max = min;
+        skipSpace();
+        if (peek() == '-') {
+            pos++;
+            skipSpace();
+            max = peek() == ']' ? Integer.MAX_VALUE : readJumpBound();
+        }
+        skipSpace();
+        expect(']');
+        if (max < min) {
+            throw error("Invalid jump [" + min + "-" + max + "]");
+        }
+        return YaraRegex.Node.repeat(YaraRegex.Node.bytes(YaraRegex.maskedSet(0, 0, false)), min, max);
+    }
+
+    private int readJumpBound() {
+        int start = pos;
+        while (pos < source.length() && Character.isDigit(peek())) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("Invalid jump in hex string");
+        }
+        int value = Integer.parseInt(source.substring(start, Math.min(pos, start + 9)));
+        if (value > YaraRegex.MAX_MATCH_LENGTH) {
+            throw error("Jump of " + value + " bytes is too large");
+        }
+        return value;
+    }
+
+    // Raw condition text up to the closing brace of the rule, comments removed
+    private String readConditionText() {
+        StringBuilder text = new StringBuilder();
+        boolean inString = false;
+        while (pos < source.length()) {
+            char c = source.charAt(pos);
+            if (inString) {
+                text.append(c);
+                pos++;
+                if (c == '\\' && pos < source.length()) {
+                    text.append(source.charAt(pos++));
+                } else if (c == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            if (c == '"') {
+                inString = true;
+            } else if (c == '}') {
+                pos++;
+                return text.toString();
+            } else if (source.startsWith("//", pos) || source.startsWith("/*", pos)) {
+                skipSpace();
+                text.append(' ');
+                continue;
+            }
+            text.append(c);
+            pos++;
+        }
+        throw error("Unterminated rule, missing '}'");
+    }
+
+    private String readQuoted() {
+        return new String(readTextBytes(), UTF_8);
+    }
+
+    private String readIdentifier() {
+        int start = pos;
+        if (pos >= source.length() || !isIdentifierStart(source.charAt(pos))) {
+            throw error("Expected identifier");
+        }
+        while (pos < source.length() && (Character.isLetterOrDigit(source.charAt(pos)) || source.charAt(pos) == '_')) {
+            pos++;
+        }
+        return source.substring(start, pos);
+    }
+
+    private void skipSpace() {
+        while (pos < source.length()) {
+            char c = source.charAt(pos);
+            if (Character.isWhitespace(c)) {
+                pos++;
+            } else if (source.startsWith("//", pos)) {
+                while (pos < source.length() && source.charAt(pos) != '\n') {
+                    pos++;
+                }
+            } else if (source.startsWith("/*", pos)) {
+                int end = source.indexOf("*/", pos + 2);
+                if (end < 0) {
+                    throw error("Unterminated comment");
+                }
+                pos = end + 2;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private char peek() {
+        return pos < source.length() ? source.charAt(pos) : '\0';
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private int parseHexByte(char high, char low) {
+        int h = Character.digit(high, 16);
+        int l = Character.digit(low, 16);
+        if (h < 0 || l < 0) {
+            throw error("Invalid hex byte '" + high + low + "'");
+        }
+        return (h << 4) | l;
+    }
+
+    private IllegalArgumentException error(String message) {
+        int line = 1;
+        for (int i = 0; i < Math.min(pos, source.length()); i++) {
+            if (source.charAt(i) == '\n') {
+                line++;
+            }
+        }
+        return new IllegalArgumentException("line " + line + ": " + message);
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    // Recursive descent parser for the condition subset described in YaraCondition
+    private final class ConditionParser {
+        private final String ruleName;
+        private final Map<String, Integer> localStrings;
+        private final List<String> tokens = new ArrayList<>();
+        private int next;
+
+        ConditionParser(String ruleName, String text, Map<String, Integer> localStrings) {
+            this.ruleName = ruleName;
+            this.localStrings = localStrings;
+            tokenize(text);
+        }
+
+        YaraCondition parse() {
+            if (tokens.isEmpty()) {
+                throw conditionError("Empty condition");
+            }
+            YaraCondition condition = parseOr();
+            if (next < tokens.size()) {
+                throw conditionError("Unexpected '" + tokens.get(next) + "'");
+            }
+            return condition;
+        }
+
+        private YaraCondition parseOr() {
+            List<YaraCondition> operands = new ArrayList<>();
+            operands.add(parseAnd());
+            while (accept("or")) {
+                operands.add(parseAnd());
+            }
+            return operands.size() == 1 ? operands.get(0) : new YaraCondition.Or(operands);
+        }
+
+        private YaraCondition parseAnd() {
+            List<YaraCondition> operands = new ArrayList<>();
+            operands.add(parseNot());
+            while (accept("and")) {
+                operands.add(parseNot());
+            }
+            return operands.size() == 1 ? operands.get(0) : new YaraCondition.And(operands);
+        }
+
+        private YaraCondition parseNot() {
+            if (accept("not")) {
+                return new YaraCondition.Not(parseNot());
+            }
+            return parsePrimary();
+        }
+
+        private YaraCondition parsePrimary() {
+            String token = peekToken();
+            if (token == null) {
+                throw conditionError("Unexpected end of condition");
+            }
+            if (accept("(")) {
+                YaraCondition inner = parseOr();
+                expectToken(")");
+                return inner;
+            }
+            if (accept("true")) {
+                return new YaraCondition.Constant(true);
+            }
+            if (accept("false")) {
+                return new YaraCondition.Constant(false);
+            }
+            if (token.startsWith("$")) {
+                next++;
+                int index = resolveString(token);
+                if (accept("at")) {
+                    return new YaraCondition.StringAt(index, parseNumber(nextToken()));
+                }
+                if (accept("in")) {
+                    expectToken("(");
+                    long from = parseNumber(nextToken());
+                    expectToken("..");
+                    long to = parseNumber(nextToken());
+                    expectToken(")");
+                    return new YaraCondition.StringIn(index, from, to);
+                }
+                return new YaraCondition.StringMatch(index);
+            }
+            String following = next + 1 < tokens.size() ? tokens.get(next + 1) : null;
+            if ("of".equals(following)) {
+                next += 2;
+                int quantifier;
+                if (token.equals("any")) {
+                    quantifier = YaraCondition.ANY;
+                } else if (token.equals("all")) {
+                    quantifier = YaraCondition.ALL;
+                } else if (token.equals("none")) {
+                    quantifier = YaraCondition.NONE;
+                } else {
+                    quantifier = (int) parseNumber(token);
+                }
+                return new YaraCondition.Of(quantifier, parseStringSet());
+            }
+            if (ruleIndexes.containsKey(token)) {
+                next++;
+                return new YaraCondition.RuleReference(ruleIndexes.get(token));
+            }
+
+            YaraCondition.Value left = parseValue();
+            String operator = nextToken();
+            if (!isComparison(operator)) {
+                throw conditionError("Unsupported expression near '" + token + "'");
+            }
+            YaraCondition.Value right = parseValue();
+            return new YaraCondition.Compare(left, operator, right);
+        }
+
+        private int[] parseStringSet() {
+            List<Integer> indexes = new ArrayList<>();
+            if (accept("them")) {
+                indexes.addAll(localStrings.values());
+            } else {
+                expectToken("(");
+                do {
+                    String token = nextToken();
+                    if (token == null || !token.startsWith("$")) {
+                        throw conditionError("Expected string identifier in set");
+                    }
+                    if (token.endsWith("*")) {
+                        String prefix = token.substring(0, token.length() - 1);
+                        boolean any = false;
+                        for (Map.Entry<String, Integer> entry : localStrings.entrySet()) {
+                            if (entry.getKey().startsWith(prefix)) {
+                                indexes.add(entry.getValue());
+                                any = true;
+                            }
+                        }
+                        if (!any) {
+                            throw conditionError("No strings match " + token);
+                        }
+                    } else {
+                        indexes.add(resolveString(token));
+                    }
+                } while (accept(","));
+                expectToken(")");
+            }
+            if (indexes.isEmpty()) {
+                throw conditionError("Empty string set");
+            }
+            int[] result = new int[indexes.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = indexes.get(i);
+            }
+            return result;
+        }
+
+        private YaraCondition.Value parseValue() {
+            String token = nextToken();
+            if (token == null) {
+                throw conditionError("Unexpected end of condition");
+            }
+            if (token.equals("filesize")) {
+                return new YaraCondition.Value(YaraCondition.Value.FILESIZE, 0, -1);
+            }
+            if (token.startsWith("#")) {
+                return new YaraCondition.Value(YaraCondition.Value.COUNT, 0, resolveString("$" + token.substring(1)));
+            }
+            return new YaraCondition.Value(YaraCondition.Value.LITERAL, parseNumber(token), -1);
+        }
+
+        private int resolveString(String identifier) {
+            Integer index = localStrings.get(identifier);
+            if (index == null) {
+                throw conditionError("Undefined string " + identifier);
+            }
+            return index;
+        }
+
+        private long parseNumber(String token) {
+            if (token == null) {
+                throw conditionError("Expected number");
+            }
+            long multiplier = 1;
+            String digits = token;
+            if (token.endsWith("KB")) {
+                multiplier = 1024;
+                digits = token.substring(0, token.length() - 2);
+            } else if (token.endsWith("MB")) {
+                multiplier = 1024 * 1024;
+                digits = token.substring(0, token.length() - 2);
+            }
+            try {
+                if (digits.startsWith("0x") || digits.startsWith("0X")) {
+                    return Long.parseLong(digits.substring(2), 16) * multiplier;
+                }
+                return Long.parseLong(digits) * multiplier;
+            } catch (NumberFormatException e) {
+                throw conditionError("Unsupported expression '" + token + "'");
+            }
+        }
+
+        private void tokenize(String text) {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                if (c == '$' || c == '#' || c == '@' || Character.isLetterOrDigit(c) || c == '_') {
+                    i++;
+                    while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i))
+                            || text.charAt(i) == '_' || text.charAt(i) == '.' && c != '$' && c != '#'
+                            && !Character.isDigit(c))) {
+                        i++;
+                    }
+                    if (c == '$' && i < text.length() && text.charAt(i) == '*') {
+                        i++;
+                    }
+                    if (c == '@') {
+                        throw conditionError("Match offsets (@) are not supported by the Java engine");
+                    }
+                } else if (text.startsWith("..", i) || text.startsWith("<=", i) || text.startsWith(">=", i)
+                        || text.startsWith("==", i) || text.startsWith("!=", i)) {
+                    i += 2;
+                } else if (c == '(' || c == ')' || c == ',' || c == '<' || c == '>') {
+                    i++;
+                } else {
+                    throw conditionError("Unsupported character '" + c + "' in condition");
+                }
+                tokens.add(text.substring(start, i));
+            }
+        }
+
+        private boolean isComparison(String operator) {
+            return "<".equals(operator) || "<=".equals(operator) || ">".equals(operator)
+                    || ">=".equals(operator) || "==".equals(operator) || "!=".equals(operator);
+        }
+
+        private String peekToken() {
+            return next < tokens.size() ? tokens.get(next) : null;
+        }
+
+        private String nextToken() {
+            return next < tokens.size() ? tokens.get(next++) : null;
+        }
+
+        private boolean accept(String token) {
+            if (token.equals(peekToken())) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expectToken(String token) {
+            if (!accept(token)) {
+                throw conditionError("Expected '" + token + "'");
+            }
+        }
+
+        private IllegalArgumentException conditionError(String message) {
+            return new IllegalArgumentException("rule " + ruleName + ": " + message);
+        }
+    }
+}
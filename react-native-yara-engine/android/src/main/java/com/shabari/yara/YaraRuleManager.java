@@ -1,6 +1,5 @@
 package com.shabari.yara;
 
-import android.util.Log;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
@@ -26,40 +25,40 @@ public class YaraRuleManager {
             
             String content = rulesContent.toString();
             if (validateRulesContent(content)) {
-                Log.d(TAG, "Successfully loaded rules from file: " + filePath);
+                YaraLog.d(TAG, "Successfully loaded rules from file: " + filePath);
                 return content;
             } else {
-                Log.e(TAG, "Invalid YARA rules content in file: " + filePath);
+                YaraLog.e(TAG, "Invalid YARA rules content in file: " + filePath);
                 return null;
             }
             
         } catch (IOException e) {
-            Log.e(TAG, "Error reading rules file: " + filePath, e);
+            YaraLog.e(TAG, "Error reading rules file: " + filePath, e);
             return null;
         }
     }
 
     public boolean validateRulesContent(String rulesContent) {
         if (rulesContent == null || rulesContent.trim().isEmpty()) {
-            Log.e(TAG, "Rules content is empty");
+            YaraLog.e(TAG, "Rules content is empty");
             return false;
         }
 
         try {
             // Basic validation - check if content contains at least one rule
             if (!RULE_PATTERN.matcher(rulesContent).find()) {
-                Log.e(TAG, "No valid YARA rules found in content");
+                YaraLog.e(TAG, "No valid YARA rules found in content");
                 return false;
             }
 
             // Check for basic syntax requirements
             if (!rulesContent.contains("rule ")) {
-                Log.e(TAG, "No 'rule' keyword found");
+                YaraLog.e(TAG, "No 'rule' keyword found");
                 return false;
             }
 
             if (!rulesContent.contains("condition:")) {
-                Log.e(TAG, "No 'condition:' section found");
+                YaraLog.e(TAG, "No 'condition:' section found");
                 return false;
             }
 
@@ -72,15 +71,15 @@ public class YaraRuleManager {
             }
 
             if (openBraces != closeBraces) {
-                Log.e(TAG, "Unbalanced braces in YARA rules");
+                YaraLog.e(TAG, "Unbalanced braces in YARA rules");
                 return false;
             }
 
-            Log.d(TAG, "YARA rules content validation passed");
+            YaraLog.d(TAG, "YARA rules content validation passed");
             return true;
 
         } catch (Exception e) {
-            Log.e(TAG, "Exception during rules validation", e);
+            YaraLog.e(TAG, "Exception during rules validation", e);
             return false;
         }
     }
@@ -101,11 +100,11 @@ public class YaraRuleManager {
                 }
             }
             
-            Log.d(TAG, "Found " + count + " rules in content");
+            YaraLog.d(TAG, "Found " + count + " rules in content");
             return count;
             
         } catch (Exception e) {
-            Log.e(TAG, "Exception counting rules", e);
+            YaraLog.e(TAG, "Exception counting rules", e);
             return 0;
         }
     }
@@ -131,7 +130,7 @@ public class YaraRuleManager {
             return null;
             
         } catch (Exception e) {
-            Log.e(TAG, "Exception extracting rule name", e);
+            YaraLog.e(TAG, "Exception extracting rule name", e);
             return null;
         }
     }
@@ -0,0 +1,49 @@
+package com.shabari.yara;
+
+import java.nio.ByteBuffer;
+
+// The Java engine's pattern pass as a scan pipeline consumer. Inputs below the
+// parallel threshold are scanned on the reading thread, with the rules
+// re-decided after every block so reading can stop once the verdict is
+// settled; larger ones go to YaraParallelScanner segment by segment.
+final class YaraRuleMatcher implements YaraScanPipeline.Consumer {
+    private final YaraCompiledRules rules;
+    private final long size;
+    private final YaraParallelScanner.Feeder feeder;
+    private final YaraCompiledRules.ScanState state;
+    private YaraMatchSet matches;
+
+    YaraRuleMatcher(YaraCompiledRules rules, long size, boolean parallel) {
+        this.rules = rules;
+        this.size = size;
+        this.feeder = parallel ? new YaraParallelScanner.Feeder(rules) : null;
+        this.state = parallel ? null : rules.newScanState();
+        this.matches = parallel ? null : rules.newMatchSet();
+    }
+
+    @Override
+    public boolean accept(ByteBuffer buffer, int from, int to, long base) {
+        if (feeder != null) {
+            return feeder.accept(buffer, from, to, base);
+        }
+        rules.scan(buffer, from, to, base, Long.MAX_VALUE, matches, state);
+        if (base + to < size) {
+            rules.decide(matches, base + to, size, state);
+        }
+        return !state.isDecided();
+    }
+
+    @Override
+    public void finish() {
+        if (feeder != null) {
+            feeder.finish();
+            matches = feeder.getMatches();
+        } else {
+            rules.finishScan(state, Long.MAX_VALUE, matches);
+        }
+    }
+
+    YaraMatchSet getMatches() {
+        return matches;
+    }
+}
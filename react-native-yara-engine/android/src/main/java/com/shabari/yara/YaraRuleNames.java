@@ -0,0 +1,62 @@
+package com.shabari.yara;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Name table that scan results reference matched rules through, by int id.
+// Each compiled rule set has one with rule i at id i, so the Java engine
+// records a match as the rule's index; names added to its results from
+// outside the rule set (similarity verdicts) are appended on first use. The
+// table lives as long as the rule set or a result using it, and ids are never
+// reused, so a result stays readable after its rule set has been replaced.
+// Results built without a rule set (native engine, reputation and heuristic
+// verdicts) keep their names in a small table of their own.
+public final class YaraRuleNames {
+    private final Map<String, Integer> ids = new HashMap<>();
+    // Written under the lock and republished on every append
+    private volatile String[] names;
+    private int size;
+
+    YaraRuleNames(String[] initial) {
+        this.names = Arrays.copyOf(initial, Math.max(initial.length, 8));
+        this.size = initial.length;
+        for (int i = 0; i < initial.length; i++) {
+            if (!ids.containsKey(initial[i])) {
+                ids.put(initial[i], i);
+            }
+        }
+    }
+
+    static YaraRuleNames of(List<YaraRule> rules) {
+        String[] names = new String[rules.size()];
+        for (YaraRule rule : rules) {
+            names[rule.index] = rule.name;
+        }
+        return new YaraRuleNames(names);
+    }
+
+    public String get(int id) {
+        return names[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        String[] current = names;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = name;
+        ids.put(name, size);
+        names = current;
+        return size++;
+    }
+}
@@ -0,0 +1,110 @@
+package com.shabari.yara;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// A single $identifier from a rule's strings: section. One string may expand
+// into several byte patterns (e.g. "ascii wide"); all of them report under the
+// string's global index. Regular expression strings carry a compiled regex
+// instead of patterns, and hex strings with wildcards their fixed-length forms
+// as one byte set per position.
+final class YaraRuleString {
+    final String identifier;
+    final int index;
+    final boolean noCase;
+    final byte[][] patterns;
+    final YaraRegex regex;
+    final long[][][] forms;
+
+    YaraRuleString(String identifier, int index, boolean noCase, byte[][] patterns) {
+        this.identifier = identifier;
+        this.index = index;
+        this.noCase = noCase;
+        this.patterns = patterns;
+        this.regex = null;
+        this.forms = null;
+    }
+
+    YaraRuleString(String identifier, int index, YaraRegex regex) {
+        this.identifier = identifier;
+        this.index = index;
+        this.noCase = regex.noCase;
+        this.patterns = new byte[0][];
+        this.regex = regex;
+        this.forms = null;
+    }
+
+    YaraRuleString(String identifier, int index, long[][][] forms) {
+        this.identifier = identifier;
+        this.index = index;
+        this.noCase = false;
+        this.patterns = new byte[0][];
+        this.regex = null;
+        this.forms = forms;
+    }
+
+    private static final int LITERAL = 0;
+    private static final int REGEX = 1;
+    private static final int HEX = 2;
+
+    void write(DataOutputStream out) throws IOException {
+        YaraRulesFile.writeString(out, identifier);
+        out.writeInt(index);
+        if (regex != null) {
+            out.writeByte(REGEX);
+            regex.write(out);
+        } else if (forms != null) {
+            out.writeByte(HEX);
+            out.writeInt(forms.length);
+            for (long[][] form : forms) {
+                YaraRulesFile.writeLongRows(out, form);
+            }
+        } else {
+            out.writeByte(LITERAL);
+            out.writeBoolean(noCase);
+            out.writeInt(patterns.length);
+            for (byte[] pattern : patterns) {
+                YaraRulesFile.writeBytes(out, pattern);
+            }
+        }
+    }
+
+    static YaraRuleString read(ByteBuffer in) {
+        String identifier = YaraRulesFile.readString(in);
+        int index = in.getInt();
+        int kind = in.get();
+        if (kind == REGEX) {
+            return new YaraRuleString(identifier, index, YaraRegex.read(in));
+        }
+        if (kind == HEX) {
+            long[][][] forms = new long[in.getInt()][][];
+            for (int i = 0; i < forms.length; i++) {
+                forms[i] = YaraRulesFile.readLongRows(in);
+            }
+            return new YaraRuleString(identifier, index, forms);
+        }
+        if (kind != LITERAL) {
+            throw new IllegalArgumentException("Unknown string kind " + kind);
+        }
+        boolean noCase = in.get() != 0;
+        byte[][] patterns = new byte[in.getInt()][];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = YaraRulesFile.readBytes(in);
+        }
+        return new YaraRuleString(identifier, index, noCase, patterns);
+    }
+
+    int maxLength() {
+        int max = 0;
+        for (byte[] pattern : patterns) {
+            max = Math.max(max, pattern.length);
+        }
+        if (forms != null) {
+            for (long[][] form : forms) {
+                max = Math.max(max, form.length);
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,218 @@
+package com.shabari.yara;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Binary form of a YaraCompiledRules: rule metadata, strings, condition
+// programs and the built automata, so a process start maps the file instead
+// of parsing rule source and rebuilding Aho-Corasick tables. Tables are
+// stored as flat big-endian arrays and bulk-copied out of the read-only
+// mapping, a memcpy per table.
+//
+// The version is bumped whenever a component changes its layout; files of
+// another version are rejected and the caller recompiles from source.
+final class YaraRulesFile {
+    static final int MAGIC = 0x53485243; // "SHRC"
+    static final int VERSION = 1;
+    static final String EXTENSION = ".yarc";
+
+    private YaraRulesFile() {
+    }
+
+    // The file is synced before it replaces the old one, so a crash leaves
+    // either the old file or the complete new one
+    static void save(YaraCompiledRules rules, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                rules.write(out);
+                out.flush();
+                stream.getFD().sync();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    static YaraCompiledRules load(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a compiled rule set: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported compiled rule set version " + version + ": " + file);
+            }
+            try {
+                return YaraCompiledRules.read(buffer);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+                    | NegativeArraySizeException e) {
+                throw new IOException("Corrupt compiled rule set: " + file, e);
+            }
+        }
+    }
+
+    // True if the file starts like a compiled rule set of any version
+    static boolean isCompiledRules(File file) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] header = new byte[4];
+            return in.read(header) == 4 && ByteBuffer.wrap(header).getInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Cache file name for a rule source: rule sets compiled from identical
+    // source share one file
+    static String cacheName(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                name.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return name.append(EXTENSION).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Array helpers shared by the components' write/read methods. Null arrays
+    // are written with length -1.
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(ByteBuffer in) {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        out.write(values);
+    }
+
+    static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] values = new byte[length];
+        in.get(values);
+        return values;
+    }
+
+    static void writeBooleans(DataOutputStream out, boolean[] values) throws IOException {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) (values[i] ? 1 : 0);
+        }
+        writeBytes(out, bytes);
+    }
+
+    static boolean[] readBooleans(ByteBuffer in) {
+        byte[] bytes = readBytes(in);
+        boolean[] values = new boolean[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            values[i] = bytes[i] != 0;
+        }
+        return values;
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        ByteBuffer bytes = ByteBuffer.allocate(values.length * 4);
+        bytes.asIntBuffer().put(values);
+        out.write(bytes.array());
+    }
+
+    static int[] readInts(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + length * 4);
+        return values;
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        ByteBuffer bytes = ByteBuffer.allocate(values.length * 8);
+        bytes.asLongBuffer().put(values);
+        out.write(bytes.array());
+    }
+
+    static long[] readLongs(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        long[] values = new long[length];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + length * 8);
+        return values;
+    }
+
+    static void writeIntRows(DataOutputStream out, int[][] rows) throws IOException {
+        out.writeInt(rows.length);
+        for (int[] row : rows) {
+            writeInts(out, row);
+        }
+    }
+
+    static int[][] readIntRows(ByteBuffer in) {
+        int[][] rows = new int[in.getInt()][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = readInts(in);
+        }
+        return rows;
+    }
+
+    static void writeLongRows(DataOutputStream out, long[][] rows) throws IOException {
+        out.writeInt(rows.length);
+        for (long[] row : rows) {
+            writeLongs(out, row);
+        }
+    }
+
+    static long[][] readLongRows(ByteBuffer in) {
+        long[][] rows = new long[in.getInt()][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = readLongs(in);
+        }
+        return rows;
+    }
+}
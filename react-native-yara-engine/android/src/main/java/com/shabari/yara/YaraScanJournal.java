@@ -0,0 +1,640 @@
+package com.shabari.yara;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Append-only history of scan verdicts for the quarantine and audit screens.
+//
+// append() only encodes the entry into an in-memory buffer; a background
+// thread writes whatever has accumulated every COMMIT_INTERVAL_MS (sooner
+// once COMMIT_BYTES are pending) with one fsync for the whole group, so a
+// sweep of hundreds of files per second costs a few syncs per second rather
+// than one per file. flush() waits until everything appended so far is on
+// disk.
+//
+// Entries go to numbered segment files of about SEGMENT_BYTES each, as
+// [length][crc32][entry] records. Once more than MAX_SEGMENTS sealed segments
+// exist a background thread compacts them into one that keeps every threat and
+// error entry but only the latest clean entry per path. A record torn by a
+// crash fails its checksum and the segment is truncated there when the journal
+// reopens. A group that fails to write is cut off the segment (or, if that
+// fails too, left behind in a sealed segment) and retried, and flush() reports
+// false until a write succeeds again.
+public class YaraScanJournal {
+    private static final String TAG = "YaraScanJournal";
+
+    public static final int VERDICT_CLEAN = 0;
+    public static final int VERDICT_THREAT = 1;
+    public static final int VERDICT_ERROR = 2;
+    // Matches any verdict in query()
+    public static final int VERDICT_ANY = -1;
+
+    static final long COMMIT_INTERVAL_MS = 200;
+    static final int COMMIT_BYTES = 64 * 1024;
+    static final long SEGMENT_BYTES = 4L * 1024 * 1024;
+    static final int MAX_SEGMENTS = 8;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER = 8;
+    // Larger lengths can only come from a torn or corrupt record
+    private static final int MAX_RECORD = 1024 * 1024;
+
+    public static final class Entry {
+        public final long timeMillis;
+        public final String filePath;
+        public final int verdict;
+        public final String threatName;
+        // Labels as the result reported them
+        public final String threatCategory;
+        public final String severity;
+        public final List<String> matchedRules;
+        public final long fileSize;
+        public final int scanTime;
+        public final String sha256;
+
+        Entry(long timeMillis, String filePath, int verdict, String threatName, String threatCategory,
+              String severity, List<String> matchedRules, long fileSize, int scanTime, String sha256) {
+            this.timeMillis = timeMillis;
+            this.filePath = filePath;
+            this.verdict = verdict;
+            this.threatName = threatName;
+            this.threatCategory = threatCategory;
+            this.severity = severity;
+            this.matchedRules = matchedRules;
+            this.fileSize = fileSize;
+            this.scanTime = scanTime;
+            this.sha256 = sha256;
+        }
+
+        public void writeTo(YaraResultWriter writer) {
+            writer.putDouble("time", (double) timeMillis);
+            writer.putString("filePath", filePath);
+            writer.putString("verdict", verdict == VERDICT_CLEAN ? "clean" : verdict == VERDICT_THREAT ? "threat" : "error");
+            writer.putString("threatName", threatName);
+            writer.putString("threatCategory", threatCategory);
+            writer.putString("severity", severity);
+            writer.putStringList("matchedRules", matchedRules);
+            writer.putDouble("fileSize", (double) fileSize);
+            writer.putInt("scanTime", scanTime);
+            writer.putString("sha256", sha256);
+        }
+    }
+
+    private final File directory;
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+    // Encoded entries not yet handed to the writer, and the one being written
+    private Buffer pending = new Buffer();
+    private Buffer writing = new Buffer();
+    private final Buffer record = new Buffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private long appended;
+    private long committed;
+    private boolean flushRequested;
+    private boolean closed;
+    private IOException writeError;
+    private final Thread writer;
+    private Thread compactor;
+    // Held by query() while it reads segments and by compaction while it
+    // swaps them, so a query sees them either before or after
+    private final Object segmentsLock = new Object();
+
+    // Only touched by the writer thread
+    private FileOutputStream segment;
+    private long segmentNumber;
+    private long segmentSize;
+
+    private YaraScanJournal(File directory) throws IOException {
+        this.directory = directory;
+        long[] numbers = segmentNumbers(directory);
+        if (numbers.length > 0) {
+            segmentNumber = numbers[numbers.length - 1];
+            segmentSize = recover(segmentFile(segmentNumber));
+        } else {
+            segmentNumber = 1;
+            segmentSize = 0;
+        }
+        segment = new FileOutputStream(segmentFile(segmentNumber), true);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static YaraScanJournal open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        return new YaraScanJournal(directory);
+    }
+
+    // Records a scan of filePath; a null result records a failed scan
+    public void append(String filePath, YaraScanResult result) {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            try {
+                record.reset();
+                recordOut.writeLong(System.currentTimeMillis());
+                writeString(recordOut, filePath);
+                if (result == null) {
+                    recordOut.writeByte(VERDICT_ERROR);
+                } else {
+                    recordOut.writeByte(result.isSafe() ? VERDICT_CLEAN : VERDICT_THREAT);
+                    writeString(recordOut, result.getThreatName());
+                    writeString(recordOut, result.getThreatCategoryLabel());
+                    writeString(recordOut, result.getSeverityLabel());
+                    recordOut.writeLong(result.getFileSize());
+                    recordOut.writeInt(result.getScanTime());
+                    writeString(recordOut, result.getSha256());
+                    int rules = result.getMatchedRuleCount();
+                    recordOut.writeShort(rules);
+                    for (int i = 0; i < rules; i++) {
+                        writeString(recordOut, result.getRuleNames().get(result.getMatchedRuleId(i)));
+                    }
+                }
+            } catch (IOException e) {
+                // In-memory stream; only a string over 64KB gets here
+                YaraLog.w(TAG, "Skipping journal entry for " + filePath + ": " + e.getMessage());
+                return;
+            }
+            boolean first = pending.size() == 0;
+            crc.reset();
+            crc.update(record.bytes(), 0, record.size());
+            pending.writeInt(record.size());
+            pending.writeInt((int) crc.getValue());
+            pending.write(record.bytes(), 0, record.size());
+            appended++;
+            if (first || pending.size() >= COMMIT_BYTES) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // Waits until every entry appended so far is on disk; false right away
+    // while the last write failed
+    public boolean flush() {
+        synchronized (lock) {
+            if (writeError != null) {
+                return false;
+            }
+            long target = appended;
+            if (committed < target) {
+                flushRequested = true;
+                lock.notifyAll();
+            }
+            try {
+                while (committed < target && writeError == null && !closed) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return writeError == null && committed >= target;
+        }
+    }
+
+    public void close() {
+        flush();
+        Thread running;
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+            synchronized (lock) {
+                running = compactor;
+            }
+            if (running != null) {
+                running.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Entries newest first. filePath null matches every path, verdict
+    // VERDICT_ANY every verdict; times are inclusive milliseconds since the
+    // epoch. Commits pending entries first so all of them are visible.
+    public List<Entry> query(String filePath, int verdict, long fromMillis, long toMillis, int limit) {
+        flush();
+        List<Entry> results = new ArrayList<>();
+        CRC32 checker = new CRC32();
+        synchronized (segmentsLock) {
+            long[] numbers = segmentNumbers(directory);
+            for (int i = numbers.length - 1; i >= 0 && results.size() < limit; i--) {
+                File file = segmentFile(numbers[i]);
+                // A segment last written before the window holds nothing newer
+                if (file.lastModified() < fromMillis) {
+                    break;
+                }
+                ByteBuffer in;
+                try {
+                    in = map(file);
+                } catch (IOException e) {
+                    YaraLog.w(TAG, "Cannot read journal segment " + file + ": " + e.getMessage());
+                    continue;
+                }
+                // Records can only be walked forwards, so find their offsets
+                // from the headers first and decode from the newest until the
+                // limit
+                int[] offsets = recordOffsets(in);
+                for (int k = offsets.length - 1; k >= 0 && results.size() < limit; k--) {
+                    in.position(offsets[k]);
+                    Entry entry = next(in, checker);
+                    if (entry != null && (filePath == null || filePath.equals(entry.filePath))
+                            && (verdict == VERDICT_ANY || verdict == entry.verdict)
+                            && entry.timeMillis >= fromMillis && entry.timeMillis <= toMillis) {
+                        results.add(entry);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private static int[] recordOffsets(ByteBuffer in) {
+        int[] offsets = new int[64];
+        int count = 0;
+        int position = 0;
+        while (in.limit() - position >= RECORD_HEADER) {
+            int length = in.getInt(position);
+            if (length < 0 || length > MAX_RECORD || length > in.limit() - position - RECORD_HEADER) {
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+            position += RECORD_HEADER + length;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    private void writeLoop() {
+        boolean running = true;
+        while (running) {
+            // Entries appended up to the swap, all of them in the group
+            long target;
+            synchronized (lock) {
+                try {
+                    // Collect a group: wait for the first entry, then for the
+                    // rest of the commit interval unless asked to hurry
+                    while (pending.size() == 0 && !closed) {
+                        lock.wait();
+                    }
+                    long deadline = System.currentTimeMillis() + COMMIT_INTERVAL_MS;
+                    long now;
+                    while (!closed && !flushRequested && pending.size() < COMMIT_BYTES
+                            && (now = System.currentTimeMillis()) < deadline) {
+                        lock.wait(deadline - now);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (pending.size() == 0 && closed) {
+                    break;
+                }
+                Buffer group = pending;
+                pending = writing;
+                writing = group;
+                flushRequested = false;
+                target = appended;
+            }
+
+            IOException error = null;
+            try {
+                segment.write(writing.bytes(), 0, writing.size());
+                segment.getFD().sync();
+                segmentSize += writing.size();
+            } catch (IOException e) {
+                YaraLog.e(TAG, "Journal write failed", e);
+                error = e;
+                discardTail();
+            }
+            if (error == null && segmentSize >= SEGMENT_BYTES) {
+                try {
+                    rotate();
+                } catch (IOException e) {
+                    // The next write fails and moves on to a new segment
+                    YaraLog.e(TAG, "Journal rotation failed", e);
+                }
+            }
+            synchronized (lock) {
+                if (error == null) {
+                    committed = target;
+                    writing.reset();
+                } else if (closed) {
+                    YaraLog.e(TAG, "Dropping " + (appended - committed) + " journal entries on close");
+                    running = false;
+                } else {
+                    // Retried ahead of newer entries after the commit interval
+                    writing.write(pending.bytes(), 0, pending.size());
+                    Buffer retry = writing;
+                    writing = pending;
+                    pending = retry;
+                    writing.reset();
+                }
+                writeError = error;
+                lock.notifyAll();
+            }
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            YaraLog.w(TAG, "Closing journal segment failed: " + e.getMessage());
+        }
+    }
+
+    // Cuts a partly written group off the segment, so the retried records
+    // follow the last good one instead of a torn record that recover() would
+    // stop at; if the segment cannot be truncated, it is sealed as is and
+    // writing moves on to a new one
+    private void discardTail() {
+        try {
+            segment.getChannel().truncate(segmentSize);
+            return;
+        } catch (IOException e) {
+            YaraLog.w(TAG, "Cannot truncate journal segment, starting a new one: " + e.getMessage());
+        }
+        try {
+            rotate();
+        } catch (IOException e) {
+            YaraLog.e(TAG, "Cannot start a new journal segment", e);
+        }
+    }
+
+    private void rotate() throws IOException {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            YaraLog.w(TAG, "Closing journal segment failed: " + e.getMessage());
+        }
+        segmentNumber++;
+        segmentSize = 0;
+        segment = new FileOutputStream(segmentFile(segmentNumber), true);
+
+        long[] numbers = segmentNumbers(directory);
+        if (numbers.length - 1 > MAX_SEGMENTS) {
+            startCompaction(Arrays.copyOf(numbers, numbers.length - 1));
+        }
+    }
+
+    // Compacts on a thread of its own so commits, and the flush() and query()
+    // calls waiting on them, never wait for it; one compaction at a time
+    private void startCompaction(final long[] sealed) {
+        synchronized (lock) {
+            if (compactor != null || closed) {
+                return;
+            }
+            compactor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact(sealed);
+                    } catch (IOException e) {
+                        YaraLog.e(TAG, "Journal compaction failed", e);
+                    } finally {
+                        synchronized (lock) {
+                            compactor = null;
+                        }
+                    }
+                }
+            }, TAG + "-compact");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    // Merges sealed segments into the newest of them, keeping threats, errors
+    // and the latest clean entry of each path. Two passes over the mapped
+    // segments: the first finds each path's latest clean entry, the second
+    // copies the kept records through unchanged.
+    private void compact(long[] sealed) throws IOException {
+        long start = System.currentTimeMillis();
+        ByteBuffer[] segments = new ByteBuffer[sealed.length];
+        for (int i = 0; i < sealed.length; i++) {
+            segments[i] = map(segmentFile(sealed[i]));
+        }
+        CRC32 checker = new CRC32();
+        Map<String, Integer> latestClean = new HashMap<>();
+        int total = 0;
+        for (ByteBuffer segment : segments) {
+            ByteBuffer in = segment.duplicate();
+            Entry entry;
+            while ((entry = next(in, checker)) != null) {
+                if (entry.verdict == VERDICT_CLEAN) {
+                    latestClean.put(entry.filePath, total);
+                }
+                total++;
+            }
+        }
+
+        File target = segmentFile(sealed[sealed.length - 1]);
+        File temp = new File(directory, target.getName() + ".tmp");
+        int kept = 0;
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            Buffer out = new Buffer();
+            int index = 0;
+            for (ByteBuffer segment : segments) {
+                ByteBuffer in = segment.duplicate();
+                int from = in.position();
+                Entry entry;
+                while ((entry = next(in, checker)) != null) {
+                    if (entry.verdict != VERDICT_CLEAN || latestClean.get(entry.filePath) == index) {
+                        for (int i = from; i < in.position(); i++) {
+                            out.write(in.get(i));
+                        }
+                        kept++;
+                    }
+                    index++;
+                    from = in.position();
+                    if (out.size() >= COMMIT_BYTES) {
+                        file.write(out.bytes(), 0, out.size());
+                        out.reset();
+                    }
+                }
+            }
+            file.write(out.bytes(), 0, out.size());
+            file.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        synchronized (segmentsLock) {
+            if (!temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("Failed to replace " + target);
+            }
+            for (int i = 0; i < sealed.length - 1; i++) {
+                segmentFile(sealed[i]).delete();
+            }
+        }
+        YaraLog.d(TAG, "Compacted " + sealed.length + " journal segments to " + kept + " of " + total
+                + " entries in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    // Length of the valid prefix of a segment, truncating anything after it
+    private static long recover(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            ByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            List<Entry> entries = new ArrayList<>();
+            long valid = readRecords(in, entries);
+            if (valid < raf.length()) {
+                YaraLog.w(TAG, "Truncating torn journal tail of " + file + " at " + valid);
+                raf.setLength(valid);
+            }
+            return valid;
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+    }
+
+    // Decodes records up to the first invalid one; returns the bytes consumed
+    private static long readRecords(ByteBuffer in, List<Entry> entries) {
+        CRC32 crc = new CRC32();
+        Entry entry;
+        while ((entry = next(in, crc)) != null) {
+            entries.add(entry);
+        }
+        return in.position();
+    }
+
+    // The record at the buffer's position, advancing past it; null, with the
+    // position left at the record, at the end or at a torn or corrupt record
+    private static Entry next(ByteBuffer in, CRC32 crc) {
+        int start = in.position();
+        if (in.remaining() < RECORD_HEADER) {
+            return null;
+        }
+        int length = in.getInt();
+        int checksum = in.getInt();
+        if (length < 0 || length > MAX_RECORD || length > in.remaining()) {
+            in.position(start);
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        crc.reset();
+        crc.update(bytes, 0, length);
+        Entry entry = (int) crc.getValue() == checksum ? decode(ByteBuffer.wrap(bytes)) : null;
+        if (entry == null) {
+            in.position(start);
+        }
+        return entry;
+    }
+
+    private static Entry decode(ByteBuffer in) {
+        try {
+            long time = in.getLong();
+            String filePath = readString(in);
+            int verdict = in.get();
+            if (verdict == VERDICT_ERROR) {
+                return new Entry(time, filePath, verdict, "", YaraThreatCategory.NONE.label, YaraSeverity.NONE.label,
+                        Collections.<String>emptyList(), 0, 0, "");
+            }
+            String threatName = readString(in);
+            String category = readString(in);
+            String severity = readString(in);
+            long fileSize = in.getLong();
+            int scanTime = in.getInt();
+            String sha256 = readString(in);
+            int count = in.getShort() & 0xFFFF;
+            List<String> rules = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                rules.add(readString(in));
+            }
+            return new Entry(time, filePath, verdict, threatName, category, severity,
+                    Collections.unmodifiableList(rules), fileSize, scanTime, sha256);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("String too long");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static long[] segmentNumbers(File directory) {
+        String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    numbers[count++] = Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    count--;
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    // Byte buffer whose contents can be written out without copying
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(COMMIT_BYTES);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.shabari.yara;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads an input once and fans every block out to the attached consumers
+// (digests, byte statistics, type sniffing, the pattern pass), so the I/O
+// cost of a scan is a single pass however many features are extracted.
+// Reading stops early only once every consumer has all it needs.
+final class YaraScanPipeline {
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    interface Consumer {
+        // Takes buffer[from, to); base is the absolute offset of buffer index
+        // 0 and blocks arrive in order. Returns false once no more input is
+        // needed.
+        boolean accept(ByteBuffer buffer, int from, int to, long base);
+
+        // Called once, after the last block this consumer was given
+        void finish();
+    }
+
+    private final List<Consumer> consumers = new ArrayList<>();
+
+    // Null consumers are ignored, so optional features can be added as is
+    void add(Consumer consumer) {
+        if (consumer != null) {
+            consumers.add(consumer);
+        }
+    }
+
+    // Returns the number of bytes read
+    long run(InputStream in) throws IOException {
+        if (consumers.isEmpty()) {
+            return 0;
+        }
+        byte[] block = new byte[BLOCK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        boolean[] done = new boolean[consumers.size()];
+        int remaining = consumers.size();
+        long offset = 0;
+        int read;
+        while (remaining > 0 && (read = readBlock(in, block)) > 0) {
+            remaining -= dispatch(buffer, 0, read, offset, done);
+            offset += read;
+        }
+        for (Consumer consumer : consumers) {
+            consumer.finish();
+        }
+        return offset;
+    }
+
+    long run(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        boolean[] done = new boolean[consumers.size()];
+        int remaining = consumers.size();
+        int from = 0;
+        while (remaining > 0 && from < data.length) {
+            int to = (int) Math.min(data.length, (long) from + BLOCK_SIZE);
+            remaining -= dispatch(buffer, from, to, 0, done);
+            from = to;
+        }
+        for (Consumer consumer : consumers) {
+            consumer.finish();
+        }
+        return from;
+    }
+
+    // Hands one block to every consumer still reading; returns how many finished with it
+    private int dispatch(ByteBuffer buffer, int from, int to, long base, boolean[] done) {
+        int finished = 0;
+        for (int i = 0; i < done.length; i++) {
+            if (!done[i] && !consumers.get(i).accept(buffer, from, to, base)) {
+                done[i] = true;
+                finished++;
+            }
+        }
+        return finished;
+    }
+
+    // Fills block unless the input ends first, so blocks have fixed offsets
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int n = 0;
+        while (n < block.length) {
+            int read = in.read(block, n, block.length - n);
+            if (read < 0) {
+                break;
+            }
+            n += read;
+        }
+        return n;
+    }
+}
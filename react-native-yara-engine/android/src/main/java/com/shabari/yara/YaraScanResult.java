@@ -1,32 +1,63 @@
 package com.shabari.yara;
 
-import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.bridge.WritableArray;
-import com.facebook.react.bridge.Arguments;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.ArrayList;
 
+// Matched rules are kept as ids into a YaraRuleNames table (the rule set's,
+// for Java engine verdicts, otherwise one of the result's own made on its
+// first rule), and clean results share one empty id array, so a clean verdict
+// allocates nothing beyond the result itself. Category and severity are
+// parsed for comparisons but reported with the label they were set with, so
+// the native engine's "safe" and categories outside YaraThreatCategory reach
+// callers unchanged.
 public class YaraScanResult {
+    private static final int[] NO_RULES = new int[0];
+
     private boolean isSafe;
     private String threatName;
-    private String threatCategory;
-    private String severity;
-    private List<String> matchedRules;
+    private YaraThreatCategory threatCategory;
+    private String threatCategoryLabel;
+    private YaraSeverity severity;
+    private String severityLabel;
+    // Null until a result without a rule set gets its first rule
+    private YaraRuleNames ruleNames;
+    private int[] ruleIds;
+    private int ruleCount;
     private int scanTime;
     private long fileSize;
     private String scanEngine;
     private String details;
+    private double similarityScore;
+    private String similarTo;
+    // Hex of similarityDigestBits, formatted when first asked for
+    private String similarityDigest;
+    private long similarityDigestBits;
+    private String sha256;
+    private double entropy;
+    private String fileType;
 
     public YaraScanResult() {
+        this(null);
+    }
+
+    YaraScanResult(YaraRuleNames ruleNames) {
         this.isSafe = true;
         this.threatName = "";
-        this.threatCategory = "";
-        this.severity = "";
-        this.matchedRules = new ArrayList<>();
+        setThreatCategory(YaraThreatCategory.NONE);
+        setSeverity(YaraSeverity.NONE);
+        this.ruleNames = ruleNames;
+        this.ruleIds = NO_RULES;
         this.scanTime = 0;
         this.fileSize = 0;
         this.scanEngine = "YARA v4.5.0";
         this.details = "";
+        this.similarityScore = 0;
+        this.similarTo = "";
+        this.similarityDigest = "";
+        this.sha256 = "";
+        this.entropy = 0;
+        this.fileType = "";
     }
 
     public YaraScanResult(boolean isSafe, String threatName, String threatCategory, 
@@ -34,13 +65,19 @@ public class YaraScanResult {
                          long fileSize, String scanEngine, String details) {
         this.isSafe = isSafe;
         this.threatName = threatName != null ? threatName : "";
-        this.threatCategory = threatCategory != null ? threatCategory : "";
-        this.severity = severity != null ? severity : "";
-        this.matchedRules = matchedRules != null ? matchedRules : new ArrayList<>();
+        setThreatCategory(threatCategory);
+        setSeverity(severity);
+        this.ruleIds = NO_RULES;
+        setMatchedRules(matchedRules);
         this.scanTime = scanTime;
         this.fileSize = fileSize;
         this.scanEngine = scanEngine != null ? scanEngine : "YARA v4.5.0";
         this.details = details != null ? details : "";
+        this.similarTo = "";
+        this.similarityDigest = "";
+        this.sha256 = "";
+        this.entropy = 0;
+        this.fileType = "";
     }
 
     // Getters
@@ -52,16 +89,56 @@ public class YaraScanResult {
         return threatName;
     }
 
-    public String getThreatCategory() {
+    public YaraThreatCategory getThreatCategory() {
         return threatCategory;
     }
 
-    public String getSeverity() {
+    public YaraSeverity getSeverity() {
         return severity;
     }
 
+    // As set; the category's label unless set from a string
+    public String getThreatCategoryLabel() {
+        return threatCategoryLabel;
+    }
+
+    public String getSeverityLabel() {
+        return severityLabel;
+    }
+
+    // Read-only view resolving the rule ids through the name table
     public List<String> getMatchedRules() {
-        return matchedRules;
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                if (index >= ruleCount) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + ruleCount);
+                }
+                return ruleNames.get(ruleIds[index]);
+            }
+
+            @Override
+            public int size() {
+                return ruleCount;
+            }
+        };
+    }
+
+    public int getMatchedRuleCount() {
+        return ruleCount;
+    }
+
+    // Id of the index-th matched rule in getRuleNames()
+    public int getMatchedRuleId(int index) {
+        if (index >= ruleCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + ruleCount);
+        }
+        return ruleIds[index];
+    }
+
+    // Null while the result has no matched rules and no rule set
+    public YaraRuleNames getRuleNames() {
+        return ruleNames;
     }
 
     public int getScanTime() {
@@ -80,6 +157,37 @@ public class YaraScanResult {
         return details;
     }
 
+    public double getSimilarityScore() {
+        return similarityScore;
+    }
+
+    public String getSimilarTo() {
+        return similarTo;
+    }
+
+    public String getSimilarityDigest() {
+        if (similarityDigest == null) {
+            char[] hex = new char[16];
+            for (int i = 0; i < 16; i++) {
+                hex[i] = Character.forDigit((int) (similarityDigestBits >>> (60 - i * 4)) & 0xF, 16);
+            }
+            similarityDigest = new String(hex);
+        }
+        return similarityDigest;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public double getEntropy() {
+        return entropy;
+    }
+
+    public String getFileType() {
+        return fileType;
+    }
+
     // Setters
     public void setSafe(boolean safe) {
         this.isSafe = safe;
@@ -89,24 +197,65 @@ public class YaraScanResult {
         this.threatName = threatName != null ? threatName : "";
     }
 
+    public void setThreatCategory(YaraThreatCategory threatCategory) {
+        this.threatCategory = threatCategory != null ? threatCategory : YaraThreatCategory.NONE;
+        this.threatCategoryLabel = this.threatCategory.label;
+    }
+
+    // Labels from rule metadata and the native engine, kept as given; see
+    // YaraThreatCategory.fromLabel and YaraSeverity.fromLabel for the parse
     public void setThreatCategory(String threatCategory) {
-        this.threatCategory = threatCategory != null ? threatCategory : "";
+        this.threatCategory = YaraThreatCategory.fromLabel(threatCategory);
+        this.threatCategoryLabel = threatCategory != null ? threatCategory : "";
+    }
+
+    public void setSeverity(YaraSeverity severity) {
+        this.severity = severity != null ? severity : YaraSeverity.NONE;
+        this.severityLabel = this.severity.label;
     }
 
     public void setSeverity(String severity) {
-        this.severity = severity != null ? severity : "";
+        this.severity = YaraSeverity.fromLabel(severity, YaraSeverity.HIGH);
+        this.severityLabel = severity != null ? severity : "";
+    }
+
+    // A parsed value with the label it came from (rule metadata)
+    void setThreatCategory(YaraThreatCategory threatCategory, String label) {
+        this.threatCategory = threatCategory;
+        this.threatCategoryLabel = label;
+    }
+
+    void setSeverity(YaraSeverity severity, String label) {
+        this.severity = severity;
+        this.severityLabel = label;
     }
 
     public void setMatchedRules(List<String> matchedRules) {
-        this.matchedRules = matchedRules != null ? matchedRules : new ArrayList<>();
+        this.ruleIds = NO_RULES;
+        this.ruleCount = 0;
+        if (matchedRules != null) {
+            for (String ruleName : matchedRules) {
+                addMatchedRule(ruleName);
+            }
+        }
     }
 
     public void addMatchedRule(String ruleName) {
         if (ruleName != null && !ruleName.trim().isEmpty()) {
-            this.matchedRules.add(ruleName);
+            if (ruleNames == null) {
+                ruleNames = new YaraRuleNames(new String[0]);
+            }
+            addMatchedRuleId(ruleNames.intern(ruleName));
         }
     }
 
+    void addMatchedRuleId(int id) {
+        if (ruleCount == ruleIds.length) {
+            ruleIds = Arrays.copyOf(ruleIds, Math.max(4, ruleCount * 2));
+        }
+        ruleIds[ruleCount++] = id;
+    }
+
     public void setScanTime(int scanTime) {
         this.scanTime = scanTime;
     }
@@ -123,27 +272,52 @@ public class YaraScanResult {
         this.details = details != null ? details : "";
     }
 
-    // Convert to WritableMap for React Native
-    public WritableMap toWritableMap() {
-        WritableMap map = Arguments.createMap();
-        
-        map.putBoolean("isSafe", this.isSafe);
-        map.putString("threatName", this.threatName);
-        map.putString("threatCategory", this.threatCategory);
-        map.putString("severity", this.severity);
-        map.putInt("scanTime", this.scanTime);
-        map.putDouble("fileSize", (double) this.fileSize);
-        map.putString("scanEngine", this.scanEngine);
-        map.putString("details", this.details);
-
-        // Convert matched rules list to WritableArray
-        WritableArray rulesArray = Arguments.createArray();
-        for (String rule : this.matchedRules) {
-            rulesArray.pushString(rule);
-        }
-        map.putArray("matchedRules", rulesArray);
+    public void setSimilarityScore(double similarityScore) {
+        this.similarityScore = similarityScore;
+    }
+
+    public void setSimilarTo(String similarTo) {
+        this.similarTo = similarTo != null ? similarTo : "";
+    }
+
+    public void setSimilarityDigest(String similarityDigest) {
+        this.similarityDigest = similarityDigest != null ? similarityDigest : "";
+    }
+
+    void setSimilarityDigest(long digest) {
+        this.similarityDigestBits = digest;
+        this.similarityDigest = null;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256 != null ? sha256 : "";
+    }
+
+    public void setEntropy(double entropy) {
+        this.entropy = entropy;
+    }
+
+    public void setFileType(String fileType) {
+        this.fileType = fileType != null ? fileType : "";
+    }
 
-        return map;
+    // Exports every field; see YaraWritableMapWriter for the React Native map
+    public void writeTo(YaraResultWriter writer) {
+        writer.putBoolean("isSafe", this.isSafe);
+        writer.putString("threatName", this.threatName);
+        writer.putString("threatCategory", this.threatCategoryLabel);
+        writer.putString("severity", this.severityLabel);
+        writer.putInt("scanTime", this.scanTime);
+        writer.putDouble("fileSize", (double) this.fileSize);
+        writer.putString("scanEngine", this.scanEngine);
+        writer.putString("details", this.details);
+        writer.putDouble("similarityScore", this.similarityScore);
+        writer.putString("similarTo", this.similarTo);
+        writer.putString("similarityDigest", getSimilarityDigest());
+        writer.putString("sha256", this.sha256);
+        writer.putDouble("entropy", this.entropy);
+        writer.putString("fileType", this.fileType);
+        writer.putStringList("matchedRules", getMatchedRules());
     }
 
     // Create a safe scan result (no threats detected)
@@ -157,8 +331,8 @@ public class YaraScanResult {
     }
 
     // Create a threat detected result
-    public static YaraScanResult createThreatResult(String threatName, String category, 
-                                                   String severity, List<String> matchedRules, 
+    public static YaraScanResult createThreatResult(String threatName, YaraThreatCategory category,
+                                                   YaraSeverity severity, List<String> matchedRules, 
                                                    int scanTime, long fileSize, String details) {
         YaraScanResult result = new YaraScanResult();
         result.setSafe(false);
@@ -177,13 +351,18 @@ public class YaraScanResult {
         return "YaraScanResult{" +
                 "isSafe=" + isSafe +
                 ", threatName='" + threatName + '\'' +
-                ", threatCategory='" + threatCategory + '\'' +
-                ", severity='" + severity + '\'' +
-                ", matchedRules=" + matchedRules +
+                ", threatCategory='" + threatCategoryLabel + '\'' +
+                ", severity='" + severityLabel + '\'' +
+                ", matchedRules=" + getMatchedRules() +
                 ", scanTime=" + scanTime +
                 ", fileSize=" + fileSize +
                 ", scanEngine='" + scanEngine + '\'' +
                 ", details='" + details + '\'' +
+                ", similarityScore=" + similarityScore +
+                ", similarTo='" + similarTo + '\'' +
+                ", sha256='" + sha256 + '\'' +
+                ", entropy=" + entropy +
+                ", fileType='" + fileType + '\'' +
                 '}';
     }
 }
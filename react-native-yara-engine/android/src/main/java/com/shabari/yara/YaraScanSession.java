@@ -0,0 +1,96 @@
+package com.shabari.yara;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Push-based scan over data that arrives in chunks. The automaton states and
+// match set are kept between feeds, so nothing is buffered and the verdict is
+// ready as soon as the last chunk has been fed.
+final class YaraScanSession {
+    private final YaraCompiledRules rules;
+    private final YaraMatchSet matches;
+    private final YaraCompiledRules.ScanState state;
+    private final boolean reportEarlyMatches;
+    private final boolean[] reported;
+    private final YaraSimHash simHash;
+    private long bytesScanned;
+    private long scanNanos;
+    private boolean finished;
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    YaraScanSession(YaraCompiledRules rules, boolean reportEarlyMatches, YaraSimHash simHash) {
+        this.rules = rules;
+        this.matches = rules.newMatchSet();
+        this.state = rules.newScanState();
+        this.reportEarlyMatches = reportEarlyMatches;
+        this.reported = new boolean[rules.getRuleCount()];
+        this.simHash = simHash;
+    }
+
+    // Scans the next chunk and returns the rules that became decided matches
+    // with it (always empty unless early match reporting was requested).
+    synchronized List<YaraRule> feed(byte[] data, int offset, int length) {
+        if (finished) {
+            throw new IllegalStateException("Scan session already finished");
+        }
+        long startTime = System.nanoTime();
+        lastUsedNanos = startTime;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        // Once every rule is decided the rest of the input is only hashed
+        if (!state.isDecided()) {
+            rules.scan(buffer, offset, offset + length, bytesScanned - offset, Long.MAX_VALUE, matches, state);
+            rules.decide(matches, bytesScanned + length, -1, state);
+        }
+        if (simHash != null) {
+            simHash.update(buffer, offset, offset + length);
+        }
+        bytesScanned += length;
+
+        List<YaraRule> newlyDecided = new ArrayList<>();
+        if (reportEarlyMatches) {
+            for (YaraRule rule : rules.decidedMatches(state)) {
+                if (!reported[rule.index]) {
+                    reported[rule.index] = true;
+                    newlyDecided.add(rule);
+                }
+            }
+        }
+        lastUsedNanos = System.nanoTime();
+        scanNanos += lastUsedNanos - startTime;
+        return newlyDecided;
+    }
+
+    synchronized List<YaraRule> finish() {
+        if (finished) {
+            throw new IllegalStateException("Scan session already finished");
+        }
+        finished = true;
+        long startTime = System.nanoTime();
+        rules.finishScan(state, Long.MAX_VALUE, matches);
+        List<YaraRule> matched = rules.evaluate(matches, bytesScanned);
+        scanNanos += System.nanoTime() - startTime;
+        return matched;
+    }
+
+    // When the session was created or last fed
+    long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    YaraCompiledRules getRules() {
+        return rules;
+    }
+
+    YaraSimHash getSimHash() {
+        return simHash;
+    }
+
+    synchronized long getBytesScanned() {
+        return bytesScanned;
+    }
+
+    synchronized int getScanTimeMillis() {
+        return (int) (scanNanos / 1000000L);
+    }
+}
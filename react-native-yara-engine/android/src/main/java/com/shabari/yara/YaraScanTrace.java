@@ -0,0 +1,198 @@
+package com.shabari.yara;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Fixed-size ring of recent scan events (start, phase timings, matches,
+// finish) kept as primitive records, in place of building log strings on
+// every scan. While tracing is off every call returns after one volatile
+// read; while it is on an event is a slot claim and a few array stores,
+// without locks or allocation. dump() formats what is still in the ring.
+//
+// Each slot is SLOT_FIELDS longs: stamp, time, scan, kind/argument, value.
+// A writer claims a sequence number, marks the slot's stamp as being written
+// (negative), writes the fields and publishes the stamp as sequence + 1. A
+// writer that laps the ring onto a slot another one is still writing drops
+// its event rather than interleave fields with it. A reader accepts a slot
+// only if it sees the same stamp before and after reading it, so events
+// overwritten while being read are skipped rather than mixed up.
+public final class YaraScanTrace {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    static final int SCAN_START = 1;
+    static final int PHASE = 2;
+    static final int MATCH = 3;
+    static final int SCAN_FINISH = 4;
+    // Large input scanned serially because the memory budget had no room
+    static final int SERIAL_FALLBACK = 5;
+
+    static final int PHASE_WAIT = 0;
+    static final int PHASE_READ = 1;
+    static final int PHASE_NATIVE = 2;
+    static final int PHASE_EVALUATE = 3;
+    private static final String[] PHASE_NAMES = { "wait", "read", "native", "evaluate" };
+
+    static final int VERDICT_CLEAN = 0;
+    static final int VERDICT_THREAT = 1;
+    static final int VERDICT_ERROR = 2;
+    private static final String[] VERDICT_NAMES = { "clean", "threat", "error" };
+
+    private static final int SLOT_FIELDS = 5;
+
+    private final int mask;
+    private final AtomicLongArray slots;
+    // Scan target (start) or rule name table (match) of each slot
+    private final AtomicReferenceArray<Object> refs;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong scanIds = new AtomicLong();
+    private volatile boolean enabled;
+
+    // capacity: events kept, rounded up to a power of two
+    YaraScanTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicLongArray(size * SLOT_FIELDS);
+        this.refs = new AtomicReferenceArray<>(size);
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // Starts tracing a scan; returns its id, or 0 while tracing is off, which
+    // the other calls ignore
+    long begin(String target, long size) {
+        if (!enabled) {
+            return 0;
+        }
+        long scan = scanIds.incrementAndGet();
+        record(scan, SCAN_START, 0, size, target);
+        return scan;
+    }
+
+    // Start time for phase() and finish(); 0 for untraced scans
+    long now(long scan) {
+        return scan != 0 ? System.nanoTime() : 0;
+    }
+
+    void phase(long scan, int phase, long startNanos) {
+        if (scan != 0) {
+            record(scan, PHASE, phase, System.nanoTime() - startNanos, null);
+        }
+    }
+
+    void event(long scan, int kind) {
+        if (scan != 0) {
+            record(scan, kind, 0, 0, null);
+        }
+    }
+
+    // Records the matched rules and the verdict of a scan; a null result is a
+    // failed scan
+    void finish(long scan, YaraScanResult result, long startNanos) {
+        if (scan == 0) {
+            return;
+        }
+        int verdict = VERDICT_ERROR;
+        if (result != null) {
+            for (int i = 0; i < result.getMatchedRuleCount(); i++) {
+                record(scan, MATCH, result.getMatchedRuleId(i), 0, result.getRuleNames());
+            }
+            verdict = result.isSafe() ? VERDICT_CLEAN : VERDICT_THREAT;
+        }
+        record(scan, SCAN_FINISH, verdict, System.nanoTime() - startNanos, null);
+    }
+
+    private void record(long scan, int kind, int argument, long value, Object ref) {
+        long seq = sequence.getAndIncrement();
+        int slot = (int) (seq & mask);
+        int base = slot * SLOT_FIELDS;
+        long stamp = slots.get(base);
+        if (stamp < 0 || !slots.compareAndSet(base, stamp, -1)) {
+            return;
+        }
+        slots.lazySet(base + 1, System.nanoTime());
+        slots.lazySet(base + 2, scan);
+        slots.lazySet(base + 3, ((long) kind << 32) | (argument & 0xFFFFFFFFL));
+        slots.lazySet(base + 4, value);
+        refs.lazySet(slot, ref);
+        slots.set(base, seq + 1);
+    }
+
+    public void clear() {
+        for (int i = 0; i <= mask; i++) {
+            // Claimed like a writer would; slots being written are left to it
+            long stamp = slots.get(i * SLOT_FIELDS);
+            if (stamp > 0 && slots.compareAndSet(i * SLOT_FIELDS, stamp, -1)) {
+                refs.set(i, null);
+                slots.set(i * SLOT_FIELDS, 0);
+            }
+        }
+    }
+
+    // Events still in the ring, oldest first, one per line with its time
+    // relative to the oldest:
+    //   +0.000ms scan 7 start /sdcard/Download/app.apk 1048576 bytes
+    //   +3.210ms scan 7 read 3.204ms
+    //   +3.260ms scan 7 match Android_Banking_Trojan
+    //   +3.262ms scan 7 finish threat 3.262ms
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        long end = sequence.get();
+        long start = Math.max(0, end - (mask + 1));
+        long origin = 0;
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & mask);
+            int base = slot * SLOT_FIELDS;
+            if (slots.get(base) != seq + 1) {
+                continue;
+            }
+            long time = slots.get(base + 1);
+            long scan = slots.get(base + 2);
+            long code = slots.get(base + 3);
+            long value = slots.get(base + 4);
+            Object ref = refs.get(slot);
+            if (slots.get(base) != seq + 1) {
+                continue;
+            }
+            if (out.length() == 0) {
+                origin = time;
+            }
+            out.append(String.format(Locale.US, "+%.3fms scan %d ", (time - origin) / 1e6, scan));
+            int argument = (int) code;
+            switch ((int) (code >>> 32)) {
+                case SCAN_START:
+                    out.append("start ").append(ref).append(' ').append(value).append(" bytes");
+                    break;
+                case PHASE:
+                    out.append(PHASE_NAMES[argument]).append(String.format(Locale.US, " %.3fms", value / 1e6));
+                    break;
+                case MATCH:
+                    out.append("match ").append(((YaraRuleNames) ref).get(argument));
+                    break;
+                case SCAN_FINISH:
+                    out.append("finish ").append(VERDICT_NAMES[argument])
+                            .append(String.format(Locale.US, " %.3fms", value / 1e6));
+                    break;
+                case SERIAL_FALLBACK:
+                    out.append("serial (memory budget)");
+                    break;
+                default:
+                    out.append("unknown event ").append(code >>> 32);
+                    break;
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+}
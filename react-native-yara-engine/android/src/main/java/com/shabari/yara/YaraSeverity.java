@@ -0,0 +1,34 @@
+package com.shabari.yara;
+
+// Severity of a verdict, in increasing order. Rules set it with their
+// "severity" metadata; results report the label they were given (see
+// YaraScanResult).
+public enum YaraSeverity {
+    NONE("none"),
+    LOW("low"),
+    MEDIUM("medium"),
+    HIGH("high"),
+    CRITICAL("critical");
+
+    private static final YaraSeverity[] VALUES = values();
+
+    public final String label;
+
+    YaraSeverity(String label) {
+        this.label = label;
+    }
+
+    // Empty and "safe" (the native engine's clean verdict) read as NONE;
+    // other unknown labels as the fallback
+    public static YaraSeverity fromLabel(String label, YaraSeverity fallback) {
+        if (label == null || label.isEmpty() || label.equals("safe")) {
+            return NONE;
+        }
+        for (YaraSeverity severity : VALUES) {
+            if (severity.label.equals(label)) {
+                return severity;
+            }
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,85 @@
+package com.shabari.yara;
+
+import java.nio.ByteBuffer;
+
+// 64-bit SimHash over 4-byte shingles, computed in the same read as the
+// pattern pass. Only a content-defined 1/16 sample of shingles contributes, so
+// an insertion shifts the sample instead of changing it; padding runs are
+// ignored.
+final class YaraSimHash implements YaraScanPipeline.Consumer {
+    static final int SHINGLE_LENGTH = 4;
+    static final int MIN_FEATURES = 16;
+    // Sampled shingles (about 4KB of varied content) before a near-duplicate
+    // alone may decide a verdict
+    static final int MIN_VERDICT_FEATURES = 256;
+
+    private final int[] weights = new int[64];
+    private int window;
+    private int filled;
+    private int features;
+
+    // Adds the shingles ending in buffer[from, to); calls must cover
+    // consecutive bytes
+    void update(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            window = (window << 8) | (buffer.get(i) & 0xFF);
+            if (filled < SHINGLE_LENGTH - 1) {
+                filled++;
+                continue;
+            }
+            if (((window * 0x9E3779B1) >>> 28) != 0) {
+                continue;
+            }
+            // Runs of a single byte (padding) would otherwise outweigh real content
+            if (((window ^ (window >>> 8)) & 0xFFFFFF) == 0) {
+                continue;
+            }
+            long hash = mix(window);
+            for (int bit = 0; bit < 64; bit++) {
+                weights[bit] += ((hash >>> bit) & 1L) != 0 ? 1 : -1;
+            }
+            features++;
+        }
+    }
+
+    @Override
+    public boolean accept(ByteBuffer buffer, int from, int to, long base) {
+        update(buffer, from, to);
+        return true;
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    boolean hasEnoughFeatures() {
+        return features >= MIN_FEATURES;
+    }
+
+    boolean isConclusive() {
+        return features >= MIN_VERDICT_FEATURES;
+    }
+
+    long digest() {
+        long digest = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                digest |= 1L << bit;
+            }
+        }
+        return digest;
+    }
+
+    static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,173 @@
+package com.shabari.yara;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Local index of SimHash digests of known-bad samples. Digests are split into
+// four 16-bit bands; two digests within MAX_DISTANCE bits of each other must
+// agree on at least one band, so a lookup only compares the few candidates
+// sharing a band with the query instead of the whole index. Digests and
+// bands are kept in primitive arrays, the bands sorted by band value, and
+// published together as an immutable snapshot.
+public class YaraSimilarityIndex {
+    public static final int MAX_DISTANCE = 3;
+    // Closer still before a near-duplicate alone turns a clean verdict into a threat
+    public static final int VERDICT_DISTANCE = 2;
+
+    private static final int MAGIC = 0x53485349; // "SHSI"
+    private static final int VERSION = 1;
+    private static final int BANDS = 4;
+
+    public static final class Match {
+        public final String label;
+        public final int distance;
+        public final double score;
+
+        Match(String label, int distance) {
+            this.label = label;
+            this.distance = distance;
+            this.score = 1.0 - distance / 64.0;
+        }
+    }
+
+    // Replaced whole on every change, so lookups on scan threads need no lock
+    private volatile Snapshot snapshot = new Snapshot(new long[0], new String[0]);
+
+    private static final class Snapshot {
+        final long[] digests;
+        final String[] labels;
+        // Per band, (band key << 32 | id) of every digest in ascending order
+        final long[][] bands;
+
+        Snapshot(long[] digests, String[] labels) {
+            this.digests = digests;
+            this.labels = labels;
+            this.bands = new long[BANDS][];
+            for (int band = 0; band < BANDS; band++) {
+                long[] entries = new long[digests.length];
+                for (int id = 0; id < digests.length; id++) {
+                    entries[id] = ((long) bandKey(digests[id], band) << 32) | id;
+                }
+                Arrays.sort(entries);
+                bands[band] = entries;
+            }
+        }
+    }
+
+    public static YaraSimilarityIndex load(File file) throws IOException {
+        YaraSimilarityIndex index = new YaraSimilarityIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a similarity index: " + file);
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupt similarity index: " + file);
+            }
+            long[] digests = new long[count];
+            String[] labels = new String[count];
+            // Samples of one family share a label
+            Map<String, String> distinct = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                long digest = in.readLong();
+                String label = in.readUTF();
+                String shared = distinct.get(label);
+                if (shared == null) {
+                    distinct.put(label, label);
+                    shared = label;
+                }
+                digests[i] = digest;
+                labels[i] = shared;
+            }
+            index.snapshot = new Snapshot(digests, labels);
+        }
+        return index;
+    }
+
+    public void save(File file) throws IOException {
+        Snapshot current = snapshot;
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(current.digests.length);
+            for (int i = 0; i < current.digests.length; i++) {
+                out.writeLong(current.digests[i]);
+                out.writeUTF(current.labels[i]);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    // Each call rebuilds the band tables; add digests in bulk with addAll()
+    public void add(long digest, String label) {
+        addAll(new long[] {digest}, new String[] {label});
+    }
+
+    public synchronized void addAll(long[] digests, String[] labels) {
+        if (digests.length != labels.length) {
+            throw new IllegalArgumentException("Expected one label per digest");
+        }
+        Snapshot current = snapshot;
+        int count = current.digests.length;
+        long[] newDigests = Arrays.copyOf(current.digests, count + digests.length);
+        String[] newLabels = Arrays.copyOf(current.labels, count + labels.length);
+        System.arraycopy(digests, 0, newDigests, count, digests.length);
+        System.arraycopy(labels, 0, newLabels, count, labels.length);
+        snapshot = new Snapshot(newDigests, newLabels);
+    }
+
+    public int size() {
+        return snapshot.digests.length;
+    }
+
+    // Closest known-bad digest within MAX_DISTANCE bits, or null
+    public Match findNearest(long digest) {
+        Snapshot current = snapshot;
+        int bestId = -1;
+        int bestDistance = MAX_DISTANCE + 1;
+        for (int band = 0; band < BANDS; band++) {
+            long[] entries = current.bands[band];
+            long key = bandKey(digest, band);
+            for (int i = lowerBound(entries, key << 32); i < entries.length && (entries[i] >>> 32) == key; i++) {
+                int id = (int) entries[i];
+                int distance = YaraSimHash.distance(digest, current.digests[id]);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    bestId = id;
+                }
+            }
+        }
+        return bestId < 0 ? null : new Match(current.labels[bestId], bestDistance);
+    }
+
+    // First index whose entry is >= value
+    private static int lowerBound(long[] entries, long value) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entries[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int bandKey(long digest, int band) {
+        return (int) ((digest >>> (band * 16)) & 0xFFFF);
+    }
+}
@@ -0,0 +1,38 @@
+package com.shabari.yara;
+
+// Category of a verdict. Rules set it with their "category" metadata, and
+// categories outside this list parse as OTHER; results report the label they
+// were given either way (see YaraScanResult).
+public enum YaraThreatCategory {
+    NONE(""),
+    MALWARE("malware"),
+    RANSOMWARE("ransomware"),
+    SPYWARE("spyware"),
+    ADWARE("adware"),
+    PHISHING("phishing"),
+    EXPLOIT("exploit"),
+    IMPERSONATION("impersonation"),
+    SUSPICIOUS("suspicious"),
+    ERROR("error"),
+    OTHER("other");
+
+    private static final YaraThreatCategory[] VALUES = values();
+
+    public final String label;
+
+    YaraThreatCategory(String label) {
+        this.label = label;
+    }
+
+    public static YaraThreatCategory fromLabel(String label) {
+        if (label == null || label.isEmpty()) {
+            return NONE;
+        }
+        for (YaraThreatCategory category : VALUES) {
+            if (category.label.equals(label)) {
+                return category;
+            }
+        }
+        return OTHER;
+    }
+}
@@ -0,0 +1,79 @@
+package com.shabari.yara;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import java.util.List;
+
+// Exports scan results to the maps passed over the React Native bridge
+final class YaraWritableMapWriter implements YaraResultWriter {
+    private final WritableMap map = Arguments.createMap();
+
+    static WritableMap toWritableMap(YaraScanResult result) {
+        YaraWritableMapWriter writer = new YaraWritableMapWriter();
+        result.writeTo(writer);
+        return writer.map;
+    }
+
+    static WritableMap toWritableMap(YaraScanJournal.Entry entry) {
+        YaraWritableMapWriter writer = new YaraWritableMapWriter();
+        entry.writeTo(writer);
+        return writer.map;
+    }
+
+    // One map of flat arrays for the whole batch; see YaraResultBatch
+    static WritableMap toWritableMap(YaraResultBatch batch) {
+        WritableMap map = Arguments.createMap();
+        map.putInt("count", batch.size());
+        WritableArray strings = Arguments.createArray();
+        for (String value : batch.getStrings()) {
+            strings.pushString(value);
+        }
+        map.putArray("strings", strings);
+        map.putArray("verdicts", toWritableArray(batch.getVerdicts()));
+        map.putArray("records", toWritableArray(batch.getRecords()));
+        WritableArray rules = Arguments.createArray();
+        for (int rule : batch.getRules()) {
+            rules.pushInt(rule);
+        }
+        map.putArray("rules", rules);
+        return map;
+    }
+
+    private static WritableArray toWritableArray(double[] values) {
+        WritableArray array = Arguments.createArray();
+        for (double value : values) {
+            array.pushDouble(value);
+        }
+        return array;
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        map.putBoolean(key, value);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        map.putInt(key, value);
+    }
+
+    @Override
+    public void putDouble(String key, double value) {
+        map.putDouble(key, value);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        map.putString(key, value);
+    }
+
+    @Override
+    public void putStringList(String key, List<String> values) {
+        WritableArray array = Arguments.createArray();
+        for (String value : values) {
+            array.pushString(value);
+        }
+        map.putArray(key, array);
+    }
+}
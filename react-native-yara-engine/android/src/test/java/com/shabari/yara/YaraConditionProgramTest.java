@@ -0,0 +1,244 @@
+package com.shabari.yara;
+
+import static com.shabari.yara.YaraConditionProgram.FALSE;
+import static com.shabari.yara.YaraConditionProgram.TRUE;
+import static com.shabari.yara.YaraConditionProgram.UNDECIDED;
+import static com.shabari.yara.YaraTestRules.ascii;
+import static com.shabari.yara.YaraTestRules.names;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Three-valued evaluation of compiled conditions part way through a scan:
+// an undecided operand must keep and/or undecided unless another operand
+// decides them, operands reordered cheapest first must give the same
+// outcome, and "at"/"in" checks and comparisons decide as soon as the
+// scanned length allows.
+public class YaraConditionProgramTest {
+    // Bytes past a match start after which the match is surely recorded
+    private static final int SETTLE = 8;
+    private static final long UNKNOWN_SIZE = -1;
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void undecidedOperandKeepsAndUndecided() {
+        Program program = new Program("$a and $b");
+        program.match(0, 10);
+        assertEquals(UNDECIDED, program.evaluate(100, UNKNOWN_SIZE));
+        assertEquals(FALSE, program.evaluate(100, 100));
+        program.match(1, 50);
+        assertEquals(TRUE, program.evaluate(100, UNKNOWN_SIZE));
+    }
+
+    @Test
+    public void anyTrueOperandDecidesOr() {
+        Program program = new Program("$a or $b");
+        assertEquals(UNDECIDED, program.evaluate(100, UNKNOWN_SIZE));
+        program.match(1, 50);
+        assertEquals(TRUE, program.evaluate(100, UNKNOWN_SIZE));
+    }
+
+    @Test
+    public void notOfUndecidedIsUndecided() {
+        Program program = new Program("not $a");
+        assertEquals(UNDECIDED, program.evaluate(100, UNKNOWN_SIZE));
+        assertEquals(TRUE, program.evaluate(100, 100));
+        program.match(0, 10);
+        assertEquals(FALSE, program.evaluate(100, UNKNOWN_SIZE));
+    }
+
+    @Test
+    public void reorderedAndIsDecidedByItsFalseOperand() {
+        // "$b at 0" is cheaper and runs first whichever side it is written on
+        for (String condition : new String[] {"$a and $b at 0", "$b at 0 and $a"}) {
+            Program program = new Program(condition);
+            assertEquals(condition, UNDECIDED, program.evaluate(SETTLE - 1, UNKNOWN_SIZE));
+            // Past the settle distance $b can no longer match at 0, while $a
+            // is still undecided
+            assertEquals(condition, FALSE, program.evaluate(SETTLE, UNKNOWN_SIZE));
+        }
+    }
+
+    @Test
+    public void reorderedOperandsDoNotSkipAnUndecidedOne() {
+        for (String condition : new String[] {"$a or $b at 0", "$b at 0 or $a"}) {
+            Program program = new Program(condition);
+            // The cheap operand is false, which must not decide an "or"
+            assertEquals(condition, UNDECIDED, program.evaluate(100, UNKNOWN_SIZE));
+            assertEquals(condition, FALSE, program.evaluate(100, 100));
+            program.match(0, 60);
+            assertEquals(condition, TRUE, program.evaluate(100, UNKNOWN_SIZE));
+        }
+        for (String condition : new String[] {"#a > 2 and $b at 0", "$b at 0 and #a > 2"}) {
+            Program program = new Program(condition);
+            program.match(1, 0);
+            // The cheap operand is true, which must not decide an "and"
+            assertEquals(condition, UNDECIDED, program.evaluate(100, UNKNOWN_SIZE));
+            program.match(0, 10);
+            program.match(0, 20);
+            program.match(0, 30);
+            assertEquals(condition, TRUE, program.evaluate(100, UNKNOWN_SIZE));
+        }
+    }
+
+    @Test
+    public void nestedConditionsCombineThreeValues() {
+        Program program = new Program("($a or $b) and not $c");
+        program.match(0, 5);
+        assertEquals(UNDECIDED, program.evaluate(100, UNKNOWN_SIZE));
+        assertEquals(TRUE, program.evaluate(100, 100));
+        program.match(2, 40);
+        assertEquals(FALSE, program.evaluate(100, UNKNOWN_SIZE));
+    }
+
+    @Test
+    public void offsetChecksDecideOnceScannedPastThem() {
+        Program at = new Program("$a at 100");
+        assertEquals(UNDECIDED, at.evaluate(100 + SETTLE - 1, UNKNOWN_SIZE));
+        assertEquals(FALSE, at.evaluate(100 + SETTLE, UNKNOWN_SIZE));
+        at.match(0, 100);
+        assertEquals(TRUE, at.evaluate(101, UNKNOWN_SIZE));
+
+        Program in = new Program("$a in (10..20)");
+        in.match(0, 5);
+        assertEquals(UNDECIDED, in.evaluate(20 + SETTLE - 1, UNKNOWN_SIZE));
+        assertEquals(FALSE, in.evaluate(20 + SETTLE, UNKNOWN_SIZE));
+        in.match(0, 15);
+        assertEquals(TRUE, in.evaluate(16, UNKNOWN_SIZE));
+    }
+
+    @Test
+    public void countsOnlyGrowUntilTheEnd() {
+        Program equal = new Program("#a == 2");
+        equal.match(0, 1);
+        equal.match(0, 2);
+        assertEquals(UNDECIDED, equal.evaluate(100, UNKNOWN_SIZE));
+        assertEquals(TRUE, equal.evaluate(100, 100));
+        equal.match(0, 3);
+        assertEquals(FALSE, equal.evaluate(100, UNKNOWN_SIZE));
+
+        Program atLeast = new Program("#a >= 2");
+        atLeast.match(0, 1);
+        assertEquals(UNDECIDED, atLeast.evaluate(100, UNKNOWN_SIZE));
+        atLeast.match(0, 2);
+        assertEquals(TRUE, atLeast.evaluate(100, UNKNOWN_SIZE));
+
+        Program below = new Program("#a < 2");
+        below.match(0, 1);
+        assertEquals(UNDECIDED, below.evaluate(100, UNKNOWN_SIZE));
+        assertEquals(TRUE, below.evaluate(100, 100));
+    }
+
+    @Test
+    public void filesizeIsAtLeastWhatWasScanned() {
+        assertEquals(UNDECIDED, new Program("filesize > 100").evaluate(50, UNKNOWN_SIZE));
+        assertEquals(TRUE, new Program("filesize > 100").evaluate(150, UNKNOWN_SIZE));
+        assertEquals(FALSE, new Program("filesize < 100").evaluate(150, UNKNOWN_SIZE));
+        // A known size decides before anything is scanned
+        assertEquals(FALSE, new Program("filesize > 100").evaluate(0, 50));
+        assertEquals(TRUE, new Program("filesize < 100").evaluate(0, 50));
+    }
+
+    @Test
+    public void ofQuantifiers() {
+        Program two = new Program("2 of ($a, $b, $c)");
+        two.match(0, 1);
+        assertEquals(UNDECIDED, two.evaluate(100, UNKNOWN_SIZE));
+        two.match(2, 1);
+        assertEquals(TRUE, two.evaluate(100, UNKNOWN_SIZE));
+
+        Program all = new Program("all of them");
+        all.match(0, 1);
+        all.match(1, 1);
+        assertEquals(UNDECIDED, all.evaluate(100, UNKNOWN_SIZE));
+        assertEquals(FALSE, all.evaluate(100, 100));
+
+        Program none = new Program("none of them");
+        assertEquals(UNDECIDED, none.evaluate(100, UNKNOWN_SIZE));
+        assertEquals(TRUE, none.evaluate(100, 100));
+        none.match(1, 1);
+        assertEquals(FALSE, none.evaluate(100, UNKNOWN_SIZE));
+
+        // More than there are strings can never hold
+        assertEquals(FALSE, new Program("4 of ($a, $b, $c)").evaluate(0, UNKNOWN_SIZE));
+    }
+
+    @Test
+    public void earlyMatchIsReportedBeforeTheEnd() {
+        YaraCompiledRules rules = YaraRuleCompiler.compile(
+                "rule early { strings: $a = \"marker\" condition: $a and filesize > 10 }\n"
+                + "rule late { strings: $b = \"marker\" condition: #b > 1 }\n");
+        YaraCompiledRules.ScanState state = rules.newScanState();
+        YaraMatchSet matches = rules.newMatchSet();
+
+        feed(rules, state, matches, "...marker...", 0);
+        assertEquals(Collections.singletonList("early"), names(rules.decidedMatches(state)));
+        assertFalse(state.isDecided());
+        feed(rules, state, matches, "...marker...", 12);
+        assertEquals(Arrays.asList("early", "late"), names(rules.decidedMatches(state)));
+        assertTrue(state.isDecided());
+    }
+
+    @Test
+    public void failedGlobalRuleDecidesTheScan() {
+        YaraCompiledRules rules = YaraRuleCompiler.compile(
+                "global rule header { strings: $h = \"MZ\" condition: $h at 0 }\n"
+                + "rule payload { strings: $p = \"payload\" condition: $p }\n");
+        YaraCompiledRules.ScanState state = rules.newScanState();
+        YaraMatchSet matches = rules.newMatchSet();
+
+        feed(rules, state, matches, "..payload..", 0);
+        // The header can no longer match at 0, so nothing else matters
+        assertTrue(state.isDecided());
+        assertEquals(Collections.<String>emptyList(), names(rules.decidedMatches(state)));
+        assertTrue(rules.evaluate(matches, 11).isEmpty());
+    }
+
+    private static void feed(YaraCompiledRules rules, YaraCompiledRules.ScanState state, YaraMatchSet matches,
+                             String text, long base) {
+        byte[] data = ascii(text);
+        rules.scan(ByteBuffer.wrap(data), 0, data.length, base, Long.MAX_VALUE, matches, state);
+        rules.decide(matches, base + data.length, -1, state);
+    }
+
+    // The condition of a rule with strings $a, $b and $c (indexes 0 to 2)
+    private static final class Program {
+        private final YaraConditionProgram program;
+        private final YaraMatchSet matches = new YaraMatchSet(3);
+        private final int[] stack;
+
+        Program(String condition) {
+            YaraCompiledRules rules = YaraRuleCompiler.compile("rule test {\n"
+                    + "    strings:\n"
+                    + "        $a = \"aaaa\"\n"
+                    + "        $b = \"bbbb\"\n"
+                    + "        $c = \"cccc\"\n"
+                    + "    condition:\n"
+                    + "        " + condition + "\n"
+                    + "}\n");
+            int[] settle = new int[3];
+            Arrays.fill(settle, SETTLE);
+            this.program = YaraConditionProgram.compile(rules.rules.get(0).condition, settle);
+            this.stack = new int[program.depth];
+        }
+
+        void match(int string, long offset) {
+            matches.record(string, offset);
+        }
+
+        int evaluate(long scanned, long fileSize) {
+            return program.evaluate(matches, scanned, fileSize, new byte[1], stack);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.shabari.yara;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// The polling backend: a file written in bursts is scanned once after it
+// settles, rescanned when it changes again, and left alone otherwise.
+public class YaraDirectoryWatcherTest {
+    private static final long POLL_MS = 20;
+    private static final long DEBOUNCE_MS = 300;
+    // Long enough for a poll, the debounce and the scan
+    private static final long SETTLE_MS = 3000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final LinkedBlockingQueue<String> scanned = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<YaraScanResult> results = new LinkedBlockingQueue<>();
+    private YaraEngine engine;
+    private YaraDirectoryWatcher watcher;
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        engine = new YaraEngine();
+        assertTrue(engine.initialize());
+        assertTrue(engine.updateRules("rule evil { strings: $a = \"evil payload\" condition: $a }"));
+        watcher = new YaraDirectoryWatcher(engine, new YaraDirectoryWatcher.Listener() {
+            @Override
+            public void onScanResult(String filePath, YaraScanResult result) {
+                // The result is queued first, so it is there once the path is
+                results.add(result);
+                scanned.add(filePath);
+            }
+        }, POLL_MS);
+        watcher.setDebounceMillis(DEBOUNCE_MS);
+    }
+
+    @After
+    public void tearDown() {
+        watcher.stop();
+        engine.cleanup();
+    }
+
+    @Test
+    public void burstOfWritesIsScannedOnceAfterItSettles() throws Exception {
+        File root = folder.newFolder("watched");
+        assertTrue(watcher.addRoot(root.getPath()));
+        File file = new File(root, "download.bin");
+        for (int i = 0; i < 10; i++) {
+            append(file, i == 5 ? "evil payload" : "chunk " + i + "\n");
+            Thread.sleep(POLL_MS);
+        }
+
+        assertEquals(file.getAbsolutePath(), scanned.poll(SETTLE_MS, TimeUnit.MILLISECONDS));
+        assertFalse(results.poll().isSafe());
+        assertNull(scanned.poll(DEBOUNCE_MS * 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void changedFileIsRescanned() throws Exception {
+        File root = folder.newFolder("watched");
+        File nested = new File(root, "nested");
+        assertTrue(nested.mkdir());
+        assertTrue(watcher.addRoot(root.getPath()));
+        File file = new File(nested, "notes.txt");
+
+        append(file, "harmless");
+        assertEquals(file.getAbsolutePath(), scanned.poll(SETTLE_MS, TimeUnit.MILLISECONDS));
+        assertTrue(results.poll().isSafe());
+
+        append(file, " evil payload");
+        assertEquals(file.getAbsolutePath(), scanned.poll(SETTLE_MS, TimeUnit.MILLISECONDS));
+        assertFalse(results.poll().isSafe());
+    }
+
+    @Test
+    public void filesPresentAtStartAndDeletedFilesAreNotScanned() throws Exception {
+        File root = folder.newFolder("watched");
+        append(new File(root, "existing.txt"), "evil payload");
+        assertTrue(watcher.addRoot(root.getPath()));
+        File shortLived = new File(root, "partial.tmp");
+        append(shortLived, "evil payload");
+        Thread.sleep(POLL_MS * 3);
+        assertTrue(shortLived.delete());
+
+        assertNull(scanned.poll(DEBOUNCE_MS * 3, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void removedRootIsNoLongerScanned() throws Exception {
+        File root = folder.newFolder("watched");
+        assertTrue(watcher.addRoot(root.getPath()));
+        assertTrue(watcher.removeRoot(root.getPath()));
+        assertFalse(watcher.removeRoot(root.getPath()));
+        append(new File(root, "late.txt"), "evil payload");
+
+        assertNull(scanned.poll(DEBOUNCE_MS * 3, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void scanStatsForgetTheLeastRecentlySeenFiles() {
+        Map<String, long[]> stats = YaraDirectoryWatcher.newScanStats(2);
+        stats.put("/a", new long[] {1, 1});
+        stats.put("/b", new long[] {2, 2});
+        assertNotNull(stats.get("/a"));
+        stats.put("/c", new long[] {3, 3});
+
+        assertEquals(2, stats.size());
+        assertNotNull(stats.get("/a"));
+        assertNull(stats.get("/b"));
+        assertNotNull(stats.get("/c"));
+    }
+
+    private static void append(File file, String text) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.shabari.yara;
+
+import static com.shabari.yara.YaraTestRules.bytes;
+import static com.shabari.yara.YaraTestRules.rule;
+import static com.shabari.yara.YaraTestRules.scan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Hex strings against inputs whose matches are known, both the forms the
+// bit-parallel matcher takes and the long jumps that fall back to a regular
+// expression.
+public class YaraHexStringTest {
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void plainBytes() {
+        assertTrue(matches("{ 4D 5A 90 00 }", 0x11, 0x4D, 0x5A, 0x90, 0x00, 0x22));
+        assertFalse(matches("{ 4D 5A 90 00 }", 0x4D, 0x5A, 0x90, 0x01));
+    }
+
+    @Test
+    public void wildcardsAndNibbles() {
+        assertTrue(matches("{ 4D ?? 90 }", 0x4D, 0xFF, 0x90));
+        assertTrue(matches("{ 4D ?? 90 }", 0x4D, 0x00, 0x90));
+        assertFalse(matches("{ 4D ?? 90 }", 0x4D, 0x90));
+        assertTrue(matches("{ 4? 5A }", 0x4F, 0x5A));
+        assertFalse(matches("{ 4? 5A }", 0x5F, 0x5A));
+        assertTrue(matches("{ ?D 5A }", 0xAD, 0x5A));
+        assertFalse(matches("{ ?D 5A }", 0xAE, 0x5A));
+    }
+
+    @Test
+    public void negations() {
+        assertTrue(matches("{ 01 ~02 03 }", 0x01, 0x04, 0x03));
+        assertFalse(matches("{ 01 ~02 03 }", 0x01, 0x02, 0x03));
+    }
+
+    @Test
+    public void alternatives() {
+        assertTrue(matches("{ (01 02 | 03 04) 05 }", 0x01, 0x02, 0x05));
+        assertTrue(matches("{ (01 02 | 03 04) 05 }", 0x03, 0x04, 0x05));
+        assertFalse(matches("{ (01 02 | 03 04) 05 }", 0x01, 0x04, 0x05));
+        assertTrue(matches("{ AA (BB | CC DD) EE }", 0xAA, 0xCC, 0xDD, 0xEE));
+        assertFalse(matches("{ AA (BB | CC DD) EE }", 0xAA, 0xCC, 0xEE));
+    }
+
+    @Test
+    public void shortJumps() {
+        assertTrue(matches("{ 4D 5A [2-4] 50 45 }", 0x4D, 0x5A, 0x00, 0x00, 0x50, 0x45));
+        assertTrue(matches("{ 4D 5A [2-4] 50 45 }", 0x4D, 0x5A, 0x00, 0x00, 0x00, 0x00, 0x50, 0x45));
+        assertFalse(matches("{ 4D 5A [2-4] 50 45 }", 0x4D, 0x5A, 0x00, 0x50, 0x45));
+        assertFalse(matches("{ 4D 5A [2-4] 50 45 }", 0x4D, 0x5A, 0, 0, 0, 0, 0, 0x50, 0x45));
+        assertTrue(matches("{ 4D 5A [3] 50 }", 0x4D, 0x5A, 1, 2, 3, 0x50));
+        assertFalse(matches("{ 4D 5A [3] 50 }", 0x4D, 0x5A, 1, 2, 0x50));
+    }
+
+    @Test
+    public void longAndUnboundedJumps() {
+        byte[] data = new byte[3000];
+        data[10] = (byte) 0xCA;
+        data[11] = (byte) 0xFE;
+        data[2010] = (byte) 0xBA;
+        data[2011] = (byte) 0xBE;
+        assertTrue(matches("{ CA FE [1000-] BA BE }", data));
+        assertTrue(matches("{ CA FE [1500-2500] BA BE }", data));
+        assertFalse(matches("{ CA FE [10-1000] BA BE }", data));
+    }
+
+    @Test
+    public void matchesAreCountedAndPlaced() {
+        byte[] data = new byte[100];
+        for (int offset : new int[] {5, 40, 90}) {
+            data[offset] = (byte) 0xDE;
+            data[offset + 1] = (byte) 0xAD;
+        }
+        assertEquals(1, scan(rule("{ DE AD }", "#a == 3"), data));
+        assertEquals(1, scan(rule("{ DE AD }", "$a at 40"), data));
+        assertEquals(0, scan(rule("{ DE AD }", "$a at 41"), data));
+        assertEquals(1, scan(rule("{ DE ?? }", "$a in (85..95)"), data));
+    }
+
+    @Test
+    public void malformedStringsAreRejected() {
+        for (String hex : new String[] {"{ [2] 4D }", "{ 4D [2] }", "{ 4D 5 }", "{ 4D [5-2] 5A }",
+                "{ 4D [5000] 5A }"}) {
+            try {
+                YaraRuleCompiler.compile(rule(hex, "$a"));
+                fail("Compiled " + hex);
+            } catch (IllegalArgumentException expected) {
+                // Rejected at compile time rather than silently never matching
+            }
+        }
+    }
+
+    private static boolean matches(String hex, int... values) {
+        return matches(hex, bytes(values));
+    }
+
+    // Also checks the match is found at a distance from the start of the data
+    private static boolean matches(String hex, byte[] data) {
+        byte[] shifted = new byte[data.length + 100];
+        Arrays.fill(shifted, (byte) 0x77);
+        System.arraycopy(data, 0, shifted, 100, data.length);
+        boolean found = scan(rule(hex, "$a"), data) == 1;
+        assertEquals(found, scan(rule(hex, "$a"), shifted) == 1);
+        return found;
+    }
+}
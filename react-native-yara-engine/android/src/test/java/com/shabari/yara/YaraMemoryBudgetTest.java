@@ -0,0 +1,188 @@
+package com.shabari.yara;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Acquires wait while the budget is exhausted and are admitted in arrival
+// order as memory is released, from any thread; tryAcquire never waits or
+// overtakes a waiter; a request over the whole budget runs alone.
+public class YaraMemoryBudgetTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void acquireWaitsUntilMemoryIsReleased() throws Exception {
+        YaraMemoryBudget budget = new YaraMemoryBudget(100);
+        YaraMemoryBudget.Reservation held = budget.acquire(80);
+        assertEquals(0, budget.getWaits());
+
+        Acquirer waiter = new Acquirer(budget, 50, null);
+        waiter.awaitWaiting();
+        assertNull(waiter.reservation);
+        assertEquals(1, budget.getWaits());
+
+        held.release();
+        waiter.join(TIMEOUT_MS);
+        assertNotNull(waiter.reservation);
+        assertEquals(50, budget.getInUse());
+        assertEquals(80, budget.getPeak());
+    }
+
+    @Test
+    public void reservationIsReleasedOnceByAnyThread() throws Exception {
+        YaraMemoryBudget budget = new YaraMemoryBudget(100);
+        final YaraMemoryBudget.Reservation held = budget.acquire(60);
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                held.release();
+            }
+        });
+        releaser.start();
+        releaser.join(TIMEOUT_MS);
+        assertEquals(0, budget.getInUse());
+        assertEquals(0, held.getBytes());
+
+        YaraMemoryBudget.Reservation other = budget.acquire(30);
+        held.release();
+        assertEquals(30, budget.getInUse());
+        other.release();
+        assertEquals(0, budget.getInUse());
+    }
+
+    @Test
+    public void tryAcquireNeverWaits() throws Exception {
+        YaraMemoryBudget budget = new YaraMemoryBudget(100);
+        YaraMemoryBudget.Reservation held = budget.tryAcquire(70);
+        assertNotNull(held);
+        assertNull(budget.tryAcquire(40));
+        assertEquals(70, budget.getInUse());
+
+        // Would fit, but must not overtake a waiting acquire
+        Acquirer waiter = new Acquirer(budget, 50, null);
+        waiter.awaitWaiting();
+        assertNull(budget.tryAcquire(10));
+
+        held.release();
+        waiter.join(TIMEOUT_MS);
+        YaraMemoryBudget.Reservation fits = budget.tryAcquire(50);
+        assertNotNull(fits);
+        assertEquals(100, budget.getInUse());
+        assertEquals(1, budget.getWaits());
+    }
+
+    @Test
+    public void requestOverTheWholeBudgetRunsAlone() throws Exception {
+        YaraMemoryBudget budget = new YaraMemoryBudget(100);
+        YaraMemoryBudget.Reservation held = budget.acquire(30);
+        Acquirer large = new Acquirer(budget, 500, null);
+        large.awaitWaiting();
+
+        held.release();
+        large.join(TIMEOUT_MS);
+        assertNotNull(large.reservation);
+        assertEquals(500, budget.getInUse());
+        assertEquals(500, budget.getPeak());
+
+        // Nothing else runs beside it
+        assertNull(budget.tryAcquire(1));
+        Acquirer small = new Acquirer(budget, 1, null);
+        small.awaitWaiting();
+        large.reservation.release();
+        small.join(TIMEOUT_MS);
+        assertEquals(1, budget.getInUse());
+
+        // With nothing in flight it is admitted straight away, but an optional
+        // buffer that size is never taken
+        small.reservation.release();
+        assertNull(budget.tryAcquire(1000));
+        long waits = budget.getWaits();
+        assertNotNull(budget.acquire(1000));
+        assertEquals(waits, budget.getWaits());
+    }
+
+    @Test
+    public void waitersAreAdmittedInArrivalOrder() throws Exception {
+        YaraMemoryBudget budget = new YaraMemoryBudget(100);
+        YaraMemoryBudget.Reservation held = budget.acquire(50);
+        LinkedBlockingQueue<Long> admitted = new LinkedBlockingQueue<>();
+        Acquirer first = new Acquirer(budget, 100, admitted);
+        first.awaitWaiting();
+        // Fits beside what is held, but arrived after the first waiter
+        Acquirer second = new Acquirer(budget, 10, admitted);
+        second.awaitWaiting();
+        assertEquals(2, budget.getWaits());
+
+        held.release();
+        first.join(TIMEOUT_MS);
+        assertEquals(Long.valueOf(100), admitted.poll());
+        assertTrue(second.isAlive());
+        assertNull(second.reservation);
+
+        first.reservation.release();
+        second.join(TIMEOUT_MS);
+        assertEquals(Long.valueOf(10), admitted.poll());
+        assertEquals(10, budget.getInUse());
+    }
+
+    @Test
+    public void removingTheLimitAdmitsWaiters() throws Exception {
+        YaraMemoryBudget budget = new YaraMemoryBudget(100);
+        budget.acquire(100);
+        Acquirer waiter = new Acquirer(budget, 100, null);
+        waiter.awaitWaiting();
+
+        budget.setLimit(0);
+        waiter.join(TIMEOUT_MS);
+        assertNotNull(waiter.reservation);
+        assertEquals(200, budget.getInUse());
+    }
+
+    // Acquires on its own thread, which blocks while the budget makes it wait
+    private static final class Acquirer extends Thread {
+        private final YaraMemoryBudget budget;
+        private final long bytes;
+        private final LinkedBlockingQueue<Long> admitted;
+        volatile YaraMemoryBudget.Reservation reservation;
+
+        Acquirer(YaraMemoryBudget budget, long bytes, LinkedBlockingQueue<Long> admitted) {
+            this.budget = budget;
+            this.bytes = bytes;
+            this.admitted = admitted;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                YaraMemoryBudget.Reservation taken = budget.acquire(bytes);
+                if (admitted != null) {
+                    admitted.add(bytes);
+                }
+                reservation = taken;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void awaitWaiting() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (getState() != State.WAITING) {
+                assertTrue("acquire did not wait", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+    }
+}
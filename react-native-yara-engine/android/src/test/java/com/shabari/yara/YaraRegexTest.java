@@ -0,0 +1,135 @@
+package com.shabari.yara;
+
+import static com.shabari.yara.YaraTestRules.ascii;
+import static com.shabari.yara.YaraTestRules.bytes;
+import static com.shabari.yara.YaraTestRules.rule;
+import static com.shabari.yara.YaraTestRules.scan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Regular expression strings compiled by the Java engine against inputs
+// whose matches are known.
+public class YaraRegexTest {
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void repetitionAndOptionalParts() {
+        assertTrue(matches("/ab+c/", "xxabbbcxx"));
+        assertFalse(matches("/ab+c/", "xxacxx"));
+        assertTrue(matches("/colou?r/", "the color"));
+        assertTrue(matches("/colou?r/", "the colour"));
+        assertFalse(matches("/colou?r/", "the colouur"));
+        assertTrue(matches("/x{2,3}y/", "axxy"));
+        assertFalse(matches("/ax{2,3}y/", "axxxxy"));
+    }
+
+    @Test
+    public void classesAndAlternatives() {
+        assertTrue(matches("/[a-f0-9]{8}-[a-f0-9]{4}/", "id=deadbeef-0a1b"));
+        assertFalse(matches("/[a-f0-9]{8}-[a-f0-9]{4}/", "id=deadbeeg-0a1b"));
+        assertTrue(matches("/(cat|dog)fish/", "a dogfish"));
+        assertTrue(matches("/(cat|dog)fish/", "a catfish"));
+        assertFalse(matches("/(cat|dog)fish/", "a cowfish"));
+        assertTrue(matches("/\\d{3}-\\d{4}/", "call 555-1234 now"));
+        assertFalse(matches("/\\d{3}-\\d{4}/", "call 555-12x4 now"));
+        assertTrue(matches("/[^a-z]{3}/", "abc123def"));
+    }
+
+    @Test
+    public void escapedBytes() {
+        assertTrue(matches("/\\x4d\\x5a\\x90/", bytes(0x00, 0x4D, 0x5A, 0x90, 0x00)));
+        assertFalse(matches("/\\x4d\\x5a\\x90/", bytes(0x00, 0x4D, 0x5A, 0x91, 0x00)));
+    }
+
+    @Test
+    public void caseAndDotModifiers() {
+        assertTrue(matches("/hello world/ nocase", "say HeLLo WoRLD"));
+        assertTrue(matches("/hello world/i", "say HeLLo WoRLD"));
+        assertFalse(matches("/hello world/", "say HeLLo WoRLD"));
+        assertFalse(matches("/a.c/", "a\nc"));
+        assertTrue(matches("/a.c/s", "a\nc"));
+        assertTrue(matches("/a.c/", "abc"));
+    }
+
+    @Test
+    public void wideStrings() {
+        byte[] wide = "xx wide42 xx".getBytes(StandardCharsets.UTF_16LE);
+        byte[] narrow = ascii("xx wide42 xx");
+        assertTrue(matches("/wide[0-9]+/ wide", wide));
+        assertFalse(matches("/wide[0-9]+/ wide", narrow));
+        assertTrue(matches("/wide[0-9]+/ wide ascii", wide));
+        assertTrue(matches("/wide[0-9]+/ wide ascii", narrow));
+    }
+
+    @Test
+    public void matchesAreCountedByStart() {
+        assertEquals(2, count("/ab+/", "ab xx abbb"));
+        assertEquals(0, count("/ab+/", "a b"));
+    }
+
+    @Test
+    public void longRepeatedGroups() {
+        // Bodies large enough that compiling them grows the automaton's arrays
+        String group = "abcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabc";
+        assertTrue(matches("/x(" + group + ")*y/", "..xy.."));
+        assertTrue(matches("/x(" + group + ")*y/", "..x" + group + group + "y.."));
+        assertFalse(matches("/x(" + group + ")*y/", "..x" + group + "abcy.."));
+        assertTrue(matches("/x(" + group + ")+y/", "..x" + group + "y.."));
+        assertFalse(matches("/x(" + group + ")+y/", "..xy.."));
+        assertTrue(matches("/x(" + group + "|z)*y/", "..xz" + group + "zy.."));
+    }
+
+    @Test
+    public void matchAcrossPipelineBlocks() {
+        byte[] data = new byte[3 * YaraScanPipeline.BLOCK_SIZE];
+        Arrays.fill(data, (byte) '.');
+        byte[] planted = ascii("evil-0123456789");
+        System.arraycopy(planted, 0, data, YaraScanPipeline.BLOCK_SIZE - 6, planted.length);
+        assertTrue(matches("/evil-[0-9]{10}/", data));
+        assertFalse(matches("/evil-[0-9]{11}/", data));
+    }
+
+    @Test
+    public void unsupportedSyntaxIsRejected() {
+        for (String pattern : new String[] {"/^abc/", "/abc$/", "/\\bword/", "/(*a)/"}) {
+            try {
+                YaraRuleCompiler.compile(rule(pattern, "$a"));
+                fail("Compiled " + pattern);
+            } catch (IllegalArgumentException expected) {
+                // Named in the message so rule authors can find it
+                assertTrue(expected.getMessage(), expected.getMessage().contains("$a"));
+            }
+        }
+    }
+
+    private static boolean matches(String string, String text) {
+        return matches(string, ascii(text));
+    }
+
+    private static boolean matches(String string, byte[] data) {
+        return scan(rule(string, "$a"), data) == 1;
+    }
+
+    private static int count(String string, String text) {
+        int count = 0;
+        while (scan(rule(string, "#a == " + count), ascii(text)) == 0) {
+            count++;
+            if (count > 10) {
+                fail("More than 10 matches of " + string);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,213 @@
+package com.shabari.yara;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Lookups must give the same verdicts before and after deltas are merged in,
+// after the delta is folded into the base table, and after a reopen; a hash
+// that only shares the kept prefix of a known-good one is never known-good.
+public class YaraReputationSetTest {
+    private static final int BASE_ENTRIES = 20000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void lookupFindsBaseEntries() throws IOException {
+        File base = folder.newFile("base.bin");
+        File delta = new File(folder.getRoot(), "delta.bin");
+        buildBase(base);
+
+        YaraReputationSet set = YaraReputationSet.open(base, delta);
+        assertEquals(BASE_ENTRIES, set.size());
+        for (int i = 0; i < BASE_ENTRIES; i++) {
+            assertEquals(baseVerdict(i), set.lookup(sha256("file" + i)));
+        }
+        assertEquals(YaraReputationSet.UNKNOWN, set.lookup(sha256("unlisted")));
+    }
+
+    @Test
+    public void missingTablesAreEmpty() throws IOException {
+        YaraReputationSet set = YaraReputationSet.open(new File(folder.getRoot(), "base.bin"),
+                new File(folder.getRoot(), "delta.bin"));
+        assertEquals(0, set.size());
+        assertEquals(YaraReputationSet.UNKNOWN, set.lookup(sha256("file0")));
+    }
+
+    @Test
+    public void lookupIsCorrectAfterMergeAndCompaction() throws IOException {
+        File base = folder.newFile("base.bin");
+        File delta = new File(folder.getRoot(), "delta.bin");
+        buildBase(base);
+        YaraReputationSet set = YaraReputationSet.open(base, delta);
+
+        // Added, flipped and removed entries, in two deltas
+        set.applyDelta(deltaBlob("first.bin", 0, 100));
+        set.applyDelta(deltaBlob("second.bin", 100, 200));
+        assertVerdicts(set);
+
+        set.compact();
+        assertVerdicts(set);
+        assertEquals(sizeAfter(200), set.size());
+
+        YaraReputationSet reopened = YaraReputationSet.open(base, delta);
+        assertVerdicts(reopened);
+        assertEquals(set.size(), reopened.size());
+    }
+
+    @Test
+    public void largeDeltaIsFoldedIntoBase() throws IOException {
+        File base = folder.newFile("base.bin");
+        File delta = new File(folder.getRoot(), "delta.bin");
+        buildBase(base);
+        YaraReputationSet set = YaraReputationSet.open(base, delta);
+
+        // Past the compaction threshold, so applyDelta() compacts on its own
+        set.applyDelta(deltaBlob("large.bin", 0, 6000));
+        assertEquals(sizeAfter(6000), set.size());
+
+        YaraReputationSet reopened = YaraReputationSet.open(base, delta);
+        assertEquals(set.size(), reopened.size());
+        for (int i = 0; i < BASE_ENTRIES; i++) {
+            assertEquals(expected(i, 6000), reopened.lookup(sha256("file" + i)));
+        }
+    }
+
+    @Test
+    public void prefixCollisionIsNotKnownGood() throws IOException {
+        File base = folder.newFile("base.bin");
+        File delta = new File(folder.getRoot(), "delta.bin");
+        buildBase(base);
+        YaraReputationSet set = YaraReputationSet.open(base, delta);
+        // file13 is known-good, file0 known-bad (in the base table)
+        assertEquals(YaraReputationSet.UNKNOWN, set.lookup(collidingWith("file13")));
+        assertEquals(YaraReputationSet.KNOWN_BAD, set.lookup(collidingWith("file0")));
+
+        // file2 is removed, file10 flips to known-good (in the delta)
+        set.applyDelta(deltaBlob("delta-blob.bin", 0, 12));
+        assertEquals(YaraReputationSet.KNOWN_GOOD, set.lookup(sha256("file10")));
+        assertEquals(YaraReputationSet.UNKNOWN, set.lookup(collidingWith("file10")));
+        assertEquals(YaraReputationSet.UNKNOWN, set.lookup(collidingWith("file2")));
+
+        set.compact();
+        assertEquals(YaraReputationSet.KNOWN_GOOD, set.lookup(sha256("file13")));
+        assertEquals(YaraReputationSet.KNOWN_GOOD, set.lookup(sha256("file10")));
+        assertEquals(YaraReputationSet.UNKNOWN, set.lookup(collidingWith("file13")));
+        assertEquals(YaraReputationSet.UNKNOWN, set.lookup(collidingWith("file10")));
+        assertEquals(YaraReputationSet.KNOWN_BAD, set.lookup(collidingWith("file0")));
+    }
+
+    @Test
+    public void hashIsNotKnownGoodOnceFlippedToBad() throws IOException {
+        File base = folder.newFile("base.bin");
+        File delta = new File(folder.getRoot(), "delta.bin");
+        buildBase(base);
+        YaraReputationSet set = YaraReputationSet.open(base, delta);
+        File flip = new File(folder.getRoot(), "flip.bin");
+        YaraReputationSet.buildDeltaTable(flip, new byte[][] {sha256("file1"), sha256("file1")},
+                new int[] {YaraReputationSet.KNOWN_GOOD, YaraReputationSet.KNOWN_BAD});
+
+        set.applyDelta(flip);
+        assertEquals(YaraReputationSet.KNOWN_BAD, set.lookup(sha256("file1")));
+        set.compact();
+        assertEquals(YaraReputationSet.KNOWN_BAD, set.lookup(sha256("file1")));
+    }
+
+    // Delta entry i: every third adds a new hash, the others flip or remove a
+    // base entry
+    private File deltaBlob(String name, int from, int to) throws IOException {
+        byte[][] digests = new byte[to - from][];
+        int[] verdicts = new int[to - from];
+        for (int i = from; i < to; i++) {
+            digests[i - from] = sha256(deltaKey(i));
+            verdicts[i - from] = deltaVerdict(i);
+        }
+        File file = new File(folder.getRoot(), name);
+        YaraReputationSet.buildDeltaTable(file, digests, verdicts);
+        return file;
+    }
+
+    private void assertVerdicts(YaraReputationSet set) {
+        for (int i = 0; i < BASE_ENTRIES; i++) {
+            assertEquals("file" + i, expected(i, 200), set.lookup(sha256("file" + i)));
+        }
+        for (int i = 0; i < 200; i += 3) {
+            assertEquals(deltaKey(i), YaraReputationSet.KNOWN_BAD, set.lookup(sha256(deltaKey(i))));
+        }
+        assertEquals(YaraReputationSet.UNKNOWN, set.lookup(sha256("unlisted")));
+    }
+
+    private static String deltaKey(int i) {
+        return i % 3 == 0 ? "added" + i : "file" + i;
+    }
+
+    private static int deltaVerdict(int i) {
+        if (i % 3 == 0) {
+            return YaraReputationSet.KNOWN_BAD;
+        }
+        if (i % 3 == 1) {
+            return baseVerdict(i) == YaraReputationSet.KNOWN_BAD
+                    ? YaraReputationSet.KNOWN_GOOD : YaraReputationSet.KNOWN_BAD;
+        }
+        return YaraReputationSet.REMOVED;
+    }
+
+    // Verdict for base entry i once deltas 0..deltas-1 are applied
+    private static int expected(int i, int deltas) {
+        if (i >= deltas || i % 3 == 0) {
+            return baseVerdict(i);
+        }
+        int verdict = deltaVerdict(i);
+        return verdict == YaraReputationSet.REMOVED ? YaraReputationSet.UNKNOWN : verdict;
+    }
+
+    // Entries once deltas 0..deltas-1 are folded in: one added per three, one
+    // removed per three
+    private static long sizeAfter(int deltas) {
+        return BASE_ENTRIES + (deltas + 2) / 3 - deltas / 3;
+    }
+
+    private static void buildBase(File file) throws IOException {
+        byte[][] digests = new byte[BASE_ENTRIES][];
+        int[] verdicts = new int[BASE_ENTRIES];
+        for (int i = 0; i < BASE_ENTRIES; i++) {
+            digests[i] = sha256("file" + i);
+            verdicts[i] = baseVerdict(i);
+        }
+        YaraReputationSet.buildTable(file, digests, verdicts);
+    }
+
+    // A different hash that agrees with text's on every bit the tables keep
+    private static byte[] collidingWith(String text) {
+        byte[] digest = sha256(text);
+        digest[31] ^= 1;
+        return digest;
+    }
+
+    private static int baseVerdict(int i) {
+        return i % 5 == 0 ? YaraReputationSet.KNOWN_BAD : YaraReputationSet.KNOWN_GOOD;
+    }
+
+    private static byte[] sha256(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.shabari.yara;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Results packed into a batch decode back to the same fields, the way
+// unpackScanResults in index.js reads them, and equal verdicts and strings
+// are stored once.
+public class YaraResultBatchTest {
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void packedResultsDecodeToTheirFields() {
+        YaraScanResult threat = YaraScanResult.createThreatResult("Trojan.Test", YaraThreatCategory.SPYWARE,
+                YaraSeverity.HIGH, Arrays.asList("dropper", "packer"), 12, 4096, "Matched 2 rules");
+        threat.setSimilarityScore(0.75);
+        threat.setSimilarTo("family7");
+        threat.setSha256("ab12");
+        threat.setEntropy(7.5);
+        threat.setFileType("ELF");
+        YaraScanResult clean = YaraScanResult.createSafeResult(3, 100);
+
+        YaraResultBatch batch = new YaraResultBatch();
+        batch.add("/sdcard/a.bin", threat);
+        batch.add("/sdcard/b.txt", clean);
+        batch.add("/sdcard/gone", null);
+        assertEquals(3, batch.size());
+
+        List<Entry> entries = decode(batch);
+        Entry a = entries.get(0);
+        assertEquals("/sdcard/a.bin", a.filePath);
+        assertFalse(a.isSafe);
+        assertEquals("Trojan.Test", a.threatName);
+        assertEquals(threat.getThreatCategoryLabel(), a.threatCategory);
+        assertEquals(threat.getSeverityLabel(), a.severity);
+        assertEquals(Arrays.asList("dropper", "packer"), a.matchedRules);
+        assertEquals(12, a.scanTime, 0.0);
+        assertEquals(4096, a.fileSize, 0.0);
+        assertEquals(threat.getScanEngine(), a.scanEngine);
+        assertEquals("Matched 2 rules", a.details);
+        assertEquals(0.75, a.similarityScore, 0.0);
+        assertEquals("family7", a.similarTo);
+        assertEquals("", a.similarityDigest);
+        assertEquals("ab12", a.sha256);
+        assertEquals(7.5, a.entropy, 0.0);
+        assertEquals("ELF", a.fileType);
+
+        Entry b = entries.get(1);
+        assertEquals("/sdcard/b.txt", b.filePath);
+        assertTrue(b.isSafe);
+        assertEquals(Collections.<String>emptyList(), b.matchedRules);
+        assertEquals(3, b.scanTime, 0.0);
+        assertEquals(100, b.fileSize, 0.0);
+        assertEquals("No threats detected", b.details);
+
+        assertEquals("/sdcard/gone", entries.get(2).filePath);
+        assertFalse(entries.get(2).scanned);
+    }
+
+    @Test
+    public void equalVerdictsAndStringsAreStoredOnce() {
+        YaraResultBatch batch = new YaraResultBatch();
+        for (int i = 0; i < 1000; i++) {
+            batch.add("/sdcard/file" + (i % 10), YaraScanResult.createSafeResult(i, i));
+        }
+        assertEquals(1000, batch.size());
+        assertEquals(1, batch.getVerdicts().length / YaraResultBatch.VERDICT_FIELDS);
+        assertEquals(1000 * YaraResultBatch.RECORD_FIELDS, batch.getRecords().length);
+        // Ten paths, "" (threat name, similarTo, ...), severity, engine, details
+        assertEquals(14, batch.getStrings().size());
+        assertEquals(999, decode(batch).get(999).scanTime, 0.0);
+    }
+
+    @Test
+    public void ruleSetsWithTheSameNamesShareAVerdict() {
+        YaraRuleNames first = new YaraRuleNames(new String[] {"alpha", "beta", "gamma"});
+        YaraRuleNames second = new YaraRuleNames(new String[] {"gamma", "beta"});
+        YaraResultBatch batch = new YaraResultBatch();
+        batch.add("/a", threat(first, 2, 1));
+        batch.add("/b", threat(second, 0, 1));
+        batch.add("/c", threat(first, 1, 2));
+
+        assertEquals(2, batch.getVerdicts().length / YaraResultBatch.VERDICT_FIELDS);
+        // Each name is stored once, whichever table it came from
+        int[] rules = batch.getRules();
+        assertEquals(4, rules.length);
+        assertEquals(rules[0], rules[3]);
+        assertEquals(rules[1], rules[2]);
+        List<Entry> entries = decode(batch);
+        assertEquals(Arrays.asList("gamma", "beta"), entries.get(0).matchedRules);
+        assertEquals(Arrays.asList("gamma", "beta"), entries.get(1).matchedRules);
+        assertEquals(Arrays.asList("beta", "gamma"), entries.get(2).matchedRules);
+    }
+
+    @Test
+    public void batchGrowsPastItsInitialCapacity() {
+        String[] names = new String[300];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "rule" + i;
+        }
+        YaraRuleNames ruleNames = new YaraRuleNames(names);
+        YaraResultBatch batch = new YaraResultBatch();
+        for (int i = 0; i < names.length; i++) {
+            batch.add("/file" + i, threat(ruleNames, i, (i + 1) % names.length));
+        }
+
+        assertEquals(names.length, batch.getVerdicts().length / YaraResultBatch.VERDICT_FIELDS);
+        assertEquals(names.length * 2, batch.getRules().length);
+        List<Entry> entries = decode(batch);
+        for (int i = 0; i < names.length; i++) {
+            assertEquals("/file" + i, entries.get(i).filePath);
+            assertEquals(Arrays.asList(names[i], names[(i + 1) % names.length]), entries.get(i).matchedRules);
+        }
+    }
+
+    private static YaraScanResult threat(YaraRuleNames names, int... ruleIds) {
+        YaraScanResult result = new YaraScanResult(names);
+        result.setSafe(false);
+        result.setThreatName("Malware.Generic");
+        result.setThreatCategory(YaraThreatCategory.MALWARE);
+        result.setSeverity(YaraSeverity.HIGH);
+        for (int id : ruleIds) {
+            result.addMatchedRuleId(id);
+        }
+        return result;
+    }
+
+    // Reads the batch as unpackScanResults does
+    private static List<Entry> decode(YaraResultBatch batch) {
+        List<String> strings = batch.getStrings();
+        double[] verdicts = batch.getVerdicts();
+        double[] records = batch.getRecords();
+        int[] rules = batch.getRules();
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            int r = i * YaraResultBatch.RECORD_FIELDS;
+            Entry entry = new Entry();
+            entry.filePath = strings.get((int) records[r]);
+            entries.add(entry);
+            if (records[r + 1] < 0) {
+                continue;
+            }
+            int v = (int) records[r + 1] * YaraResultBatch.VERDICT_FIELDS;
+            entry.scanned = true;
+            entry.isSafe = ((int) verdicts[v] & YaraResultBatch.FLAG_SAFE) != 0;
+            entry.threatName = strings.get((int) verdicts[v + 1]);
+            entry.threatCategory = strings.get((int) verdicts[v + 2]);
+            entry.severity = strings.get((int) verdicts[v + 3]);
+            entry.scanEngine = strings.get((int) verdicts[v + 4]);
+            entry.details = strings.get((int) verdicts[v + 5]);
+            int firstRule = (int) verdicts[v + 6];
+            for (int k = 0; k < (int) verdicts[v + 7]; k++) {
+                entry.matchedRules.add(strings.get(rules[firstRule + k]));
+            }
+            entry.scanTime = records[r + 2];
+            entry.fileSize = records[r + 3];
+            entry.similarityScore = records[r + 4];
+            entry.similarTo = strings.get((int) records[r + 5]);
+            entry.similarityDigest = strings.get((int) records[r + 6]);
+            entry.sha256 = strings.get((int) records[r + 7]);
+            entry.entropy = records[r + 8];
+            entry.fileType = strings.get((int) records[r + 9]);
+        }
+        return entries;
+    }
+
+    private static final class Entry {
+        String filePath;
+        boolean scanned;
+        boolean isSafe;
+        String threatName;
+        String threatCategory;
+        String severity;
+        final List<String> matchedRules = new ArrayList<>();
+        double scanTime;
+        double fileSize;
+        String scanEngine;
+        String details;
+        double similarityScore;
+        String similarTo;
+        String similarityDigest;
+        String sha256;
+        double entropy;
+        String fileType;
+    }
+}
@@ -0,0 +1,222 @@
+package com.shabari.yara;
+
+import static com.shabari.yara.YaraTestRules.ascii;
+import static com.shabari.yara.YaraTestRules.names;
+import static com.shabari.yara.YaraTestRules.scan;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Compiled rule sets saved with YaraRulesFile must load back to the same
+// rules and verdicts, and damaged files must be refused rather than loaded.
+public class YaraRulesFileTest {
+    private static final String RULES =
+            "rule literal {\n"
+            + "    meta:\n"
+            + "        severity = \"critical\"\n"
+            + "        category = \"ransomware\"\n"
+            + "    strings:\n"
+            + "        $a = \"encrypt_all_files\"\n"
+            + "        $b = \"Your Files\" nocase wide ascii\n"
+            + "    condition:\n"
+            + "        $a or $b\n"
+            + "}\n"
+            + "private rule helper {\n"
+            + "    strings:\n"
+            + "        $h = { 4D 5A ?? [2-4] 50 45 }\n"
+            + "    condition:\n"
+            + "        $h at 0\n"
+            + "}\n"
+            + "rule composite {\n"
+            + "    meta:\n"
+            + "        category = \"trojan\"\n"
+            + "    strings:\n"
+            + "        $r = /c2\\.[a-z]{4,8}\\.(com|net)/\n"
+            + "        $x = { CA FE [100-] BA BE }\n"
+            + "    condition:\n"
+            + "        helper and (#r >= 2 or $x) and filesize < 1MB\n"
+            + "}\n";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void savedRulesLoadWithSameRulesAndVerdicts() throws IOException {
+        YaraCompiledRules compiled = YaraRuleCompiler.compile(RULES);
+        File file = new File(folder.getRoot(), "rules" + YaraRulesFile.EXTENSION);
+        YaraRulesFile.save(compiled, file);
+
+        assertTrue(YaraRulesFile.isCompiledRules(file));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        YaraCompiledRules loaded = YaraRulesFile.load(file);
+
+        assertEquals(compiled.getRuleCount(), loaded.getRuleCount());
+        assertEquals(compiled.getMaxPatternLength(), loaded.getMaxPatternLength());
+        for (int i = 0; i < compiled.rules.size(); i++) {
+            YaraRule before = compiled.rules.get(i);
+            YaraRule after = loaded.rules.get(i);
+            assertEquals(before.name, after.name);
+            assertEquals(before.isPrivate, after.isPrivate);
+            assertEquals(before.meta, after.meta);
+            assertEquals(before.severity, after.severity);
+            assertEquals(before.categoryLabel, after.categoryLabel);
+        }
+
+        for (byte[] input : inputs()) {
+            List<String> expected = names(scan(compiled, input, false));
+            assertEquals(expected, names(scan(loaded, input, false)));
+        }
+    }
+
+    @Test
+    public void inputsExerciseEveryRule() {
+        YaraCompiledRules compiled = YaraRuleCompiler.compile(RULES);
+        List<String> seen = new ArrayList<>();
+        for (byte[] input : inputs()) {
+            for (String name : names(scan(compiled, input, false))) {
+                if (!seen.contains(name)) {
+                    seen.add(name);
+                }
+            }
+        }
+        assertTrue(seen.contains("literal"));
+        assertTrue(seen.contains("composite"));
+        assertFalse(seen.contains("helper"));
+    }
+
+    @Test
+    public void saveReplacesAnExistingFile() throws IOException {
+        File file = new File(folder.getRoot(), "rules" + YaraRulesFile.EXTENSION);
+        YaraRulesFile.save(YaraRuleCompiler.compile("rule one { condition: true }"), file);
+        YaraRulesFile.save(YaraRuleCompiler.compile(RULES), file);
+
+        assertEquals(3, YaraRulesFile.load(file).getRuleCount());
+    }
+
+    @Test
+    public void truncatedFileIsRefused() throws IOException {
+        File file = new File(folder.getRoot(), "rules" + YaraRulesFile.EXTENSION);
+        YaraRulesFile.save(YaraRuleCompiler.compile(RULES), file);
+        long length = file.length();
+        for (long cut : new long[] {length - 1, length / 2, 12, 8, 4}) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(cut);
+            }
+            try {
+                YaraRulesFile.load(file);
+                fail("Loaded a rule set cut to " + cut + " of " + length + " bytes");
+            } catch (IOException expected) {
+                // Callers recompile from source
+            }
+        }
+    }
+
+    @Test
+    public void otherFilesAreNotCompiledRules() throws IOException {
+        File source = folder.newFile("rules.yar");
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(RULES.getBytes(StandardCharsets.UTF_8));
+        }
+        assertFalse(YaraRulesFile.isCompiledRules(source));
+        assertFalse(YaraRulesFile.isCompiledRules(new File(folder.getRoot(), "missing")));
+        try {
+            YaraRulesFile.load(source);
+            fail("Loaded rule source as a compiled rule set");
+        } catch (IOException expected) {
+            // Not a compiled rule set
+        }
+    }
+
+    @Test
+    public void engineLoadsSavedRules() throws IOException {
+        YaraEngine engine = new YaraEngine();
+        assertTrue(engine.initialize());
+        assertTrue(engine.updateRules(RULES));
+        File file = new File(folder.getRoot(), "saved" + YaraRulesFile.EXTENSION);
+        assertTrue(engine.saveCompiledRules(file.getPath()));
+
+        YaraEngine reloaded = new YaraEngine();
+        assertTrue(reloaded.initialize());
+        assertTrue(reloaded.loadRules(file.getPath()));
+        assertEquals(3, reloaded.getLoadedRulesCount());
+        byte[] input = ascii("please encrypt_all_files now");
+        YaraScanResult result = reloaded.scanMemory(input);
+        engine.cleanup();
+        reloaded.cleanup();
+
+        assertFalse(result.isSafe());
+        assertEquals("literal", result.getThreatName());
+        assertEquals("ransomware", result.getThreatCategoryLabel());
+        assertEquals("critical", result.getSeverityLabel());
+    }
+
+    @Test
+    public void cacheNameDependsOnSourceOnly() {
+        assertEquals(YaraRulesFile.cacheName(RULES), YaraRulesFile.cacheName(RULES));
+        assertFalse(YaraRulesFile.cacheName(RULES).equals(YaraRulesFile.cacheName(RULES + " ")));
+        assertTrue(YaraRulesFile.cacheName(RULES).endsWith(YaraRulesFile.EXTENSION));
+    }
+
+    @Test
+    public void arrayHelpersRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        YaraRulesFile.writeInts(out, new int[] {1, -2, Integer.MAX_VALUE});
+        YaraRulesFile.writeLongs(out, null);
+        YaraRulesFile.writeString(out, "n\u00e4me");
+        out.flush();
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        assertArrayEquals(new int[] {1, -2, Integer.MAX_VALUE}, YaraRulesFile.readInts(in));
+        assertNull(YaraRulesFile.readLongs(in));
+        assertEquals("n\u00e4me", YaraRulesFile.readString(in));
+    }
+
+    private static List<byte[]> inputs() {
+        List<byte[]> inputs = new ArrayList<>();
+        inputs.add(ascii("nothing to see"));
+        inputs.add(ascii("call encrypt_all_files"));
+        inputs.add("YOUR FILES".getBytes(StandardCharsets.UTF_16LE));
+
+        byte[] pe = new byte[600];
+        pe[0] = 0x4D;
+        pe[1] = 0x5A;
+        pe[5] = 0x50;
+        pe[6] = 0x45;
+        inputs.add(pe.clone());
+        byte[] domains = ascii("c2.evilcorp.com and c2.badhost.net");
+        byte[] withDomains = pe.clone();
+        System.arraycopy(domains, 0, withDomains, 100, domains.length);
+        inputs.add(withDomains);
+        byte[] withJump = pe.clone();
+        withJump[200] = (byte) 0xCA;
+        withJump[201] = (byte) 0xFE;
+        withJump[450] = (byte) 0xBA;
+        withJump[451] = (byte) 0xBE;
+        inputs.add(withJump);
+        return inputs;
+    }
+}
@@ -0,0 +1,148 @@
+package com.shabari.yara;
+
+import static com.shabari.yara.YaraTestRules.ascii;
+import static com.shabari.yara.YaraTestRules.names;
+import static com.shabari.yara.YaraTestRules.scan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// The serial pass, the parallel segment scan and a session fed in uneven
+// chunks must reach the same verdict, including for matches that straddle a
+// segment boundary and conditions on counts and offsets.
+public class YaraScanConsistencyTest {
+    private static final int SIZE = 3 * YaraParallelScanner.SEGMENT_SIZE + 12345;
+    private static final int BOUNDARY = YaraParallelScanner.SEGMENT_SIZE;
+
+    private static final String RULES =
+            "rule straddling {\n"
+            + "    strings:\n"
+            + "        $a = \"CROSSES_SEGMENT_BOUNDARY\"\n"
+            + "    condition:\n"
+            + "        $a\n"
+            + "}\n"
+            + "rule counted {\n"
+            + "    strings:\n"
+            + "        $b = \"marker-b\"\n"
+            + "    condition:\n"
+            + "        #b == 3\n"
+            + "}\n"
+            + "rule placed {\n"
+            + "    strings:\n"
+            + "        $c = { DE AD BE EF }\n"
+            + "    condition:\n"
+            + "        $c at " + (2 * BOUNDARY - 2) + "\n"
+            + "}\n"
+            + "rule ranged {\n"
+            + "    strings:\n"
+            + "        $d = /evil[0-9]{3}/\n"
+            + "    condition:\n"
+            + "        $d in (" + (3 * BOUNDARY) + ".." + (3 * BOUNDARY + 100) + ")\n"
+            + "}\n"
+            + "rule absent {\n"
+            + "    strings:\n"
+            + "        $e = \"never planted in the data\"\n"
+            + "    condition:\n"
+            + "        $e\n"
+            + "}\n"
+            + "rule large {\n"
+            + "    condition:\n"
+            + "        filesize > 12MB\n"
+            + "}\n";
+
+    private static final List<String> EXPECTED = Arrays.asList("straddling", "counted", "placed", "ranged", "large");
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void serialParallelAndSessionScansAgree() {
+        YaraCompiledRules rules = YaraRuleCompiler.compile(RULES);
+        byte[] data = sample();
+
+        assertEquals(EXPECTED, names(scan(rules, data, false)));
+        assertEquals(EXPECTED, names(scan(rules, data, true)));
+        assertEquals(EXPECTED, names(sessionScan(rules, data, new int[] {1, 7, 4093, 65536, 1 << 20, 3})));
+        assertEquals(EXPECTED, names(sessionScan(rules, data, new int[] {SIZE})));
+    }
+
+    @Test
+    public void scansAgreeWhenNothingMatches() {
+        YaraCompiledRules rules = YaraRuleCompiler.compile(RULES);
+        byte[] data = new byte[BOUNDARY + 100];
+        new Random(7).nextBytes(data);
+
+        assertTrue(scan(rules, data, false).isEmpty());
+        assertTrue(scan(rules, data, true).isEmpty());
+        assertTrue(sessionScan(rules, data, new int[] {999}).isEmpty());
+    }
+
+    @Test
+    public void engineMemoryScanAndSessionAgree() {
+        YaraEngine engine = new YaraEngine();
+        assertTrue(engine.initialize());
+        assertTrue(engine.updateRules(RULES));
+        // Segments on hosts with more than one processor
+        engine.setParallelScanThreshold(BOUNDARY);
+        byte[] data = sample();
+
+        YaraScanResult scanned = engine.scanMemory(data);
+        int handle = engine.beginScan();
+        for (int offset = 0; offset < data.length; offset += 100000) {
+            engine.feed(handle, Arrays.copyOfRange(data, offset, Math.min(data.length, offset + 100000)));
+        }
+        YaraScanResult finished = engine.finish(handle);
+        engine.cleanup();
+
+        assertEquals(EXPECTED, new ArrayList<>(scanned.getMatchedRules()));
+        assertEquals(EXPECTED, new ArrayList<>(finished.getMatchedRules()));
+        assertEquals(scanned.getThreatName(), finished.getThreatName());
+        assertEquals(scanned.getSeverity(), finished.getSeverity());
+        assertEquals(data.length, finished.getFileSize());
+    }
+
+    private static byte[] sample() {
+        byte[] data = new byte[SIZE];
+        Random random = new Random(42);
+        for (int i = 0; i < data.length; i++) {
+            // Lowercase letters only, so no planted pattern occurs by chance
+            data[i] = (byte) ('a' + random.nextInt(26));
+        }
+        plant(data, BOUNDARY - 10, "CROSSES_SEGMENT_BOUNDARY");
+        plant(data, 100, "marker-b");
+        plant(data, 3 * BOUNDARY - 4, "marker-b");
+        plant(data, SIZE - 8, "marker-b");
+        data[2 * BOUNDARY - 2] = (byte) 0xDE;
+        data[2 * BOUNDARY - 1] = (byte) 0xAD;
+        data[2 * BOUNDARY] = (byte) 0xBE;
+        data[2 * BOUNDARY + 1] = (byte) 0xEF;
+        plant(data, 3 * BOUNDARY + 50, "evil123");
+        return data;
+    }
+
+    private static void plant(byte[] data, int offset, String text) {
+        byte[] bytes = ascii(text);
+        System.arraycopy(bytes, 0, data, offset, bytes.length);
+    }
+
+    // Feeds data in chunks cycling through the given sizes
+    private static List<YaraRule> sessionScan(YaraCompiledRules rules, byte[] data, int[] chunks) {
+        YaraScanSession session = new YaraScanSession(rules, false, null);
+        int offset = 0;
+        for (int i = 0; offset < data.length; i++) {
+            int length = Math.min(chunks[i % chunks.length], data.length - offset);
+            session.feed(data, offset, length);
+            offset += length;
+        }
+        return session.finish();
+    }
+}
@@ -0,0 +1,175 @@
+package com.shabari.yara;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Journal entries must survive a reopen, and a record torn by a crash must
+// cost only that record: the journal reopens at the last good one and keeps
+// appending readable entries after it.
+public class YaraScanJournalTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void entriesAreQueriedNewestFirstAndFiltered() throws IOException {
+        File directory = folder.newFolder("journal");
+        YaraScanJournal journal = YaraScanJournal.open(directory);
+        journal.append("/a", clean());
+        journal.append("/b", threat("Trojan.X", "trojan", "severe"));
+        journal.append("/a", null);
+        assertTrue(journal.flush());
+
+        assertEquals(Arrays.asList("/a", "/b", "/a"), paths(query(journal)));
+        List<YaraScanJournal.Entry> threats = journal.query(null, YaraScanJournal.VERDICT_THREAT, 0,
+                Long.MAX_VALUE, 10);
+        assertEquals(1, threats.size());
+        YaraScanJournal.Entry threat = threats.get(0);
+        assertEquals("Trojan.X", threat.threatName);
+        assertEquals("trojan", threat.threatCategory);
+        assertEquals("severe", threat.severity);
+        assertEquals(Arrays.asList("rule_one", "rule_two"), threat.matchedRules);
+        assertEquals(2, journal.query("/a", YaraScanJournal.VERDICT_ANY, 0, Long.MAX_VALUE, 10).size());
+        assertEquals(1, journal.query("/a", YaraScanJournal.VERDICT_ANY, 0, Long.MAX_VALUE, 1).size());
+        assertEquals(0, journal.query(null, YaraScanJournal.VERDICT_ANY, Long.MAX_VALUE - 1, Long.MAX_VALUE,
+                10).size());
+        journal.close();
+    }
+
+    @Test
+    public void entriesSurviveReopen() throws IOException {
+        File directory = folder.newFolder("journal");
+        YaraScanJournal journal = YaraScanJournal.open(directory);
+        for (int i = 0; i < 100; i++) {
+            journal.append("/file" + i, i % 10 == 0 ? threat("T" + i, "malware", "high") : clean());
+        }
+        journal.close();
+
+        journal = YaraScanJournal.open(directory);
+        List<YaraScanJournal.Entry> entries = query(journal);
+        journal.close();
+        assertEquals(100, entries.size());
+        assertEquals("/file99", entries.get(0).filePath);
+        assertEquals("/file0", entries.get(99).filePath);
+    }
+
+    @Test
+    public void journalTruncatedMidRecordReopens() throws IOException {
+        File directory = folder.newFolder("journal");
+        YaraScanJournal journal = YaraScanJournal.open(directory);
+        for (int i = 0; i < 5; i++) {
+            journal.append("/before" + i, threat("T", "malware", "high"));
+        }
+        journal.close();
+
+        // Cut the last record in half, as a crash during its write would
+        File segment = lastSegment(directory);
+        long length = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(length - 20);
+        }
+
+        journal = YaraScanJournal.open(directory);
+        assertEquals(Arrays.asList("/before3", "/before2", "/before1", "/before0"), paths(query(journal)));
+        for (int i = 0; i < 3; i++) {
+            journal.append("/after" + i, clean());
+        }
+        journal.close();
+
+        journal = YaraScanJournal.open(directory);
+        assertEquals(Arrays.asList("/after2", "/after1", "/after0", "/before3", "/before2", "/before1",
+                "/before0"), paths(query(journal)));
+        journal.close();
+    }
+
+    @Test
+    public void corruptTailRecordIsDropped() throws IOException {
+        File directory = folder.newFolder("journal");
+        YaraScanJournal journal = YaraScanJournal.open(directory);
+        journal.append("/kept", clean());
+        journal.append("/corrupt", clean());
+        journal.close();
+
+        // Same length, wrong checksum
+        File segment = lastSegment(directory);
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xFF);
+        }
+        // Garbage after it, as from a torn header
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[] {0, 0, 0, 40, 1, 2});
+        }
+
+        journal = YaraScanJournal.open(directory);
+        assertEquals(Arrays.asList("/kept"), paths(query(journal)));
+        journal.append("/next", clean());
+        journal.close();
+
+        journal = YaraScanJournal.open(directory);
+        assertEquals(Arrays.asList("/next", "/kept"), paths(query(journal)));
+        journal.close();
+    }
+
+    @Test
+    public void appendsAfterCloseAreIgnored() throws IOException {
+        File directory = folder.newFolder("journal");
+        YaraScanJournal journal = YaraScanJournal.open(directory);
+        journal.append("/one", clean());
+        journal.close();
+        journal.append("/two", clean());
+
+        journal = YaraScanJournal.open(directory);
+        assertEquals(Arrays.asList("/one"), paths(query(journal)));
+        journal.close();
+    }
+
+    private static YaraScanResult clean() {
+        YaraScanResult result = new YaraScanResult();
+        result.setSafe(true);
+        result.setFileSize(10);
+        return result;
+    }
+
+    private static YaraScanResult threat(String name, String category, String severity) {
+        return new YaraScanResult(false, name, category, severity, Arrays.asList("rule_one", "rule_two"), 3,
+                1234, null, "details");
+    }
+
+    private static List<YaraScanJournal.Entry> query(YaraScanJournal journal) {
+        return journal.query(null, YaraScanJournal.VERDICT_ANY, 0, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    private static List<String> paths(List<YaraScanJournal.Entry> entries) {
+        List<String> paths = new ArrayList<>();
+        for (YaraScanJournal.Entry entry : entries) {
+            paths.add(entry.filePath);
+        }
+        return paths;
+    }
+
+    private static File lastSegment(File directory) {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return new File(directory, names[names.length - 1]);
+    }
+}
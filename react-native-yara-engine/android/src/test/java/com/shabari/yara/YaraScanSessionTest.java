@@ -0,0 +1,137 @@
+package com.shabari.yara;
+
+import static com.shabari.yara.YaraTestRules.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Incremental scans through the engine: chunks fed one by one reach the same
+// verdict as the whole input, and sessions that are never finished are
+// dropped rather than kept until the rules are reloaded.
+public class YaraScanSessionTest {
+    private static final String RULES =
+            "rule split {\n"
+            + "    strings:\n"
+            + "        $a = \"split across chunks\"\n"
+            + "    condition:\n"
+            + "        $a\n"
+            + "}\n"
+            + "rule tail {\n"
+            + "    strings:\n"
+            + "        $b = \"the end\"\n"
+            + "    condition:\n"
+            + "        $b and filesize > 30\n"
+            + "}\n";
+
+    private YaraEngine engine;
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Before
+    public void setUp() {
+        engine = new YaraEngine();
+        assertTrue(engine.initialize());
+        assertTrue(engine.updateRules(RULES));
+    }
+
+    @After
+    public void tearDown() {
+        engine.cleanup();
+    }
+
+    @Test
+    public void chunksReachTheWholeInputVerdict() {
+        byte[] data = ascii("xx split across chunks xx the end");
+        int handle = engine.beginScan();
+        assertTrue(handle > 0);
+        for (int offset = 0; offset < data.length; offset += 4) {
+            byte[] chunk = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + 4));
+            assertEquals(Collections.<String>emptyList(), engine.feed(handle, chunk));
+        }
+        YaraScanResult result = engine.finish(handle);
+
+        assertFalse(result.isSafe());
+        assertEquals(Arrays.asList("split", "tail"), result.getMatchedRules());
+        assertEquals(data.length, result.getFileSize());
+        assertEquals(engine.scanMemory(data).getMatchedRules(), result.getMatchedRules());
+    }
+
+    @Test
+    public void earlyMatchesAreReportedOnce() {
+        int handle = engine.beginScan(true);
+        assertEquals(Collections.<String>emptyList(), engine.feed(handle, ascii("... split acr")));
+        assertEquals(Arrays.asList("split"), engine.feed(handle, ascii("oss chunks ...")));
+        assertEquals(Collections.<String>emptyList(), engine.feed(handle, ascii("split across chunks")));
+        // filesize > 30 holds once more than 30 bytes have arrived
+        assertEquals(Arrays.asList("tail"), engine.feed(handle, ascii("the end")));
+        assertEquals(Arrays.asList("split", "tail"), engine.finish(handle).getMatchedRules());
+    }
+
+    @Test
+    public void cleanInputIsSafe() {
+        int handle = engine.beginScan();
+        engine.feed(handle, ascii("nothing here"));
+        engine.feed(handle, new byte[0]);
+        YaraScanResult result = engine.finish(handle);
+        assertTrue(result.isSafe());
+        assertEquals(12, result.getFileSize());
+    }
+
+    @Test
+    public void finishedAndAbortedSessionsAreGone() {
+        int finished = engine.beginScan();
+        assertNotNull(engine.finish(finished));
+        assertNull(engine.finish(finished));
+        assertNull(engine.feed(finished, ascii("more")));
+
+        int aborted = engine.beginScan();
+        assertTrue(engine.abortScan(aborted));
+        assertFalse(engine.abortScan(aborted));
+        assertNull(engine.finish(aborted));
+        assertEquals(0, engine.getOpenScanSessions());
+    }
+
+    @Test
+    public void idleSessionsAreDropped() throws InterruptedException {
+        engine.setScanSessionTimeout(250);
+        int idle = engine.beginScan();
+        int active = engine.beginScan();
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(100);
+            assertNotNull(engine.feed(active, ascii("data")));
+        }
+
+        assertNull(engine.feed(idle, ascii("too late")));
+        assertNull(engine.finish(idle));
+        assertEquals(16, engine.finish(active).getFileSize());
+    }
+
+    @Test
+    public void leastRecentlyFedSessionIsDroppedPastTheLimit() {
+        int[] handles = new int[YaraEngine.MAX_SCAN_SESSIONS];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = engine.beginScan();
+        }
+        // Keeps the oldest session in use, so the second oldest goes
+        assertNotNull(engine.feed(handles[0], ascii("data")));
+        int extra = engine.beginScan();
+
+        assertEquals(YaraEngine.MAX_SCAN_SESSIONS, engine.getOpenScanSessions());
+        assertFalse(engine.abortScan(handles[1]));
+        assertNotNull(engine.finish(handles[0]));
+        assertNotNull(engine.finish(extra));
+    }
+}
@@ -0,0 +1,192 @@
+package com.shabari.yara;
+
+import static com.shabari.yara.YaraTestRules.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// The ring keeps the newest events in order once it wraps, concurrent writers
+// neither lose events nor mix fields of different ones, and dump() prints one
+// line per event in the documented format.
+public class YaraScanTraceTest {
+    private static final Pattern START = Pattern.compile("\\+\\d+\\.\\d{3}ms scan (\\d+) start (\\S+) (\\d+) bytes");
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void disabledTraceRecordsNothing() {
+        YaraScanTrace trace = new YaraScanTrace(16);
+        assertEquals(0, trace.begin("/sdcard/a", 10));
+        trace.phase(0, YaraScanTrace.PHASE_READ, 0);
+        trace.finish(0, YaraScanResult.createSafeResult(0, 10), 0);
+        assertEquals("", trace.dump());
+    }
+
+    @Test
+    public void dumpPrintsOneLinePerEvent() {
+        YaraScanTrace trace = new YaraScanTrace(16);
+        trace.setEnabled(true);
+        YaraRuleNames names = new YaraRuleNames(new String[] {"Clean_Rule", "Android_Banking_Trojan"});
+        YaraScanResult threat = new YaraScanResult(names);
+        threat.setSafe(false);
+        threat.addMatchedRuleId(1);
+
+        long scan = trace.begin("/sdcard/Download/app.apk", 1048576);
+        long start = trace.now(scan);
+        trace.phase(scan, YaraScanTrace.PHASE_READ, start);
+        trace.event(scan, YaraScanTrace.SERIAL_FALLBACK);
+        trace.finish(scan, threat, start);
+        long failed = trace.begin("memory", 64);
+        trace.finish(failed, null, trace.now(failed));
+
+        String[] lines = trace.dump().split("\n");
+        assertEquals(7, lines.length);
+        assertEquals("+0.000ms scan " + scan + " start /sdcard/Download/app.apk 1048576 bytes", lines[0]);
+        assertMatches("\\+\\d+\\.\\d{3}ms scan " + scan + " read \\d+\\.\\d{3}ms", lines[1]);
+        assertMatches("\\+\\d+\\.\\d{3}ms scan " + scan + " serial \\(memory budget\\)", lines[2]);
+        assertMatches("\\+\\d+\\.\\d{3}ms scan " + scan + " match Android_Banking_Trojan", lines[3]);
+        assertMatches("\\+\\d+\\.\\d{3}ms scan " + scan + " finish threat \\d+\\.\\d{3}ms", lines[4]);
+        assertMatches("\\+\\d+\\.\\d{3}ms scan " + failed + " start memory 64 bytes", lines[5]);
+        assertMatches("\\+\\d+\\.\\d{3}ms scan " + failed + " finish error \\d+\\.\\d{3}ms", lines[6]);
+
+        trace.clear();
+        assertEquals("", trace.dump());
+    }
+
+    @Test
+    public void wrappedRingKeepsTheNewestEventsInOrder() {
+        YaraScanTrace trace = new YaraScanTrace(5);
+        assertEquals(8, trace.getCapacity());
+        trace.setEnabled(true);
+        for (int i = 0; i < 21; i++) {
+            trace.begin("/file" + i, i);
+        }
+
+        String[] lines = trace.dump().split("\n");
+        assertEquals(8, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("+0.000ms "));
+        for (int i = 0; i < lines.length; i++) {
+            Matcher start = parse(lines[i]);
+            assertEquals(13 + i, Integer.parseInt(start.group(3)));
+            assertEquals("/file" + (13 + i), start.group(2));
+        }
+    }
+
+    @Test
+    public void concurrentWritersLoseNoEvents() throws InterruptedException {
+        final YaraScanTrace trace = new YaraScanTrace(1 << 15);
+        trace.setEnabled(true);
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            final int writer = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        trace.begin("/w" + writer + "/" + i, writer * 10000 + i);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        String[] lines = trace.dump().split("\n");
+        assertEquals(16000, lines.length);
+        Set<String> scans = new HashSet<>();
+        Set<String> targets = new HashSet<>();
+        for (String line : lines) {
+            Matcher start = parse(line);
+            assertTrue(line, scans.add(start.group(1)));
+            assertTrue(line, targets.add(start.group(2)));
+            assertEquals(line, target(Long.parseLong(start.group(3))), start.group(2));
+        }
+    }
+
+    @Test
+    public void dumpWhileWritersOverwriteTheRingSkipsTornEvents() throws InterruptedException {
+        final YaraScanTrace trace = new YaraScanTrace(64);
+        trace.setEnabled(true);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> torn = new AtomicReference<>();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int writer = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; writing.get(); i = (i + 1) % 10000) {
+                        trace.begin(target(writer * 10000 + i), writer * 10000 + i);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        try {
+            for (int d = 0; d < 200 && torn.get() == null; d++) {
+                for (String line : trace.dump().split("\n")) {
+                    Matcher start = START.matcher(line);
+                    if (!line.isEmpty() && (!start.matches()
+                            || !target(Long.parseLong(start.group(3))).equals(start.group(2)))) {
+                        torn.set(line);
+                    }
+                }
+            }
+        } finally {
+            writing.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        assertNull(torn.get());
+    }
+
+    @Test
+    public void engineTracesItsScans() {
+        YaraEngine engine = new YaraEngine();
+        assertTrue(engine.initialize());
+        assertTrue(engine.updateRules("rule marker { strings: $a = \"marker\" condition: $a }"));
+        engine.clearScanTraces();
+        engine.setScanTracing(true);
+        try {
+            engine.scanMemory(ascii("...marker..."));
+            String dump = engine.dumpScanTraces();
+            assertTrue(dump, dump.contains(" start memory 12 bytes\n"));
+            assertTrue(dump, dump.contains(" match marker\n"));
+            assertTrue(dump, dump.contains(" finish threat "));
+        } finally {
+            engine.setScanTracing(false);
+            engine.clearScanTraces();
+            engine.cleanup();
+        }
+    }
+
+    private static String target(long size) {
+        return "/w" + size / 10000 + "/" + size % 10000;
+    }
+
+    private static Matcher parse(String line) {
+        Matcher start = START.matcher(line);
+        assertTrue(line, start.matches());
+        return start;
+    }
+
+    private static void assertMatches(String pattern, String line) {
+        assertTrue(line, line.matches(pattern));
+    }
+}
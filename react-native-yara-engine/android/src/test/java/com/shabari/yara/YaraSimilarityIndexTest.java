@@ -0,0 +1,139 @@
+package com.shabari.yara;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Near-duplicates within MAX_DISTANCE bits are found whichever bands the
+// differing bits fall in, farther digests are not, and lookups keep working
+// while digests are added.
+public class YaraSimilarityIndexTest {
+    private static final int SAMPLES = 2000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void silenceLog() {
+        YaraLog.setLogger(null);
+    }
+
+    @Test
+    public void nearDuplicatesAreFound() {
+        YaraSimilarityIndex index = sampleIndex();
+        long sample = digest(17);
+
+        YaraSimilarityIndex.Match exact = index.findNearest(sample);
+        assertEquals("family17", exact.label);
+        assertEquals(0, exact.distance);
+        assertEquals(1.0, exact.score, 0.0);
+        // One bit in each of three bands
+        YaraSimilarityIndex.Match near = index.findNearest(sample ^ (1L << 3) ^ (1L << 20) ^ (1L << 40));
+        assertEquals("family17", near.label);
+        assertEquals(3, near.distance);
+        // Three bits all in the top band
+        assertEquals(3, index.findNearest(sample ^ (7L << 60)).distance);
+    }
+
+    @Test
+    public void farDigestsAreNotFound() {
+        YaraSimilarityIndex index = sampleIndex();
+        long sample = digest(17);
+        // One bit in each band: no band agrees, and 4 bits is too far anyway
+        assertNull(index.findNearest(sample ^ 1L ^ (1L << 16) ^ (1L << 32) ^ (1L << 48)));
+        assertNull(index.findNearest(sample ^ 0xFL));
+        assertNull(index.findNearest(~sample));
+        assertNull(new YaraSimilarityIndex().findNearest(sample));
+    }
+
+    @Test
+    public void closestDigestWins() {
+        YaraSimilarityIndex index = new YaraSimilarityIndex();
+        long base = 0x123456789ABCDEF0L;
+        index.add(base ^ 0x3L, "two bits");
+        index.add(base ^ 0x1L, "one bit");
+        index.add(base ^ 0x7L, "three bits");
+
+        YaraSimilarityIndex.Match match = index.findNearest(base);
+        assertEquals("one bit", match.label);
+        assertEquals(1, match.distance);
+    }
+
+    @Test
+    public void savedIndexLoadsWithSameLookups() throws IOException {
+        YaraSimilarityIndex index = sampleIndex();
+        File file = new File(folder.getRoot(), "similarity.bin");
+        index.save(file);
+        YaraSimilarityIndex loaded = YaraSimilarityIndex.load(file);
+
+        assertEquals(SAMPLES, loaded.size());
+        for (int i = 0; i < SAMPLES; i += 97) {
+            YaraSimilarityIndex.Match match = loaded.findNearest(digest(i) ^ (1L << 33));
+            assertEquals("family" + i, match.label);
+            assertEquals(1, match.distance);
+        }
+    }
+
+    @Test
+    public void lookupsSeeEveryDigestWhileOthersAreAdded() throws InterruptedException {
+        final YaraSimilarityIndex index = sampleIndex();
+        final AtomicBoolean adding = new AtomicBoolean(true);
+        final AtomicInteger misses = new AtomicInteger();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i = 0;
+                    while (adding.get()) {
+                        if (index.findNearest(digest(i % SAMPLES)) == null) {
+                            misses.incrementAndGet();
+                        }
+                        i++;
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        Random random = new Random(99);
+        for (int i = 0; i < 200; i++) {
+            index.add(random.nextLong(), "added" + i);
+        }
+        adding.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(0, misses.get());
+        assertEquals(SAMPLES + 200, index.size());
+        assertNotNull(index.findNearest(digest(SAMPLES - 1)));
+        assertEquals("family5", index.findNearest(digest(5)).label);
+    }
+
+    private static YaraSimilarityIndex sampleIndex() {
+        long[] digests = new long[SAMPLES];
+        String[] labels = new String[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            digests[i] = digest(i);
+            labels[i] = "family" + i;
+        }
+        YaraSimilarityIndex index = new YaraSimilarityIndex();
+        index.addAll(digests, labels);
+        return index;
+    }
+
+    private static long digest(int sample) {
+        return new Random(1000 + sample).nextLong();
+    }
+}
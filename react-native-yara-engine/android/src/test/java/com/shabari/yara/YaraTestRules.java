@@ -0,0 +1,55 @@
+package com.shabari.yara;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Rule sources, inputs and Java engine scans shared by the tests
+final class YaraTestRules {
+    private YaraTestRules() {
+    }
+
+    // Rule "test" with the single string $a
+    static String rule(String string, String condition) {
+        return "rule test {\n"
+                + "    strings:\n"
+                + "        $a = " + string + "\n"
+                + "    condition:\n"
+                + "        " + condition + "\n"
+                + "}\n";
+    }
+
+    // Number of rules in source matching data
+    static int scan(String source, byte[] data) {
+        return scan(YaraRuleCompiler.compile(source), data, false).size();
+    }
+
+    // Rules matching data, scanned in one pass or in parallel segments
+    static List<YaraRule> scan(YaraCompiledRules rules, byte[] data, boolean parallel) {
+        YaraRuleMatcher matcher = new YaraRuleMatcher(rules, data.length, parallel);
+        YaraScanPipeline pipeline = new YaraScanPipeline();
+        pipeline.add(matcher);
+        pipeline.run(data);
+        return rules.evaluate(matcher.getMatches(), data.length);
+    }
+
+    static List<String> names(List<YaraRule> rules) {
+        List<String> names = new ArrayList<>();
+        for (YaraRule rule : rules) {
+            names.add(rule.name);
+        }
+        return names;
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
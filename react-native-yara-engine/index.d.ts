@@ -8,6 +8,77 @@ export interface YaraScanResult {
   fileSize: number;
   scanEngine: string;
   details: string;
+  similarityScore: number;
+  similarTo: string;
+  similarityDigest: string;
+  sha256: string;
+  entropy: number;
+  fileType: string;
+}
+
+export interface YaraWatchScanResult extends YaraScanResult {
+  filePath: string;
+}
+
+/**
+ * Results of scanFiles packed into flat arrays; decode with unpackScanResults.
+ * String fields are indexes into strings, and results with identical verdicts
+ * share one entry of verdicts.
+ */
+export interface YaraScanBatch {
+  count: number;
+  strings: string[];
+  /** 8 per verdict: flags (1 = safe), threatName, threatCategory, severity, scanEngine, details, first rule, rule count */
+  verdicts: number[];
+  /** 10 per file: filePath, verdict (-1 if the scan failed), scanTime, fileSize, similarityScore, similarTo, similarityDigest, sha256, entropy, fileType */
+  records: number[];
+  /** String indexes of matched rules */
+  rules: number[];
+}
+
+export interface YaraFileScanResult extends YaraScanResult {
+  filePath: string;
+}
+
+/**
+ * Decode a scanFiles payload. Files whose scan failed are returned with a
+ * null result.
+ */
+export function unpackScanResults(batch: YaraScanBatch): Array<{ filePath: string; result: YaraFileScanResult | null }>;
+
+export interface YaraJournalEntry {
+  /** When the scan finished, in epoch milliseconds */
+  time: number;
+  filePath: string;
+  verdict: 'clean' | 'threat' | 'error';
+  threatName: string;
+  threatCategory: string;
+  severity: string;
+  matchedRules: string[];
+  fileSize: number;
+  scanTime: number;
+  sha256: string;
+}
+
+export interface YaraJournalQuery {
+  filePath?: string;
+  verdict?: 'clean' | 'threat' | 'error';
+  /** Inclusive bounds in epoch milliseconds */
+  from?: number;
+  to?: number;
+  /** Maximum entries returned (default 100) */
+  limit?: number;
+}
+
+export interface YaraMemoryUsage {
+  /** Limit on scan buffers in flight, in bytes (0 for none) */
+  budget: number;
+  /** Bytes of scan buffers currently in flight */
+  inUse: number;
+  /** Highest inUse seen */
+  peak: number;
+  /** Scans that had to wait for memory */
+  waits: number;
 }
 
 export interface YaraEngineInterface {
@@ -19,11 +90,65 @@ export interface YaraEngineInterface {
 
   /**
    * Load YARA rules from a file path
-   * @param rulesPath - Absolute path to the rules file
+   * @param rulesPath - Absolute path to the rules file, either rule source or
+   * a compiled rule set written by saveCompiledRules
    * @returns Promise that resolves with success message
    */
   loadRules(rulesPath: string): Promise<string>;
 
+  /**
+   * Keep compiled forms of loaded rule sources in a directory, so loading the
+   * same rules again (including the default rules at startup) skips compiling.
+   * Call before initializeEngine.
+   * @param directoryPath - Absolute path of the cache directory, or null to disable
+   */
+  setRulesCacheDirectory(directoryPath: string | null): Promise<boolean>;
+
+  /**
+   * Write the loaded rules in compiled form; loadRules accepts the result
+   * @param path - Absolute path of the compiled rule set to write
+   * @returns Promise that resolves with success message
+   */
+  saveCompiledRules(path: string): Promise<string>;
+
+  /**
+   * Record every scanFile verdict (including files scanned by scanFiles and
+   * the directory watcher) in an append-only journal in this directory.
+   * Writes are batched in the background, so recording adds little to a scan.
+   * @param directoryPath - Absolute path of the journal directory, or null to close it
+   */
+  openJournal(directoryPath: string | null): Promise<boolean>;
+
+  /**
+   * Recent journal entries matching the query, newest first
+   */
+  queryJournal(query: YaraJournalQuery): Promise<YaraJournalEntry[]>;
+
+  /**
+   * Limit the memory all concurrent scans may hold in buffers. Scans wait for
+   * room when it is used up, and large inputs are scanned serially rather
+   * than in parallel segments when the budget cannot cover those.
+   * @param bytes - Limit in bytes, or 0 for none (default: a quarter of the heap)
+   */
+  setMemoryBudget(bytes: number): Promise<boolean>;
+
+  /**
+   * Current memory budget and the scan buffers held against it
+   */
+  getMemoryUsage(): Promise<YaraMemoryUsage>;
+
+  /**
+   * Record start, phase timings, matched rules and verdict of each scan in a
+   * fixed-size in-memory ring (off by default)
+   */
+  setScanTracing(enabled: boolean): Promise<boolean>;
+
+  /**
+   * Recent scan events still in the trace ring, oldest first, one per line
+   * @param clear - Empty the ring after reading it
+   */
+  getScanTraces(clear: boolean): Promise<string>;
+
   /**
    * Scan a file for malware using loaded YARA rules
    * @param filePath - Absolute path to the file to scan
@@ -38,6 +163,87 @@ export interface YaraEngineInterface {
    */
   scanMemory(data: number[]): Promise<YaraScanResult>;
 
+  /**
+   * Scan many files in one call; the results come back as a single packed
+   * payload instead of one object per file
+   * @param filePaths - Absolute paths of the files to scan, scanned in order
+   * @returns Promise that resolves with the packed results (see unpackScanResults)
+   */
+  scanFiles(filePaths: string[]): Promise<YaraScanBatch>;
+
+  /**
+   * Begin an incremental scan for data that arrives over time
+   * @param reportEarlyMatches - Whether feed() should report rules that already match
+   * @returns Promise that resolves with a scan session handle
+   */
+  beginScan(reportEarlyMatches: boolean): Promise<number>;
+
+  /**
+   * Feed the next chunk of data to an incremental scan
+   * @param handle - Handle returned by beginScan
+   * @param data - Array of bytes to scan
+   * @returns Promise that resolves with rules that became decided matches with this chunk
+   */
+  feed(handle: number, data: number[]): Promise<string[]>;
+
+  /**
+   * Finish an incremental scan
+   * @param handle - Handle returned by beginScan
+   * @returns Promise that resolves with scan results for all fed data
+   */
+  finish(handle: number): Promise<YaraScanResult>;
+
+  /**
+   * Discard an incremental scan without a verdict
+   * @param handle - Handle returned by beginScan
+   * @returns Promise that resolves with whether the session existed
+   */
+  abortScan(handle: number): Promise<boolean>;
+
+  /**
+   * Load the known-good / known-bad hash tables checked before pattern scanning
+   * @param basePath - Absolute path of the base table built offline
+   * @param deltaPath - Absolute path where feed deltas are kept (created if missing)
+   * @returns Promise that resolves with success message
+   */
+  loadReputationSet(basePath: string, deltaPath: string): Promise<string>;
+
+  /**
+   * Apply a reputation delta table downloaded from the feed
+   * @param deltaPath - Absolute path of the downloaded delta table
+   * @returns Promise that resolves with success message
+   */
+  applyReputationDelta(deltaPath: string): Promise<string>;
+
+  /**
+   * Load an index of similarity digests of known-bad samples. Scans then
+   * report how close the input is to its nearest known sample.
+   * @param indexPath - Absolute path of the similarity index
+   * @returns Promise that resolves with success message
+   */
+  loadSimilarityIndex(indexPath: string): Promise<string>;
+
+  /**
+   * Watch a directory tree and rescan files that are created or modified.
+   * Verdicts are emitted as `YaraWatchScanResult` events.
+   * @param directoryPath - Absolute path of the directory to watch
+   * @returns Promise that resolves once the directory is being watched
+   */
+  watchDirectory(directoryPath: string): Promise<boolean>;
+
+  /**
+   * Stop watching a directory tree
+   * @param directoryPath - Path previously passed to watchDirectory
+   * @returns Promise that resolves with whether the directory was watched
+   */
+  unwatchDirectory(directoryPath: string): Promise<boolean>;
+
+  /**
+   * Set how long a file must stay unchanged before it is rescanned
+   * @param debounceMs - Quiet period in milliseconds
+   */
+  setWatchDebounce(debounceMs: number): Promise<boolean>;
+
   /**
    * Update YARA rules with new rule content
    * @param rulesContent - YARA rules as string content
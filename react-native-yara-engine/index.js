@@ -1,5 +1,70 @@
 import { NativeModules, Platform } from 'react-native';
 
+const VERDICT_FIELDS = 8;
+const RECORD_FIELDS = 10;
+
+// Decodes the packed payload of scanFiles (see YaraResultBatch.java)
+export function unpackScanResults(batch) {
+  const { strings, verdicts, records, rules } = batch;
+  const entries = [];
+  for (let i = 0; i < batch.count; i++) {
+    const r = i * RECORD_FIELDS;
+    const filePath = strings[records[r]];
+    const verdict = records[r + 1];
+    if (verdict < 0) {
+      entries.push({ filePath, result: null });
+      continue;
+    }
+    const v = verdict * VERDICT_FIELDS;
+    const firstRule = verdicts[v + 6];
+    entries.push({
+      filePath,
+      result: {
+        filePath,
+        isSafe: (verdicts[v] & 1) !== 0,
+        threatName: strings[verdicts[v + 1]],
+        threatCategory: strings[verdicts[v + 2]],
+        severity: strings[verdicts[v + 3]],
+        matchedRules: rules.slice(firstRule, firstRule + verdicts[v + 7]).map((index) => strings[index]),
+        scanTime: records[r + 2],
+        fileSize: records[r + 3],
+        scanEngine: strings[verdicts[v + 4]],
+        details: strings[verdicts[v + 5]],
+        similarityScore: records[r + 4],
+        similarTo: strings[records[r + 5]],
+        similarityDigest: strings[records[r + 6]],
+        sha256: strings[records[r + 7]],
+        entropy: records[r + 8],
+        fileType: strings[records[r + 9]]
+      }
+    });
+  }
+  return entries;
+}
+
+// Packs results the way the native module does, for the mock
+function packScanResults(filePaths, results) {
+  const batch = { count: filePaths.length, strings: [], verdicts: [], records: [], rules: [] };
+  const indexes = new Map();
+  const string = (value) => {
+    if (!indexes.has(value)) {
+      indexes.set(value, batch.strings.length);
+      batch.strings.push(value);
+    }
+    return indexes.get(value);
+  };
+  results.forEach((result, i) => {
+    batch.records.push(string(filePaths[i]), batch.verdicts.length / VERDICT_FIELDS, result.scanTime,
+      result.fileSize, result.similarityScore, string(result.similarTo), string(result.similarityDigest),
+      string(result.sha256), result.entropy, string(result.fileType));
+    batch.verdicts.push(result.isSafe ? 1 : 0, string(result.threatName), string(result.threatCategory),
+      string(result.severity), string(result.scanEngine), string(result.details), batch.rules.length,
+      result.matchedRules.length);
+    result.matchedRules.forEach((rule) => batch.rules.push(string(rule)));
+  });
+  return batch;
+}
+
 // Enhanced Mock implementation for fallback
 const MockYaraEngine = {
   initializeEngine: () => {
@@ -75,10 +140,20 @@ const MockYaraEngine = {
       scanTime,
       fileSize: Math.floor(Math.random() * 1000000) + 1000,
     scanEngine: 'Mock YARA v4.5.0',
-      details
+      details,
+      similarityScore: 0,
+      similarTo: '',
+      similarityDigest: '',
+      sha256: '',
+      entropy: 0,
+      fileType: ''
     });
   },
   
+  scanFiles: (filePaths) =>
+    Promise.all(filePaths.map((filePath) => MockYaraEngine.scanFile(filePath)))
+      .then((results) => packScanResults(filePaths, results)),
+
   scanMemory: (data) => {
     console.log('🧠 Mock scanning memory, size:', data.length);
     
@@ -115,10 +190,64 @@ const MockYaraEngine = {
       scanTime: Math.floor(Math.random() * 50) + 25,
     fileSize: data.length,
     scanEngine: 'Mock YARA v4.5.0',
-      details
+      details,
+      similarityScore: 0,
+      similarTo: '',
+      similarityDigest: '',
+      sha256: '',
+      entropy: 0,
+      fileType: ''
     });
   },
   
+  _sessions: {},
+  _nextSession: 1,
+
+  beginScan: () => {
+    const handle = MockYaraEngine._nextSession++;
+    MockYaraEngine._sessions[handle] = [];
+    return Promise.resolve(handle);
+  },
+
+  feed: (handle, data) => {
+    const session = MockYaraEngine._sessions[handle];
+    if (!session) {
+      return Promise.reject(new Error('Unknown scan session'));
+    }
+    session.push(...data);
+    return Promise.resolve([]);
+  },
+
+  finish: (handle) => {
+    const session = MockYaraEngine._sessions[handle];
+    if (!session) {
+      return Promise.reject(new Error('Unknown scan session'));
+    }
+    delete MockYaraEngine._sessions[handle];
+    return MockYaraEngine.scanMemory(session);
+  },
+
+  abortScan: (handle) => {
+    const existed = handle in MockYaraEngine._sessions;
+    delete MockYaraEngine._sessions[handle];
+    return Promise.resolve(existed);
+  },
+
+  loadReputationSet: () => Promise.resolve('Reputation set loaded successfully'),
+  applyReputationDelta: () => Promise.resolve('Reputation delta applied successfully'),
+  loadSimilarityIndex: () => Promise.resolve('Similarity index loaded successfully'),
+  setRulesCacheDirectory: () => Promise.resolve(true),
+  saveCompiledRules: () => Promise.resolve('Compiled rules saved successfully'),
+  openJournal: () => Promise.resolve(true),
+  queryJournal: () => Promise.resolve([]),
+  setMemoryBudget: () => Promise.resolve(true),
+  getMemoryUsage: () => Promise.resolve({ budget: 0, inUse: 0, peak: 0, waits: 0 }),
+  setScanTracing: () => Promise.resolve(true),
+  getScanTraces: () => Promise.resolve(''),
+  watchDirectory: () => Promise.resolve(true),
+  unwatchDirectory: () => Promise.resolve(true),
+  setWatchDebounce: () => Promise.resolve(true),
+
   updateRules: () => {
     console.log('🔄 Mock YARA rules updated');
     return Promise.resolve('Rules updated successfully');
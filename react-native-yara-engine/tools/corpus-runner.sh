@@ -0,0 +1,25 @@
+#!/bin/sh
+# Builds the engine core for the host JVM (JDK 8+, no Android SDK needed) and
+# runs YaraCorpusRunner over a corpus directory. Without the native library
+# the Java engine is measured. Pass --help for options.
+set -e
+
+HERE=$(cd "$(dirname "$0")" && pwd)
+SOURCES="$HERE/../android/src/main/java/com/shabari/yara"
+OUT="${TMPDIR:-/tmp}/yara-corpus-runner"
+
+# Android and React Native adapters are not part of the host build
+ANDROID_ONLY="YaraModule.java YaraPackage.java YaraAndroidLogger.java YaraWritableMapWriter.java"
+
+FILES=""
+for file in "$SOURCES"/*.java; do
+    case " $ANDROID_ONLY " in
+        *" $(basename "$file") "*) ;;
+        *) FILES="$FILES $file" ;;
+    esac
+done
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -encoding UTF-8 -d "$OUT" $FILES "$HERE/corpus-runner/YaraCorpusRunner.java"
+exec java -cp "$OUT" com.shabari.yara.tools.YaraCorpusRunner "$@"
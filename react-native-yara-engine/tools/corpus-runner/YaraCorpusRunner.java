@@ -0,0 +1,323 @@
+package com.shabari.yara.tools;
+
+import com.shabari.yara.YaraEngine;
+import com.shabari.yara.YaraLog;
+import com.shabari.yara.YaraScanResult;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Scans a local corpus directory with the Java engine on the host JVM and
+// reports throughput (files/s, MB/s), per-file latency percentiles and, given
+// a baseline from an earlier run, every file whose verdict or matched rules
+// changed. Run through tools/corpus-runner.sh.
+public final class YaraCorpusRunner {
+    private static final String USAGE =
+            "Usage: corpus-runner.sh [options] <corpus-dir>\n"
+            + "  --rules <file>      Rule source or compiled rule set (default: built-in rules)\n"
+            + "  --threads <n>       Files scanned concurrently (default 1)\n"
+            + "  --warmup            Scan the corpus once untimed before measuring\n"
+            + "  --no-features       Skip SHA-256, entropy and file type extraction\n"
+            + "  --output <file>     Write per-file verdicts (usable as a baseline)\n"
+            + "  --baseline <file>   Report verdict differences against an earlier --output\n"
+            + "  --fail-on-diff      Exit with status 1 if any verdict differs from the baseline\n"
+            + "  --verbose           Print engine log messages";
+
+    private static final String CLEAN = "clean";
+    private static final String THREAT = "threat";
+    private static final String ERROR = "error";
+
+    private YaraCorpusRunner() {
+    }
+
+    // Outcome of one file, also the line format of --output / --baseline:
+    // path <TAB> verdict <TAB> rules (comma separated) <TAB> latency ms
+    private static final class Verdict {
+        final String path;
+        final String verdict;
+        final String rules;
+        final double latencyMs;
+
+        Verdict(String path, String verdict, String rules, double latencyMs) {
+            this.path = path;
+            this.verdict = verdict;
+            this.rules = rules;
+            this.latencyMs = latencyMs;
+        }
+
+        String toLine() {
+            return path + '\t' + verdict + '\t' + rules + '\t' + String.format("%.3f", latencyMs);
+        }
+
+        static Verdict parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 3) {
+                return null;
+            }
+            return new Verdict(fields[0], fields[1], fields[2], 0);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String rulesPath = null;
+        String outputPath = null;
+        String baselinePath = null;
+        String corpusPath = null;
+        int threads = 1;
+        boolean warmup = false;
+        boolean features = true;
+        boolean failOnDiff = false;
+        boolean verbose = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--rules") && i + 1 < args.length) {
+                rulesPath = args[++i];
+            } else if (arg.equals("--threads") && i + 1 < args.length) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (arg.equals("--output") && i + 1 < args.length) {
+                outputPath = args[++i];
+            } else if (arg.equals("--baseline") && i + 1 < args.length) {
+                baselinePath = args[++i];
+            } else if (arg.equals("--warmup")) {
+                warmup = true;
+            } else if (arg.equals("--no-features")) {
+                features = false;
+            } else if (arg.equals("--fail-on-diff")) {
+                failOnDiff = true;
+            } else if (arg.equals("--verbose")) {
+                verbose = true;
+            } else if (!arg.startsWith("--") && corpusPath == null) {
+                corpusPath = arg;
+            } else {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        }
+        if (corpusPath == null || !new File(corpusPath).isDirectory()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        YaraLog.setLogger(new YaraLog.StreamLogger(System.err, verbose ? YaraLog.DEBUG : YaraLog.ERROR));
+        YaraEngine engine = new YaraEngine();
+        if (!features) {
+            engine.setScanFeatures(0);
+        }
+        long loadStart = System.nanoTime();
+        if (!engine.initialize() || (rulesPath != null && !engine.loadRules(rulesPath))) {
+            System.err.println("Failed to load rules" + (rulesPath != null ? " from " + rulesPath : ""));
+            System.exit(2);
+        }
+        double loadMs = (System.nanoTime() - loadStart) / 1e6;
+
+        File root = new File(corpusPath);
+        List<File> files = new ArrayList<>();
+        collectFiles(root, files);
+        if (warmup) {
+            scanAll(engine, root, files, threads);
+        }
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        long start = System.nanoTime();
+        Verdict[] verdicts = scanAll(engine, root, files, threads);
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        engine.cleanup();
+
+        printSummary(engine, rulesPath, loadMs, verdicts, bytes, elapsedSeconds, threads);
+        if (outputPath != null) {
+            writeVerdicts(new File(outputPath), verdicts);
+        }
+        if (baselinePath != null) {
+            int differences = compare(readVerdicts(new File(baselinePath)), verdicts);
+            if (failOnDiff && differences > 0) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void collectFiles(File directory, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectFiles(child, files);
+            } else if (child.isFile()) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static Verdict[] scanAll(final YaraEngine engine, final File root, final List<File> files, int threads)
+            throws InterruptedException {
+        final Verdict[] verdicts = new Verdict[files.size()];
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < verdicts.length) {
+                    verdicts[index] = scan(engine, root, files.get(index));
+                }
+            }
+        };
+        if (threads == 1) {
+            worker.run();
+            return verdicts;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            pool.execute(worker);
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        return verdicts;
+    }
+
+    private static Verdict scan(YaraEngine engine, File root, File file) {
+        String path = root.toURI().relativize(file.toURI()).getPath();
+        long start = System.nanoTime();
+        YaraScanResult result;
+        try {
+            result = engine.scanFile(file.getPath());
+        } catch (RuntimeException e) {
+            result = null;
+        }
+        double latencyMs = (System.nanoTime() - start) / 1e6;
+        if (result == null) {
+            return new Verdict(path, ERROR, "", latencyMs);
+        }
+        List<String> rules = new ArrayList<>(result.getMatchedRules());
+        Collections.sort(rules);
+        StringBuilder joined = new StringBuilder();
+        for (String rule : rules) {
+            joined.append(joined.length() > 0 ? "," : "").append(rule);
+        }
+        return new Verdict(path, result.isSafe() ? CLEAN : THREAT, joined.toString(), latencyMs);
+    }
+
+    private static void printSummary(YaraEngine engine, String rulesPath, double loadMs, Verdict[] verdicts,
+                                     long bytes, double seconds, int threads) {
+        double[] latencies = new double[verdicts.length];
+        int threats = 0;
+        int errors = 0;
+        for (int i = 0; i < verdicts.length; i++) {
+            latencies[i] = verdicts[i].latencyMs;
+            if (verdicts[i].verdict.equals(THREAT)) {
+                threats++;
+            } else if (verdicts[i].verdict.equals(ERROR)) {
+                errors++;
+            }
+        }
+        Arrays.sort(latencies);
+        double megabytes = bytes / (1024.0 * 1024.0);
+        System.out.println("Engine:      " + engine.getVersion() + ", "
+                + (rulesPath != null ? rulesPath : "built-in rules") + String.format(" (loaded in %.1f ms)", loadMs));
+        System.out.println("Files:       " + verdicts.length + String.format(" (%.1f MB), %d threads", megabytes, threads));
+        System.out.println(String.format("Elapsed:     %.3f s", seconds));
+        System.out.println(String.format("Throughput:  %.1f files/s, %.2f MB/s",
+                seconds > 0 ? verdicts.length / seconds : 0, seconds > 0 ? megabytes / seconds : 0));
+        System.out.println(String.format("Latency:     p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                percentile(latencies, 100)));
+        System.out.println("Verdicts:    " + threats + " threats, " + (verdicts.length - threats - errors)
+                + " clean, " + errors + " errors");
+    }
+
+    // Nearest-rank percentile of sorted values
+    private static double percentile(double[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    private static void writeVerdicts(File file, Verdict[] verdicts) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8))) {
+            out.println("# path\tverdict\trules\tlatency_ms");
+            for (Verdict verdict : verdicts) {
+                out.println(verdict.toLine());
+            }
+        }
+    }
+
+    private static Map<String, Verdict> readVerdicts(File file) throws IOException {
+        Map<String, Verdict> verdicts = new LinkedHashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                Verdict verdict = Verdict.parse(line);
+                if (verdict != null) {
+                    verdicts.put(verdict.path, verdict);
+                }
+            }
+        }
+        return verdicts;
+    }
+
+    // Prints every file whose verdict or rules differ; returns how many do
+    private static int compare(Map<String, Verdict> baseline, Verdict[] verdicts) {
+        int gained = 0;
+        int lost = 0;
+        int changed = 0;
+        int added = 0;
+        List<String> lines = new ArrayList<>();
+        for (Verdict current : verdicts) {
+            Verdict previous = baseline.remove(current.path);
+            if (previous == null) {
+                added++;
+                continue;
+            }
+            if (previous.verdict.equals(current.verdict) && previous.rules.equals(current.rules)) {
+                continue;
+            }
+            if (current.verdict.equals(THREAT) && !previous.verdict.equals(THREAT)) {
+                gained++;
+                lines.add("+ " + current.path + "  " + previous.verdict + " -> " + current.rules);
+            } else if (previous.verdict.equals(THREAT) && !current.verdict.equals(THREAT)) {
+                lost++;
+                lines.add("- " + current.path + "  " + previous.rules + " -> " + current.verdict);
+            } else {
+                changed++;
+                lines.add("~ " + current.path + "  " + describe(previous) + " -> " + describe(current));
+            }
+        }
+        System.out.println("Baseline:    " + gained + " new detections, " + lost + " lost detections, "
+                + changed + " changed, " + added + " files not in baseline, " + baseline.size()
+                + " baseline files missing");
+        for (String line : lines) {
+            System.out.println("  " + line);
+        }
+        return gained + lost + changed;
+    }
+
+    private static String describe(Verdict verdict) {
+        return verdict.verdict.equals(THREAT) ? verdict.rules : verdict.verdict;
+    }
+}